@@ -0,0 +1,40 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mailbox.model;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * {@link Content} which can be written to a {@link WritableByteChannel} directly. Implementations
+ * should avoid copying the content to the heap where the underlying storage allows it, for example
+ * by using {@link java.nio.channels.FileChannel#transferTo(long, long, WritableByteChannel)}.
+ */
+public interface TransferableContent extends Content {
+
+    /**
+     * Write the whole content to the given {@link WritableByteChannel}
+     * 
+     * @param channel
+     * @return number of octets written
+     * @throws IOException
+     */
+    long transferTo(WritableByteChannel channel) throws IOException;
+}
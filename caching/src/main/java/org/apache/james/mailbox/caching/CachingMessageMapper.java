@@ -112,6 +112,13 @@ public class CachingMessageMapper<Id extends MailboxId> implements MessageMapper
 		return underlying.copy(mailbox, original);
 	}
 
+	@Override
+	public List<MessageMetaData> copy(Mailbox<Id> mailbox, List<Message<Id>> originals)
+			throws MailboxException {
+		invalidateMetadata(mailbox);
+		return underlying.copy(mailbox, originals);
+	}
+
 	@Override
 	public long getLastUid(Mailbox<Id> mailbox) throws MailboxException {
 		return cache.getLastUid(mailbox, underlying);
@@ -132,4 +139,9 @@ public class CachingMessageMapper<Id extends MailboxId> implements MessageMapper
         throw new UnsupportedOperationException("Move is not yet supported");
     }
 
+    @Override
+    public void saveMimeStructure(Mailbox<Id> mailbox, Message<Id> message, byte[] mimeStructure) throws MailboxException {
+        underlying.saveMimeStructure(mailbox, message, mimeStructure);
+    }
+
 }
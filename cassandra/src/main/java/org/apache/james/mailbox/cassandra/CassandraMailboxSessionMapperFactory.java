@@ -20,7 +20,9 @@
 package org.apache.james.mailbox.cassandra;
 
 import org.apache.james.mailbox.MailboxSession;
+import org.apache.james.mailbox.cassandra.mail.CassandraBlobStore;
 import org.apache.james.mailbox.cassandra.mail.CassandraMailboxMapper;
+import org.apache.james.mailbox.cassandra.mail.CassandraMessageIndexes;
 import org.apache.james.mailbox.cassandra.mail.CassandraMessageMapper;
 import org.apache.james.mailbox.cassandra.user.CassandraSubscriptionMapper;
 import org.apache.james.mailbox.store.MailboxSessionMapperFactory;
@@ -33,7 +35,9 @@ import com.datastax.driver.core.Session;
 
 /**
  * Cassandra implementation of {@link MailboxSessionMapperFactory}
- * 
+ * <p>
+ * The statements of the mappers are prepared when the factory is created, and
+ * shared by all the mappers it creates: the tables must exist by then.
  */
 public class CassandraMailboxSessionMapperFactory extends MailboxSessionMapperFactory<CassandraId> {
     private static final int DEFAULT_MAX_RETRY = 1000;
@@ -42,28 +46,45 @@ public class CassandraMailboxSessionMapperFactory extends MailboxSessionMapperFa
     private final UidProvider<CassandraId> uidProvider;
     private final ModSeqProvider<CassandraId> modSeqProvider;
     private final CassandraTypesProvider typesProvider;
+    private final CassandraBlobStore blobStore;
+    private final CassandraMessageIndexes indexes;
+    private final CassandraMessageMapper.Statements messageStatements;
+    private final CassandraMailboxMapper.Statements mailboxStatements;
     private int maxRetry;
+    private int fetchSize;
 
     public CassandraMailboxSessionMapperFactory(UidProvider<CassandraId> uidProvider, ModSeqProvider<CassandraId> modSeqProvider, Session session, CassandraTypesProvider typesProvider) {
         this.uidProvider = uidProvider;
         this.modSeqProvider = modSeqProvider;
         this.session = session;
         this.maxRetry = DEFAULT_MAX_RETRY;
+        this.fetchSize = CassandraMessageMapper.DEFAULT_FETCH_SIZE;
         this.typesProvider = typesProvider;
+        this.blobStore = new CassandraBlobStore(session);
+        this.indexes = new CassandraMessageIndexes(session);
+        this.messageStatements = new CassandraMessageMapper.Statements(session);
+        this.mailboxStatements = new CassandraMailboxMapper.Statements(session);
     }
 
     public void setMaxRetry(int maxRetry) {
         this.maxRetry = maxRetry;
     }
 
+    /**
+     * Set the number of rows read at once when scanning messages
+     */
+    public void setFetchSize(int fetchSize) {
+        this.fetchSize = fetchSize;
+    }
+
     @Override
     public CassandraMessageMapper createMessageMapper(MailboxSession mailboxSession) {
-        return new CassandraMessageMapper(session, uidProvider, modSeqProvider, null, maxRetry, typesProvider);
+        return new CassandraMessageMapper(session, uidProvider, modSeqProvider, null, maxRetry, typesProvider, blobStore, indexes, messageStatements, fetchSize);
     }
 
     @Override
     public MailboxMapper<CassandraId> createMailboxMapper(MailboxSession mailboxSession) {
-        return new CassandraMailboxMapper(session, typesProvider, maxRetry);
+        return new CassandraMailboxMapper(session, typesProvider, maxRetry, mailboxStatements, blobStore, indexes);
     }
 
     @Override
@@ -36,14 +36,19 @@ import com.datastax.driver.core.schemabuilder.SchemaBuilder;
 import com.datastax.driver.core.schemabuilder.SchemaStatement;
 
 import org.apache.james.mailbox.cassandra.table.CassandraACLTable;
+import org.apache.james.mailbox.cassandra.table.CassandraBlobReferencesTable;
+import org.apache.james.mailbox.cassandra.table.CassandraBlobTable;
 import org.apache.james.mailbox.cassandra.table.CassandraCurrentQuota;
 import org.apache.james.mailbox.cassandra.table.CassandraDefaultMaxQuota;
+import org.apache.james.mailbox.cassandra.table.CassandraFirstUnseenTable;
 import org.apache.james.mailbox.cassandra.table.CassandraMailboxCountersTable;
 import org.apache.james.mailbox.cassandra.table.CassandraMailboxTable;
 import org.apache.james.mailbox.cassandra.table.CassandraMaxQuota;
+import org.apache.james.mailbox.cassandra.table.CassandraMessageIndexesTable;
 import org.apache.james.mailbox.cassandra.table.CassandraMessageModseqTable;
 import org.apache.james.mailbox.cassandra.table.CassandraMessageTable;
 import org.apache.james.mailbox.cassandra.table.CassandraMessageUidTable;
+import org.apache.james.mailbox.cassandra.table.CassandraRecentTable;
 import org.apache.james.mailbox.cassandra.table.CassandraSubscriptionTable;
 
 import java.util.Arrays;
@@ -87,6 +92,7 @@ public class CassandraTableManager {
                 .addColumn(CassandraMessageTable.FULL_CONTENT_OCTETS, cint())
                 .addColumn(CassandraMessageTable.BODY_CONTENT, blob())
                 .addColumn(CassandraMessageTable.HEADER_CONTENT, blob())
+                .addColumn(CassandraMessageTable.BODY_BLOB, text())
                 .addColumn(CassandraMessageTable.Flag.ANSWERED, cboolean())
                 .addColumn(CassandraMessageTable.Flag.DELETED, cboolean())
                 .addColumn(CassandraMessageTable.Flag.DRAFT, cboolean())
@@ -96,6 +102,33 @@ public class CassandraTableManager {
                 .addColumn(CassandraMessageTable.Flag.USER, cboolean())
                 .addColumn(CassandraMessageTable.Flag.USER_FLAGS, set(text()))
                 .addUDTListColumn(CassandraMessageTable.PROPERTIES, SchemaBuilder.frozen(CassandraTypesProvider.TYPE.Property.getName()))),
+        Recent(CassandraRecentTable.TABLE_NAME,
+            SchemaBuilder.createTable(CassandraRecentTable.TABLE_NAME)
+                .ifNotExists()
+                .addPartitionKey(CassandraRecentTable.MAILBOX_ID, timeuuid())
+                .addClusteringColumn(CassandraRecentTable.IMAP_UID, bigint())),
+        FirstUnseen(CassandraFirstUnseenTable.TABLE_NAME,
+            SchemaBuilder.createTable(CassandraFirstUnseenTable.TABLE_NAME)
+                .ifNotExists()
+                .addPartitionKey(CassandraFirstUnseenTable.MAILBOX_ID, timeuuid())
+                .addClusteringColumn(CassandraFirstUnseenTable.IMAP_UID, bigint())),
+        MessageIndexes(CassandraMessageIndexesTable.TABLE_NAME,
+            SchemaBuilder.createTable(CassandraMessageIndexesTable.TABLE_NAME)
+                .ifNotExists()
+                .addPartitionKey(CassandraMessageIndexesTable.MAILBOX_ID, timeuuid())
+                .addColumn(CassandraMessageIndexesTable.INDEXED, cboolean())
+                .addColumn(CassandraMessageIndexesTable.FIRST_UNSEEN_FROM, bigint())),
+        Blob(CassandraBlobTable.TABLE_NAME,
+            SchemaBuilder.createTable(CassandraBlobTable.TABLE_NAME)
+                .ifNotExists()
+                .addPartitionKey(CassandraBlobTable.ID, text())
+                .addClusteringColumn(CassandraBlobTable.CHUNK_NUMBER, cint())
+                .addColumn(CassandraBlobTable.DATA, blob())),
+        BlobReferences(CassandraBlobReferencesTable.TABLE_NAME,
+            SchemaBuilder.createTable(CassandraBlobReferencesTable.TABLE_NAME)
+                .ifNotExists()
+                .addPartitionKey(CassandraBlobReferencesTable.ID, text())
+                .addColumn(CassandraBlobReferencesTable.COUNT, counter())),
         Subscription(CassandraSubscriptionTable.TABLE_NAME,
             SchemaBuilder.createTable(CassandraSubscriptionTable.TABLE_NAME)
                 .ifNotExists()
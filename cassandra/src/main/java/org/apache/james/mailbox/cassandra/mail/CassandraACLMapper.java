@@ -19,6 +19,7 @@
 
 package org.apache.james.mailbox.cassandra.mail;
 
+import static com.datastax.driver.core.querybuilder.QueryBuilder.bindMarker;
 import static com.datastax.driver.core.querybuilder.QueryBuilder.eq;
 import static com.datastax.driver.core.querybuilder.QueryBuilder.insertInto;
 import static com.datastax.driver.core.querybuilder.QueryBuilder.select;
@@ -42,6 +43,7 @@ import org.apache.james.mailbox.store.mail.model.Mailbox;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.datastax.driver.core.PreparedStatement;
 import com.datastax.driver.core.ResultSet;
 import com.datastax.driver.core.Row;
 import com.datastax.driver.core.Session;
@@ -56,8 +58,14 @@ public class CassandraACLMapper {
         void inject();
     }
 
+    private static final String SELECT_ACL = select(CassandraACLTable.ACL, CassandraACLTable.VERSION)
+        .from(CassandraACLTable.TABLE_NAME)
+        .where(eq(CassandraMailboxTable.ID, bindMarker()))
+        .toString();
+
     private final Mailbox<CassandraId> mailbox;
     private final Session session;
+    private final Statements statements;
     private final int maxRetry;
     private final CodeInjector codeInjector;
 
@@ -68,10 +76,19 @@ public class CassandraACLMapper {
     }
 
     public CassandraACLMapper(Mailbox<CassandraId> mailbox, Session session, int maxRetry, CodeInjector codeInjector) {
+        this(mailbox, session, new Statements(session), maxRetry, codeInjector);
+    }
+
+    public CassandraACLMapper(Mailbox<CassandraId> mailbox, Session session, Statements statements, int maxRetry) {
+        this(mailbox, session, statements, maxRetry, () -> {});
+    }
+
+    public CassandraACLMapper(Mailbox<CassandraId> mailbox, Session session, Statements statements, int maxRetry, CodeInjector codeInjector) {
         Preconditions.checkArgument(maxRetry > 0);
         Preconditions.checkArgument(mailbox.getMailboxId() != null);
         this.mailbox = mailbox;
         this.session = session;
+        this.statements = statements;
         this.maxRetry = maxRetry;
         this.codeInjector = codeInjector;
     }
@@ -107,11 +124,7 @@ public class CassandraACLMapper {
     }
 
     private ResultSet getStoredACLRow() {
-        return session.execute(
-            select(CassandraACLTable.ACL, CassandraACLTable.VERSION)
-                .from(CassandraACLTable.TABLE_NAME)
-                .where(eq(CassandraMailboxTable.ID, mailbox.getMailboxId().asUuid()))
-        );
+        return session.execute(statements.selectAclStatement.bind(mailbox.getMailboxId().asUuid()));
     }
 
     private ResultSet updateStoredACL(ACLWithVersion aclWithVersion) {
@@ -180,4 +193,16 @@ public class CassandraACLMapper {
             }
         }
     }
+
+    /**
+     * The statements used by the ACL mappers, to be prepared once and shared by
+     * the mappers of all the mailboxes.
+     */
+    public static class Statements {
+        private final PreparedStatement selectAclStatement;
+
+        public Statements(Session session) {
+            this.selectAclStatement = session.prepare(SELECT_ACL);
+        }
+    }
 }
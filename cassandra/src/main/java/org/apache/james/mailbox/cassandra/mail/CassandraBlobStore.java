@@ -0,0 +1,240 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailbox.cassandra.mail;
+
+import static com.datastax.driver.core.querybuilder.QueryBuilder.bindMarker;
+import static com.datastax.driver.core.querybuilder.QueryBuilder.decr;
+import static com.datastax.driver.core.querybuilder.QueryBuilder.eq;
+import static com.datastax.driver.core.querybuilder.QueryBuilder.gte;
+import static com.datastax.driver.core.querybuilder.QueryBuilder.incr;
+import static com.datastax.driver.core.querybuilder.QueryBuilder.insertInto;
+import static com.datastax.driver.core.querybuilder.QueryBuilder.select;
+import static com.datastax.driver.core.querybuilder.QueryBuilder.timestamp;
+import static com.datastax.driver.core.querybuilder.QueryBuilder.update;
+import static org.apache.james.mailbox.cassandra.table.CassandraBlobTable.CHUNK_NUMBER;
+import static org.apache.james.mailbox.cassandra.table.CassandraBlobTable.DATA;
+import static org.apache.james.mailbox.cassandra.table.CassandraBlobTable.ID;
+import static org.apache.james.mailbox.cassandra.table.CassandraBlobTable.TABLE_NAME;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.james.mailbox.cassandra.table.CassandraBlobReferencesTable;
+
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.querybuilder.QueryBuilder;
+import com.google.common.hash.Hashing;
+
+/**
+ * Stores contents in fixed-size chunks of the blob table. Blobs are addressed by
+ * the SHA-256 of their content, so identical contents are only stored once.
+ * <p>
+ * The number of messages referencing a blob is counted in the blob references
+ * table: {@link #save(byte[])} adds a reference, {@link #release(String)} removes
+ * one and deletes the chunks once no reference is left. A save that raises the
+ * count to one, or that finds the blob incomplete, (re)writes the chunks. The
+ * deletion of the chunks is timestamped before the count was read, so that it
+ * never shadows chunks written by a save racing with the last release.
+ */
+public class CassandraBlobStore {
+
+    public static final int CHUNK_SIZE = 64 * 1024;
+    private static final int CHUNKS_PER_PAGE = 4;
+
+    private static final String INSERT_CHUNK = insertInto(TABLE_NAME)
+        .value(ID, bindMarker())
+        .value(CHUNK_NUMBER, bindMarker())
+        .value(DATA, bindMarker())
+        .toString();
+    private static final String SELECT_CHUNK = select(CHUNK_NUMBER)
+        .from(TABLE_NAME)
+        .where(eq(ID, bindMarker()))
+        .and(eq(CHUNK_NUMBER, bindMarker()))
+        .toString();
+    private static final String SELECT_CHUNKS_FROM = select(DATA)
+        .from(TABLE_NAME)
+        .where(eq(ID, bindMarker()))
+        .and(gte(CHUNK_NUMBER, bindMarker()))
+        .toString();
+    private static final String DELETE_CHUNKS = QueryBuilder.delete()
+        .from(TABLE_NAME)
+        .where(eq(ID, bindMarker()))
+        .using(timestamp(bindMarker()))
+        .toString();
+    private static final String INCREMENT_REFERENCES = update(CassandraBlobReferencesTable.TABLE_NAME)
+        .with(incr(CassandraBlobReferencesTable.COUNT))
+        .where(eq(CassandraBlobReferencesTable.ID, bindMarker()))
+        .toString();
+    private static final String DECREMENT_REFERENCES = update(CassandraBlobReferencesTable.TABLE_NAME)
+        .with(decr(CassandraBlobReferencesTable.COUNT))
+        .where(eq(CassandraBlobReferencesTable.ID, bindMarker()))
+        .toString();
+    private static final String SELECT_REFERENCES = select(CassandraBlobReferencesTable.COUNT)
+        .from(CassandraBlobReferencesTable.TABLE_NAME)
+        .where(eq(CassandraBlobReferencesTable.ID, bindMarker()))
+        .toString();
+
+    private final Session session;
+    private final PreparedStatement insertChunkStatement;
+    private final PreparedStatement selectChunkStatement;
+    private final PreparedStatement selectChunksFromStatement;
+    private final PreparedStatement deleteChunksStatement;
+    private final PreparedStatement incrementReferencesStatement;
+    private final PreparedStatement decrementReferencesStatement;
+    private final PreparedStatement selectReferencesStatement;
+
+    public CassandraBlobStore(Session session) {
+        this.session = session;
+        this.insertChunkStatement = session.prepare(INSERT_CHUNK);
+        this.selectChunkStatement = session.prepare(SELECT_CHUNK);
+        this.selectChunksFromStatement = session.prepare(SELECT_CHUNKS_FROM);
+        this.deleteChunksStatement = session.prepare(DELETE_CHUNKS);
+        this.incrementReferencesStatement = session.prepare(INCREMENT_REFERENCES);
+        this.decrementReferencesStatement = session.prepare(DECREMENT_REFERENCES);
+        this.selectReferencesStatement = session.prepare(SELECT_REFERENCES);
+    }
+
+    /**
+     * Stores the given content, unless the same content was already stored, and
+     * adds a reference to it.
+     *
+     * @return the id of the blob
+     */
+    public String save(byte[] content) {
+        String id = Hashing.sha256().hashBytes(content).toString();
+        session.execute(incrementReferencesStatement.bind(id));
+        int chunkCount = (content.length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        if (chunkCount == 0 || (references(id) > 1 && chunkExists(id, chunkCount - 1))) {
+            return id;
+        }
+        List<ResultSetFuture> futures = new ArrayList<>();
+        for (int chunk = 0; chunk < chunkCount - 1; chunk++) {
+            futures.add(session.executeAsync(insertChunk(id, chunk, content)));
+        }
+        futures.forEach(ResultSetFuture::getUninterruptibly);
+        // The last chunk is written once all others are, its presence marks a complete blob
+        session.execute(insertChunk(id, chunkCount - 1, content));
+        return id;
+    }
+
+    /**
+     * Removes a reference to a blob, and deletes the blob if it was the last one.
+     *
+     * @param id the id of the blob
+     */
+    public void release(String id) {
+        session.execute(decrementReferencesStatement.bind(id));
+        long before = TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
+        if (references(id) <= 0) {
+            session.execute(deleteChunksStatement.bind(before, id));
+        }
+    }
+
+    /**
+     * Reads a blob lazily, the chunks are fetched page by page while the returned
+     * stream is consumed.
+     *
+     * @param id the id of the blob
+     * @param offset the position to start reading at
+     */
+    public InputStream read(String id, long offset) {
+        int firstChunk = (int) (offset / CHUNK_SIZE);
+        Iterator<Row> chunks = session.execute(
+            selectChunksFromStatement.bind(id, firstChunk)
+                .setFetchSize(CHUNKS_PER_PAGE))
+            .iterator();
+        return new ChunkInputStream(chunks, (int) (offset % CHUNK_SIZE));
+    }
+
+    private long references(String id) {
+        Row row = session.execute(selectReferencesStatement.bind(id)).one();
+        return row == null ? 0 : row.getLong(CassandraBlobReferencesTable.COUNT);
+    }
+
+    private boolean chunkExists(String id, int chunk) {
+        return session.execute(selectChunkStatement.bind(id, chunk)).one() != null;
+    }
+
+    private Statement insertChunk(String id, int chunk, byte[] content) {
+        int start = chunk * CHUNK_SIZE;
+        return insertChunkStatement.bind(
+            id,
+            chunk,
+            ByteBuffer.wrap(content, start, Math.min(CHUNK_SIZE, content.length - start)).slice());
+    }
+
+    private static class ChunkInputStream extends InputStream {
+        private final Iterator<Row> chunks;
+        private ByteBuffer current;
+
+        private ChunkInputStream(Iterator<Row> chunks, int skip) {
+            this.chunks = chunks;
+            if (nextChunk()) {
+                current.position(Math.min(current.limit(), current.position() + skip));
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!ensureAvailable()) {
+                return -1;
+            }
+            return current.get() & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!ensureAvailable()) {
+                return -1;
+            }
+            int read = Math.min(len, current.remaining());
+            current.get(b, off, read);
+            return read;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return current == null ? 0 : current.remaining();
+        }
+
+        private boolean ensureAvailable() {
+            while (current != null && !current.hasRemaining()) {
+                nextChunk();
+            }
+            return current != null;
+        }
+
+        private boolean nextChunk() {
+            current = chunks.hasNext() ? chunks.next().getBytes(DATA) : null;
+            return current != null;
+        }
+    }
+}
@@ -19,6 +19,7 @@
 
 package org.apache.james.mailbox.cassandra.mail;
 
+import static com.datastax.driver.core.querybuilder.QueryBuilder.bindMarker;
 import static com.datastax.driver.core.querybuilder.QueryBuilder.eq;
 import static com.datastax.driver.core.querybuilder.QueryBuilder.insertInto;
 import static com.datastax.driver.core.querybuilder.QueryBuilder.select;
@@ -31,8 +32,10 @@ import static org.apache.james.mailbox.cassandra.table.CassandraMailboxTable.TAB
 import static org.apache.james.mailbox.cassandra.table.CassandraMailboxTable.UIDVALIDITY;
 
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.StringTokenizer;
+import java.util.UUID;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -42,6 +45,7 @@ import org.apache.james.mailbox.cassandra.CassandraId;
 import org.apache.james.mailbox.cassandra.CassandraTypesProvider;
 import org.apache.james.mailbox.cassandra.CassandraTypesProvider.TYPE;
 import org.apache.james.mailbox.cassandra.table.CassandraMailboxTable.MailboxBase;
+import org.apache.james.mailbox.cassandra.table.CassandraMessageTable;
 import org.apache.james.mailbox.exception.MailboxException;
 import org.apache.james.mailbox.exception.MailboxNotFoundException;
 import org.apache.james.mailbox.model.MailboxACL;
@@ -50,11 +54,14 @@ import org.apache.james.mailbox.store.mail.MailboxMapper;
 import org.apache.james.mailbox.store.mail.model.Mailbox;
 import org.apache.james.mailbox.store.mail.model.impl.SimpleMailbox;
 
+import com.datastax.driver.core.PreparedStatement;
 import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
 import com.datastax.driver.core.Row;
 import com.datastax.driver.core.Session;
 import com.datastax.driver.core.querybuilder.QueryBuilder;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.Iterators;
 
 /**
  * Data access management for mailbox.
@@ -62,22 +69,73 @@ import com.google.common.base.Preconditions;
 public class CassandraMailboxMapper implements MailboxMapper<CassandraId> {
 
     public static final String WILDCARD = "%";
+
+    /**
+     * Number of messages removed at once when a mailbox is deleted
+     */
+    private static final int DELETE_BATCH_SIZE = 100;
+
+    private static final String SELECT_MESSAGE_BLOBS = select(CassandraMessageTable.IMAP_UID, CassandraMessageTable.BODY_BLOB)
+        .from(CassandraMessageTable.TABLE_NAME)
+        .where(eq(CassandraMessageTable.MAILBOX_ID, bindMarker()))
+        .toString();
+    private static final String DELETE_MESSAGE = QueryBuilder.delete()
+        .from(CassandraMessageTable.TABLE_NAME)
+        .where(eq(CassandraMessageTable.MAILBOX_ID, bindMarker()))
+        .and(eq(CassandraMessageTable.IMAP_UID, bindMarker()))
+        .toString();
+
     private final Session session;
     private final int maxRetry;
     private final CassandraTypesProvider typesProvider;
+    private final Statements statements;
+    private final CassandraBlobStore blobStore;
+    private final CassandraMessageIndexes indexes;
 
     public CassandraMailboxMapper(Session session, CassandraTypesProvider typesProvider, int maxRetry) {
+        this(session, typesProvider, maxRetry, new Statements(session), new CassandraBlobStore(session), new CassandraMessageIndexes(session));
+    }
+
+    public CassandraMailboxMapper(Session session, CassandraTypesProvider typesProvider, int maxRetry, Statements statements, CassandraBlobStore blobStore, CassandraMessageIndexes indexes) {
         this.session = session;
+        this.statements = statements;
         this.maxRetry = maxRetry;
         this.typesProvider = typesProvider;
+        this.blobStore = blobStore;
+        this.indexes = indexes;
     }
 
     @Override
     public void delete(Mailbox<CassandraId> mailbox) throws MailboxException {
+        UUID mailboxId = mailbox.getMailboxId().asUuid();
+        deleteMessages(mailboxId);
+        indexes.clear(mailboxId);
         session.execute(
             QueryBuilder.delete()
                 .from(TABLE_NAME)
-                .where(eq(ID, mailbox.getMailboxId().asUuid())));
+                .where(eq(ID, mailboxId)));
+    }
+
+    /**
+     * Deletes the messages of a mailbox and releases their bodies. Each batch of
+     * messages is deleted before its bodies are released, so that an interrupted
+     * deletion may leak a blob reference but never releases one twice.
+     */
+    private void deleteMessages(UUID mailboxId) {
+        Iterator<List<Row>> batches = Iterators.partition(
+            session.execute(statements.selectMessageBlobsStatement.bind(mailboxId).setFetchSize(DELETE_BATCH_SIZE)).iterator(),
+            DELETE_BATCH_SIZE);
+        while (batches.hasNext()) {
+            List<Row> batch = batches.next();
+            batch.stream()
+                .map((row) -> session.executeAsync(statements.deleteMessageStatement.bind(mailboxId, row.getLong(CassandraMessageTable.IMAP_UID))))
+                .collect(Collectors.toList())
+                .forEach(ResultSetFuture::getUninterruptibly);
+            batch.stream()
+                .map((row) -> row.getString(CassandraMessageTable.BODY_BLOB))
+                .filter((blob) -> blob != null)
+                .forEach(blobStore::release);
+        }
     }
 
     @Override
@@ -105,6 +163,8 @@ public class CassandraMailboxMapper implements MailboxMapper<CassandraId> {
         SimpleMailbox<CassandraId> cassandraMailbox = (SimpleMailbox<CassandraId>) mailbox;
         if (cassandraMailbox.getMailboxId() == null) {
             cassandraMailbox.setMailboxId(CassandraId.timeBased());
+            // a new mailbox is indexed from its first message on
+            indexes.markIndexed(cassandraMailbox.getMailboxId().asUuid());
         }
         upsertMailbox(cassandraMailbox);
     }
@@ -132,7 +192,7 @@ public class CassandraMailboxMapper implements MailboxMapper<CassandraId> {
 
     @Override
     public void updateACL(Mailbox<CassandraId> mailbox, MailboxACL.MailboxACLCommand mailboxACLCommand) throws MailboxException {
-        new CassandraACLMapper(mailbox, session, maxRetry).updateACL(mailboxACLCommand);
+        new CassandraACLMapper(mailbox, session, statements.aclStatements, maxRetry).updateACL(mailboxACLCommand);
     }
 
     @Override
@@ -148,7 +208,7 @@ public class CassandraMailboxMapper implements MailboxMapper<CassandraId> {
                 row.getString(NAME)),
             row.getLong(UIDVALIDITY));
         mailbox.setMailboxId(CassandraId.of(row.getUUID(ID)));
-        mailbox.setACL(new CassandraACLMapper(mailbox, session, maxRetry).getACL());
+        mailbox.setACL(new CassandraACLMapper(mailbox, session, statements.aclStatements, maxRetry).getACL());
         return mailbox;
     }
 
@@ -198,4 +258,19 @@ public class CassandraMailboxMapper implements MailboxMapper<CassandraId> {
                     .setString(MailboxBase.USER, user)))));
     }
 
+    /**
+     * The statements used by the mailbox mappers, prepared once and shared by
+     * all the mappers of a {@link org.apache.james.mailbox.cassandra.CassandraMailboxSessionMapperFactory}.
+     */
+    public static class Statements {
+        private final PreparedStatement selectMessageBlobsStatement;
+        private final PreparedStatement deleteMessageStatement;
+        private final CassandraACLMapper.Statements aclStatements;
+
+        public Statements(Session session) {
+            this.selectMessageBlobsStatement = session.prepare(SELECT_MESSAGE_BLOBS);
+            this.deleteMessageStatement = session.prepare(DELETE_MESSAGE);
+            this.aclStatements = new CassandraACLMapper.Statements(session);
+        }
+    }
 }
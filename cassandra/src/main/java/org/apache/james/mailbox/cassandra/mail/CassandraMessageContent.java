@@ -0,0 +1,145 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailbox.cassandra.mail;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.mail.internet.SharedInputStream;
+
+/**
+ * Content of a message whose headers are held in memory and whose body is read
+ * from the {@link CassandraBlobStore} only once the body part is actually read.
+ */
+public class CassandraMessageContent extends InputStream implements SharedInputStream {
+
+    private final byte[] header;
+    private final CassandraBlobStore blobStore;
+    private final String bodyBlob;
+    private final long start;
+    private final long end;
+    private long position;
+    private InputStream body;
+
+    public CassandraMessageContent(byte[] header, CassandraBlobStore blobStore, String bodyBlob, long bodyOctets) {
+        this(header, blobStore, bodyBlob, 0, header.length + bodyOctets);
+    }
+
+    private CassandraMessageContent(byte[] header, CassandraBlobStore blobStore, String bodyBlob, long start, long end) {
+        this.header = header;
+        this.blobStore = blobStore;
+        this.bodyBlob = bodyBlob;
+        this.start = start;
+        this.end = end;
+        this.position = start;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (position >= end) {
+            return -1;
+        }
+        if (position < header.length) {
+            return header[(int) position++] & 0xff;
+        }
+        int read = body().read();
+        if (read == -1) {
+            position = end;
+        } else {
+            position++;
+        }
+        return read;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (position >= end) {
+            return -1;
+        }
+        int toRead = (int) Math.min(len, end - position);
+        if (position < header.length) {
+            int read = Math.min(toRead, header.length - (int) position);
+            System.arraycopy(header, (int) position, b, off, read);
+            position += read;
+            return read;
+        }
+        int read = body().read(b, off, toRead);
+        if (read == -1) {
+            position = end;
+        } else {
+            position += read;
+        }
+        return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = Math.max(0, Math.min(n, end - position));
+        if (skipped > 0) {
+            closeBody();
+            position += skipped;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        if (position < header.length) {
+            return (int) Math.min(header.length, end) - (int) position;
+        }
+        return body == null ? 0 : body.available();
+    }
+
+    @Override
+    public void close() throws IOException {
+        closeBody();
+    }
+
+    /**
+     * @see javax.mail.internet.SharedInputStream#getPosition()
+     */
+    public long getPosition() {
+        return position - start;
+    }
+
+    /**
+     * @see javax.mail.internet.SharedInputStream#newStream(long, long)
+     */
+    public InputStream newStream(long start, long end) {
+        long newEnd = end == -1 ? this.end : Math.min(this.end, this.start + end);
+        return new CassandraMessageContent(header, blobStore, bodyBlob, this.start + start, newEnd);
+    }
+
+    private InputStream body() {
+        if (body == null) {
+            body = blobStore.read(bodyBlob, position - header.length);
+        }
+        return body;
+    }
+
+    private void closeBody() throws IOException {
+        if (body != null) {
+            body.close();
+            body = null;
+        }
+    }
+}
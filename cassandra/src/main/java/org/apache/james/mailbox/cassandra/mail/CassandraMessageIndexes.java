@@ -0,0 +1,349 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailbox.cassandra.mail;
+
+import static com.datastax.driver.core.querybuilder.QueryBuilder.bindMarker;
+import static com.datastax.driver.core.querybuilder.QueryBuilder.eq;
+import static com.datastax.driver.core.querybuilder.QueryBuilder.gte;
+import static com.datastax.driver.core.querybuilder.QueryBuilder.insertInto;
+import static com.datastax.driver.core.querybuilder.QueryBuilder.lt;
+import static com.datastax.driver.core.querybuilder.QueryBuilder.select;
+import static com.datastax.driver.core.querybuilder.QueryBuilder.set;
+import static com.datastax.driver.core.querybuilder.QueryBuilder.timestamp;
+import static com.datastax.driver.core.querybuilder.QueryBuilder.update;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import javax.mail.Flags;
+import javax.mail.Flags.Flag;
+
+import org.apache.james.mailbox.cassandra.table.CassandraFirstUnseenTable;
+import org.apache.james.mailbox.cassandra.table.CassandraMessageIndexesTable;
+import org.apache.james.mailbox.cassandra.table.CassandraMessageTable;
+import org.apache.james.mailbox.cassandra.table.CassandraRecentTable;
+import org.apache.james.mailbox.model.UpdatedFlags;
+
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.querybuilder.QueryBuilder;
+
+/**
+ * Maintains the uids of the recent and of the unseen messages of each mailbox in
+ * dedicated tables, clustered by uid. The recent uids are then read with a scan
+ * of a (short) partition and the first unseen uid with a <code>LIMIT 1</code>
+ * query, instead of filtering the whole message table.
+ * <p>
+ * The updates are returned as statements, to be executed together with the
+ * update of the message table.
+ * <p>
+ * The status row of a mailbox marks whether its indexes are complete: mailboxes
+ * created before the indexes existed are read from the message table until
+ * {@link CassandraMessageIndexesRepair} indexed them.
+ * <p>
+ * Each message marked as seen deletes its row of the unseen table, leaving a
+ * tombstone in front of the partition. The status row thus also holds a lower
+ * bound of the unseen uids, advanced by the reads, so that they skip the
+ * tombstones of the messages seen so far. A message becoming unseen below that
+ * bound drops it, see {@link #unseenAdded(UUID, long)}. The bound is written with
+ * the time the read started, so that it never shadows a later drop.
+ * <p>
+ * The statements are prepared on creation, a single instance should be shared.
+ */
+public class CassandraMessageIndexes {
+
+    private static final String SELECT_RECENT = select(CassandraRecentTable.IMAP_UID)
+        .from(CassandraRecentTable.TABLE_NAME)
+        .where(eq(CassandraRecentTable.MAILBOX_ID, bindMarker()))
+        .toString();
+    private static final String INSERT_RECENT = insertInto(CassandraRecentTable.TABLE_NAME)
+        .value(CassandraRecentTable.MAILBOX_ID, bindMarker())
+        .value(CassandraRecentTable.IMAP_UID, bindMarker())
+        .toString();
+    private static final String DELETE_RECENT = QueryBuilder.delete()
+        .from(CassandraRecentTable.TABLE_NAME)
+        .where(eq(CassandraRecentTable.MAILBOX_ID, bindMarker()))
+        .and(eq(CassandraRecentTable.IMAP_UID, bindMarker()))
+        .toString();
+    private static final String DELETE_ALL_RECENT = QueryBuilder.delete()
+        .from(CassandraRecentTable.TABLE_NAME)
+        .where(eq(CassandraRecentTable.MAILBOX_ID, bindMarker()))
+        .toString();
+    private static final String SELECT_FIRST_UNSEEN = select(CassandraFirstUnseenTable.IMAP_UID)
+        .from(CassandraFirstUnseenTable.TABLE_NAME)
+        .where(eq(CassandraFirstUnseenTable.MAILBOX_ID, bindMarker()))
+        .and(gte(CassandraFirstUnseenTable.IMAP_UID, bindMarker()))
+        .limit(1)
+        .toString();
+    private static final String SELECT_FIRST_UNSEEN_BELOW = select(CassandraFirstUnseenTable.IMAP_UID)
+        .from(CassandraFirstUnseenTable.TABLE_NAME)
+        .where(eq(CassandraFirstUnseenTable.MAILBOX_ID, bindMarker()))
+        .and(gte(CassandraFirstUnseenTable.IMAP_UID, bindMarker()))
+        .and(lt(CassandraFirstUnseenTable.IMAP_UID, bindMarker()))
+        .limit(1)
+        .toString();
+    private static final String INSERT_UNSEEN = insertInto(CassandraFirstUnseenTable.TABLE_NAME)
+        .value(CassandraFirstUnseenTable.MAILBOX_ID, bindMarker())
+        .value(CassandraFirstUnseenTable.IMAP_UID, bindMarker())
+        .toString();
+    private static final String DELETE_UNSEEN = QueryBuilder.delete()
+        .from(CassandraFirstUnseenTable.TABLE_NAME)
+        .where(eq(CassandraFirstUnseenTable.MAILBOX_ID, bindMarker()))
+        .and(eq(CassandraFirstUnseenTable.IMAP_UID, bindMarker()))
+        .toString();
+    private static final String DELETE_ALL_UNSEEN = QueryBuilder.delete()
+        .from(CassandraFirstUnseenTable.TABLE_NAME)
+        .where(eq(CassandraFirstUnseenTable.MAILBOX_ID, bindMarker()))
+        .toString();
+    private static final String SELECT_STATUS = select(CassandraMessageIndexesTable.INDEXED, CassandraMessageIndexesTable.FIRST_UNSEEN_FROM)
+        .from(CassandraMessageIndexesTable.TABLE_NAME)
+        .where(eq(CassandraMessageIndexesTable.MAILBOX_ID, bindMarker()))
+        .toString();
+    private static final String SELECT_FIRST_UNSEEN_FROM = select(CassandraMessageIndexesTable.FIRST_UNSEEN_FROM)
+        .from(CassandraMessageIndexesTable.TABLE_NAME)
+        .where(eq(CassandraMessageIndexesTable.MAILBOX_ID, bindMarker()))
+        .toString();
+    private static final String UPDATE_INDEXED = update(CassandraMessageIndexesTable.TABLE_NAME)
+        .with(set(CassandraMessageIndexesTable.INDEXED, bindMarker()))
+        .where(eq(CassandraMessageIndexesTable.MAILBOX_ID, bindMarker()))
+        .toString();
+    private static final String UPDATE_FIRST_UNSEEN_FROM = update(CassandraMessageIndexesTable.TABLE_NAME)
+        .with(set(CassandraMessageIndexesTable.FIRST_UNSEEN_FROM, bindMarker()))
+        .where(eq(CassandraMessageIndexesTable.MAILBOX_ID, bindMarker()))
+        .using(timestamp(bindMarker()))
+        .toString();
+    private static final String DELETE_FIRST_UNSEEN_FROM = QueryBuilder.delete(CassandraMessageIndexesTable.FIRST_UNSEEN_FROM)
+        .from(CassandraMessageIndexesTable.TABLE_NAME)
+        .where(eq(CassandraMessageIndexesTable.MAILBOX_ID, bindMarker()))
+        .toString();
+    private static final String DELETE_STATUS = QueryBuilder.delete()
+        .from(CassandraMessageIndexesTable.TABLE_NAME)
+        .where(eq(CassandraMessageIndexesTable.MAILBOX_ID, bindMarker()))
+        .toString();
+    private static final String SCAN_RECENT = select(CassandraMessageTable.IMAP_UID)
+        .from(CassandraMessageTable.TABLE_NAME)
+        .where(eq(CassandraMessageTable.MAILBOX_ID, bindMarker()))
+        .and(eq(CassandraMessageTable.Flag.RECENT, true))
+        .toString();
+    private static final String SCAN_UNSEEN = select(CassandraMessageTable.IMAP_UID)
+        .from(CassandraMessageTable.TABLE_NAME)
+        .where(eq(CassandraMessageTable.MAILBOX_ID, bindMarker()))
+        .and(eq(CassandraMessageTable.Flag.SEEN, false))
+        .toString();
+
+    private final Session session;
+    private final PreparedStatement selectRecentStatement;
+    private final PreparedStatement insertRecentStatement;
+    private final PreparedStatement deleteRecentStatement;
+    private final PreparedStatement deleteAllRecentStatement;
+    private final PreparedStatement selectFirstUnseenStatement;
+    private final PreparedStatement selectFirstUnseenBelowStatement;
+    private final PreparedStatement insertUnseenStatement;
+    private final PreparedStatement deleteUnseenStatement;
+    private final PreparedStatement deleteAllUnseenStatement;
+    private final PreparedStatement selectStatusStatement;
+    private final PreparedStatement selectFirstUnseenFromStatement;
+    private final PreparedStatement updateIndexedStatement;
+    private final PreparedStatement updateFirstUnseenFromStatement;
+    private final PreparedStatement deleteFirstUnseenFromStatement;
+    private final PreparedStatement deleteStatusStatement;
+    private final PreparedStatement scanRecentStatement;
+    private final PreparedStatement scanUnseenStatement;
+
+    public CassandraMessageIndexes(Session session) {
+        this.session = session;
+        this.selectRecentStatement = session.prepare(SELECT_RECENT);
+        this.insertRecentStatement = session.prepare(INSERT_RECENT);
+        this.deleteRecentStatement = session.prepare(DELETE_RECENT);
+        this.deleteAllRecentStatement = session.prepare(DELETE_ALL_RECENT);
+        this.selectFirstUnseenStatement = session.prepare(SELECT_FIRST_UNSEEN);
+        this.selectFirstUnseenBelowStatement = session.prepare(SELECT_FIRST_UNSEEN_BELOW);
+        this.insertUnseenStatement = session.prepare(INSERT_UNSEEN);
+        this.deleteUnseenStatement = session.prepare(DELETE_UNSEEN);
+        this.deleteAllUnseenStatement = session.prepare(DELETE_ALL_UNSEEN);
+        this.selectStatusStatement = session.prepare(SELECT_STATUS);
+        this.selectFirstUnseenFromStatement = session.prepare(SELECT_FIRST_UNSEEN_FROM);
+        this.updateIndexedStatement = session.prepare(UPDATE_INDEXED);
+        this.updateFirstUnseenFromStatement = session.prepare(UPDATE_FIRST_UNSEEN_FROM);
+        this.deleteFirstUnseenFromStatement = session.prepare(DELETE_FIRST_UNSEEN_FROM);
+        this.deleteStatusStatement = session.prepare(DELETE_STATUS);
+        this.scanRecentStatement = session.prepare(SCAN_RECENT);
+        this.scanUnseenStatement = session.prepare(SCAN_UNSEEN);
+    }
+
+    public List<Long> findRecentUids(UUID mailboxId) {
+        if (!isIndexed(status(mailboxId))) {
+            return uids(session.execute(scanRecentStatement.bind(mailboxId)), CassandraMessageTable.IMAP_UID)
+                .sorted()
+                .collect(Collectors.toList());
+        }
+        return uids(session.execute(selectRecentStatement.bind(mailboxId)), CassandraRecentTable.IMAP_UID)
+            .collect(Collectors.toList());
+    }
+
+    public Optional<Long> findFirstUnseenUid(UUID mailboxId) {
+        long startedAt = now();
+        Row status = status(mailboxId);
+        if (!isIndexed(status)) {
+            return uids(session.execute(scanUnseenStatement.bind(mailboxId)), CassandraMessageTable.IMAP_UID)
+                .sorted()
+                .findFirst();
+        }
+        long from = status.isNull(CassandraMessageIndexesTable.FIRST_UNSEEN_FROM) ? 0 : status.getLong(CassandraMessageIndexesTable.FIRST_UNSEEN_FROM);
+        Optional<Long> firstUnseen = firstUnseen(selectFirstUnseenStatement.bind(mailboxId, from));
+        if (firstUnseen.isPresent() && firstUnseen.get() > from) {
+            advanceFirstUnseenFrom(mailboxId, from, firstUnseen.get(), startedAt);
+        }
+        return firstUnseen;
+    }
+
+    /**
+     * @return the statements indexing a message added with the given flags
+     */
+    public List<Statement> add(UUID mailboxId, long uid, Flags flags) {
+        List<Statement> updates = new ArrayList<>(2);
+        if (flags.contains(Flag.RECENT)) {
+            updates.add(insertRecentStatement.bind(mailboxId, uid));
+        }
+        if (!flags.contains(Flag.SEEN)) {
+            updates.add(insertUnseenStatement.bind(mailboxId, uid));
+        }
+        return updates;
+    }
+
+    /**
+     * @return the statements removing a deleted message from the indexes
+     */
+    public List<Statement> delete(UUID mailboxId, long uid) {
+        List<Statement> updates = new ArrayList<>(2);
+        updates.add(deleteRecentStatement.bind(mailboxId, uid));
+        updates.add(deleteUnseenStatement.bind(mailboxId, uid));
+        return updates;
+    }
+
+    /**
+     * @return the statements reflecting a flags update in the indexes, none if neither
+     * the recent nor the seen flag changed
+     */
+    public List<Statement> update(UUID mailboxId, UpdatedFlags updatedFlags) {
+        List<Statement> updates = new ArrayList<>(2);
+        long uid = updatedFlags.getUid();
+        boolean wasRecent = updatedFlags.getOldFlags().contains(Flag.RECENT);
+        boolean isRecent = updatedFlags.getNewFlags().contains(Flag.RECENT);
+        if (!wasRecent && isRecent) {
+            updates.add(insertRecentStatement.bind(mailboxId, uid));
+        } else if (wasRecent && !isRecent) {
+            updates.add(deleteRecentStatement.bind(mailboxId, uid));
+        }
+        if (becameUnseen(updatedFlags)) {
+            updates.add(insertUnseenStatement.bind(mailboxId, uid));
+        } else if (!updatedFlags.getOldFlags().contains(Flag.SEEN) && updatedFlags.getNewFlags().contains(Flag.SEEN)) {
+            updates.add(deleteUnseenStatement.bind(mailboxId, uid));
+        }
+        return updates;
+    }
+
+    /**
+     * To be called once the statements indexing unseen messages were executed, with
+     * the lowest of their uids. Drops the lower bound of the unseen uids if it is
+     * above, which only happens when a concurrent read advanced it meanwhile or for
+     * messages marked as unseen again.
+     */
+    public void unseenAdded(UUID mailboxId, long lowestUid) {
+        Row row = session.execute(selectFirstUnseenFromStatement.bind(mailboxId)).one();
+        if (row != null && !row.isNull(CassandraMessageIndexesTable.FIRST_UNSEEN_FROM)
+                && row.getLong(CassandraMessageIndexesTable.FIRST_UNSEEN_FROM) > lowestUid) {
+            session.execute(deleteFirstUnseenFromStatement.bind(mailboxId));
+        }
+    }
+
+    /**
+     * {@link #unseenAdded(UUID, long)} for the messages a flags update marked as unseen
+     */
+    public void unseenAdded(UUID mailboxId, List<UpdatedFlags> updatedFlags) {
+        updatedFlags.stream()
+            .filter(CassandraMessageIndexes::becameUnseen)
+            .mapToLong(UpdatedFlags::getUid)
+            .min()
+            .ifPresent((uid) -> unseenAdded(mailboxId, uid));
+    }
+
+    /**
+     * Marks the indexes of a mailbox as complete, they are then used by the reads
+     */
+    public void markIndexed(UUID mailboxId) {
+        session.execute(updateIndexedStatement.bind(true, mailboxId));
+    }
+
+    /**
+     * Removes the indexes of a mailbox, the reads then fall back on the message table
+     */
+    public void clear(UUID mailboxId) {
+        session.execute(deleteStatusStatement.bind(mailboxId));
+        session.execute(deleteAllRecentStatement.bind(mailboxId));
+        session.execute(deleteAllUnseenStatement.bind(mailboxId));
+    }
+
+    /**
+     * Moves the lower bound of the unseen uids up to the first unseen uid. The range
+     * skipped is read again once the bound is written: an unseen message indexed in
+     * between would otherwise be hidden, the bound is dropped then.
+     */
+    private void advanceFirstUnseenFrom(UUID mailboxId, long from, long firstUnseen, long startedAt) {
+        session.execute(updateFirstUnseenFromStatement.bind(startedAt, firstUnseen, mailboxId));
+        if (firstUnseen(selectFirstUnseenBelowStatement.bind(mailboxId, from, firstUnseen)).isPresent()) {
+            session.execute(deleteFirstUnseenFromStatement.bind(mailboxId));
+        }
+    }
+
+    private Optional<Long> firstUnseen(Statement query) {
+        return Optional.ofNullable(session.execute(query).one())
+            .map((row) -> row.getLong(CassandraFirstUnseenTable.IMAP_UID));
+    }
+
+    private Row status(UUID mailboxId) {
+        return session.execute(selectStatusStatement.bind(mailboxId)).one();
+    }
+
+    private boolean isIndexed(Row status) {
+        return status != null && !status.isNull(CassandraMessageIndexesTable.INDEXED) && status.getBool(CassandraMessageIndexesTable.INDEXED);
+    }
+
+    private static boolean becameUnseen(UpdatedFlags updatedFlags) {
+        return updatedFlags.getOldFlags().contains(Flag.SEEN) && !updatedFlags.getNewFlags().contains(Flag.SEEN);
+    }
+
+    private Stream<Long> uids(ResultSet rows, String column) {
+        return StreamSupport.stream(rows.spliterator(), false)
+            .map((row) -> row.getLong(column));
+    }
+
+    private long now() {
+        return TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
+    }
+}
@@ -0,0 +1,123 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailbox.cassandra.mail;
+
+import static com.datastax.driver.core.querybuilder.QueryBuilder.eq;
+import static com.datastax.driver.core.querybuilder.QueryBuilder.select;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import javax.mail.Flags;
+import javax.mail.Flags.Flag;
+
+import org.apache.james.mailbox.cassandra.CassandraId;
+import org.apache.james.mailbox.cassandra.table.CassandraMailboxTable;
+import org.apache.james.mailbox.cassandra.table.CassandraMessageTable;
+
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+
+/**
+ * Rebuilds the recent and unseen uid indexes maintained by {@link CassandraMessageIndexes}
+ * from the message table, for instance after they were created on an existing
+ * keyspace or when they are suspected to be out of sync.
+ * <p>
+ * The indexes of a mailbox are dropped before being rebuilt, and only used again
+ * once rebuilt: the mailbox is read from the message table meanwhile. Messages
+ * added or flagged in the mailbox while it is repaired may still be missed, so
+ * the repair should be run while the mailbox is not in use.
+ */
+public class CassandraMessageIndexesRepair {
+
+    private static final int FETCH_SIZE = 1000;
+    private static final int WRITE_BATCH_SIZE = 100;
+
+    private final Session session;
+    private final CassandraMessageIndexes indexes;
+
+    public CassandraMessageIndexesRepair(Session session, CassandraMessageIndexes indexes) {
+        this.session = session;
+        this.indexes = indexes;
+    }
+
+    /**
+     * Rebuilds the indexes of all the mailboxes
+     *
+     * @return the number of repaired mailboxes
+     */
+    public long repairAll() {
+        long repaired = 0;
+        Statement mailboxIds = select(CassandraMailboxTable.ID)
+            .from(CassandraMailboxTable.TABLE_NAME)
+            .setFetchSize(FETCH_SIZE);
+        for (Row row : session.execute(mailboxIds)) {
+            repair(CassandraId.of(row.getUUID(CassandraMailboxTable.ID)));
+            repaired++;
+        }
+        return repaired;
+    }
+
+    /**
+     * Rebuilds the indexes of the given mailbox
+     *
+     * @return the number of indexed messages
+     */
+    public long repair(CassandraId mailboxId) {
+        UUID id = mailboxId.asUuid();
+        indexes.clear(id);
+        Statement messages = select(CassandraMessageTable.IMAP_UID, CassandraMessageTable.Flag.RECENT, CassandraMessageTable.Flag.SEEN)
+            .from(CassandraMessageTable.TABLE_NAME)
+            .where(eq(CassandraMessageTable.MAILBOX_ID, id))
+            .setFetchSize(FETCH_SIZE);
+        long count = 0;
+        List<ResultSetFuture> pending = new ArrayList<>();
+        for (Row row : session.execute(messages)) {
+            for (Statement statement : indexes.add(id, row.getLong(CassandraMessageTable.IMAP_UID), flags(row))) {
+                pending.add(session.executeAsync(statement));
+            }
+            if (pending.size() >= WRITE_BATCH_SIZE) {
+                await(pending);
+            }
+            count++;
+        }
+        await(pending);
+        indexes.markIndexed(id);
+        return count;
+    }
+
+    private Flags flags(Row row) {
+        Flags flags = new Flags();
+        if (row.getBool(CassandraMessageTable.Flag.RECENT)) {
+            flags.add(Flag.RECENT);
+        }
+        if (row.getBool(CassandraMessageTable.Flag.SEEN)) {
+            flags.add(Flag.SEEN);
+        }
+        return flags;
+    }
+
+    private void await(List<ResultSetFuture> pending) {
+        pending.forEach(ResultSetFuture::getUninterruptibly);
+        pending.clear();
+    }
+}
@@ -29,15 +29,19 @@ import static com.datastax.driver.core.querybuilder.QueryBuilder.lte;
 import static com.datastax.driver.core.querybuilder.QueryBuilder.select;
 import static com.datastax.driver.core.querybuilder.QueryBuilder.set;
 import static com.datastax.driver.core.querybuilder.QueryBuilder.update;
+import static org.apache.james.mailbox.cassandra.table.CassandraMessageTable.BODY_BLOB;
 import static org.apache.james.mailbox.cassandra.table.CassandraMessageTable.BODY_CONTENT;
 import static org.apache.james.mailbox.cassandra.table.CassandraMessageTable.BODY_OCTECTS;
 import static org.apache.james.mailbox.cassandra.table.CassandraMessageTable.BODY_START_OCTET;
 import static org.apache.james.mailbox.cassandra.table.CassandraMessageTable.FIELDS;
+import static org.apache.james.mailbox.cassandra.table.CassandraMessageTable.FLAGS;
 import static org.apache.james.mailbox.cassandra.table.CassandraMessageTable.FULL_CONTENT_OCTETS;
+import static org.apache.james.mailbox.cassandra.table.CassandraMessageTable.HEADERS;
 import static org.apache.james.mailbox.cassandra.table.CassandraMessageTable.HEADER_CONTENT;
 import static org.apache.james.mailbox.cassandra.table.CassandraMessageTable.IMAP_UID;
 import static org.apache.james.mailbox.cassandra.table.CassandraMessageTable.INTERNAL_DATE;
 import static org.apache.james.mailbox.cassandra.table.CassandraMessageTable.MAILBOX_ID;
+import static org.apache.james.mailbox.cassandra.table.CassandraMessageTable.METADATA;
 import static org.apache.james.mailbox.cassandra.table.CassandraMessageTable.MOD_SEQ;
 import static org.apache.james.mailbox.cassandra.table.CassandraMessageTable.PROPERTIES;
 import static org.apache.james.mailbox.cassandra.table.CassandraMessageTable.TABLE_NAME;
@@ -54,19 +58,21 @@ import static org.apache.james.mailbox.cassandra.table.CassandraMessageTable.Fla
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Comparator;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.UUID;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
-import java.util.stream.StreamSupport;
 
 import javax.mail.Flags;
 import javax.mail.Flags.Flag;
+import javax.mail.internet.SharedInputStream;
 import javax.mail.util.SharedByteArrayInputStream;
 
 import com.google.common.base.Throwables;
@@ -78,6 +84,7 @@ import org.apache.james.mailbox.cassandra.CassandraTypesProvider;
 import org.apache.james.mailbox.cassandra.CassandraTypesProvider.TYPE;
 import org.apache.james.mailbox.cassandra.mail.utils.FunctionRunnerWithRetry;
 import org.apache.james.mailbox.cassandra.mail.utils.MessageDeletedDuringFlagsUpdateException;
+import org.apache.james.mailbox.cassandra.mail.utils.PrefetchingRowIterator;
 import org.apache.james.mailbox.cassandra.table.CassandraMailboxCountersTable;
 import org.apache.james.mailbox.cassandra.table.CassandraMessageTable;
 import org.apache.james.mailbox.cassandra.table.CassandraMessageTable.Properties;
@@ -92,56 +99,141 @@ import org.apache.james.mailbox.store.mail.ModSeqProvider;
 import org.apache.james.mailbox.store.mail.UidProvider;
 import org.apache.james.mailbox.store.mail.model.Mailbox;
 import org.apache.james.mailbox.store.mail.model.Message;
+import org.apache.james.mailbox.store.mail.model.Property;
 import org.apache.james.mailbox.store.mail.model.impl.PropertyBuilder;
 import org.apache.james.mailbox.store.mail.model.impl.SimpleMessage;
 import org.apache.james.mailbox.store.mail.model.impl.SimpleProperty;
 
+import com.datastax.driver.core.BatchStatement;
 import com.datastax.driver.core.BoundStatement;
 import com.datastax.driver.core.PreparedStatement;
 import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
 import com.datastax.driver.core.Row;
 import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
 import com.datastax.driver.core.UDTValue;
 import com.datastax.driver.core.querybuilder.Assignment;
-import com.datastax.driver.core.querybuilder.Insert;
 import com.datastax.driver.core.querybuilder.QueryBuilder;
 import com.datastax.driver.core.querybuilder.Select.Where;
+import com.datastax.driver.core.querybuilder.Update;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.ObjectArrays;
 import com.google.common.io.ByteStreams;
 import com.google.common.primitives.Bytes;
 
 public class CassandraMessageMapper implements MessageMapper<CassandraId> {
 
+    private static final String SELECT_COUNT = selectCounter(CassandraMailboxCountersTable.COUNT);
+    private static final String SELECT_UNSEEN = selectCounter(CassandraMailboxCountersTable.UNSEEN);
+    private static final String INCREMENT_COUNT = updateCounters(incr(CassandraMailboxCountersTable.COUNT));
+    private static final String INCREMENT_COUNT_AND_UNSEEN = updateCounters(incr(CassandraMailboxCountersTable.COUNT), incr(CassandraMailboxCountersTable.UNSEEN));
+    private static final String DECREMENT_COUNT = updateCounters(decr(CassandraMailboxCountersTable.COUNT));
+    private static final String DECREMENT_COUNT_AND_UNSEEN = updateCounters(decr(CassandraMailboxCountersTable.COUNT), decr(CassandraMailboxCountersTable.UNSEEN));
+    private static final String INCREMENT_UNSEEN_BY = updateCounters(incr(CassandraMailboxCountersTable.UNSEEN, bindMarker()));
+    private static final String DECREMENT_UNSEEN_BY = updateCounters(decr(CassandraMailboxCountersTable.UNSEEN, bindMarker()));
+    private static final String DELETE_MESSAGE = QueryBuilder.delete()
+        .from(TABLE_NAME)
+        .where(eq(MAILBOX_ID, bindMarker()))
+        .and(eq(IMAP_UID, bindMarker()))
+        .toString();
+    private static final String SELECT_BODY_BLOB = select(BODY_BLOB)
+        .from(TABLE_NAME)
+        .where(eq(MAILBOX_ID, bindMarker()))
+        .and(eq(IMAP_UID, bindMarker()))
+        .toString();
+    private static final String[] EXPUNGE_FIELDS = ObjectArrays.concat(METADATA, BODY_BLOB);
+    private static final String INSERT_MESSAGE = insertInto(TABLE_NAME)
+        .value(MAILBOX_ID, bindMarker())
+        .value(IMAP_UID, bindMarker())
+        .value(MOD_SEQ, bindMarker())
+        .value(INTERNAL_DATE, bindMarker())
+        .value(BODY_START_OCTET, bindMarker())
+        .value(FULL_CONTENT_OCTETS, bindMarker())
+        .value(BODY_OCTECTS, bindMarker())
+        .value(ANSWERED, bindMarker())
+        .value(DELETED, bindMarker())
+        .value(DRAFT, bindMarker())
+        .value(FLAGGED, bindMarker())
+        .value(RECENT, bindMarker())
+        .value(SEEN, bindMarker())
+        .value(USER, bindMarker())
+        .value(USER_FLAGS, bindMarker())
+        .value(BODY_BLOB, bindMarker())
+        .value(HEADER_CONTENT, bindMarker())
+        .value(PROPERTIES, bindMarker())
+        .value(TEXTUAL_LINE_COUNT, bindMarker())
+        .toString();
+    private static final String CONDITIONAL_FLAGS_UPDATE = update(TABLE_NAME)
+        .with(set(ANSWERED, bindMarker()))
+        .and(set(DELETED, bindMarker()))
+        .and(set(DRAFT, bindMarker()))
+        .and(set(FLAGGED, bindMarker()))
+        .and(set(RECENT, bindMarker()))
+        .and(set(SEEN, bindMarker()))
+        .and(set(USER, bindMarker()))
+        .and(set(USER_FLAGS, bindMarker()))
+        .and(set(MOD_SEQ, bindMarker()))
+        .where(eq(IMAP_UID, bindMarker()))
+        .and(eq(MAILBOX_ID, bindMarker()))
+        .onlyIf(eq(MOD_SEQ, bindMarker()))
+        .toString();
+    private static final String CONDITIONAL_PROPERTIES_UPDATE = update(TABLE_NAME)
+        .with(set(PROPERTIES, bindMarker()))
+        .where(eq(IMAP_UID, bindMarker()))
+        .and(eq(MAILBOX_ID, bindMarker()))
+        .onlyIf(eq(MOD_SEQ, bindMarker()))
+        .toString();
+
+    /**
+     * Number of conditional flag updates sent within one batch. All of them target
+     * the partition of the mailbox, which is what conditional batches require.
+     */
+    private static final int FLAGS_UPDATE_BATCH_SIZE = 100;
+
+    /**
+     * Number of rows read at once by message scans
+     */
+    public static final int DEFAULT_FETCH_SIZE = 100;
+
+    /**
+     * The next page of a scan is requested once 1/PREFETCH_RATIO of the current page is left
+     */
+    private static final int PREFETCH_RATIO = 4;
+
     private final Session session;
     private final ModSeqProvider<CassandraId> modSeqProvider;
     private final MailboxSession mailboxSession;
     private final UidProvider<CassandraId> uidProvider;
     private final CassandraTypesProvider typesProvider;
     private final int maxRetries;
+    private final CassandraBlobStore blobStore;
+    private final CassandraMessageIndexes indexes;
+    private final Statements statements;
+    private final int fetchSize;
 
-    public CassandraMessageMapper(Session session, UidProvider<CassandraId> uidProvider, ModSeqProvider<CassandraId> modSeqProvider, MailboxSession mailboxSession, int maxRetries, CassandraTypesProvider typesProvider) {
+    public CassandraMessageMapper(Session session, UidProvider<CassandraId> uidProvider, ModSeqProvider<CassandraId> modSeqProvider, MailboxSession mailboxSession, int maxRetries, CassandraTypesProvider typesProvider, CassandraBlobStore blobStore, CassandraMessageIndexes indexes, Statements statements, int fetchSize) {
         this.session = session;
         this.uidProvider = uidProvider;
         this.modSeqProvider = modSeqProvider;
         this.mailboxSession = mailboxSession;
         this.maxRetries = maxRetries;
         this.typesProvider = typesProvider;
+        this.blobStore = blobStore;
+        this.indexes = indexes;
+        this.statements = statements;
+        this.fetchSize = fetchSize;
     }
 
     @Override
     public long countMessagesInMailbox(Mailbox<CassandraId> mailbox) throws MailboxException {
-        ResultSet results = session.execute(
-            select(CassandraMailboxCountersTable.COUNT)
-                .from(CassandraMailboxCountersTable.TABLE_NAME)
-                .where(eq(CassandraMailboxCountersTable.MAILBOX_ID, mailbox.getMailboxId().asUuid())));
+        ResultSet results = session.execute(statements.selectCountStatement.bind(mailbox.getMailboxId().asUuid()));
         return results.isExhausted() ? 0 : results.one().getLong(CassandraMailboxCountersTable.COUNT);
     }
 
     @Override
     public long countUnseenMessagesInMailbox(Mailbox<CassandraId> mailbox) throws MailboxException {
-        ResultSet results = session.execute(
-            select(CassandraMailboxCountersTable.UNSEEN)
-                .from(CassandraMailboxCountersTable.TABLE_NAME)
-                .where(eq(CassandraMailboxCountersTable.MAILBOX_ID, mailbox.getMailboxId().asUuid())));
+        ResultSet results = session.execute(statements.selectUnseenStatement.bind(mailbox.getMailboxId().asUuid()));
         if (!results.isExhausted()) {
             Row row = results.one();
             if (row.getColumnDefinitions().contains(CassandraMailboxCountersTable.UNSEEN)) {
@@ -153,48 +245,56 @@ public class CassandraMessageMapper implements MessageMapper<CassandraId> {
 
     @Override
     public void delete(Mailbox<CassandraId> mailbox, Message<CassandraId> message) {
-        session.execute(
-            QueryBuilder.delete()
-                .from(TABLE_NAME)
-                .where(eq(MAILBOX_ID, mailbox.getMailboxId().asUuid()))
-                .and(eq(IMAP_UID, message.getUid())));
-        decrementCount(mailbox);
-        if (!message.isSeen()) {
-            decrementUnseen(mailbox);
+        UUID mailboxId = mailbox.getMailboxId().asUuid();
+        Row row = session.execute(statements.selectBodyBlobStatement.bind(mailboxId, message.getUid())).one();
+        delete(mailboxId, message, row == null ? null : row.getString(BODY_BLOB));
+    }
+
+    /**
+     * Deletes a message, then releases its body once the message is gone.
+     */
+    private void delete(UUID mailboxId, Message<CassandraId> message, String bodyBlob) {
+        List<Statement> updates = new ArrayList<>();
+        updates.add(statements.deleteMessageStatement.bind(mailboxId, message.getUid()));
+        updates.add((message.isSeen() ? statements.decrementCountStatement : statements.decrementCountAndUnseenStatement).bind(mailboxId));
+        updates.addAll(indexes.delete(mailboxId, message.getUid()));
+        executeTogether(updates);
+        if (bodyBlob != null) {
+            blobStore.release(bodyBlob);
         }
     }
 
     @Override
     public Iterator<Message<CassandraId>> findInMailbox(Mailbox<CassandraId> mailbox, MessageRange set, FetchType ftype, int max) throws MailboxException {
-        return convertToStream(session.execute(buildQuery(mailbox, set)))
-            .map(this::message)
-            .sorted(Comparator.comparingLong(Message::getUid))
-            .iterator();
+        // Rows come in clustering order (uid) and are only read and converted while iterating. A
+        // limited query, as issued for each batch of StoreMessageResultIterator, fits in one page
+        // unless it is larger than the fetch size.
+        return Iterators.transform(
+            rows(limit(buildQuery(mailbox, set, projection(ftype)), max), max > 0 ? Math.min(max, fetchSize) : fetchSize),
+            (row) -> message(row, ftype));
     }
 
     @Override
     public List<Long> findRecentMessageUidsInMailbox(Mailbox<CassandraId> mailbox) throws MailboxException {
-        return convertToStream(session.execute(selectAll(mailbox).and((eq(RECENT, true)))))
-            .map((row) -> row.getLong(IMAP_UID))
-            .sorted()
-            .collect(Collectors.toList());
+        return indexes.findRecentUids(mailbox.getMailboxId().asUuid());
     }
 
     @Override
     public Long findFirstUnseenMessageUid(Mailbox<CassandraId> mailbox) throws MailboxException {
-        return convertToStream(session.execute(selectAll(mailbox).and((eq(SEEN, false)))))
-            .map((row) -> row.getLong(IMAP_UID))
-            .sorted()
-            .findFirst()
-            .orElse(null);
+        return indexes.findFirstUnseenUid(mailbox.getMailboxId().asUuid()).orElse(null);
     }
 
     @Override
     public Map<Long, MessageMetaData> expungeMarkedForDeletionInMailbox(final Mailbox<CassandraId> mailbox, MessageRange set) throws MailboxException {
-        return convertToStream(session.execute(buildQuery(mailbox, set).and(eq(DELETED, true))))
-            .map(this::message)
-            .peek((message) -> delete(mailbox, message))
-            .collect(Collectors.toMap(Message::getUid, SimpleMessageMetaData::new));
+        Map<Long, MessageMetaData> expunged = new HashMap<>();
+        Iterator<Row> rows = rows(buildQuery(mailbox, set, EXPUNGE_FIELDS).and(eq(DELETED, true)), fetchSize);
+        while (rows.hasNext()) {
+            Row row = rows.next();
+            Message<CassandraId> message = message(row, FetchType.Metadata);
+            delete(mailbox.getMailboxId().asUuid(), message, row.getString(BODY_BLOB));
+            expunged.put(message.getUid(), new SimpleMessageMetaData(message));
+        }
+        return expunged;
     }
 
     @Override
@@ -202,6 +302,20 @@ public class CassandraMessageMapper implements MessageMapper<CassandraId> {
         throw new UnsupportedOperationException("Not implemented - see https://issues.apache.org/jira/browse/IMAP-370");
     }
 
+    /**
+     * Rewrites the properties of the message, unless it was modified meanwhile.
+     */
+    @Override
+    public void saveMimeStructure(Mailbox<CassandraId> mailbox, Message<CassandraId> message, byte[] mimeStructure) throws MailboxException {
+        PropertyBuilder propertyBuilder = new PropertyBuilder(message.getProperties());
+        propertyBuilder.setMimeStructure(mimeStructure);
+        session.execute(statements.conditionalPropertiesUpdateStatement.bind(
+            toUDTValues(propertyBuilder.toProperties()),
+            message.getUid(),
+            mailbox.getMailboxId().asUuid(),
+            message.getModSeq()));
+    }
+
     @Override
     public void endRequest() {
         // Do nothing
@@ -216,23 +330,30 @@ public class CassandraMessageMapper implements MessageMapper<CassandraId> {
     public MessageMetaData add(Mailbox<CassandraId> mailbox, Message<CassandraId> message) throws MailboxException {
         message.setUid(uidProvider.nextUid(mailboxSession, mailbox));
         message.setModSeq(modSeqProvider.nextModSeq(mailboxSession, mailbox));
-        MessageMetaData messageMetaData = save(mailbox, message);
-        if (!message.isSeen()) {
-            incrementUnseen(mailbox);
-        }
-        incrementCount(mailbox);
-        return messageMetaData;
+        return save(mailbox, message);
     }
 
     @Override
     public Iterator<UpdatedFlags> updateFlags(Mailbox<CassandraId> mailbox, FlagsUpdateCalculator flagUpdateCalculator, MessageRange set) throws MailboxException {
-        return convertToStream(session.execute(buildQuery(mailbox, set)))
-            .map((row) -> updateFlagsOnMessage(mailbox, flagUpdateCalculator, row))
-            .filter(Optional::isPresent)
-            .map(Optional::get)
-            .peek((updatedFlags) -> manageUnseenMessageCounts(mailbox, updatedFlags.getOldFlags(), updatedFlags.getNewFlags()))
-            .collect(Collectors.toList()) // This collect is here as we need to consume all the stream before returning result
-            .iterator();
+        Iterator<Row> rows = rows(buildQuery(mailbox, set, FLAGS), fetchSize);
+        if (!rows.hasNext()) {
+            return Collections.emptyIterator();
+        }
+        // One mod-sequence for all the messages changed by this command
+        long modSeq = modSeqProvider.nextModSeq(mailboxSession, mailbox);
+        List<UpdatedFlags> updatedFlags = new ArrayList<>();
+        Iterator<List<Row>> batches = Iterators.partition(rows, FLAGS_UPDATE_BATCH_SIZE);
+        while (batches.hasNext()) {
+            List<Row> batch = batches.next();
+            List<UpdatedFlags> updatedInBatch = updateFlagsInBatch(mailbox, flagUpdateCalculator, batch, modSeq);
+            executeTogether(updatedInBatch.stream()
+                .flatMap((updated) -> indexes.update(mailbox.getMailboxId().asUuid(), updated).stream())
+                .collect(Collectors.toList()));
+            indexes.unseenAdded(mailbox.getMailboxId().asUuid(), updatedInBatch);
+            updatedFlags.addAll(updatedInBatch);
+        }
+        updateUnseenCount(mailbox, updatedFlags);
+        return updatedFlags.iterator();
     }
 
     @Override
@@ -242,15 +363,24 @@ public class CassandraMessageMapper implements MessageMapper<CassandraId> {
 
     @Override
     public MessageMetaData copy(Mailbox<CassandraId> mailbox, Message<CassandraId> original) throws MailboxException {
+        return copy(mailbox, Collections.singletonList(original)).get(0);
+    }
 
-        original.setUid(uidProvider.nextUid(mailboxSession, mailbox));
-        original.setModSeq(modSeqProvider.nextModSeq(mailboxSession, mailbox));
-        incrementCount(mailbox);
-        if(!original.isSeen()) {
-            incrementUnseen(mailbox);
+    @Override
+    public List<MessageMetaData> copy(Mailbox<CassandraId> mailbox, List<Message<CassandraId>> originals) throws MailboxException {
+        if (originals.isEmpty()) {
+            return Collections.emptyList();
         }
-        original.setFlags(new FlagsBuilder().add(original.createFlags()).add(Flag.RECENT).build());
-        return save(mailbox, original);
+        long uid = uidProvider.nextUids(mailboxSession, mailbox, originals.size());
+        long modSeq = modSeqProvider.nextModSeqs(mailboxSession, mailbox, originals.size());
+        List<MessageMetaData> copies = new ArrayList<>(originals.size());
+        for (Message<CassandraId> original : originals) {
+            original.setUid(uid++);
+            original.setModSeq(modSeq++);
+            original.setFlags(new FlagsBuilder().add(original.createFlags()).add(Flag.RECENT).build());
+            copies.add(save(mailbox, original));
+        }
+        return copies;
     }
 
     @Override
@@ -258,33 +388,65 @@ public class CassandraMessageMapper implements MessageMapper<CassandraId> {
         return uidProvider.lastUid(mailboxSession, mailbox);
     }
 
-    private void decrementCount(Mailbox<CassandraId> mailbox) {
-        updateMailbox(mailbox, decr(CassandraMailboxCountersTable.COUNT));
+    private static String selectCounter(String counter) {
+        return select(counter)
+            .from(CassandraMailboxCountersTable.TABLE_NAME)
+            .where(eq(CassandraMailboxCountersTable.MAILBOX_ID, bindMarker()))
+            .toString();
     }
 
-    private void incrementCount(Mailbox<CassandraId> mailbox) {
-        updateMailbox(mailbox, incr(CassandraMailboxCountersTable.COUNT));
+    private static String updateCounters(Assignment... operations) {
+        Update.Assignments assignments = update(CassandraMailboxCountersTable.TABLE_NAME).with(operations[0]);
+        for (int i = 1; i < operations.length; i++) {
+            assignments.and(operations[i]);
+        }
+        return assignments.where(eq(CassandraMailboxCountersTable.MAILBOX_ID, bindMarker())).toString();
     }
 
-    private void decrementUnseen(Mailbox<CassandraId> mailbox) {
-        updateMailbox(mailbox, decr(CassandraMailboxCountersTable.UNSEEN));
+    private void updateUnseenCount(Mailbox<CassandraId> mailbox, List<UpdatedFlags> updatedFlags) {
+        long unseenDelta = updatedFlags.stream()
+            .mapToLong(this::unseenDelta)
+            .sum();
+        if (unseenDelta > 0) {
+            session.execute(statements.incrementUnseenByStatement.bind(unseenDelta, mailbox.getMailboxId().asUuid()));
+        } else if (unseenDelta < 0) {
+            session.execute(statements.decrementUnseenByStatement.bind(-unseenDelta, mailbox.getMailboxId().asUuid()));
+        }
     }
 
-    private void incrementUnseen(Mailbox<CassandraId> mailbox) {
-        updateMailbox(mailbox, incr(CassandraMailboxCountersTable.UNSEEN));
+    private long unseenDelta(UpdatedFlags updatedFlags) {
+        boolean wasSeen = updatedFlags.getOldFlags().contains(Flag.SEEN);
+        boolean isSeen = updatedFlags.getNewFlags().contains(Flag.SEEN);
+        if (wasSeen && !isSeen) {
+            return 1;
+        }
+        if (!wasSeen && isSeen) {
+            return -1;
+        }
+        return 0;
     }
 
-    private void updateMailbox(Mailbox<CassandraId> mailbox, Assignment operation) {
-        session.execute(update(CassandraMailboxCountersTable.TABLE_NAME).with(operation).where(eq(CassandraMailboxCountersTable.MAILBOX_ID, mailbox.getMailboxId().asUuid())));
+    /**
+     * Sends the statements at once and waits for all of them to complete.
+     */
+    private void executeTogether(Statement... statementsToExecute) {
+        executeTogether(Arrays.asList(statementsToExecute));
     }
 
-    private Message<CassandraId> message(Row row) {
+    private void executeTogether(List<? extends Statement> statementsToExecute) {
+        statementsToExecute.stream()
+            .map(session::executeAsync)
+            .collect(Collectors.toList())
+            .forEach(ResultSetFuture::getUninterruptibly);
+    }
+
+    private Message<CassandraId> message(Row row, FetchType fetchType) {
         SimpleMessage<CassandraId> message =
             new SimpleMessage<>(
                 row.getDate(INTERNAL_DATE),
                 row.getInt(FULL_CONTENT_OCTETS),
                 row.getInt(BODY_START_OCTET),
-                new SharedByteArrayInputStream(getFullContent(row)),
+                getContent(row, fetchType),
                 getFlags(row),
                 getPropertyBuilder(row),
                 CassandraId.of(row.getUUID(MAILBOX_ID)));
@@ -293,12 +455,30 @@ public class CassandraMessageMapper implements MessageMapper<CassandraId> {
         return message;
     }
 
+    private SharedInputStream getContent(Row row, FetchType fetchType) {
+        if (fetchType == FetchType.Metadata) {
+            return new SharedByteArrayInputStream(new byte[0]);
+        }
+        String bodyBlob = row.getString(BODY_BLOB);
+        if (bodyBlob != null) {
+            return new CassandraMessageContent(getBytes(row, HEADER_CONTENT), blobStore, bodyBlob, row.getInt(BODY_OCTECTS));
+        }
+        // Messages saved before bodies were moved to the blob table
+        if (fetchType == FetchType.Headers) {
+            return new SharedByteArrayInputStream(getBytes(row, HEADER_CONTENT));
+        }
+        return new SharedByteArrayInputStream(getFullContent(row));
+    }
+
+    private byte[] getBytes(Row row, String column) {
+        ByteBuffer buffer = row.getBytes(column);
+        byte[] content = new byte[buffer.remaining()];
+        buffer.get(content);
+        return content;
+    }
+
     private byte[] getFullContent(Row row) {
-        byte[] headerContent = new byte[row.getBytes(HEADER_CONTENT).remaining()];
-        byte[] bodyContent = new byte[row.getBytes(BODY_CONTENT).remaining()];
-        row.getBytes(HEADER_CONTENT).get(headerContent);
-        row.getBytes(BODY_CONTENT).get(bodyContent);
-        return Bytes.concat(headerContent, bodyContent);
+        return Bytes.concat(getBytes(row, HEADER_CONTENT), getBytes(row, BODY_CONTENT));
     }
 
     private Flags getFlags(Row row) {
@@ -325,77 +505,84 @@ public class CassandraMessageMapper implements MessageMapper<CassandraId> {
 
     private MessageMetaData save(Mailbox<CassandraId> mailbox, Message<CassandraId> message) throws MailboxException {
         try {
-            Insert query = insertInto(TABLE_NAME)
-                .value(MAILBOX_ID, mailbox.getMailboxId().asUuid())
-                .value(IMAP_UID, message.getUid())
-                .value(MOD_SEQ, message.getModSeq())
-                .value(INTERNAL_DATE, message.getInternalDate())
-                .value(BODY_START_OCTET, message.getFullContentOctets() - message.getBodyOctets())
-                .value(FULL_CONTENT_OCTETS, message.getFullContentOctets())
-                .value(BODY_OCTECTS, message.getBodyOctets())
-                .value(ANSWERED, message.isAnswered())
-                .value(DELETED, message.isDeleted())
-                .value(DRAFT, message.isDraft())
-                .value(FLAGGED, message.isFlagged())
-                .value(RECENT, message.isRecent())
-                .value(SEEN, message.isSeen())
-                .value(USER, message.createFlags().contains(Flag.USER))
-                .value(USER_FLAGS, userFlagsSet(message))
-                .value(BODY_CONTENT, bindMarker())
-                .value(HEADER_CONTENT, bindMarker())
-                .value(PROPERTIES, message.getProperties().stream()
-                    .map(x -> typesProvider.getDefinedUserType(TYPE.Property)
-                        .newValue()
-                        .setString(Properties.NAMESPACE, x.getNamespace())
-                        .setString(Properties.NAME, x.getLocalName())
-                        .setString(Properties.VALUE, x.getValue()))
-                    .collect(Collectors.toList()))
-                .value(TEXTUAL_LINE_COUNT, message.getTextualLineCount());
-            PreparedStatement preparedStatement = session.prepare(query.toString());
-
-
-            BoundStatement boundStatement = preparedStatement.bind(toByteBuffer(message.getBodyContent()), toByteBuffer(message.getHeaderContent()));
-            session.execute(boundStatement);
+            UUID mailboxId = mailbox.getMailboxId().asUuid();
+            BoundStatement insert = statements.insertMessageStatement.bind(
+                mailboxId,
+                message.getUid(),
+                message.getModSeq(),
+                message.getInternalDate(),
+                (int) (message.getFullContentOctets() - message.getBodyOctets()),
+                (int) message.getFullContentOctets(),
+                (int) message.getBodyOctets(),
+                message.isAnswered(),
+                message.isDeleted(),
+                message.isDraft(),
+                message.isFlagged(),
+                message.isRecent(),
+                message.isSeen(),
+                message.createFlags().contains(Flag.USER),
+                userFlagsSet(message.createFlags()),
+                blobStore.save(ByteStreams.toByteArray(message.getBodyContent())),
+                toByteBuffer(message.getHeaderContent()),
+                toUDTValues(message.getProperties()),
+                message.getTextualLineCount());
+            List<Statement> updates = new ArrayList<>();
+            updates.add(insert);
+            updates.add((message.isSeen() ? statements.incrementCountStatement : statements.incrementCountAndUnseenStatement).bind(mailboxId));
+            updates.addAll(indexes.add(mailboxId, message.getUid(), message.createFlags()));
+            executeTogether(updates);
+            if (!message.isSeen()) {
+                indexes.unseenAdded(mailboxId, message.getUid());
+            }
             return new SimpleMessageMetaData(message);
         } catch (IOException e) {
             throw new MailboxException("Error saving mail", e);
         }
     }
 
-    private Set<String> userFlagsSet(Message<CassandraId> message) {
-        return Arrays.stream(message.createFlags().getUserFlags()).collect(Collectors.toSet());
-    }
-
-    private void manageUnseenMessageCounts(Mailbox<CassandraId> mailbox, Flags oldFlags, Flags newFlags) {
-        if (oldFlags.contains(Flag.SEEN) && !newFlags.contains(Flag.SEEN)) {
-            incrementUnseen(mailbox);
-        }
-        if (!oldFlags.contains(Flag.SEEN) && newFlags.contains(Flag.SEEN)) {
-            decrementUnseen(mailbox);
-        }
+    private List<UDTValue> toUDTValues(List<Property> properties) {
+        return properties.stream()
+            .map(x -> typesProvider.getDefinedUserType(TYPE.Property)
+                .newValue()
+                .setString(Properties.NAMESPACE, x.getNamespace())
+                .setString(Properties.NAME, x.getLocalName())
+                .setString(Properties.VALUE, x.getValue()))
+            .collect(Collectors.toList());
     }
 
-    private Optional<UpdatedFlags> updateFlagsOnMessage(Mailbox<CassandraId> mailbox, FlagsUpdateCalculator flagUpdateCalculator, Row row) {
-        return tryMessageFlagsUpdate(flagUpdateCalculator, mailbox, message(row))
-            .map(Optional::of)
-            .orElse(handleRetries(mailbox, flagUpdateCalculator, row.getLong(IMAP_UID)));
+    private Set<String> userFlagsSet(Flags flags) {
+        return Arrays.stream(flags.getUserFlags()).collect(Collectors.toSet());
     }
 
-    private Optional<UpdatedFlags> tryMessageFlagsUpdate(FlagsUpdateCalculator flagUpdateCalculator, Mailbox<CassandraId> mailbox, Message<CassandraId> message) {
-        try {
-            long oldModSeq = message.getModSeq();
-            Flags oldFlags = message.createFlags();
+    /**
+     * Applies the new flags of a batch of messages with a single conditional batch. If
+     * any message was modified concurrently nothing is applied, the changed messages
+     * are then updated one by one. The result is in the order of the rows, so by uid.
+     */
+    private List<UpdatedFlags> updateFlagsInBatch(Mailbox<CassandraId> mailbox, FlagsUpdateCalculator flagUpdateCalculator, List<Row> rows, long modSeq) {
+        List<UpdatedFlags> updated = new ArrayList<>(rows.size());
+        BatchStatement batch = new BatchStatement();
+        for (Row row : rows) {
+            long uid = row.getLong(IMAP_UID);
+            Flags oldFlags = getFlags(row);
             Flags newFlags = flagUpdateCalculator.buildNewFlags(oldFlags);
-            message.setFlags(newFlags);
-            message.setModSeq(modSeqProvider.nextModSeq(mailboxSession, mailbox));
-            if (conditionalSave(message, oldModSeq)) {
-                return Optional.of(new UpdatedFlags(message.getUid(), message.getModSeq(), oldFlags, newFlags));
+            if (UpdatedFlags.flagsChanged(oldFlags, newFlags)) {
+                batch.add(conditionalFlagsUpdate(mailbox, uid, newFlags, modSeq, row.getLong(MOD_SEQ)));
+                updated.add(new UpdatedFlags(uid, modSeq, oldFlags, newFlags));
             } else {
-                return Optional.empty();
+                updated.add(new UpdatedFlags(uid, row.getLong(MOD_SEQ), oldFlags, newFlags));
             }
-        } catch (MailboxException e) {
-            throw Throwables.propagate(e);
         }
+        if (!batch.getStatements().isEmpty() && !isApplied(session.execute(batch))) {
+            return updated.stream()
+                .map((updatedFlags) -> updatedFlags.flagsChanged()
+                    ? handleRetries(mailbox, flagUpdateCalculator, updatedFlags.getUid())
+                    : Optional.of(updatedFlags))
+                .filter(Optional::isPresent)
+                .map(Optional::get)
+                .collect(Collectors.toList());
+        }
+        return updated;
     }
 
     private Optional<UpdatedFlags> handleRetries(Mailbox<CassandraId> mailbox, FlagsUpdateCalculator flagUpdateCalculator, long uid) {
@@ -412,27 +599,42 @@ public class CassandraMessageMapper implements MessageMapper<CassandraId> {
     }
 
     private Optional<UpdatedFlags> retryMessageFlagsUpdate(Mailbox<CassandraId> mailbox, long uid, FlagsUpdateCalculator flagUpdateCalculator) {
-        return tryMessageFlagsUpdate(flagUpdateCalculator,
-            mailbox,
-            message(Optional.ofNullable(session.execute(selectMessage(mailbox, uid)).one())
-                .orElseThrow(() -> new MessageDeletedDuringFlagsUpdateException(mailbox.getMailboxId(), uid))));
-    }
-
-    private boolean conditionalSave(Message<CassandraId> message, long oldModSeq) {
-        ResultSet resultSet = session.execute(
-            update(TABLE_NAME)
-                .with(set(ANSWERED, message.isAnswered()))
-                .and(set(DELETED, message.isDeleted()))
-                .and(set(DRAFT, message.isDraft()))
-                .and(set(FLAGGED, message.isFlagged()))
-                .and(set(RECENT, message.isRecent()))
-                .and(set(SEEN, message.isSeen()))
-                .and(set(USER, message.createFlags().contains(Flag.USER)))
-                .and(set(USER_FLAGS, userFlagsSet(message)))
-                .and(set(MOD_SEQ, message.getModSeq()))
-                .where(eq(IMAP_UID, message.getUid()))
-                .and(eq(MAILBOX_ID, message.getMailboxId().asUuid()))
-                .onlyIf(eq(MOD_SEQ, oldModSeq)));
+        Row row = Optional.ofNullable(session.execute(selectMessage(mailbox, uid, FLAGS)).one())
+            .orElseThrow(() -> new MessageDeletedDuringFlagsUpdateException(mailbox.getMailboxId(), uid));
+        try {
+            long oldModSeq = row.getLong(MOD_SEQ);
+            Flags oldFlags = getFlags(row);
+            Flags newFlags = flagUpdateCalculator.buildNewFlags(oldFlags);
+            if (!UpdatedFlags.flagsChanged(oldFlags, newFlags)) {
+                return Optional.of(new UpdatedFlags(uid, oldModSeq, oldFlags, newFlags));
+            }
+            long modSeq = modSeqProvider.nextModSeq(mailboxSession, mailbox);
+            if (isApplied(session.execute(conditionalFlagsUpdate(mailbox, uid, newFlags, modSeq, oldModSeq)))) {
+                return Optional.of(new UpdatedFlags(uid, modSeq, oldFlags, newFlags));
+            }
+            return Optional.empty();
+        } catch (MailboxException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    private BoundStatement conditionalFlagsUpdate(Mailbox<CassandraId> mailbox, long uid, Flags newFlags, long modSeq, long oldModSeq) {
+        return statements.conditionalFlagsUpdateStatement.bind(
+            newFlags.contains(Flag.ANSWERED),
+            newFlags.contains(Flag.DELETED),
+            newFlags.contains(Flag.DRAFT),
+            newFlags.contains(Flag.FLAGGED),
+            newFlags.contains(Flag.RECENT),
+            newFlags.contains(Flag.SEEN),
+            newFlags.contains(Flag.USER),
+            userFlagsSet(newFlags),
+            modSeq,
+            uid,
+            mailbox.getMailboxId().asUuid(),
+            oldModSeq);
+    }
+
+    private boolean isApplied(ResultSet resultSet) {
         return resultSet.one().getBool(CassandraConstants.LIGHTWEIGHT_TRANSACTION_APPLIED);
     }
 
@@ -440,51 +642,108 @@ public class CassandraMessageMapper implements MessageMapper<CassandraId> {
         return ByteBuffer.wrap(ByteStreams.toByteArray(stream));
     }
 
-    private Where buildQuery(Mailbox<CassandraId> mailbox, MessageRange set) {
+    private String[] projection(FetchType fetchType) {
+        switch (fetchType) {
+        case Metadata:
+            return METADATA;
+        case Headers:
+            return HEADERS;
+        default:
+            // The body start octet is relative to the full content, so a body fetch needs the headers too
+            return FIELDS;
+        }
+    }
+
+    private Statement limit(Where where, int max) {
+        if (max > 0) {
+            return where.limit(max);
+        }
+        return where;
+    }
+
+    private Where buildQuery(Mailbox<CassandraId> mailbox, MessageRange set, String[] fields) {
         final MessageRange.Type type = set.getType();
         switch (type) {
         case ALL:
-            return selectAll(mailbox);
+            return selectAll(mailbox, fields);
         case FROM:
-            return selectFrom(mailbox, set.getUidFrom());
+            return selectFrom(mailbox, set.getUidFrom(), fields);
         case RANGE:
-            return selectRange(mailbox, set.getUidFrom(), set.getUidTo());
+            return selectRange(mailbox, set.getUidFrom(), set.getUidTo(), fields);
         case ONE:
-            return selectMessage(mailbox, set.getUidFrom());
+            return selectMessage(mailbox, set.getUidFrom(), fields);
         }
         throw new UnsupportedOperationException();
     }
 
-    private Where selectAll(Mailbox<CassandraId> mailbox) {
-        return select(FIELDS)
+    private Where selectAll(Mailbox<CassandraId> mailbox, String[] fields) {
+        return select(fields)
             .from(TABLE_NAME)
             .where(eq(MAILBOX_ID, mailbox.getMailboxId().asUuid()));
     }
 
-    private Where selectFrom(Mailbox<CassandraId> mailbox, long uid) {
-        return select(FIELDS)
+    private Where selectFrom(Mailbox<CassandraId> mailbox, long uid, String[] fields) {
+        return select(fields)
             .from(TABLE_NAME)
             .where(eq(MAILBOX_ID, mailbox.getMailboxId().asUuid()))
             .and(gte(IMAP_UID, uid));
     }
 
-    private Where selectRange(Mailbox<CassandraId> mailbox, long from, long to) {
-        return select(FIELDS)
+    private Where selectRange(Mailbox<CassandraId> mailbox, long from, long to, String[] fields) {
+        return select(fields)
             .from(TABLE_NAME)
             .where(eq(MAILBOX_ID, mailbox.getMailboxId().asUuid()))
             .and(gte(IMAP_UID, from))
             .and(lte(IMAP_UID, to));
     }
 
-    private Where selectMessage(Mailbox<CassandraId> mailbox, long uid) {
-        return select(FIELDS)
+    private Where selectMessage(Mailbox<CassandraId> mailbox, long uid, String[] fields) {
+        return select(fields)
             .from(TABLE_NAME)
             .where(eq(MAILBOX_ID, mailbox.getMailboxId().asUuid()))
             .and(eq(IMAP_UID, uid));
     }
 
-    private Stream<Row> convertToStream(ResultSet resultSet) {
-        return StreamSupport.stream(resultSet.spliterator(), true);
+    /**
+     * Executes the query and returns its rows, read lazily page by page
+     */
+    private Iterator<Row> rows(Statement query, int pageSize) {
+        return new PrefetchingRowIterator(session.execute(query.setFetchSize(pageSize)), pageSize / PREFETCH_RATIO);
+    }
+
+    /**
+     * The statements used by the message mappers, prepared once and shared by
+     * all the mappers of a {@link org.apache.james.mailbox.cassandra.CassandraMailboxSessionMapperFactory}.
+     */
+    public static class Statements {
+        private final PreparedStatement selectCountStatement;
+        private final PreparedStatement selectUnseenStatement;
+        private final PreparedStatement incrementCountStatement;
+        private final PreparedStatement incrementCountAndUnseenStatement;
+        private final PreparedStatement decrementCountStatement;
+        private final PreparedStatement decrementCountAndUnseenStatement;
+        private final PreparedStatement incrementUnseenByStatement;
+        private final PreparedStatement decrementUnseenByStatement;
+        private final PreparedStatement deleteMessageStatement;
+        private final PreparedStatement selectBodyBlobStatement;
+        private final PreparedStatement insertMessageStatement;
+        private final PreparedStatement conditionalFlagsUpdateStatement;
+        private final PreparedStatement conditionalPropertiesUpdateStatement;
+
+        public Statements(Session session) {
+            this.selectCountStatement = session.prepare(SELECT_COUNT);
+            this.selectUnseenStatement = session.prepare(SELECT_UNSEEN);
+            this.incrementCountStatement = session.prepare(INCREMENT_COUNT);
+            this.incrementCountAndUnseenStatement = session.prepare(INCREMENT_COUNT_AND_UNSEEN);
+            this.decrementCountStatement = session.prepare(DECREMENT_COUNT);
+            this.decrementCountAndUnseenStatement = session.prepare(DECREMENT_COUNT_AND_UNSEEN);
+            this.incrementUnseenByStatement = session.prepare(INCREMENT_UNSEEN_BY);
+            this.decrementUnseenByStatement = session.prepare(DECREMENT_UNSEEN_BY);
+            this.deleteMessageStatement = session.prepare(DELETE_MESSAGE);
+            this.selectBodyBlobStatement = session.prepare(SELECT_BODY_BLOB);
+            this.insertMessageStatement = session.prepare(INSERT_MESSAGE);
+            this.conditionalFlagsUpdateStatement = session.prepare(CONDITIONAL_FLAGS_UPDATE);
+            this.conditionalPropertiesUpdateStatement = session.prepare(CONDITIONAL_PROPERTIES_UPDATE);
+        }
     }
-
 }
@@ -34,6 +34,7 @@ import java.util.Optional;
 import org.apache.james.mailbox.MailboxSession;
 import org.apache.james.mailbox.cassandra.CassandraId;
 import org.apache.james.mailbox.cassandra.mail.utils.FunctionRunnerWithRetry;
+import org.apache.james.mailbox.cassandra.mail.utils.RangeLeases;
 import org.apache.james.mailbox.exception.MailboxException;
 import org.apache.james.mailbox.store.mail.ModSeqProvider;
 import org.apache.james.mailbox.store.mail.model.Mailbox;
@@ -53,10 +54,20 @@ public class CassandraModSeqProvider implements ModSeqProvider<CassandraId> {
     
     private final Session session;
     private final FunctionRunnerWithRetry runner;
+    private final RangeLeases leases;
 
-    public CassandraModSeqProvider(Session session, int maxRetry) {
+    /**
+     * @param leaseSize number of values reserved at once for a mailbox and then handed
+     * out by this node, 1 to reserve each value when needed. See {@link RangeLeases}.
+     */
+    public CassandraModSeqProvider(Session session, int maxRetry, int leaseSize) {
         this.session = session;
         this.runner = new FunctionRunnerWithRetry(maxRetry);
+        this.leases = leaseSize > 1 ? new RangeLeases(leaseSize) : null;
+    }
+
+    public CassandraModSeqProvider(Session session, int maxRetry) {
+        this(session, maxRetry, 1);
     }
 
     public CassandraModSeqProvider(Session session) {
@@ -65,27 +76,45 @@ public class CassandraModSeqProvider implements ModSeqProvider<CassandraId> {
 
     @Override
     public long nextModSeq(MailboxSession mailboxSession, Mailbox<CassandraId> mailbox) throws MailboxException {
+        return nextModSeqs(mailboxSession, mailbox, 1);
+    }
+
+    @Override
+    public long nextModSeqs(MailboxSession mailboxSession, Mailbox<CassandraId> mailbox, int count) throws MailboxException {
+        if (leases == null) {
+            return reserveModSeqs(mailboxSession, mailbox, count);
+        }
+        return leases.next(mailbox.getMailboxId(), count, (size) -> reserveModSeqs(mailboxSession, mailbox, size));
+    }
+
+    private long reserveModSeqs(MailboxSession mailboxSession, Mailbox<CassandraId> mailbox, int count) throws MailboxException {
         if (findHighestModSeq(mailboxSession, mailbox).isFirst()) {
-            Optional<ModSeq> optional = tryInsertModSeq(mailbox, FIRST_MODSEQ);
+            Optional<ModSeq> optional = tryInsertModSeq(mailbox, FIRST_MODSEQ, count);
             if (optional.isPresent()) {
-                return optional.get().getValue();
+                return optional.get().getValue() - count + 1;
             }
         }
-        
+
         return runner.executeAndRetrieveObject(
-                    () -> {
-                        try {
-                            return tryUpdateModSeq(mailbox, findHighestModSeq(mailboxSession, mailbox))
-                                    .map(ModSeq::getValue);
-                        } catch (Exception exception) {
-                            LOG.error("Can not retrieve next ModSeq", exception);
-                            throw Throwables.propagate(exception);
-                        }
-                    });
+            () -> {
+                try {
+                    return tryUpdateModSeq(mailbox, findHighestModSeq(mailboxSession, mailbox), count)
+                        .map((modSeq) -> modSeq.getValue() - count + 1);
+                } catch (Exception exception) {
+                    LOG.error("Can not retrieve next ModSeq", exception);
+                    throw Throwables.propagate(exception);
+                }
+            });
     }
 
     @Override
     public long highestModSeq(MailboxSession mailboxSession, Mailbox<CassandraId> mailbox) throws MailboxException {
+        if (leases != null) {
+            Optional<Long> lastTaken = leases.lastTaken(mailbox.getMailboxId());
+            if (lastTaken.isPresent()) {
+                return lastTaken.get();
+            }
+        }
         return findHighestModSeq(mailboxSession, mailbox).getValue();
     }
     
@@ -101,8 +130,8 @@ public class CassandraModSeqProvider implements ModSeqProvider<CassandraId> {
         }
     }
 
-    private Optional<ModSeq> tryInsertModSeq(Mailbox<CassandraId> mailbox, ModSeq modSeq) {
-        ModSeq nextModSeq = modSeq.next();
+    private Optional<ModSeq> tryInsertModSeq(Mailbox<CassandraId> mailbox, ModSeq modSeq, int count) {
+        ModSeq nextModSeq = modSeq.add(count);
         return transactionalStatementToOptionalModSeq(nextModSeq,
                 insertInto(TABLE_NAME)
                     .value(NEXT_MODSEQ, nextModSeq.getValue())
@@ -110,8 +139,8 @@ public class CassandraModSeqProvider implements ModSeqProvider<CassandraId> {
                     .ifNotExists());
     }
     
-    private Optional<ModSeq> tryUpdateModSeq(Mailbox<CassandraId> mailbox, ModSeq modSeq) {
-        ModSeq nextModSeq = modSeq.next();
+    private Optional<ModSeq> tryUpdateModSeq(Mailbox<CassandraId> mailbox, ModSeq modSeq, int count) {
+        ModSeq nextModSeq = modSeq.add(count);
         return transactionalStatementToOptionalModSeq(nextModSeq,
                 update(TABLE_NAME)
                     .onlyIf(eq(NEXT_MODSEQ, modSeq.getValue()))
@@ -134,8 +163,8 @@ public class CassandraModSeqProvider implements ModSeqProvider<CassandraId> {
             this.value = value;
         }
         
-        public ModSeq next() {
-            return new ModSeq(value + 1);
+        public ModSeq add(int count) {
+            return new ModSeq(value + count);
         }
         
         public long getValue() {
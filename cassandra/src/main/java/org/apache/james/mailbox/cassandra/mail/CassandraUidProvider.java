@@ -34,6 +34,7 @@ import com.google.common.base.Throwables;
 import org.apache.james.mailbox.MailboxSession;
 import org.apache.james.mailbox.cassandra.CassandraId;
 import org.apache.james.mailbox.cassandra.mail.utils.FunctionRunnerWithRetry;
+import org.apache.james.mailbox.cassandra.mail.utils.RangeLeases;
 import org.apache.james.mailbox.cassandra.table.CassandraMessageUidTable;
 import org.apache.james.mailbox.exception.MailboxException;
 import org.apache.james.mailbox.store.mail.UidProvider;
@@ -51,10 +52,20 @@ public class CassandraUidProvider implements UidProvider<CassandraId> {
 
     private final Session session;
     private final FunctionRunnerWithRetry runner;
+    private final RangeLeases leases;
 
-    public CassandraUidProvider(Session session, int maxRetry) {
+    /**
+     * @param leaseSize number of values reserved at once for a mailbox and then handed
+     * out by this node, 1 to reserve each value when needed. See {@link RangeLeases}.
+     */
+    public CassandraUidProvider(Session session, int maxRetry, int leaseSize) {
         this.session = session;
         this.runner = new FunctionRunnerWithRetry(maxRetry);
+        this.leases = leaseSize > 1 ? new RangeLeases(leaseSize) : null;
+    }
+
+    public CassandraUidProvider(Session session, int maxRetry) {
+        this(session, maxRetry, 1);
     }
 
     public CassandraUidProvider(Session session) {
@@ -63,18 +74,30 @@ public class CassandraUidProvider implements UidProvider<CassandraId> {
 
     @Override
     public long nextUid(MailboxSession mailboxSession, Mailbox<CassandraId> mailbox) throws MailboxException {
+        return nextUids(mailboxSession, mailbox, 1);
+    }
+
+    @Override
+    public long nextUids(MailboxSession mailboxSession, Mailbox<CassandraId> mailbox, int count) throws MailboxException {
+        if (leases == null) {
+            return reserveUids(mailboxSession, mailbox, count);
+        }
+        return leases.next(mailbox.getMailboxId(), count, (size) -> reserveUids(mailboxSession, mailbox, size));
+    }
+
+    private long reserveUids(MailboxSession mailboxSession, Mailbox<CassandraId> mailbox, int count) throws MailboxException {
         if (findHighestUid(mailbox).isFirst()) {
-            Optional<Uid> optional = tryInsertUid(mailbox, FIRST_UID);
+            Optional<Uid> optional = tryInsertUid(mailbox, FIRST_UID, count);
             if (optional.isPresent()) {
-                return optional.get().getValue();
+                return optional.get().getValue() - count + 1;
             }
         }
 
         return runner.executeAndRetrieveObject(
             () -> {
                 try {
-                    return tryUpdateUid(mailbox, findHighestUid(mailbox))
-                        .map(Uid::getValue);
+                    return tryUpdateUid(mailbox, findHighestUid(mailbox), count)
+                        .map((uid) -> uid.getValue() - count + 1);
                 } catch (Exception exception) {
                     LOG.error("Can not retrieve next Uid", exception);
                     throw Throwables.propagate(exception);
@@ -84,6 +107,12 @@ public class CassandraUidProvider implements UidProvider<CassandraId> {
 
     @Override
     public long lastUid(MailboxSession mailboxSession, Mailbox<CassandraId> mailbox) throws MailboxException {
+        if (leases != null) {
+            Optional<Long> lastTaken = leases.lastTaken(mailbox.getMailboxId());
+            if (lastTaken.isPresent()) {
+                return lastTaken.get();
+            }
+        }
         return findHighestUid(mailbox).getValue();
     }
 
@@ -99,8 +128,8 @@ public class CassandraUidProvider implements UidProvider<CassandraId> {
         }
     }
 
-    private Optional<Uid> tryInsertUid(Mailbox<CassandraId> mailbox, Uid uid) {
-        Uid nextUid = uid.next();
+    private Optional<Uid> tryInsertUid(Mailbox<CassandraId> mailbox, Uid uid, int count) {
+        Uid nextUid = uid.add(count);
         return transactionalStatementToOptionalUid(nextUid,
             insertInto(CassandraMessageUidTable.TABLE_NAME)
                 .value(NEXT_UID, nextUid.getValue())
@@ -108,8 +137,8 @@ public class CassandraUidProvider implements UidProvider<CassandraId> {
                 .ifNotExists());
     }
 
-    private Optional<Uid> tryUpdateUid(Mailbox<CassandraId> mailbox, Uid uid) {
-        Uid nextUid = uid.next();
+    private Optional<Uid> tryUpdateUid(Mailbox<CassandraId> mailbox, Uid uid, int count) {
+        Uid nextUid = uid.add(count);
         return transactionalStatementToOptionalUid(nextUid,
             update(CassandraMessageUidTable.TABLE_NAME)
                 .onlyIf(eq(NEXT_UID, uid.getValue()))
@@ -132,8 +161,8 @@ public class CassandraUidProvider implements UidProvider<CassandraId> {
             this.value = value;
         }
 
-        public Uid next() {
-            return new Uid(value + 1);
+        public Uid add(int count) {
+            return new Uid(value + count);
         }
 
         public long getValue() {
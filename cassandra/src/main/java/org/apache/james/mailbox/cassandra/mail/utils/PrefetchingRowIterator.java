@@ -0,0 +1,66 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailbox.cassandra.mail.utils;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+import com.google.common.base.Preconditions;
+
+/**
+ * Iterates lazily over the rows of a {@link ResultSet}, relying on the paging of
+ * the driver: only the page being read is held in memory. Once the rows left in
+ * the current page drop to the prefetch threshold, the next page is requested
+ * asynchronously, so that it is usually available when the current one is done.
+ */
+public class PrefetchingRowIterator implements Iterator<Row> {
+
+    private final ResultSet resultSet;
+    private final int prefetchThreshold;
+
+    public PrefetchingRowIterator(ResultSet resultSet, int prefetchThreshold) {
+        Preconditions.checkArgument(prefetchThreshold >= 0);
+        this.resultSet = resultSet;
+        this.prefetchThreshold = prefetchThreshold;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return !resultSet.isExhausted();
+    }
+
+    @Override
+    public Row next() {
+        if (resultSet.getAvailableWithoutFetching() <= prefetchThreshold && !resultSet.isFullyFetched()) {
+            resultSet.fetchMoreResults();
+        }
+        Row row = resultSet.one();
+        if (row == null) {
+            throw new NoSuchElementException();
+        }
+        return row;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("Read only");
+    }
+}
@@ -0,0 +1,130 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailbox.cassandra.mail.utils;
+
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+
+import org.apache.james.mailbox.cassandra.CassandraId;
+import org.apache.james.mailbox.exception.MailboxException;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Hands out values (uids, mod-sequences) from ranges leased per mailbox, so that
+ * only one value in <code>leaseSize</code> costs a round-trip to Cassandra.
+ * <p>
+ * Values are handed out in ascending order by a node, but two nodes leasing
+ * ranges for the same mailbox hand out interleaved values. Leases should hence only
+ * be used when each mailbox is written through a single node. Values left in a
+ * lease when the node stops, or when the lease is evicted, are lost.
+ */
+public class RangeLeases {
+
+    @FunctionalInterface
+    public interface RangeReserver {
+        /**
+         * Reserve <code>count</code> consecutive values and return the first one
+         */
+        long reserve(int count) throws MailboxException;
+    }
+
+    private static final int MAX_LEASED_MAILBOXES = 10000;
+
+    private final int leaseSize;
+    private final Cache<CassandraId, Lease> leases;
+
+    public RangeLeases(int leaseSize) {
+        Preconditions.checkArgument(leaseSize > 0);
+        this.leaseSize = leaseSize;
+        this.leases = CacheBuilder.newBuilder()
+            .maximumSize(MAX_LEASED_MAILBOXES)
+            .build();
+    }
+
+    /**
+     * Take <code>count</code> consecutive values of the lease of the given mailbox,
+     * a new range is reserved when the lease does not hold enough values.
+     *
+     * @return the first value taken
+     */
+    public long next(CassandraId mailboxId, int count, RangeReserver reserver) throws MailboxException {
+        Lease lease = lease(mailboxId);
+        synchronized (lease) {
+            if (lease.remaining() < count) {
+                int size = Math.max(count, leaseSize);
+                long first = reserver.reserve(size);
+                lease.renew(first, first + size - 1);
+            }
+            return lease.take(count);
+        }
+    }
+
+    /**
+     * @return the last value handed out for the given mailbox by this node, if it holds a lease
+     */
+    public Optional<Long> lastTaken(CassandraId mailboxId) {
+        Lease lease = leases.getIfPresent(mailboxId);
+        if (lease == null) {
+            return Optional.empty();
+        }
+        synchronized (lease) {
+            return lease.lastTaken();
+        }
+    }
+
+    private Lease lease(CassandraId mailboxId) throws MailboxException {
+        try {
+            return leases.get(mailboxId, Lease::new);
+        } catch (ExecutionException e) {
+            throw new MailboxException("Can not create lease for mailbox " + mailboxId, e);
+        }
+    }
+
+    private static class Lease {
+        private long next = 1;
+        private long last = 0;
+        private boolean taken = false;
+
+        private long remaining() {
+            return last - next + 1;
+        }
+
+        private void renew(long first, long last) {
+            this.next = first;
+            this.last = last;
+        }
+
+        private long take(int count) {
+            long first = next;
+            next += count;
+            taken = true;
+            return first;
+        }
+
+        private Optional<Long> lastTaken() {
+            if (!taken) {
+                return Optional.empty();
+            }
+            return Optional.of(next - 1);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailbox.cassandra.mail;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.Date;
+
+import javax.mail.Flags;
+import javax.mail.util.SharedByteArrayInputStream;
+
+import org.apache.james.mailbox.cassandra.CassandraClusterSingleton;
+import org.apache.james.mailbox.cassandra.CassandraId;
+import org.apache.james.mailbox.cassandra.CassandraMailboxSessionMapperFactory;
+import org.apache.james.mailbox.exception.MailboxException;
+import org.apache.james.mailbox.mock.MockMailboxSession;
+import org.apache.james.mailbox.model.MailboxPath;
+import org.apache.james.mailbox.store.mail.MessageMapper;
+import org.apache.james.mailbox.store.mail.model.impl.PropertyBuilder;
+import org.apache.james.mailbox.store.mail.model.impl.SimpleMailbox;
+import org.apache.james.mailbox.store.mail.model.impl.SimpleMessage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Measures the latency and the throughput of appends against the embedded
+ * Cassandra. The number of appended messages can be set with the
+ * <code>cassandra.benchmark.messages</code> system property. It only runs with
+ * the <code>benchmark</code> profile.
+ */
+public class CassandraAppendBenchmarkTest {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CassandraAppendBenchmarkTest.class);
+
+    private static final CassandraClusterSingleton CASSANDRA = CassandraClusterSingleton.build();
+    private static final String CONTENT = "Subject: Benchmark\r\n\r\nBody of the benchmark message\r\n";
+    private static final int BODY_START = 22;
+    private static final int WARM_UP = 100;
+
+    private MessageMapper<CassandraId> messageMapper;
+    private SimpleMailbox<CassandraId> mailbox;
+
+    @Before
+    public void setUp() throws MailboxException {
+        CASSANDRA.ensureAllTables();
+        messageMapper = new CassandraMailboxSessionMapperFactory(
+            new CassandraUidProvider(CASSANDRA.getConf()),
+            new CassandraModSeqProvider(CASSANDRA.getConf()),
+            CASSANDRA.getConf(),
+            CASSANDRA.getTypesProvider()
+        ).getMessageMapper(new MockMailboxSession("benchmark"));
+        mailbox = new SimpleMailbox<CassandraId>(new MailboxPath("#private", "benchmark", "INBOX"), 42);
+        mailbox.setMailboxId(CassandraId.timeBased());
+    }
+
+    @After
+    public void tearDown() {
+        CASSANDRA.clearAllTables();
+    }
+
+    @Test
+    public void appendBenchmark() throws MailboxException {
+        int messages = Integer.getInteger("cassandra.benchmark.messages", 1000);
+        for (int i = 0; i < WARM_UP; i++) {
+            messageMapper.add(mailbox, createMessage());
+        }
+
+        long maxLatency = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            long appendStart = System.nanoTime();
+            messageMapper.add(mailbox, createMessage());
+            maxLatency = Math.max(maxLatency, System.nanoTime() - appendStart);
+        }
+        long elapsed = System.nanoTime() - start;
+
+        assertThat(messageMapper.countMessagesInMailbox(mailbox)).isEqualTo(WARM_UP + messages);
+        LOG.info(String.format("Appended %d messages in %d ms: %.2f ms average latency, %.2f ms max latency, %.0f messages/s",
+            messages, elapsed / 1000000, elapsed / 1000000.0 / messages, maxLatency / 1000000.0, messages * 1000000000.0 / elapsed));
+    }
+
+    private SimpleMessage<CassandraId> createMessage() {
+        return new SimpleMessage<CassandraId>(new Date(), CONTENT.length(), BODY_START, new SharedByteArrayInputStream(CONTENT.getBytes()), new Flags(), new PropertyBuilder(), mailbox.getMailboxId());
+    }
+}
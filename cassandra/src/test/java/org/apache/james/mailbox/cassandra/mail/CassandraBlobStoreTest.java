@@ -0,0 +1,142 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailbox.cassandra.mail;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.james.mailbox.cassandra.CassandraClusterSingleton;
+import org.apache.james.mailbox.cassandra.table.CassandraBlobTable;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.querybuilder.QueryBuilder;
+import com.google.common.io.ByteStreams;
+
+public class CassandraBlobStoreTest {
+
+    private static final CassandraClusterSingleton CASSANDRA = CassandraClusterSingleton.build();
+
+    private CassandraBlobStore blobStore;
+
+    @Before
+    public void setUp() {
+        CASSANDRA.ensureAllTables();
+        blobStore = new CassandraBlobStore(CASSANDRA.getConf());
+    }
+
+    @After
+    public void tearDown() {
+        CASSANDRA.clearAllTables();
+    }
+
+    @Test
+    public void readShouldReturnTheSavedContent() throws IOException {
+        byte[] content = content(CassandraBlobStore.CHUNK_SIZE * 2 + 10);
+
+        String id = blobStore.save(content);
+
+        assertThat(ByteStreams.toByteArray(blobStore.read(id, 0))).isEqualTo(content);
+    }
+
+    @Test
+    public void readShouldStartAtTheGivenOffset() throws IOException {
+        byte[] content = content(CassandraBlobStore.CHUNK_SIZE * 2 + 10);
+        int offset = CassandraBlobStore.CHUNK_SIZE + 5;
+
+        String id = blobStore.save(content);
+
+        assertThat(ByteStreams.toByteArray(blobStore.read(id, offset)))
+            .isEqualTo(Arrays.copyOfRange(content, offset, content.length));
+    }
+
+    @Test
+    public void emptyContentShouldBeReadable() throws IOException {
+        String id = blobStore.save(new byte[0]);
+
+        assertThat(ByteStreams.toByteArray(blobStore.read(id, 0))).isEmpty();
+    }
+
+    @Test
+    public void identicalContentsShouldBeStoredOnce() {
+        byte[] content = content(CassandraBlobStore.CHUNK_SIZE + 1);
+
+        String id = blobStore.save(content);
+
+        assertThat(blobStore.save(content.clone())).isEqualTo(id);
+        assertThat(CASSANDRA.getConf().execute(
+                QueryBuilder.select(CassandraBlobTable.CHUNK_NUMBER)
+                    .from(CassandraBlobTable.TABLE_NAME)
+                    .where(QueryBuilder.eq(CassandraBlobTable.ID, id)))
+                .all())
+            .hasSize(2);
+    }
+
+    @Test
+    public void releaseShouldKeepABlobWhichIsStillReferenced() throws IOException {
+        byte[] content = content(CassandraBlobStore.CHUNK_SIZE + 1);
+        String id = blobStore.save(content);
+        blobStore.save(content);
+
+        blobStore.release(id);
+
+        assertThat(ByteStreams.toByteArray(blobStore.read(id, 0))).isEqualTo(content);
+    }
+
+    @Test
+    public void releaseShouldDeleteABlobOnceNoLongerReferenced() throws IOException {
+        String id = blobStore.save(content(CassandraBlobStore.CHUNK_SIZE + 1));
+
+        blobStore.release(id);
+
+        assertThat(chunks(id)).isEmpty();
+    }
+
+    @Test
+    public void saveShouldRewriteAReleasedBlob() throws IOException {
+        byte[] content = content(CassandraBlobStore.CHUNK_SIZE + 1);
+        String id = blobStore.save(content);
+        blobStore.release(id);
+
+        blobStore.save(content);
+
+        assertThat(ByteStreams.toByteArray(blobStore.read(id, 0))).isEqualTo(content);
+    }
+
+    private List<Row> chunks(String id) {
+        return CASSANDRA.getConf().execute(
+                QueryBuilder.select(CassandraBlobTable.CHUNK_NUMBER)
+                    .from(CassandraBlobTable.TABLE_NAME)
+                    .where(QueryBuilder.eq(CassandraBlobTable.ID, id)))
+            .all();
+    }
+
+    private byte[] content(int length) {
+        byte[] content = new byte[length];
+        for (int i = 0; i < length; i++) {
+            content[i] = (byte) (i % 251);
+        }
+        return content;
+    }
+}
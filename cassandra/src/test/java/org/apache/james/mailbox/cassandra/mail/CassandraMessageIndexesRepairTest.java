@@ -0,0 +1,87 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailbox.cassandra.mail;
+
+import static com.datastax.driver.core.querybuilder.QueryBuilder.insertInto;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.UUID;
+
+import javax.mail.Flags;
+
+import org.apache.james.mailbox.cassandra.CassandraClusterSingleton;
+import org.apache.james.mailbox.cassandra.CassandraId;
+import org.apache.james.mailbox.cassandra.table.CassandraMessageTable;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CassandraMessageIndexesRepairTest {
+
+    private static final CassandraClusterSingleton CASSANDRA = CassandraClusterSingleton.build();
+
+    private CassandraMessageIndexes indexes;
+    private CassandraMessageIndexesRepair repair;
+    private CassandraId mailboxId;
+
+    @Before
+    public void setUp() {
+        CASSANDRA.ensureAllTables();
+        indexes = new CassandraMessageIndexes(CASSANDRA.getConf());
+        repair = new CassandraMessageIndexesRepair(CASSANDRA.getConf(), indexes);
+        mailboxId = CassandraId.timeBased();
+    }
+
+    @After
+    public void tearDown() {
+        CASSANDRA.clearAllTables();
+    }
+
+    @Test
+    public void repairShouldIndexTheMessagesOfTheMailbox() {
+        insertMessage(1, true, true);
+        insertMessage(2, false, false);
+        insertMessage(3, true, false);
+
+        assertThat(repair.repair(mailboxId)).isEqualTo(3);
+
+        assertThat(indexes.findRecentUids(mailboxId.asUuid())).containsExactly(1L, 3L);
+        assertThat(indexes.findFirstUnseenUid(mailboxId.asUuid())).contains(2L);
+    }
+
+    @Test
+    public void repairShouldDropStaleEntries() {
+        insertMessage(2, false, true);
+        CASSANDRA.getConf().execute(indexes.add(mailboxId.asUuid(), 1, new Flags(Flags.Flag.RECENT)).get(0));
+
+        repair.repair(mailboxId);
+
+        assertThat(indexes.findRecentUids(mailboxId.asUuid())).isEmpty();
+        assertThat(indexes.findFirstUnseenUid(mailboxId.asUuid())).isEmpty();
+    }
+
+    private void insertMessage(long uid, boolean recent, boolean seen) {
+        UUID id = mailboxId.asUuid();
+        CASSANDRA.getConf().execute(insertInto(CassandraMessageTable.TABLE_NAME)
+            .value(CassandraMessageTable.MAILBOX_ID, id)
+            .value(CassandraMessageTable.IMAP_UID, uid)
+            .value(CassandraMessageTable.Flag.RECENT, recent)
+            .value(CassandraMessageTable.Flag.SEEN, seen));
+    }
+}
@@ -0,0 +1,110 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mailbox.cassandra.mail;
+
+import static com.datastax.driver.core.querybuilder.QueryBuilder.insertInto;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.UUID;
+
+import javax.mail.Flags;
+import javax.mail.Flags.Flag;
+
+import org.apache.james.mailbox.cassandra.CassandraClusterSingleton;
+import org.apache.james.mailbox.cassandra.CassandraId;
+import org.apache.james.mailbox.cassandra.table.CassandraMessageTable;
+import org.apache.james.mailbox.model.UpdatedFlags;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CassandraMessageIndexesTest {
+
+    private static final CassandraClusterSingleton CASSANDRA = CassandraClusterSingleton.build();
+
+    private CassandraMessageIndexes indexes;
+    private UUID mailboxId;
+
+    @Before
+    public void setUp() {
+        CASSANDRA.ensureAllTables();
+        indexes = new CassandraMessageIndexes(CASSANDRA.getConf());
+        mailboxId = CassandraId.timeBased().asUuid();
+    }
+
+    @After
+    public void tearDown() {
+        CASSANDRA.clearAllTables();
+    }
+
+    @Test
+    public void mailboxesNotIndexedYetShouldBeReadFromTheMessageTable() {
+        insertMessage(1, true, true);
+        insertMessage(2, false, false);
+
+        assertThat(indexes.findRecentUids(mailboxId)).containsExactly(1L);
+        assertThat(indexes.findFirstUnseenUid(mailboxId)).contains(2L);
+    }
+
+    @Test
+    public void firstUnseenShouldFollowTheMessagesMarkedAsSeen() {
+        indexes.markIndexed(mailboxId);
+        add(1, new Flags());
+        add(2, new Flags());
+        add(3, new Flags());
+
+        assertThat(indexes.findFirstUnseenUid(mailboxId)).contains(1L);
+        markSeen(1);
+        assertThat(indexes.findFirstUnseenUid(mailboxId)).contains(2L);
+        markSeen(2);
+        assertThat(indexes.findFirstUnseenUid(mailboxId)).contains(3L);
+    }
+
+    @Test
+    public void firstUnseenShouldIncludeMessagesMarkedAsUnseenAgain() {
+        indexes.markIndexed(mailboxId);
+        add(1, new Flags());
+        add(2, new Flags());
+        markSeen(1);
+        assertThat(indexes.findFirstUnseenUid(mailboxId)).contains(2L);
+
+        UpdatedFlags unseen = new UpdatedFlags(1, 3, new Flags(Flag.SEEN), new Flags());
+        indexes.update(mailboxId, unseen).forEach(CASSANDRA.getConf()::execute);
+        indexes.unseenAdded(mailboxId, 1);
+
+        assertThat(indexes.findFirstUnseenUid(mailboxId)).contains(1L);
+    }
+
+    private void add(long uid, Flags flags) {
+        indexes.add(mailboxId, uid, flags).forEach(CASSANDRA.getConf()::execute);
+    }
+
+    private void markSeen(long uid) {
+        indexes.update(mailboxId, new UpdatedFlags(uid, 2, new Flags(), new Flags(Flag.SEEN))).forEach(CASSANDRA.getConf()::execute);
+    }
+
+    private void insertMessage(long uid, boolean recent, boolean seen) {
+        CASSANDRA.getConf().execute(insertInto(CassandraMessageTable.TABLE_NAME)
+            .value(CassandraMessageTable.MAILBOX_ID, mailboxId)
+            .value(CassandraMessageTable.IMAP_UID, uid)
+            .value(CassandraMessageTable.Flag.RECENT, recent)
+            .value(CassandraMessageTable.Flag.SEEN, seen));
+    }
+}
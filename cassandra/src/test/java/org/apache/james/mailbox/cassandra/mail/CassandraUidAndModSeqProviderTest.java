@@ -170,6 +170,39 @@ public class CassandraUidAndModSeqProviderTest {
             );
     }
     
+    @Test
+    public void nextUidsShouldReserveConsecutiveValues() throws Exception {
+        SimpleMailbox<CassandraId> mailbox = mailboxList.get(mailboxList.size() / 2);
+        long lastUid = uidProvider.lastUid(null, mailbox);
+
+        assertThat(uidProvider.nextUids(null, mailbox, 5)).isEqualTo(lastUid + 1);
+        assertThat(uidProvider.lastUid(null, mailbox)).isEqualTo(lastUid + 5);
+        assertThat(uidProvider.nextUid(null, mailbox)).isEqualTo(lastUid + 6);
+    }
+
+    @Test
+    public void nextModSeqsShouldReserveConsecutiveValues() throws Exception {
+        SimpleMailbox<CassandraId> mailbox = mailboxList.get(mailboxList.size() / 2);
+        long highestModSeq = modSeqProvider.highestModSeq(null, mailbox);
+
+        assertThat(modSeqProvider.nextModSeqs(null, mailbox, 5)).isEqualTo(highestModSeq + 1);
+        assertThat(modSeqProvider.highestModSeq(null, mailbox)).isEqualTo(highestModSeq + 5);
+        assertThat(modSeqProvider.nextModSeq(null, mailbox)).isEqualTo(highestModSeq + 6);
+    }
+
+    @Test
+    public void leasedUidsShouldBeHandedOutInOrder() throws Exception {
+        CassandraUidProvider leasingUidProvider = new CassandraUidProvider(CASSANDRA.getConf(), MAX_RETRY, 10);
+        SimpleMailbox<CassandraId> mailbox = mailboxList.get(mailboxList.size() / 2);
+        long lastUid = leasingUidProvider.lastUid(null, mailbox);
+
+        assertThat(leasingUidProvider.nextUid(null, mailbox)).isEqualTo(lastUid + 1);
+        assertThat(leasingUidProvider.nextUids(null, mailbox, 3)).isEqualTo(lastUid + 2);
+        assertThat(leasingUidProvider.lastUid(null, mailbox)).isEqualTo(lastUid + 4);
+        assertThat(leasingUidProvider.nextUids(null, mailbox, 20)).isEqualTo(lastUid + 11);
+        assertThat(uidProvider.lastUid(null, mailbox)).isEqualTo(lastUid + 30);
+    }
+
     @FunctionalInterface
     private interface ConsumerThatThrowsMailboxException<T> {
         void apply(T arg) throws MailboxException;
@@ -0,0 +1,91 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailbox.cassandra.mail.utils;
+
+import static com.datastax.driver.core.querybuilder.QueryBuilder.eq;
+import static com.datastax.driver.core.querybuilder.QueryBuilder.insertInto;
+import static com.datastax.driver.core.querybuilder.QueryBuilder.select;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.nio.ByteBuffer;
+import java.util.NoSuchElementException;
+
+import org.apache.james.mailbox.cassandra.CassandraClusterSingleton;
+import org.apache.james.mailbox.cassandra.table.CassandraBlobTable;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterators;
+
+public class PrefetchingRowIteratorTest {
+
+    private static final CassandraClusterSingleton CASSANDRA = CassandraClusterSingleton.build();
+    private static final String ID = "id";
+    private static final int ROWS = 25;
+
+    @Before
+    public void setUp() {
+        CASSANDRA.ensureAllTables();
+        for (int i = 0; i < ROWS; i++) {
+            CASSANDRA.getConf().execute(insertInto(CassandraBlobTable.TABLE_NAME)
+                .value(CassandraBlobTable.ID, ID)
+                .value(CassandraBlobTable.CHUNK_NUMBER, i)
+                .value(CassandraBlobTable.DATA, ByteBuffer.wrap(new byte[0])));
+        }
+    }
+
+    @After
+    public void tearDown() {
+        CASSANDRA.clearAllTables();
+    }
+
+    @Test
+    public void iteratorShouldReturnTheRowsOfAllThePagesInOrder() {
+        PrefetchingRowIterator iterator = iterator(4, 1);
+
+        ImmutableList<Integer> chunks = ImmutableList.copyOf(Iterators.transform(iterator, (row) -> row.getInt(CassandraBlobTable.CHUNK_NUMBER)));
+
+        assertThat(chunks).hasSize(ROWS).isSorted();
+        assertThat(iterator.hasNext()).isFalse();
+    }
+
+    @Test
+    public void iteratorShouldWorkWithoutPrefetching() {
+        assertThat(Iterators.size(iterator(7, 0))).isEqualTo(ROWS);
+    }
+
+    @Test(expected = NoSuchElementException.class)
+    public void nextShouldFailOnceExhausted() {
+        PrefetchingRowIterator iterator = iterator(10, 5);
+        Iterators.size(iterator);
+
+        iterator.next();
+    }
+
+    private PrefetchingRowIterator iterator(int fetchSize, int prefetchThreshold) {
+        return new PrefetchingRowIterator(
+            CASSANDRA.getConf().execute(select(CassandraBlobTable.CHUNK_NUMBER)
+                .from(CassandraBlobTable.TABLE_NAME)
+                .where(eq(CassandraBlobTable.ID, ID))
+                .setFetchSize(fetchSize)),
+            prefetchThreshold);
+    }
+}
@@ -0,0 +1,127 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailbox.hbase;
+
+import static org.apache.james.mailbox.hbase.HBaseNames.MAILBOXES_TABLE;
+import static org.apache.james.mailbox.hbase.HBaseNames.MAILBOX_RECENT_CF;
+import static org.apache.james.mailbox.hbase.HBaseNames.MAILBOX_UNSEEN_CF;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HColumnDescriptor;
+import org.apache.hadoop.hbase.HTableDescriptor;
+import org.apache.hadoop.hbase.client.HBaseAdmin;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.james.mailbox.hbase.mail.HBaseMailboxCountersRepair;
+
+/**
+ * Adds the unseen and recent uid column families to a mailboxes table created
+ * before they existed, and builds the counters of the existing mailboxes.
+ * <p>
+ * The {@link HBaseMailboxSessionMapperFactory} refuses to start on such a table,
+ * the migration has to be run once beforehand, for instance:
+ * <pre>
+ * HBaseTablePool tablePool = new HBaseTablePool(conf);
+ * new HBaseMailboxCountersMigration(conf, tablePool).migrate();
+ * </pre>
+ * The mailboxes table is disabled while it is altered, and the counters are
+ * rebuilt from the messages table, so the migration should be run while the
+ * mailboxes are not in use.
+ */
+public class HBaseMailboxCountersMigration {
+
+    private static final byte[][] COUNTER_FAMILIES = {MAILBOX_UNSEEN_CF, MAILBOX_RECENT_CF};
+
+    private final Configuration conf;
+    private final HBaseTablePool tablePool;
+
+    public HBaseMailboxCountersMigration(Configuration conf, HBaseTablePool tablePool) {
+        this.conf = conf;
+        this.tablePool = tablePool;
+    }
+
+    /**
+     * Tells whether the mailboxes table lacks a counter column family.
+     *
+     * @param hbaseAdmin the admin of the cluster
+     * @return true if the migration has to be run
+     * @throws IOException
+     */
+    static boolean isNeeded(HBaseAdmin hbaseAdmin) throws IOException {
+        return !missingFamilies(hbaseAdmin).isEmpty();
+    }
+
+    /**
+     * Adds the missing counter column families and, if any was added, rebuilds
+     * the counters of all the mailboxes.
+     *
+     * @return the number of repaired mailboxes
+     * @throws IOException
+     */
+    public long migrate() throws IOException {
+        if (addMissingFamilies()) {
+            return new HBaseMailboxCountersRepair(tablePool).repairAll();
+        }
+        return 0;
+    }
+
+    /**
+     * Adds the missing counter column families to the mailboxes table. The table
+     * is disabled while it is altered.
+     *
+     * @return true if a column family was added
+     * @throws IOException
+     */
+    public boolean addMissingFamilies() throws IOException {
+        HBaseAdmin hbaseAdmin = new HBaseAdmin(conf);
+        try {
+            List<byte[]> missing = missingFamilies(hbaseAdmin);
+            if (missing.isEmpty()) {
+                return false;
+            }
+            hbaseAdmin.disableTable(MAILBOXES_TABLE);
+            try {
+                for (byte[] family : missing) {
+                    HColumnDescriptor hColumnDescriptor = new HColumnDescriptor(family);
+                    hColumnDescriptor.setMaxVersions(1);
+                    hbaseAdmin.addColumn(MAILBOXES_TABLE, hColumnDescriptor);
+                }
+            } finally {
+                hbaseAdmin.enableTable(MAILBOXES_TABLE);
+            }
+            return true;
+        } finally {
+            IOUtils.cleanup(null, hbaseAdmin);
+        }
+    }
+
+    private static List<byte[]> missingFamilies(HBaseAdmin hbaseAdmin) throws IOException {
+        HTableDescriptor desc = hbaseAdmin.getTableDescriptor(MAILBOXES_TABLE);
+        List<byte[]> missing = new ArrayList<byte[]>();
+        for (byte[] family : COUNTER_FAMILIES) {
+            if (!desc.hasFamily(family)) {
+                missing.add(family);
+            }
+        }
+        return missing;
+    }
+}
@@ -20,6 +20,8 @@ package org.apache.james.mailbox.hbase;
 
 import static org.apache.james.mailbox.hbase.HBaseNames.MAILBOXES_TABLE;
 import static org.apache.james.mailbox.hbase.HBaseNames.MAILBOX_CF;
+import static org.apache.james.mailbox.hbase.HBaseNames.MAILBOX_RECENT_CF;
+import static org.apache.james.mailbox.hbase.HBaseNames.MAILBOX_UNSEEN_CF;
 import static org.apache.james.mailbox.hbase.HBaseNames.MESSAGES_META_CF;
 import static org.apache.james.mailbox.hbase.HBaseNames.MESSAGES_TABLE;
 import static org.apache.james.mailbox.hbase.HBaseNames.MESSAGE_DATA_BODY_CF;
@@ -56,6 +58,8 @@ import org.apache.james.mailbox.store.user.SubscriptionMapper;
 public class HBaseMailboxSessionMapperFactory extends MailboxSessionMapperFactory<HBaseId> {
 
     private final Configuration conf;
+    private final HBaseTablePool tablePool;
+    private final HBaseMapperStatistics statistics;
     private final UidProvider<HBaseId> uidProvider;
     private final ModSeqProvider<HBaseId> modSeqProvider;
 
@@ -70,7 +74,24 @@ public class HBaseMailboxSessionMapperFactory extends MailboxSessionMapperFactor
      * @throws IOException
      */
     public HBaseMailboxSessionMapperFactory(Configuration conf, UidProvider<HBaseId> uidProvider, ModSeqProvider<HBaseId> modSeqProvider) {
+        this(conf, new HBaseTablePool(conf), uidProvider, modSeqProvider);
+    }
+
+    /**
+     * Creates  the necessary tables in HBase if they do not exist. A mailboxes table
+     * created before the counter column families existed has to be migrated first
+     * with {@link HBaseMailboxCountersMigration}.
+     * The factory takes ownership of the given pool and closes it in {@link #close()}.
+     *
+     * @param conf Configuration for the cluster
+     * @param tablePool pool of the table handles of the cluster, shared with the providers
+     * @param uidProvider UID provider for mailbox uid.
+     * @param modSeqProvider
+     */
+    public HBaseMailboxSessionMapperFactory(Configuration conf, HBaseTablePool tablePool, UidProvider<HBaseId> uidProvider, ModSeqProvider<HBaseId> modSeqProvider) {
         this.conf = conf;
+        this.tablePool = tablePool;
+        this.statistics = new HBaseMapperStatistics();
         this.uidProvider = uidProvider;
         this.modSeqProvider = modSeqProvider;
 
@@ -88,7 +109,16 @@ public class HBaseMailboxSessionMapperFactory extends MailboxSessionMapperFactor
                 hColumnDescriptor = new HColumnDescriptor(MAILBOX_CF);
                 hColumnDescriptor.setMaxVersions(1);
                 desc.addFamily(hColumnDescriptor);
+                hColumnDescriptor = new HColumnDescriptor(MAILBOX_UNSEEN_CF);
+                hColumnDescriptor.setMaxVersions(1);
+                desc.addFamily(hColumnDescriptor);
+                hColumnDescriptor = new HColumnDescriptor(MAILBOX_RECENT_CF);
+                hColumnDescriptor.setMaxVersions(1);
+                desc.addFamily(hColumnDescriptor);
                 hbaseAdmin.createTable(desc);
+            } else if (HBaseMailboxCountersMigration.isNeeded(hbaseAdmin)) {
+                throw new IllegalStateException("The mailboxes table lacks the counter column families, "
+                    + HBaseMailboxCountersMigration.class.getSimpleName() + " has to be run first");
             }
 
             if (!hbaseAdmin.tableExists(MESSAGES_TABLE)) {
@@ -127,17 +157,17 @@ public class HBaseMailboxSessionMapperFactory extends MailboxSessionMapperFactor
 
     @Override
     public MessageMapper<HBaseId> createMessageMapper(MailboxSession session) throws MailboxException {
-        return new HBaseMessageMapper(session, uidProvider, modSeqProvider, this.conf);
+        return new HBaseMessageMapper(session, uidProvider, modSeqProvider, tablePool, statistics);
     }
 
     @Override
     public MailboxMapper<HBaseId> createMailboxMapper(MailboxSession session) throws MailboxException {
-        return new HBaseMailboxMapper(this.conf);
+        return new HBaseMailboxMapper(tablePool, statistics);
     }
 
     @Override
     public SubscriptionMapper createSubscriptionMapper(MailboxSession session) throws SubscriptionException {
-        return new HBaseSubscriptionMapper(this.conf);
+        return new HBaseSubscriptionMapper(tablePool);
     }
 
     /**
@@ -148,6 +178,30 @@ public class HBaseMailboxSessionMapperFactory extends MailboxSessionMapperFactor
         return conf;
     }
 
+    /**
+     * Returns the pool of the table handles used by the mappers.
+     * @return The pool of the table handles
+     */
+    public HBaseTablePool getTablePool() {
+        return tablePool;
+    }
+
+    /**
+     * Closes the pool of the table handles. The mappers created before can not be used anymore.
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        tablePool.close();
+    }
+
+    /**
+     * Returns the counters of the operations done by the message and mailbox mappers.
+     * @return The statistics of the mappers
+     */
+    public HBaseMapperStatistics getStatistics() {
+        return statistics;
+    }
+
     /**
      * Returns the ModSeqProvider used.
      * @return The used modSeqProvider
@@ -0,0 +1,117 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailbox.hbase;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts the calls of the HBase mappers and the time spent in them, per operation.
+ * One instance is shared by all mappers of a {@link HBaseMailboxSessionMapperFactory},
+ * which makes it possible to compare the cost of an operation between two runs.
+ */
+public class HBaseMapperStatistics {
+
+    /**
+     * The operations which are measured
+     */
+    public enum Operation {
+        FIND_MESSAGES,
+        COUNT_MESSAGES,
+        COUNT_UNSEEN,
+        SAVE_MESSAGE,
+        COPY_MESSAGES,
+        UPDATE_FLAGS,
+        DELETE_MESSAGE,
+        EXPUNGE,
+        FIND_MAILBOX,
+        SAVE_MAILBOX,
+        DELETE_MAILBOX
+    }
+
+    private final AtomicLongArray calls = new AtomicLongArray(Operation.values().length);
+    private final AtomicLongArray nanos = new AtomicLongArray(Operation.values().length);
+
+    /**
+     * Return the start time to pass to {@link #record(Operation, long)}
+     *
+     * @return start time in nanoseconds
+     */
+    public long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Record one call of the given operation which started at the given time
+     *
+     * @param operation the operation
+     * @param start the value returned by {@link #start()} before the call
+     */
+    public void record(Operation operation, long start) {
+        calls.incrementAndGet(operation.ordinal());
+        nanos.addAndGet(operation.ordinal(), System.nanoTime() - start);
+    }
+
+    /**
+     * Return the number of recorded calls of the given operation
+     *
+     * @param operation the operation
+     * @return number of calls
+     */
+    public long getCalls(Operation operation) {
+        return calls.get(operation.ordinal());
+    }
+
+    /**
+     * Return the total time spent in the given operation
+     *
+     * @param operation the operation
+     * @param unit the unit of the returned value
+     * @return total time
+     */
+    public long getTotalTime(Operation operation, TimeUnit unit) {
+        return unit.convert(nanos.get(operation.ordinal()), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Clear all counters
+     */
+    public void reset() {
+        for (int i = 0; i < calls.length(); i++) {
+            calls.set(i, 0);
+            nanos.set(i, 0);
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Operation operation : Operation.values()) {
+            long count = getCalls(operation);
+            if (count > 0) {
+                if (sb.length() > 0) {
+                    sb.append(", ");
+                }
+                sb.append(operation).append(": ").append(count).append(" calls in ")
+                        .append(getTotalTime(operation, TimeUnit.MICROSECONDS)).append(" us");
+            }
+        }
+        return sb.toString();
+    }
+}
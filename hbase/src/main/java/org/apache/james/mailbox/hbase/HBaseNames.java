@@ -51,6 +51,12 @@ public interface HBaseNames {
     public static final byte[] MAILBOX_UIDVALIDITY = Bytes.toBytes("uidValidity");
     public static final byte[] MAILBOX_HIGHEST_MODSEQ = Bytes.toBytes("hModSeq");
     public static final byte[] MAILBOX_MESSAGE_COUNT = Bytes.toBytes("count");
+    public static final byte[] MAILBOX_UNSEEN_COUNT = Bytes.toBytes("unseen");
+    public static final byte[] MAILBOX_RECENT_COUNT = Bytes.toBytes("recent");
+    /** Mailbox column family holding the uids of the unseen messages as qualifiers */
+    public static final byte[] MAILBOX_UNSEEN_CF = Bytes.toBytes("U");
+    /** Mailbox column family holding the uids of the recent messages as qualifiers */
+    public static final byte[] MAILBOX_RECENT_CF = Bytes.toBytes("R");
     /** The HBase table name for storing subscriptions */
     public static final String SUBSCRIPTIONS = "JAMES_SUBSCRIPTIONS";
     /** The HBase table name for storing subscriptions */
@@ -80,5 +86,5 @@ public interface HBaseNames {
     public static final byte[] MARKER_PRESENT = Bytes.toBytes("X");
     public static final byte[] MARKER_MISSING = Bytes.toBytes(" ");
     // the maximum recomended HBase column size is 10 MB
-    public static final int MAX_COLUMN_SIZE = 1024; //2 * 1024 * 1024;
+    public static final int MAX_COLUMN_SIZE = 64 * 1024; //2 * 1024 * 1024;
 }
@@ -0,0 +1,145 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailbox.hbase;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.HTablePool;
+
+/**
+ * Pool of table handles. Creating an {@link HTable} is costly, as every instance
+ * sets up its own thread pool: the handles taken from this pool are reused instead.
+ * Closing a handle gives it back to the pool.
+ * <p>
+ * The pool is owned by the {@link HBaseMailboxSessionMapperFactory} it is given to,
+ * which closes it, and is shared by the mappers and providers of that factory.
+ * <p>
+ * The pool also holds the bounded executor the content streams prefetch their
+ * chunks with, see {@link #getPrefetcher()}.
+ */
+public class HBaseTablePool implements Closeable {
+
+    public static final int DEFAULT_MAX_SIZE = 32;
+    public static final int DEFAULT_PREFETCH_THREADS = 8;
+
+    /**
+     * Number of prefetches queued per prefetch thread, the following ones are rejected
+     */
+    private static final int PREFETCH_QUEUE_PER_THREAD = 4;
+    private static final long PREFETCH_KEEP_ALIVE_SECONDS = 60;
+
+    private final Configuration conf;
+    private final HTablePool pool;
+    private final int scannerCaching;
+    private final ThreadPoolExecutor prefetcher;
+
+    public HBaseTablePool(Configuration conf) {
+        this(conf, DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * @param conf configuration of the cluster
+     * @param maxSize maximum number of idle handles kept per table
+     */
+    public HBaseTablePool(Configuration conf, int maxSize) {
+        this(conf, maxSize, DEFAULT_PREFETCH_THREADS);
+    }
+
+    /**
+     * @param conf configuration of the cluster
+     * @param maxSize maximum number of idle handles kept per table
+     * @param prefetchThreads maximum number of threads prefetching content chunks
+     */
+    public HBaseTablePool(Configuration conf, int maxSize, int prefetchThreads) {
+        this.conf = conf;
+        this.pool = new HTablePool(conf, maxSize);
+        this.scannerCaching = conf.getInt(HConstants.HBASE_CLIENT_SCANNER_CACHING,
+                HConstants.DEFAULT_HBASE_CLIENT_SCANNER_CACHING);
+        this.prefetcher = new ThreadPoolExecutor(prefetchThreads, prefetchThreads,
+                PREFETCH_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(prefetchThreads * PREFETCH_QUEUE_PER_THREAD),
+                new ThreadFactory() {
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "hbase-chunk-prefetcher");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        this.prefetcher.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Return the configuration of the cluster the handles are connected to.
+     *
+     * @return configuration
+     */
+    public Configuration getConfiguration() {
+        return conf;
+    }
+
+    /**
+     * Take a handle on the given table. It must be closed once done with.
+     *
+     * @param tableName name of the table
+     * @return table handle
+     */
+    public HTableInterface getTable(byte[] tableName) {
+        return pool.getTable(tableName);
+    }
+
+    /**
+     * Return the number of rows a scanner fetches at once, as configured for the
+     * cluster. The pooled handles do not expose it like {@link HTable} does.
+     *
+     * @return scanner caching
+     */
+    public int getScannerCaching() {
+        return scannerCaching;
+    }
+
+    /**
+     * Return the executor prefetching content chunks. Its number of threads and
+     * its queue are bounded: a prefetch submitted while it is full, or once the
+     * pool is closed, is rejected and the chunks have to be fetched by the reader.
+     *
+     * @return prefetch executor
+     */
+    public ExecutorService getPrefetcher() {
+        return prefetcher;
+    }
+
+    /**
+     * Close the handles of the pool and stop the prefetches. The handles still
+     * taken are closed once given back.
+     */
+    public void close() throws IOException {
+        prefetcher.shutdownNow();
+        pool.close();
+    }
+}
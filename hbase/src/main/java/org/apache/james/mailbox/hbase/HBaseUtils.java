@@ -63,7 +63,6 @@ import java.util.UUID;
 import javax.mail.Flags;
 import javax.mail.Flags.Flag;
 
-import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hbase.KeyValue;
 import org.apache.hadoop.hbase.client.Delete;
 import org.apache.hadoop.hbase.client.Put;
@@ -236,11 +235,11 @@ public class HBaseUtils {
      * except for body and header related bytes. The message content will be loaded on demand
      * through a specialised InputStream called {@link ChunkInputStream}. 
      * IMPORTANT: the method expects a single version of each cell. Use setMaxVersions(1).
-     * @param conf configuration object for HBase cluster
+     * @param tablePool pool of the table handles of the HBase cluster
      * @param result the result object containing message data
      * @return a HBaseMessage instance with message metadata.
      */
-    public static Message<HBaseId> messageMetaFromResult(Configuration conf, Result result) {
+    public static Message<HBaseId> messageMetaFromResult(HBaseTablePool tablePool, Result result) {
         HBaseMessage message = null;
         Flags flags = new Flags();
         List<Property> propList = new ArrayList<Property>();
@@ -305,7 +304,7 @@ public class HBaseUtils {
         PropertyBuilder props = new PropertyBuilder(propList);
         props.setMediaType(mediaType);
         props.setSubType(subType);
-        message = new HBaseMessage(conf, uuid, internalDate, flags, contentOctets, (int) (contentOctets - bodyOctets), props);
+        message = new HBaseMessage(tablePool, uuid, internalDate, flags, contentOctets, (int) (contentOctets - bodyOctets), props);
         message.setUid(uid);
         message.setModSeq(modSeq);
         message.setTextualLineCount(textualLineCount);
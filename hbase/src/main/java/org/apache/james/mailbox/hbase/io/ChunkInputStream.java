@@ -20,16 +20,30 @@ package org.apache.james.mailbox.hbase.io;
 
 import java.io.IOException;
 import java.io.InputStream;
-import org.apache.hadoop.hbase.client.HTable;
-import org.apache.hadoop.hbase.util.Bytes;
-import org.apache.hadoop.conf.Configuration;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
 import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.HTableInterface;
 import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.james.mailbox.hbase.HBaseTablePool;
 
 /**
  * Return an InputStream which retrieve columns from a row which stores chunk of
  * data. See also {@link ChunkOutputStream}
  *
+ * Chunks are fetched {@link #CHUNKS_PER_GET} at a time with a single Get. While
+ * they are read, the next ones are fetched in the background, by the prefetcher
+ * of the given {@link HBaseTablePool} which table handles are also taken from.
+ * When the prefetcher is busy, the chunks are fetched once they are needed.
+ *
  * This implementation is not thread-safe!
  * 
  * Bsed on Hector implementation for Cassandra.
@@ -37,23 +51,32 @@ import org.apache.hadoop.hbase.client.Result;
  */
 public class ChunkInputStream extends InputStream {
 
-    private final Configuration conf;
+    /**
+     * Number of chunks fetched by a single Get
+     */
+    public static final int CHUNKS_PER_GET = 4;
+
+    private final HBaseTablePool pool;
     private final byte[] tableName;
     private final byte[] cf;
     private final byte[] key;
-    private int pos;
+    private final LinkedList<byte[]> chunks = new LinkedList<byte[]>();
     private long chunkPos = 1;
+    private boolean lastGet = false;
+    private Future<List<byte[]>> prefetched;
     private byte[] chunk;
+    private int pos;
+    private int limit;
 
-    public ChunkInputStream(Configuration conf, byte[] tableName, byte[] cf, byte[] key) {
+    public ChunkInputStream(HBaseTablePool pool, byte[] tableName, byte[] cf, byte[] key) {
         this.key = key;
-        this.conf = conf;
+        this.pool = pool;
         this.tableName = tableName;
         this.cf = cf;
     }
 
-    public ChunkInputStream(Configuration conf, String tableName, String cf, byte[] key) {
-        this(conf, Bytes.toBytes(tableName), Bytes.toBytes(cf), key);
+    public ChunkInputStream(HBaseTablePool pool, String tableName, String cf, byte[] key) {
+        this(pool, Bytes.toBytes(tableName), Bytes.toBytes(cf), key);
     }
 
     /*
@@ -63,44 +86,162 @@ public class ChunkInputStream extends InputStream {
      */
     @Override
     public int read() throws IOException {
-        if (chunk == null || pos + 1 == chunk.length) {
-            if (!fetchChunk()) {
-                return -1;
+        if (!ensureData()) {
+            return -1;
+        }
+        return chunk[pos++] & 0xff;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.io.InputStream#read(byte[], int, int)
+     */
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (len == 0) {
+            return 0;
+        }
+        int read = 0;
+        while (read < len && ensureData()) {
+            int count = Math.min(len - read, limit - pos);
+            System.arraycopy(chunk, pos, b, off + read, count);
+            pos += count;
+            read += count;
+        }
+        if (read == 0) {
+            return -1;
+        }
+        return read;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.io.InputStream#available()
+     */
+    @Override
+    public int available() throws IOException {
+        if (chunk == null) {
+            return 0;
+        }
+        return limit - pos;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (prefetched != null) {
+            prefetched.cancel(false);
+            prefetched = null;
+        }
+        lastGet = true;
+        chunks.clear();
+        chunk = null;
+    }
+
+    /**
+     * Make sure the current chunk has data left, fetching the next chunks if needed.
+     *
+     * @return false if the end of the content is reached
+     * @throws IOException
+     */
+    private boolean ensureData() throws IOException {
+        while (chunk == null || pos >= limit) {
+            if (chunks.isEmpty() && !fetchChunks()) {
+                return false;
             }
+            chunk = chunks.removeFirst();
+            pos = 0;
+            // every chunk ends with a padding byte, see ChunkOutputStream
+            limit = Math.max(chunk.length - 1, 0);
         }
-        return chunk[pos++];
+        return true;
     }
 
     /**
-     * Fetch the next chunk.
+     * Fetch the next chunks, the ones prefetched if any, and start prefetching
+     * the following ones.
      *
-     * @return exists if there was a chunk to fetch.
+     * @return exists if there were chunks to fetch.
      * @throws IOException
      */
-    private boolean fetchChunk() throws IOException {
-        HTable messages = null;
+    private boolean fetchChunks() throws IOException {
+        if (lastGet) {
+            return false;
+        }
+        List<byte[]> fetched;
+        if (prefetched != null) {
+            fetched = await(prefetched);
+            prefetched = null;
+        } else {
+            fetched = fetch(chunkPos);
+        }
+        chunkPos += CHUNKS_PER_GET;
+        if (fetched.size() < CHUNKS_PER_GET) {
+            lastGet = true;
+        } else {
+            final long next = chunkPos;
+            try {
+                prefetched = pool.getPrefetcher().submit(new Callable<List<byte[]>>() {
+                    public List<byte[]> call() throws IOException {
+                        return fetch(next);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // the prefetcher is busy or closed, the next chunks are fetched when needed
+                prefetched = null;
+            }
+        }
+        chunks.addAll(fetched);
+        return !fetched.isEmpty();
+    }
+
+    /**
+     * Fetch up to {@link #CHUNKS_PER_GET} chunks with a single Get.
+     *
+     * @param first number of the first chunk
+     * @return the chunks, fewer than requested if the last chunk was reached
+     * @throws IOException
+     */
+    private List<byte[]> fetch(long first) throws IOException {
+        HTableInterface messages = pool.getTable(tableName);
         try {
-            byte[] cp = Bytes.toBytes(chunkPos);
-            messages = new HTable(conf, tableName);
             Get get = new Get(key);
-            get.addColumn(cf, cp);
+            for (int i = 0; i < CHUNKS_PER_GET; i++) {
+                get.addColumn(cf, Bytes.toBytes(first + i));
+            }
             get.setMaxVersions(1);
             Result result = messages.get(get);
-            if (!result.isEmpty()) {
-                chunk = result.getValue(cf, cp);
-                chunkPos++;
-                pos = 0;
-                return true;
-            } else {
-                return false;
+            List<byte[]> fetched = new ArrayList<byte[]>(CHUNKS_PER_GET);
+            for (int i = 0; i < CHUNKS_PER_GET; i++) {
+                byte[] value = result.getValue(cf, Bytes.toBytes(first + i));
+                if (value == null) {
+                    break;
+                }
+                fetched.add(value);
             }
+            return fetched;
         } catch (IOException e) {
             throw new IOException("Unable to read data", e);
         } finally {
-            if (messages != null) {
-                messages.close();
+            messages.close();
+        }
+    }
 
+    private List<byte[]> await(Future<List<byte[]>> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading data");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
             }
+            throw new IOException("Unable to read data", e.getCause());
         }
     }
 
@@ -20,41 +20,53 @@ package org.apache.james.mailbox.hbase.io;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import org.apache.hadoop.conf.Configuration;
-import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.HTableInterface;
 import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.james.mailbox.hbase.HBaseTablePool;
 
 /**
  * Provide an {@link OutputStream} which will write to a row. The written data
  * will be split up by chunks of the given chunkSize. Each chunk we get written
- * to own column which will have the chunk number (starting at 0) as column key
+ * to own column which will have the chunk number (starting at 1) as column key
  * (Long).
  *
+ * Every chunk column holds up to chunkSize - 1 bytes of data followed by one
+ * padding byte, as written by former releases. Up to {@link #CHUNKS_PER_PUT}
+ * chunks are buffered and written with a single Put.
+ *
  * This implementation is not thread-safe!
  * Based on Hector implementation for Cassandra.
  * https://github.com/rantav/hector/blob/master/core/src/main/java/me/prettyprint/cassandra/io/ChunkOutputStream.java
  */
 public class ChunkOutputStream extends OutputStream {
 
-    private final Configuration conf;
+    /**
+     * Number of chunks written by a single Put
+     */
+    public static final int CHUNKS_PER_PUT = 4;
+
+    private final HBaseTablePool pool;
     private final byte[] tableName;
     private final byte[] cf;
     private final byte[] key;
-    private byte[] chunk;
+    private final byte[] chunk;
     private long chunkPos = 1;
-    private long pos = 0;
+    private int pos = 0;
+    private Put put;
+    private int chunksInPut = 0;
+    private boolean closed = false;
 
     /**
      * Creates a special type of {@link OutputStream} that writes data directly to HBase.
-     * @param conf HBase cluster configuration
+     * @param pool pool of the table handles of the cluster
      * @param tableName name of the table that writes will be made
      * @param cf name of the column family where data is going to be written
      * @param key the row key 
      * @param chunkSize the size of each column, in bytes. For HBase, max is 10MB
      */
-    public ChunkOutputStream(Configuration conf, byte[] tableName, byte[] cf, byte[] key, int chunkSize) {
-        this.conf = conf;
+    public ChunkOutputStream(HBaseTablePool pool, byte[] tableName, byte[] cf, byte[] key, int chunkSize) {
+        this.pool = pool;
         this.tableName = tableName;
         this.cf = cf;
         this.key = key;
@@ -68,51 +80,94 @@ public class ChunkOutputStream extends OutputStream {
      */
     @Override
     public void write(int b) throws IOException {
-        if (chunk.length - 1 == pos) {
-            flush();
+        if (pos == chunk.length - 1) {
+            endChunk();
+        }
+        chunk[pos++] = (byte) b;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.io.OutputStream#write(byte[], int, int)
+     */
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        while (len > 0) {
+            if (pos == chunk.length - 1) {
+                endChunk();
+            }
+            int count = Math.min(len, chunk.length - 1 - pos);
+            System.arraycopy(b, off, chunk, pos, count);
+            pos += count;
+            off += count;
+            len -= count;
         }
-        chunk[(int) pos++] = (byte) b;
     }
 
     @Override
     public void close() throws IOException {
-        writeData(true);
+        if (closed) {
+            return;
+        }
+        closed = true;
+        endChunk();
+        writeData();
     }
 
     /**
-     * Trigger a flush. This will only write the content to the column if the
-     * chunk size is reached
+     * Trigger a flush. This will only write the completed chunks, the current
+     * chunk is written once full or when the stream gets closed.
      */
     @Override
     public void flush() throws IOException {
-        writeData(false);
+        writeData();
     }
 
     /**
-     * Write the data to column if the configured chunk size is reached or if the
-     * stream should be closed
+     * Add the current chunk to the pending Put, which is written once it holds
+     * {@link #CHUNKS_PER_PUT} chunks.
      *
-     * @param close
      * @throws IOException
      */
-    private void writeData(boolean close) throws IOException {
-        if (pos != 0 && (close || pos == chunk.length - 1)) {
-            HTable messages = null;
-            try {
-                messages = new HTable(conf, tableName);
-                Put put = new Put(key);
-                put.add(cf, Bytes.toBytes(chunkPos), Bytes.head(chunk, (int) pos + 1));
-                messages.put(put);
-                chunkPos++;
-                pos = 0;
+    private void endChunk() throws IOException {
+        if (pos == 0) {
+            return;
+        }
+        chunk[pos] = 0;
+        if (put == null) {
+            put = new Put(key);
+        }
+        put.add(cf, Bytes.toBytes(chunkPos), Bytes.head(chunk, pos + 1));
+        chunkPos++;
+        chunksInPut++;
+        pos = 0;
+        if (chunksInPut == CHUNKS_PER_PUT) {
+            writeData();
+        }
+    }
 
-            } catch (IOException e) {
-                throw new IOException("Unable to write data", e);
-            } finally {
-                if (messages != null) {
-                    messages.close();
-                }
-            }
+    /**
+     * Write the pending chunks to their columns
+     *
+     * @throws IOException
+     */
+    private void writeData() throws IOException {
+        if (put == null) {
+            return;
+        }
+        HTableInterface messages = pool.getTable(tableName);
+        try {
+            messages.put(put);
+            put = null;
+            chunksInPut = 0;
+        } catch (IOException e) {
+            throw new IOException("Unable to write data", e);
+        } finally {
+            messages.close();
         }
     }
 }
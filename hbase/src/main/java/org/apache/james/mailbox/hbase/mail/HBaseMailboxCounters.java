@@ -0,0 +1,182 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailbox.hbase.mail;
+
+import static org.apache.james.mailbox.hbase.FlagConvertor.FLAGS_RECENT;
+import static org.apache.james.mailbox.hbase.FlagConvertor.FLAGS_SEEN;
+import static org.apache.james.mailbox.hbase.HBaseNames.MAILBOX_CF;
+import static org.apache.james.mailbox.hbase.HBaseNames.MAILBOX_HIGHEST_MODSEQ;
+import static org.apache.james.mailbox.hbase.HBaseNames.MAILBOX_MESSAGE_COUNT;
+import static org.apache.james.mailbox.hbase.HBaseNames.MAILBOX_RECENT_CF;
+import static org.apache.james.mailbox.hbase.HBaseNames.MAILBOX_RECENT_COUNT;
+import static org.apache.james.mailbox.hbase.HBaseNames.MAILBOX_UNSEEN_CF;
+import static org.apache.james.mailbox.hbase.HBaseNames.MAILBOX_UNSEEN_COUNT;
+import static org.apache.james.mailbox.hbase.HBaseNames.MARKER_PRESENT;
+import static org.apache.james.mailbox.hbase.HBaseNames.MESSAGES_META_CF;
+
+import java.io.IOException;
+
+import javax.mail.Flags;
+import javax.mail.Flags.Flag;
+
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Increment;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.RowMutations;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.james.mailbox.hbase.HBaseId;
+
+/**
+ * Collects the changes done by one command to the counters of a mailbox row
+ * (messages, unseen and recent messages) and to its unseen and recent uid column
+ * families, and writes them with one mutation and one increment of the row.
+ * <p>
+ * HBase can not increment and put within the same atomic operation, so the
+ * counters may be off after a crash between both calls. They are rebuilt by
+ * {@link HBaseMailboxCountersRepair}.
+ */
+public class HBaseMailboxCounters {
+
+    private final byte[] row;
+    private final Put markers;
+    private final Delete removedMarkers;
+    private long messages = 0;
+    private long unseen = 0;
+    private long recent = 0;
+    private long highestModSeq = 0;
+
+    public HBaseMailboxCounters(HBaseId mailboxId) {
+        this.row = mailboxId.toBytes();
+        this.markers = new Put(row);
+        this.removedMarkers = new Delete(row);
+    }
+
+    /**
+     * Account a message added to the mailbox
+     */
+    public void added(long uid, Flags flags) {
+        messages++;
+        if (!flags.contains(Flag.SEEN)) {
+            unseen++;
+            markers.add(MAILBOX_UNSEEN_CF, Bytes.toBytes(uid), MARKER_PRESENT);
+        }
+        if (flags.contains(Flag.RECENT)) {
+            recent++;
+            markers.add(MAILBOX_RECENT_CF, Bytes.toBytes(uid), MARKER_PRESENT);
+        }
+    }
+
+    /**
+     * Account a message removed from the mailbox
+     */
+    public void removed(long uid, Flags flags) {
+        messages--;
+        if (!flags.contains(Flag.SEEN)) {
+            unseen--;
+            removedMarkers.deleteColumns(MAILBOX_UNSEEN_CF, Bytes.toBytes(uid));
+        }
+        if (flags.contains(Flag.RECENT)) {
+            recent--;
+            removedMarkers.deleteColumns(MAILBOX_RECENT_CF, Bytes.toBytes(uid));
+        }
+    }
+
+    /**
+     * Account the flags update of a message of the mailbox
+     */
+    public void flagsChanged(long uid, Flags oldFlags, Flags newFlags) {
+        boolean wasSeen = oldFlags.contains(Flag.SEEN);
+        boolean isSeen = newFlags.contains(Flag.SEEN);
+        if (wasSeen && !isSeen) {
+            unseen++;
+            markers.add(MAILBOX_UNSEEN_CF, Bytes.toBytes(uid), MARKER_PRESENT);
+        } else if (!wasSeen && isSeen) {
+            unseen--;
+            removedMarkers.deleteColumns(MAILBOX_UNSEEN_CF, Bytes.toBytes(uid));
+        }
+        boolean wasRecent = oldFlags.contains(Flag.RECENT);
+        boolean isRecent = newFlags.contains(Flag.RECENT);
+        if (!wasRecent && isRecent) {
+            recent++;
+            markers.add(MAILBOX_RECENT_CF, Bytes.toBytes(uid), MARKER_PRESENT);
+        } else if (wasRecent && !isRecent) {
+            recent--;
+            removedMarkers.deleteColumns(MAILBOX_RECENT_CF, Bytes.toBytes(uid));
+        }
+    }
+
+    /**
+     * Increment the highest mod-sequence of the mailbox along with the counters
+     */
+    public void incrementHighestModSeq() {
+        highestModSeq++;
+    }
+
+    /**
+     * Write the collected changes to the mailbox row
+     *
+     * @param mailboxes the mailboxes table
+     * @throws IOException
+     */
+    public void apply(HTableInterface mailboxes) throws IOException {
+        if (!markers.isEmpty() && !removedMarkers.isEmpty()) {
+            RowMutations mutations = new RowMutations(row);
+            mutations.add(markers);
+            mutations.add(removedMarkers);
+            mailboxes.mutateRow(mutations);
+        } else if (!markers.isEmpty()) {
+            mailboxes.put(markers);
+        } else if (!removedMarkers.isEmpty()) {
+            mailboxes.delete(removedMarkers);
+        }
+        Increment increment = new Increment(row);
+        addIfChanged(increment, MAILBOX_MESSAGE_COUNT, messages);
+        addIfChanged(increment, MAILBOX_UNSEEN_COUNT, unseen);
+        addIfChanged(increment, MAILBOX_RECENT_COUNT, recent);
+        addIfChanged(increment, MAILBOX_HIGHEST_MODSEQ, highestModSeq);
+        if (increment.hasFamilies()) {
+            mailboxes.increment(increment);
+        }
+    }
+
+    private void addIfChanged(Increment increment, byte[] qualifier, long amount) {
+        if (amount != 0) {
+            increment.addColumn(MAILBOX_CF, qualifier, amount);
+        }
+    }
+
+    /**
+     * Read the seen and recent flags of a message row. Other flags are ignored.
+     *
+     * @param result a message row including the seen and recent flag columns
+     * @return flags
+     */
+    public static Flags seenAndRecentFlags(Result result) {
+        Flags flags = new Flags();
+        if (Bytes.equals(result.getValue(MESSAGES_META_CF, FLAGS_SEEN), MARKER_PRESENT)) {
+            flags.add(Flag.SEEN);
+        }
+        if (Bytes.equals(result.getValue(MESSAGES_META_CF, FLAGS_RECENT), MARKER_PRESENT)) {
+            flags.add(Flag.RECENT);
+        }
+        return flags;
+    }
+}
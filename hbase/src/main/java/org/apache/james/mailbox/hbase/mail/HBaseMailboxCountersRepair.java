@@ -0,0 +1,186 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailbox.hbase.mail;
+
+import static org.apache.james.mailbox.hbase.FlagConvertor.FLAGS_RECENT;
+import static org.apache.james.mailbox.hbase.FlagConvertor.FLAGS_SEEN;
+import static org.apache.james.mailbox.hbase.HBaseNames.MAILBOXES_TABLE;
+import static org.apache.james.mailbox.hbase.HBaseNames.MAILBOX_CF;
+import static org.apache.james.mailbox.hbase.HBaseNames.MAILBOX_MESSAGE_COUNT;
+import static org.apache.james.mailbox.hbase.HBaseNames.MAILBOX_NAME;
+import static org.apache.james.mailbox.hbase.HBaseNames.MAILBOX_RECENT_CF;
+import static org.apache.james.mailbox.hbase.HBaseNames.MAILBOX_RECENT_COUNT;
+import static org.apache.james.mailbox.hbase.HBaseNames.MAILBOX_UNSEEN_CF;
+import static org.apache.james.mailbox.hbase.HBaseNames.MAILBOX_UNSEEN_COUNT;
+import static org.apache.james.mailbox.hbase.HBaseNames.MARKER_PRESENT;
+import static org.apache.james.mailbox.hbase.HBaseNames.MESSAGES_META_CF;
+import static org.apache.james.mailbox.hbase.HBaseNames.MESSAGES_TABLE;
+import static org.apache.james.mailbox.hbase.HBaseNames.MESSAGE_MODSEQ;
+import static org.apache.james.mailbox.hbase.HBaseUtils.HBaseIdFromRowKey;
+import static org.apache.james.mailbox.hbase.HBaseUtils.customMessageRowKey;
+
+import java.io.IOException;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import javax.mail.Flags;
+import javax.mail.Flags.Flag;
+
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.filter.PrefixFilter;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.james.mailbox.hbase.HBaseId;
+import org.apache.james.mailbox.hbase.HBaseTablePool;
+
+/**
+ * Rebuilds the message, unseen and recent counters of mailbox rows and their unseen
+ * and recent uid column families from the messages table, for instance after a
+ * crash between the updates done by {@link HBaseMailboxCounters}, or when the
+ * column families were added to an existing table.
+ * <p>
+ * Messages added or flagged in the mailbox while it is repaired may be missed, so
+ * the repair should be run while the mailbox is not in use.
+ */
+public class HBaseMailboxCountersRepair {
+
+    private final HBaseTablePool tablePool;
+
+    public HBaseMailboxCountersRepair(HBaseTablePool tablePool) {
+        this.tablePool = tablePool;
+    }
+
+    /**
+     * Rebuild the counters of all the mailboxes
+     *
+     * @return the number of repaired mailboxes
+     * @throws IOException
+     */
+    public long repairAll() throws IOException {
+        HTableInterface mailboxes = tablePool.getTable(MAILBOXES_TABLE);
+        ResultScanner scanner = null;
+        long repaired = 0;
+        try {
+            Scan scan = new Scan();
+            scan.setMaxVersions(1);
+            scan.addColumn(MAILBOX_CF, MAILBOX_NAME);
+            scan.setCaching(tablePool.getScannerCaching() * 2);
+            scanner = mailboxes.getScanner(scan);
+            Result result;
+            while ((result = scanner.next()) != null) {
+                repair(HBaseIdFromRowKey(result.getRow()));
+                repaired++;
+            }
+        } finally {
+            IOUtils.cleanup(null, scanner, mailboxes);
+        }
+        return repaired;
+    }
+
+    /**
+     * Rebuild the counters of the given mailbox. Only the uid columns which are
+     * missing or stale are written.
+     *
+     * @param mailboxId the mailbox
+     * @return the number of messages in the mailbox
+     * @throws IOException
+     */
+    public long repair(HBaseId mailboxId) throws IOException {
+        HTableInterface messages = tablePool.getTable(MESSAGES_TABLE);
+        HTableInterface mailboxes = tablePool.getTable(MAILBOXES_TABLE);
+        ResultScanner scanner = null;
+        try {
+            byte[] row = mailboxId.toBytes();
+            Get get = new Get(row);
+            get.addFamily(MAILBOX_UNSEEN_CF);
+            get.addFamily(MAILBOX_RECENT_CF);
+            get.setMaxVersions(1);
+            Result current = mailboxes.get(get);
+            NavigableMap<byte[], byte[]> staleUnseen = familyMap(current, MAILBOX_UNSEEN_CF);
+            NavigableMap<byte[], byte[]> staleRecent = familyMap(current, MAILBOX_RECENT_CF);
+
+            Scan scan = new Scan(customMessageRowKey(mailboxId, 0L), new PrefixFilter(row));
+            // the mod-sequence is always present, it makes sure every message is returned
+            scan.addColumn(MESSAGES_META_CF, MESSAGE_MODSEQ);
+            scan.addColumn(MESSAGES_META_CF, FLAGS_SEEN);
+            scan.addColumn(MESSAGES_META_CF, FLAGS_RECENT);
+            scan.setCaching(tablePool.getScannerCaching() * 2);
+            scan.setMaxVersions(1);
+            scanner = messages.getScanner(scan);
+
+            Put put = new Put(row);
+            long count = 0;
+            long unseen = 0;
+            long recent = 0;
+            Result result;
+            while ((result = scanner.next()) != null) {
+                byte[] uid = Bytes.toBytes(Long.MAX_VALUE - Bytes.toLong(result.getRow(), 16, 8));
+                Flags flags = HBaseMailboxCounters.seenAndRecentFlags(result);
+                count++;
+                if (!flags.contains(Flag.SEEN)) {
+                    unseen++;
+                    if (staleUnseen.remove(uid) == null) {
+                        put.add(MAILBOX_UNSEEN_CF, uid, MARKER_PRESENT);
+                    }
+                }
+                if (flags.contains(Flag.RECENT)) {
+                    recent++;
+                    if (staleRecent.remove(uid) == null) {
+                        put.add(MAILBOX_RECENT_CF, uid, MARKER_PRESENT);
+                    }
+                }
+            }
+            put.add(MAILBOX_CF, MAILBOX_MESSAGE_COUNT, Bytes.toBytes(count));
+            put.add(MAILBOX_CF, MAILBOX_UNSEEN_COUNT, Bytes.toBytes(unseen));
+            put.add(MAILBOX_CF, MAILBOX_RECENT_COUNT, Bytes.toBytes(recent));
+            mailboxes.put(put);
+
+            if (!staleUnseen.isEmpty() || !staleRecent.isEmpty()) {
+                Delete delete = new Delete(row);
+                for (byte[] uid : staleUnseen.keySet()) {
+                    delete.deleteColumns(MAILBOX_UNSEEN_CF, uid);
+                }
+                for (byte[] uid : staleRecent.keySet()) {
+                    delete.deleteColumns(MAILBOX_RECENT_CF, uid);
+                }
+                mailboxes.delete(delete);
+            }
+            return count;
+        } finally {
+            IOUtils.cleanup(null, scanner, mailboxes, messages);
+        }
+    }
+
+    private NavigableMap<byte[], byte[]> familyMap(Result result, byte[] family) {
+        NavigableMap<byte[], byte[]> columns = new TreeMap<byte[], byte[]>(Bytes.BYTES_COMPARATOR);
+        if (!result.isEmpty()) {
+            NavigableMap<byte[], byte[]> familyMap = result.getFamilyMap(family);
+            if (familyMap != null) {
+                columns.putAll(familyMap);
+            }
+        }
+        return columns;
+    }
+}
@@ -23,6 +23,10 @@ import static org.apache.james.mailbox.hbase.HBaseNames.MAILBOX_CF;
 import static org.apache.james.mailbox.hbase.HBaseNames.MAILBOX_MESSAGE_COUNT;
 import static org.apache.james.mailbox.hbase.HBaseNames.MAILBOX_NAME;
 import static org.apache.james.mailbox.hbase.HBaseNames.MAILBOX_NAMESPACE;
+import static org.apache.james.mailbox.hbase.HBaseNames.MAILBOX_RECENT_CF;
+import static org.apache.james.mailbox.hbase.HBaseNames.MAILBOX_RECENT_COUNT;
+import static org.apache.james.mailbox.hbase.HBaseNames.MAILBOX_UNSEEN_CF;
+import static org.apache.james.mailbox.hbase.HBaseNames.MAILBOX_UNSEEN_COUNT;
 import static org.apache.james.mailbox.hbase.HBaseNames.MAILBOX_USER;
 import static org.apache.james.mailbox.hbase.HBaseNames.MESSAGES_META_CF;
 import static org.apache.james.mailbox.hbase.HBaseNames.MESSAGES_TABLE;
@@ -34,9 +38,8 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
-import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hbase.client.Delete;
-import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.HTableInterface;
 import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.client.ResultScanner;
@@ -51,7 +54,10 @@ import org.apache.hadoop.io.IOUtils;
 import org.apache.james.mailbox.exception.MailboxException;
 import org.apache.james.mailbox.exception.MailboxNotFoundException;
 import org.apache.james.mailbox.hbase.HBaseId;
+import org.apache.james.mailbox.hbase.HBaseMapperStatistics;
+import org.apache.james.mailbox.hbase.HBaseMapperStatistics.Operation;
 import org.apache.james.mailbox.hbase.HBaseNonTransactionalMapper;
+import org.apache.james.mailbox.hbase.HBaseTablePool;
 import org.apache.james.mailbox.hbase.mail.model.HBaseMailbox;
 import org.apache.james.mailbox.model.MailboxACL;
 import org.apache.james.mailbox.model.MailboxPath;
@@ -65,24 +71,27 @@ import org.apache.james.mailbox.store.mail.model.Mailbox;
 public class HBaseMailboxMapper extends HBaseNonTransactionalMapper implements MailboxMapper<HBaseId> {
 
     /**
-     * Link to the HBase Configuration object and specific mailbox names
+     * Pool of the table handles of the cluster and the counters of the factory
      */
-    private final Configuration conf;
+    private final HBaseTablePool tablePool;
+    private final HBaseMapperStatistics statistics;
     
-    public HBaseMailboxMapper(Configuration conf) {
-        this.conf = conf;
+    public HBaseMailboxMapper(HBaseTablePool tablePool, HBaseMapperStatistics statistics) {
+        this.tablePool = tablePool;
+        this.statistics = statistics;
     }
     
     @Override
     public Mailbox<HBaseId> findMailboxByPath(MailboxPath mailboxPath) throws MailboxException, MailboxNotFoundException {
-        HTable mailboxes = null;
+        long start = statistics.start();
+        HTableInterface mailboxes = null;
         ResultScanner scanner = null;
         try {
-            mailboxes = new HTable(conf, MAILBOXES_TABLE);
+            mailboxes = tablePool.getTable(MAILBOXES_TABLE);
             
             Scan scan = new Scan();
             scan.addFamily(MAILBOX_CF);
-            scan.setCaching(mailboxes.getScannerCaching() * 2);
+            scan.setCaching(tablePool.getScannerCaching() * 2);
             scan.setMaxVersions(1);
 
             /*
@@ -113,6 +122,7 @@ public class HBaseMailboxMapper extends HBaseNonTransactionalMapper implements M
         } catch (IOException e) {
             throw new MailboxException("Search of mailbox " + mailboxPath + " failed", e);
         } finally {
+            statistics.record(Operation.FIND_MAILBOX, start);
             scanner.close();
             if (mailboxes != null) {
                 try {
@@ -126,14 +136,14 @@ public class HBaseMailboxMapper extends HBaseNonTransactionalMapper implements M
     
     @Override
     public List<Mailbox<HBaseId>> findMailboxWithPathLike(MailboxPath mailboxPath) throws MailboxException {
-        HTable mailboxes = null;
+        HTableInterface mailboxes = null;
         ResultScanner scanner = null;
         try {
-            mailboxes = new HTable(conf, MAILBOXES_TABLE);
+            mailboxes = tablePool.getTable(MAILBOXES_TABLE);
             
             Scan scan = new Scan();
             scan.addFamily(MAILBOX_CF);
-            scan.setCaching(mailboxes.getScannerCaching() * 2);
+            scan.setCaching(tablePool.getScannerCaching() * 2);
             scan.setMaxVersions(1);
             
             FilterList filters = new FilterList(FilterList.Operator.MUST_PASS_ALL);
@@ -188,14 +198,14 @@ public class HBaseMailboxMapper extends HBaseNonTransactionalMapper implements M
     
     @Override
     public List<Mailbox<HBaseId>> list() throws MailboxException {
-        HTable mailboxes = null;
+        HTableInterface mailboxes = null;
         ResultScanner scanner = null;
         //TODO: possible performance isssues, we are creating an object from all the rows in HBase mailbox table
         try {
-            mailboxes = new HTable(conf, MAILBOXES_TABLE);
+            mailboxes = tablePool.getTable(MAILBOXES_TABLE);
             Scan scan = new Scan();
             scan.addFamily(MAILBOX_CF);
-            scan.setCaching(mailboxes.getScannerCaching() * 2);
+            scan.setCaching(tablePool.getScannerCaching() * 2);
             scan.setMaxVersions(1);
             scanner = mailboxes.getScanner(scan);
             List<Mailbox<HBaseId>> mailboxList = new ArrayList<Mailbox<HBaseId>>();
@@ -227,9 +237,10 @@ public class HBaseMailboxMapper extends HBaseNonTransactionalMapper implements M
     @Override
     public void save(Mailbox<HBaseId> mlbx) throws MailboxException {
         //TODO: maybe switch to checkAndPut for transactions
-        HTable mailboxes = null;
+        long start = statistics.start();
+        HTableInterface mailboxes = null;
         try {
-            mailboxes = new HTable(conf, MAILBOXES_TABLE);
+            mailboxes = tablePool.getTable(MAILBOXES_TABLE);
             /*
              * cast to HBaseMailbox to access lastuid and ModSeq
              */
@@ -238,6 +249,7 @@ public class HBaseMailboxMapper extends HBaseNonTransactionalMapper implements M
         } catch (IOException ex) {
             throw new MailboxException("IOExeption", ex);
         } finally {
+            statistics.record(Operation.SAVE_MAILBOX, start);
             if (mailboxes != null) {
                 try {
                     mailboxes.close();
@@ -251,15 +263,17 @@ public class HBaseMailboxMapper extends HBaseNonTransactionalMapper implements M
     @Override
     public void delete(Mailbox<HBaseId> mlbx) throws MailboxException {
         //TODO: maybe switch to checkAndDelete
-        HTable mailboxes = null;
+        long start = statistics.start();
+        HTableInterface mailboxes = null;
         try {
-            mailboxes = new HTable(conf, MAILBOXES_TABLE);
+            mailboxes = tablePool.getTable(MAILBOXES_TABLE);
             //TODO: delete all maessages from this mailbox
             Delete delete = new Delete(mlbx.getMailboxId().toBytes());
             mailboxes.delete(delete);
         } catch (IOException ex) {
             throw new MailboxException("IOException in HBase cluster during delete()", ex);
         } finally {
+            statistics.record(Operation.DELETE_MAILBOX, start);
             if (mailboxes != null) {
                 try {
                     mailboxes.close();
@@ -272,14 +286,14 @@ public class HBaseMailboxMapper extends HBaseNonTransactionalMapper implements M
     
     @Override
     public boolean hasChildren(final Mailbox<HBaseId> mailbox, final char c) throws MailboxException, MailboxNotFoundException {
-        HTable mailboxes = null;
+        HTableInterface mailboxes = null;
         ResultScanner scanner = null;
         try {
-            mailboxes = new HTable(conf, MAILBOXES_TABLE);
+            mailboxes = tablePool.getTable(MAILBOXES_TABLE);
             
             Scan scan = new Scan();
             scan.addFamily(MAILBOX_CF);
-            scan.setCaching(mailboxes.getScannerCaching() * 2);
+            scan.setCaching(tablePool.getScannerCaching() * 2);
             scan.setMaxVersions(1);
             
             FilterList filters = new FilterList(FilterList.Operator.MUST_PASS_ALL);
@@ -321,12 +335,12 @@ public class HBaseMailboxMapper extends HBaseNonTransactionalMapper implements M
     }
     
     public void deleteAllMemberships() {
-        HTable messages = null;
-        HTable mailboxes = null;
+        HTableInterface messages = null;
+        HTableInterface mailboxes = null;
         ResultScanner scanner = null;
         try {
-            messages = new HTable(conf, MESSAGES_TABLE);
-            mailboxes = new HTable(conf, MAILBOXES_TABLE);
+            messages = tablePool.getTable(MESSAGES_TABLE);
+            mailboxes = tablePool.getTable(MAILBOXES_TABLE);
             Scan scan = new Scan();
             scan.setMaxVersions(1);
             scan.addColumn(MESSAGES_META_CF, MESSAGE_INTERNALDATE);
@@ -350,11 +364,22 @@ public class HBaseMailboxMapper extends HBaseNonTransactionalMapper implements M
             IOUtils.cleanup(null, scanner);
             scanner = mailboxes.getScanner(scan);
             Put put = null;
+            Delete markers = null;
+            List<Delete> markerDeletes = new ArrayList<Delete>();
             while ((result = scanner.next()) != null) {
                 put = new Put(result.getRow());
                 put.add(MAILBOX_CF, MAILBOX_MESSAGE_COUNT, Bytes.toBytes(0L));
-                puts.add(new Put());
+                put.add(MAILBOX_CF, MAILBOX_UNSEEN_COUNT, Bytes.toBytes(0L));
+                put.add(MAILBOX_CF, MAILBOX_RECENT_COUNT, Bytes.toBytes(0L));
+                puts.add(put);
+                markers = new Delete(result.getRow());
+                markers.deleteFamily(MAILBOX_UNSEEN_CF);
+                markers.deleteFamily(MAILBOX_RECENT_CF);
+                markerDeletes.add(markers);
             }
+            // reset all message counters at once
+            mailboxes.put(puts);
+            mailboxes.delete(markerDeletes);
         } catch (IOException e) {
             throw new RuntimeException("Error deleting MESSAGES table ", e);
         } finally {
@@ -363,10 +388,10 @@ public class HBaseMailboxMapper extends HBaseNonTransactionalMapper implements M
     }
     
     public void deleteAllMailboxes() {
-        HTable mailboxes = null;
+        HTableInterface mailboxes = null;
         ResultScanner scanner = null;
         try {
-            mailboxes = new HTable(conf, MAILBOXES_TABLE);
+            mailboxes = tablePool.getTable(MAILBOXES_TABLE);
             Scan scan = new Scan();
             scan.setMaxVersions(1);
             scan.addColumn(MAILBOX_CF, MAILBOX_NAME);
@@ -32,9 +32,9 @@ import java.util.List;
 
 import javax.mail.Flags;
 
-import org.apache.hadoop.conf.Configuration;
 import org.apache.james.mailbox.exception.MailboxException;
 import org.apache.james.mailbox.hbase.HBaseId;
+import org.apache.james.mailbox.hbase.HBaseTablePool;
 import org.apache.james.mailbox.hbase.io.ChunkInputStream;
 import org.apache.james.mailbox.store.mail.model.AbstractMessage;
 import org.apache.james.mailbox.store.mail.model.Message;
@@ -49,8 +49,8 @@ import org.apache.james.mailbox.store.mail.model.impl.PropertyBuilder;
 public class HBaseMessage extends AbstractMessage<HBaseId> {
 
     private static final String TOSTRING_SEPARATOR = " ";
-    /** Configuration for the HBase cluster */
-    private final Configuration conf;
+    /** Pool of the table handles of the HBase cluster */
+    private final HBaseTablePool tablePool;
     /** The value for the mailboxId field */
     private HBaseId mailboxId;
     /** The value for the uid field */
@@ -94,9 +94,9 @@ public class HBaseMessage extends AbstractMessage<HBaseId> {
      * @param original
      * @throws MailboxException
      */
-    public HBaseMessage(Configuration conf, HBaseId mailboxId, long uid, long modSeq, Message<?> original) throws MailboxException {
+    public HBaseMessage(HBaseTablePool tablePool, HBaseId mailboxId, long uid, long modSeq, Message<?> original) throws MailboxException {
         super();
-        this.conf = conf;
+        this.tablePool = tablePool;
         this.mailboxId = mailboxId;
         this.uid = uid;
         this.modSeq = modSeq;
@@ -126,9 +126,9 @@ public class HBaseMessage extends AbstractMessage<HBaseId> {
      * @param bodyStartOctet
      * @param propertyBuilder
      */
-    public HBaseMessage(Configuration conf, HBaseId mailboxId, Date internalDate, Flags flags, long contentOctets, int bodyStartOctet, PropertyBuilder propertyBuilder) {
+    public HBaseMessage(HBaseTablePool tablePool, HBaseId mailboxId, Date internalDate, Flags flags, long contentOctets, int bodyStartOctet, PropertyBuilder propertyBuilder) {
         super();
-        this.conf = conf;
+        this.tablePool = tablePool;
         this.mailboxId = mailboxId;
         this.internalDate = internalDate;
         userFlags = new ArrayList<String>();
@@ -148,7 +148,7 @@ public class HBaseMessage extends AbstractMessage<HBaseId> {
      */
     @Override
     public InputStream getBodyContent() throws IOException {
-        return new ChunkInputStream(conf, MESSAGES_TABLE, MESSAGE_DATA_BODY_CF, messageRowKey(this));
+        return new ChunkInputStream(tablePool, MESSAGES_TABLE, MESSAGE_DATA_BODY_CF, messageRowKey(this));
     }
 
     /*
@@ -157,7 +157,7 @@ public class HBaseMessage extends AbstractMessage<HBaseId> {
      */
     @Override
     public InputStream getHeaderContent() throws IOException {
-        return new ChunkInputStream(conf, MESSAGES_TABLE, MESSAGE_DATA_HEADERS_CF, messageRowKey(this));
+        return new ChunkInputStream(tablePool, MESSAGES_TABLE, MESSAGE_DATA_HEADERS_CF, messageRowKey(this));
     }
 
     @Override
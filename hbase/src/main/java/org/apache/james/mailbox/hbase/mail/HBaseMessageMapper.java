@@ -23,9 +23,10 @@ import static org.apache.james.mailbox.hbase.FlagConvertor.FLAGS_RECENT;
 import static org.apache.james.mailbox.hbase.FlagConvertor.FLAGS_SEEN;
 import static org.apache.james.mailbox.hbase.HBaseNames.MAILBOXES_TABLE;
 import static org.apache.james.mailbox.hbase.HBaseNames.MAILBOX_CF;
-import static org.apache.james.mailbox.hbase.HBaseNames.MAILBOX_HIGHEST_MODSEQ;
 import static org.apache.james.mailbox.hbase.HBaseNames.MAILBOX_MESSAGE_COUNT;
-import static org.apache.james.mailbox.hbase.HBaseNames.MARKER_MISSING;
+import static org.apache.james.mailbox.hbase.HBaseNames.MAILBOX_RECENT_CF;
+import static org.apache.james.mailbox.hbase.HBaseNames.MAILBOX_UNSEEN_CF;
+import static org.apache.james.mailbox.hbase.HBaseNames.MAILBOX_UNSEEN_COUNT;
 import static org.apache.james.mailbox.hbase.HBaseNames.MARKER_PRESENT;
 import static org.apache.james.mailbox.hbase.HBaseNames.MAX_COLUMN_SIZE;
 import static org.apache.james.mailbox.hbase.HBaseNames.MESSAGES_META_CF;
@@ -39,8 +40,8 @@ import static org.apache.james.mailbox.hbase.HBaseUtils.messageMetaFromResult;
 import static org.apache.james.mailbox.hbase.HBaseUtils.messageRowKey;
 import static org.apache.james.mailbox.hbase.HBaseUtils.metadataToPut;
 
-import java.io.BufferedInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -50,22 +51,25 @@ import java.util.Map;
 
 import javax.mail.Flags;
 
-import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hbase.client.Delete;
 import org.apache.hadoop.hbase.client.Get;
-import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.HTableInterface;
 import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.client.ResultScanner;
 import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.filter.ColumnPaginationFilter;
 import org.apache.hadoop.hbase.filter.CompareFilter.CompareOp;
 import org.apache.hadoop.hbase.filter.PrefixFilter;
-import org.apache.hadoop.hbase.filter.SingleColumnValueExcludeFilter;
 import org.apache.hadoop.hbase.filter.SingleColumnValueFilter;
 import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.io.IOUtils;
 import org.apache.james.mailbox.MailboxSession;
 import org.apache.james.mailbox.exception.MailboxException;
 import org.apache.james.mailbox.hbase.HBaseId;
+import org.apache.james.mailbox.hbase.HBaseMapperStatistics;
+import org.apache.james.mailbox.hbase.HBaseMapperStatistics.Operation;
+import org.apache.james.mailbox.hbase.HBaseTablePool;
 import org.apache.james.mailbox.hbase.io.ChunkOutputStream;
 import org.apache.james.mailbox.model.MessageMetaData;
 import org.apache.james.mailbox.model.MessageRange;
@@ -87,18 +91,23 @@ import org.apache.james.mailbox.store.transaction.NonTransactionalMapper;
  */
 public class HBaseMessageMapper extends NonTransactionalMapper implements MessageMapper<HBaseId> {
 
-    private final Configuration conf;
+    private static final int COPY_BUFFER_SIZE = 8192;
+
+    private final HBaseTablePool tablePool;
+    private final HBaseMapperStatistics statistics;
     private final MailboxSession mailboxSession;
     private final UidProvider<HBaseId> uidProvider;
     private final ModSeqProvider<HBaseId> modSeqProvider;
 
     public HBaseMessageMapper(final MailboxSession session,
             final UidProvider<HBaseId> uidProvider,
-            ModSeqProvider<HBaseId> modSeqProvider, Configuration conf) {
+            ModSeqProvider<HBaseId> modSeqProvider,
+            HBaseTablePool tablePool, HBaseMapperStatistics statistics) {
         this.mailboxSession = session;
         this.modSeqProvider = modSeqProvider;
         this.uidProvider = uidProvider;
-        this.conf = conf;
+        this.tablePool = tablePool;
+        this.statistics = statistics;
     }
 
     @Override
@@ -107,6 +116,7 @@ public class HBaseMessageMapper extends NonTransactionalMapper implements Messag
 
     @Override
     public Iterator<Message<HBaseId>> findInMailbox(Mailbox<HBaseId> mailbox, MessageRange set, FetchType fType, int max) throws MailboxException {
+        long start = statistics.start();
         try {
             List<Message<HBaseId>> results;
             long from = set.getUidFrom();
@@ -132,12 +142,14 @@ public class HBaseMessageMapper extends NonTransactionalMapper implements Messag
 
         } catch (IOException e) {
             throw new MailboxException("Search of MessageRange " + set + " failed in mailbox " + mailbox, e);
+        } finally {
+            statistics.record(Operation.FIND_MESSAGES, start);
         }
     }
 
     private List<Message<HBaseId>> findMessagesInMailbox(Mailbox<HBaseId> mailbox, int batchSize, boolean flaggedForDelete) throws IOException {
         List<Message<HBaseId>> messageList = new ArrayList<Message<HBaseId>>();
-        HTable messages = new HTable(conf, MESSAGES_TABLE);
+        HTableInterface messages = tablePool.getTable(MESSAGES_TABLE);
         Scan scan = new Scan(customMessageRowKey(mailbox.getMailboxId(), 0L),
                 new PrefixFilter(mailbox.getMailboxId().toBytes()));
         if (flaggedForDelete) {
@@ -154,7 +166,7 @@ public class HBaseMessageMapper extends NonTransactionalMapper implements Messag
         Result result;
         long count = batchSize > 0 ? batchSize : Long.MAX_VALUE;
         while (((result = scanner.next()) != null) && (count > 0)) {
-            messageList.add(messageMetaFromResult(conf, result));
+            messageList.add(messageMetaFromResult(tablePool, result));
             count--;
         }
         scanner.close();
@@ -166,7 +178,7 @@ public class HBaseMessageMapper extends NonTransactionalMapper implements Messag
 
     private List<Message<HBaseId>> findMessagesInMailboxWithUID(Mailbox<HBaseId> mailbox, final long messageUid, final boolean flaggedForDelete) throws IOException {
         List<Message<HBaseId>> messageList = new ArrayList<Message<HBaseId>>();
-        HTable messages = new HTable(conf, MESSAGES_TABLE);
+        HTableInterface messages = tablePool.getTable(MESSAGES_TABLE);
         Get get = new Get(messageRowKey(mailbox.getMailboxId(), messageUid));
         get.setMaxVersions(1);
         /* we exclude the message content column family because it could be too large.
@@ -181,7 +193,7 @@ public class HBaseMessageMapper extends NonTransactionalMapper implements Messag
         Result result = messages.get(get);
         Message<HBaseId> message = null;
         if (!result.isEmpty()) {
-            message = messageMetaFromResult(conf, result);
+            message = messageMetaFromResult(tablePool, result);
             messageList.add(message);
         }
         messages.close();
@@ -190,7 +202,7 @@ public class HBaseMessageMapper extends NonTransactionalMapper implements Messag
 
     private List<Message<HBaseId>> findMessagesInMailboxAfterUID(Mailbox<HBaseId> mailbox, final long from, final int batchSize, final boolean flaggedForDelete) throws IOException {
         List<Message<HBaseId>> messageList = new ArrayList<Message<HBaseId>>();
-        HTable messages = new HTable(conf, MESSAGES_TABLE);
+        HTableInterface messages = tablePool.getTable(MESSAGES_TABLE);
         // uids are stored in reverse so we need to search
         Scan scan = new Scan(messageRowKey(mailbox.getMailboxId(), Long.MAX_VALUE),
                 messageRowKey(mailbox.getMailboxId(), from - 1));
@@ -208,7 +220,7 @@ public class HBaseMessageMapper extends NonTransactionalMapper implements Messag
         Result result;
         long count = batchSize > 0 ? batchSize : Long.MAX_VALUE;
         while (((result = scanner.next()) != null) && (count > 0)) {
-            messageList.add(messageMetaFromResult(conf, result));
+            messageList.add(messageMetaFromResult(tablePool, result));
             count--;
         }
         scanner.close();
@@ -223,7 +235,7 @@ public class HBaseMessageMapper extends NonTransactionalMapper implements Messag
         if (from > to) {
             return messageList;
         }
-        HTable messages = new HTable(conf, MESSAGES_TABLE);
+        HTableInterface messages = tablePool.getTable(MESSAGES_TABLE);
         /*TODO: check if Between should be inclusive or exclusive regarding limits.
          * HBase scan operaion are exclusive to the upper bound when providing stop row key.
          */
@@ -246,7 +258,7 @@ public class HBaseMessageMapper extends NonTransactionalMapper implements Messag
             if (count == 0) {
                 break;
             }
-            Message<HBaseId> message = messageMetaFromResult(conf, result);
+            Message<HBaseId> message = messageMetaFromResult(tablePool, result);
             messageList.add(message);
             count--;
         }
@@ -259,6 +271,7 @@ public class HBaseMessageMapper extends NonTransactionalMapper implements Messag
 
     @Override
     public Map<Long, MessageMetaData> expungeMarkedForDeletionInMailbox(Mailbox<HBaseId> mailbox, MessageRange set) throws MailboxException {
+        long start = statistics.start();
         try {
             final Map<Long, MessageMetaData> data;
             final List<Message<HBaseId>> results;
@@ -292,14 +305,17 @@ public class HBaseMessageMapper extends NonTransactionalMapper implements Messag
             return data;
         } catch (IOException e) {
             throw new MailboxException("Search of MessageRange " + set + " failed in mailbox " + mailbox, e);
+        } finally {
+            statistics.record(Operation.EXPUNGE, start);
         }
     }
 
     @Override
     public long countMessagesInMailbox(Mailbox<HBaseId> mailbox) throws MailboxException {
-        HTable mailboxes = null;
+        long start = statistics.start();
+        HTableInterface mailboxes = null;
         try {
-            mailboxes = new HTable(conf, MAILBOXES_TABLE);
+            mailboxes = tablePool.getTable(MAILBOXES_TABLE);
             Get get = new Get(mailbox.getMailboxId().toBytes());
             get.addColumn(MAILBOX_CF, MAILBOX_MESSAGE_COUNT);
             get.setMaxVersions(1);
@@ -309,6 +325,7 @@ public class HBaseMessageMapper extends NonTransactionalMapper implements Messag
         } catch (IOException e) {
             throw new MailboxException("Count of messages failed in mailbox " + mailbox, e);
         } finally {
+            statistics.record(Operation.COUNT_MESSAGES, start);
             if (mailboxes != null) {
                 try {
                     mailboxes.close();
@@ -321,35 +338,26 @@ public class HBaseMessageMapper extends NonTransactionalMapper implements Messag
 
     @Override
     public long countUnseenMessagesInMailbox(Mailbox<HBaseId> mailbox) throws MailboxException {
-        /* TODO: see if it is possible to store the number of unseen messages in the mailbox table
-         * and just return that value with a Get and kepp it up to date.
-         */
-        HTable messages = null;
-        ResultScanner scanner = null;
+        long start = statistics.start();
+        HTableInterface mailboxes = null;
         try {
-            messages = new HTable(conf, MESSAGES_TABLE);
-            /* Limit the number of entries scanned to just the mails in this mailbox */
-            Scan scan = new Scan(messageRowKey(mailbox.getMailboxId(), Long.MAX_VALUE),
-                    messageRowKey(mailbox.getMailboxId(), 0));
-            scan.addFamily(MESSAGES_META_CF);
-            scan.setFilter(new SingleColumnValueExcludeFilter(MESSAGES_META_CF, FLAGS_SEEN, CompareOp.EQUAL, MARKER_MISSING));
-            scan.setCaching(messages.getScannerCaching() * 2);
-            scan.setMaxVersions(1);
-            scanner = messages.getScanner(scan);
-            long count = 0;
-            while (scanner.next() != null) {
-                count++;
-            }
-            return count;
+            mailboxes = tablePool.getTable(MAILBOXES_TABLE);
+            Get get = new Get(mailbox.getMailboxId().toBytes());
+            get.addColumn(MAILBOX_CF, MAILBOX_UNSEEN_COUNT);
+            get.setMaxVersions(1);
+            Result result = mailboxes.get(get);
+            byte[] count = result.getValue(MAILBOX_CF, MAILBOX_UNSEEN_COUNT);
+            // the counter is only written once a message was added
+            return count == null ? 0 : Bytes.toLong(count);
         } catch (IOException e) {
-            throw new MailboxException("Search of first unseen message failed in mailbox " + mailbox, e);
+            throw new MailboxException("Count of unseen messages failed in mailbox " + mailbox, e);
         } finally {
-            scanner.close();
-            if (messages != null) {
+            statistics.record(Operation.COUNT_UNSEEN, start);
+            if (mailboxes != null) {
                 try {
-                    messages.close();
+                    mailboxes.close();
                 } catch (IOException ex) {
-                    throw new MailboxException("Error closing table " + messages, ex);
+                    throw new MailboxException("Error closing table " + mailboxes, ex);
                 }
             }
         }
@@ -358,21 +366,22 @@ public class HBaseMessageMapper extends NonTransactionalMapper implements Messag
     @Override
     public void delete(Mailbox<HBaseId> mailbox, Message<HBaseId> message) throws MailboxException {
         //TODO: maybe switch to checkAndDelete
-        HTable messages = null;
-        HTable mailboxes = null;
+        long start = statistics.start();
+        HTableInterface messages = null;
+        HTableInterface mailboxes = null;
         try {
-            messages = new HTable(conf, MESSAGES_TABLE);
-            mailboxes = new HTable(conf, MAILBOXES_TABLE);
-            /** TODO: also implement/update the message count for this mailbox
-             *  and implement countMessages with get.
-             */
+            messages = tablePool.getTable(MESSAGES_TABLE);
+            mailboxes = tablePool.getTable(MAILBOXES_TABLE);
             Delete delete = new Delete(messageRowKey(message));
-            mailboxes.incrementColumnValue(mailbox.getMailboxId().toBytes(), MAILBOX_CF, MAILBOX_MESSAGE_COUNT, -1);
+            HBaseMailboxCounters counters = new HBaseMailboxCounters(mailbox.getMailboxId());
+            counters.removed(message.getUid(), message.createFlags());
+            counters.apply(mailboxes);
             messages.delete(delete);
 
         } catch (IOException ex) {
             throw new MailboxException("Delete of message " + message + " failed in mailbox " + mailbox, ex);
         } finally {
+            statistics.record(Operation.DELETE_MESSAGE, start);
 
             if (mailboxes != null) {
                 try {
@@ -395,38 +404,29 @@ public class HBaseMessageMapper extends NonTransactionalMapper implements Messag
 
     @Override
     public Long findFirstUnseenMessageUid(Mailbox<HBaseId> mailbox) throws MailboxException {
-        HTable messages = null;
-        ResultScanner scanner = null;
+        HTableInterface mailboxes = null;
         try {
-            messages = new HTable(conf, MESSAGES_TABLE);
-            /* Limit the number of entries scanned to just the mails in this mailbox */
-            Scan scan = new Scan(messageRowKey(mailbox.getMailboxId(), Long.MAX_VALUE), messageRowKey(mailbox.getMailboxId(), 0));
-            scan.addFamily(MESSAGES_META_CF);
-            // filter out all rows with FLAGS_SEEN qualifier
-            SingleColumnValueFilter filter = new SingleColumnValueFilter(MESSAGES_META_CF, FLAGS_SEEN, CompareOp.EQUAL, MARKER_MISSING);
-            scan.setFilter(filter);
-            scan.setCaching(messages.getScannerCaching() * 2);
-            scan.setMaxVersions(1);
-            scanner = messages.getScanner(scan);
-            Result result;
-            Long lastUnseen = null;
-            byte[] row = null;
-            while ((result = scanner.next()) != null) {
-                row = result.getRow();
-            }
-            if (row != null) {
-                lastUnseen = Long.MAX_VALUE - Bytes.toLong(row, 16, 8);
+            mailboxes = tablePool.getTable(MAILBOXES_TABLE);
+            /* the unseen uids are the qualifiers of their column family, sorted ascending,
+             * so the first column is the first unseen message
+             */
+            Get get = new Get(mailbox.getMailboxId().toBytes());
+            get.addFamily(MAILBOX_UNSEEN_CF);
+            get.setFilter(new ColumnPaginationFilter(1, 0));
+            get.setMaxVersions(1);
+            Result result = mailboxes.get(get);
+            if (result.isEmpty()) {
+                return null;
             }
-            return lastUnseen;
+            return Bytes.toLong(result.getFamilyMap(MAILBOX_UNSEEN_CF).firstKey());
         } catch (IOException e) {
             throw new MailboxException("Search of first unseen message failed in mailbox " + mailbox, e);
         } finally {
-            scanner.close();
-            if (messages != null) {
+            if (mailboxes != null) {
                 try {
-                    messages.close();
+                    mailboxes.close();
                 } catch (IOException ex) {
-                    throw new MailboxException("Error closing table " + messages, ex);
+                    throw new MailboxException("Error closing table " + mailboxes, ex);
                 }
             }
         }
@@ -434,40 +434,29 @@ public class HBaseMessageMapper extends NonTransactionalMapper implements Messag
 
     @Override
     public List<Long> findRecentMessageUidsInMailbox(Mailbox<HBaseId> mailbox) throws MailboxException {
-        /** TODO: improve performance by implementing a last seen and last recent value per mailbox.
-         * maybe one more call to HBase is less expensive than iterating throgh all rows.
-         */
-        HTable messages = null;
-        ResultScanner scanner = null;
+        HTableInterface mailboxes = null;
         try {
-            messages = new HTable(conf, MESSAGES_TABLE);
-            /* Limit the number of entries scanned to just the mails in this mailbox */
-            Scan scan = new Scan(messageRowKey(mailbox.getMailboxId(), Long.MAX_VALUE),
-                    messageRowKey(mailbox.getMailboxId(), 0));
-            // we add the column, if it exists, the message is recent, else it is not
-            scan.addColumn(MESSAGES_META_CF, FLAGS_RECENT);
-            SingleColumnValueFilter filter = new SingleColumnValueFilter(MESSAGES_META_CF, FLAGS_RECENT, CompareOp.EQUAL, MARKER_PRESENT);
-            scan.setFilter(filter);
-            scan.setCaching(messages.getScannerCaching() * 2);
-            scan.setMaxVersions(1);
-
-            scanner = messages.getScanner(scan);
-            Result result;
+            mailboxes = tablePool.getTable(MAILBOXES_TABLE);
+            Get get = new Get(mailbox.getMailboxId().toBytes());
+            get.addFamily(MAILBOX_RECENT_CF);
+            get.setMaxVersions(1);
+            Result result = mailboxes.get(get);
             List<Long> uids = new ArrayList<Long>();
-            while ((result = scanner.next()) != null) {
-                uids.add(Long.MAX_VALUE - Bytes.toLong(result.getRow(), 16, 8));
+            if (!result.isEmpty()) {
+                // qualifiers are sorted, so are the uids
+                for (byte[] uid : result.getFamilyMap(MAILBOX_RECENT_CF).keySet()) {
+                    uids.add(Bytes.toLong(uid));
+                }
             }
-            Collections.reverse(uids);
             return uids;
         } catch (IOException e) {
             throw new MailboxException("Search of recent messages failed in mailbox " + mailbox, e);
         } finally {
-            scanner.close();
-            if (messages != null) {
+            if (mailboxes != null) {
                 try {
-                    messages.close();
+                    mailboxes.close();
                 } catch (IOException ex) {
-                    throw new MailboxException("Error closing table " + messages, ex);
+                    throw new MailboxException("Error closing table " + mailboxes, ex);
                 }
             }
         }
@@ -495,42 +484,50 @@ public class HBaseMessageMapper extends NonTransactionalMapper implements Messag
      */
     @Override
     public Iterator<UpdatedFlags> updateFlags(final Mailbox<HBaseId> mailbox, FlagsUpdateCalculator flagsUpdateCalculator, MessageRange set) throws MailboxException {
-
+        long start = statistics.start();
         final List<UpdatedFlags> updatedFlags = new ArrayList<UpdatedFlags>();
         Iterator<Message<HBaseId>> messagesFound = findInMailbox(mailbox, set, FetchType.Metadata, -1);
 
-        HTable messages = null;
+        HTableInterface messages = null;
+        HTableInterface mailboxes = null;
+        List<Put> puts = new ArrayList<Put>();
+        HBaseMailboxCounters counters = new HBaseMailboxCounters(mailbox.getMailboxId());
+        // all messages changed by this command share the same mod-sequence
         long modSeq = -1;
-        if (messagesFound.hasNext() == false) {
-            // if a mailbox does not support mod-sequences the provider may be null
-            if (modSeqProvider != null) {
-                modSeq = modSeqProvider.nextModSeq(mailboxSession, mailbox);
-            }
-        }
 
         try {
-            messages = new HTable(conf, MESSAGES_TABLE);
             while (messagesFound.hasNext()) {
-                Put put = null;
                 final Message<HBaseId> member = messagesFound.next();
                 Flags originalFlags = member.createFlags();
                 member.setFlags(flagsUpdateCalculator.buildNewFlags(originalFlags));
                 Flags newFlags = member.createFlags();
-                put = flagsToPut(member, newFlags);
                 if (UpdatedFlags.flagsChanged(originalFlags, newFlags)) {
+                    // if a mailbox does not support mod-sequences the provider may be null
+                    if (modSeq == -1 && modSeqProvider != null) {
+                        modSeq = modSeqProvider.nextModSeq(mailboxSession, mailbox);
+                    }
+                    member.setModSeq(modSeq);
                     // increase the mod-seq as we changed the flags
+                    Put put = flagsToPut(member, newFlags);
                     put.add(MESSAGES_META_CF, MESSAGE_MODSEQ, Bytes.toBytes(modSeq));
-                    // update put not to include the allready existing flags
-                    messages.put(put);
-                    messages.flushCommits();
+                    puts.add(put);
+                    counters.flagsChanged(member.getUid(), originalFlags, newFlags);
                 }
 
                 UpdatedFlags uFlags = new UpdatedFlags(member.getUid(), member.getModSeq(), originalFlags, newFlags);
                 updatedFlags.add(uFlags);
             }
+            if (!puts.isEmpty()) {
+                // write all changed messages at once
+                messages = tablePool.getTable(MESSAGES_TABLE);
+                messages.put(puts);
+                mailboxes = tablePool.getTable(MAILBOXES_TABLE);
+                counters.apply(mailboxes);
+            }
         } catch (IOException e) {
             throw new MailboxException("Error setting flags for messages in " + mailbox, e);
         } finally {
+            statistics.record(Operation.UPDATE_FLAGS, start);
             if (messages != null) {
                 try {
                     messages.close();
@@ -538,6 +535,13 @@ public class HBaseMessageMapper extends NonTransactionalMapper implements Messag
                     throw new MailboxException("Error setting flags for messages in " + mailbox, e);
                 }
             }
+            if (mailboxes != null) {
+                try {
+                    mailboxes.close();
+                } catch (IOException e) {
+                    throw new MailboxException("Error setting flags for messages in " + mailbox, e);
+                }
+            }
         }
 
         return updatedFlags.iterator();
@@ -555,11 +559,58 @@ public class HBaseMessageMapper extends NonTransactionalMapper implements Messag
             modSeq = modSeqProvider.nextModSeq(mailboxSession, mailbox);
         }
         //TODO: check if creating a HBase message is the right thing to do
-        HBaseMessage message = new HBaseMessage(conf,
+        HBaseMessage message = new HBaseMessage(tablePool,
                 mailbox.getMailboxId(), uid, modSeq, original);
         return save(mailbox, message);
     }
 
+    /*
+     * (non-Javadoc)
+     * @see org.apache.james.mailbox.store.mail.MessageMapper#copy(org.apache.james.mailbox.store.mail.model.Mailbox, java.util.List)
+     */
+    @Override
+    public List<MessageMetaData> copy(Mailbox<HBaseId> mailbox, List<Message<HBaseId>> originals) throws MailboxException {
+        List<MessageMetaData> metaData = new ArrayList<MessageMetaData>(originals.size());
+        if (originals.isEmpty()) {
+            return metaData;
+        }
+        long start = statistics.start();
+        HTableInterface messages = null;
+        HTableInterface mailboxes = null;
+        try {
+            long uid = uidProvider.nextUids(mailboxSession, mailbox, originals.size());
+            long modSeq = -1;
+            if (modSeqProvider != null) {
+                modSeq = modSeqProvider.nextModSeqs(mailboxSession, mailbox, originals.size());
+            }
+            List<Put> puts = new ArrayList<Put>(originals.size());
+            HBaseMailboxCounters counters = new HBaseMailboxCounters(mailbox.getMailboxId());
+            for (Message<HBaseId> original : originals) {
+                HBaseMessage message = new HBaseMessage(tablePool, mailbox.getMailboxId(), uid++, modSeq, original);
+                saveContent(message);
+                puts.add(metadataToPut(message));
+                metaData.add(new SimpleMessageMetaData(message));
+                counters.added(message.getUid(), message.createFlags());
+                if (modSeqProvider != null) {
+                    modSeq++;
+                }
+            }
+            /* the metadata of all copies is written at once, after their content, and the
+             * mailbox counters are updated once for the whole command
+             */
+            messages = tablePool.getTable(MESSAGES_TABLE);
+            messages.put(puts);
+            mailboxes = tablePool.getTable(MAILBOXES_TABLE);
+            counters.apply(mailboxes);
+            return metaData;
+        } catch (IOException ex) {
+            throw new MailboxException("Error copying messages to " + mailbox, ex);
+        } finally {
+            statistics.record(Operation.COPY_MESSAGES, start);
+            IOUtils.cleanup(null, messages, mailboxes);
+        }
+    }
+
     /*
      * (non-Javadoc)
      * @see org.apache.james.mailbox.store.mail.MessageMapper#copy(org.apache.james.mailbox.store.mail.model.Mailbox, org.apache.james.mailbox.store.mail.model.Message)
@@ -597,43 +648,27 @@ public class HBaseMessageMapper extends NonTransactionalMapper implements Messag
      * @throws MailboxException
      */
     protected MessageMetaData save(Mailbox<HBaseId> mailbox, Message<HBaseId> message) throws MailboxException {
-        HTable messages = null;
-        HTable mailboxes = null;
-        BufferedInputStream in = null;
-        ChunkOutputStream out = null;
+        long start = statistics.start();
+        HTableInterface messages = null;
+        HTableInterface mailboxes = null;
         try {
             //TODO: update the mailbox information about messages
-            messages = new HTable(conf, MESSAGES_TABLE);
-            mailboxes = new HTable(conf, MAILBOXES_TABLE);
+            messages = tablePool.getTable(MESSAGES_TABLE);
+            mailboxes = tablePool.getTable(MAILBOXES_TABLE);
+            // save the content first, the message is only found once its metadata is written
+            saveContent(message);
             //save the message metadata
             Put put = metadataToPut(message);
             messages.put(put);
-            //save the message content
-            //TODO: current implementation is crude.
-
-            int b;
-            out = new ChunkOutputStream(conf,
-                    MESSAGES_TABLE, MESSAGE_DATA_BODY_CF, messageRowKey(message), MAX_COLUMN_SIZE);
-            in = new BufferedInputStream(message.getBodyContent());
-            while ((b = in.read()) != -1) {
-                out.write(b);
-            }
-            in.close();
-            out.close();
-            out = new ChunkOutputStream(conf,
-                    MESSAGES_TABLE, MESSAGE_DATA_HEADERS_CF, messageRowKey(message), MAX_COLUMN_SIZE);
-            in = new BufferedInputStream(message.getHeaderContent());
-            while ((b = in.read()) != -1) {
-                out.write(b);
-            }
-            in.close();
-            out.close();
-            // increase the message count for the current mailbox
-            mailboxes.incrementColumnValue(mailbox.getMailboxId().toBytes(), MAILBOX_CF, MAILBOX_MESSAGE_COUNT, 1);
+            // update the message counters of the current mailbox
+            HBaseMailboxCounters counters = new HBaseMailboxCounters(mailbox.getMailboxId());
+            counters.added(message.getUid(), message.createFlags());
+            counters.apply(mailboxes);
             return new SimpleMessageMetaData(message);
         } catch (IOException ex) {
-            throw new MailboxException("Error setting flags for messages in " + mailbox, ex);
+            throw new MailboxException("Save of message " + message.getUid() + " failed in mailbox " + mailbox, ex);
         } finally {
+            statistics.record(Operation.SAVE_MESSAGE, start);
             if (messages != null) {
                 try {
                     messages.close();
@@ -648,112 +683,93 @@ public class HBaseMessageMapper extends NonTransactionalMapper implements Messag
                     throw new MailboxException("Error closing table " + mailboxes, ex);
                 }
             }
-            if (in != null) {
-                try {
-                    in.close();
-                } catch (IOException ex) {
-                    throw new MailboxException("Error closing Inputtream", ex);
-                }
-            }
-            if (out != null) {
-                try {
-                    out.close();
-                } catch (IOException ex) {
-                    throw new MailboxException("Error closing OutputStream", ex);
-                }
-            }
+        }
+    }
+
+    /**
+     * Write the body and the headers of the {@link Message} to the content column families
+     *
+     * @param message
+     * @throws IOException
+     */
+    private void saveContent(Message<HBaseId> message) throws IOException {
+        InputStream in = null;
+        ChunkOutputStream out = null;
+        try {
+            out = new ChunkOutputStream(tablePool,
+                    MESSAGES_TABLE, MESSAGE_DATA_BODY_CF, messageRowKey(message), MAX_COLUMN_SIZE);
+            in = message.getBodyContent();
+            IOUtils.copyBytes(in, out, COPY_BUFFER_SIZE, false);
+            in.close();
+            out.close();
+            out = new ChunkOutputStream(tablePool,
+                    MESSAGES_TABLE, MESSAGE_DATA_HEADERS_CF, messageRowKey(message), MAX_COLUMN_SIZE);
+            in = message.getHeaderContent();
+            IOUtils.copyBytes(in, out, COPY_BUFFER_SIZE, false);
+            in.close();
+            out.close();
+        } finally {
+            IOUtils.cleanup(null, in, out);
         }
     }
 
     private void deleteDeletedMessagesInMailboxWithUID(Mailbox<HBaseId> mailbox, long uid) throws IOException {
-        //TODO: do I have to check if the message is flagged for delete here?
-        HTable messages = new HTable(conf, MESSAGES_TABLE);
-        HTable mailboxes = new HTable(conf, MAILBOXES_TABLE);
-        Delete delete = new Delete(messageRowKey(mailbox.getMailboxId(), uid));
-        messages.delete(delete);
-        mailboxes.incrementColumnValue(mailbox.getMailboxId().toBytes(), MAILBOX_CF, MAILBOX_MESSAGE_COUNT, -1);
-        mailboxes.incrementColumnValue(mailbox.getMailboxId().toBytes(), MAILBOX_CF, MAILBOX_HIGHEST_MODSEQ, 1);
-        mailboxes.close();
-        messages.close();
+        deleteDeletedMessages(mailbox, new Scan(messageRowKey(mailbox.getMailboxId(), uid), messageRowKey(mailbox.getMailboxId(), uid - 1)));
     }
 
     private void deleteDeletedMessagesInMailboxBetweenUIDs(Mailbox<HBaseId> mailbox, long fromUid, long toUid) throws IOException {
-        HTable messages = new HTable(conf, MESSAGES_TABLE);
-        HTable mailboxes = new HTable(conf, MAILBOXES_TABLE);
-        List<Delete> deletes = new ArrayList<Delete>();
-        /*TODO: check if Between should be inclusive or exclusive regarding limits.
-         * HBase scan operaion are exclusive to the upper bound when providing stop row key.
-         */
-        Scan scan = new Scan(messageRowKey(mailbox.getMailboxId(), fromUid), messageRowKey(mailbox.getMailboxId(), toUid));
-        scan.addColumn(MESSAGES_META_CF, FLAGS_DELETED);
-        SingleColumnValueFilter filter = new SingleColumnValueFilter(MESSAGES_META_CF, FLAGS_DELETED, CompareOp.EQUAL, MARKER_PRESENT);
-        scan.setFilter(filter);
-        scan.setMaxVersions(1);
-        ResultScanner scanner = messages.getScanner(scan);
-        Result result;
-        while ((result = scanner.next()) != null) {
-            deletes.add(new Delete(result.getRow()));
-        }
-        long totalDeletes = deletes.size();
-        scanner.close();
-        messages.delete(deletes);
-        mailboxes.incrementColumnValue(mailbox.getMailboxId().toBytes(), MAILBOX_CF, MAILBOX_MESSAGE_COUNT, -(totalDeletes - deletes.size()));
-        mailboxes.incrementColumnValue(mailbox.getMailboxId().toBytes(), MAILBOX_CF, MAILBOX_HIGHEST_MODSEQ, 1);
-        mailboxes.close();
-        messages.close();
+        // uids are stored in reverse order, the stop row is exclusive
+        deleteDeletedMessages(mailbox, new Scan(messageRowKey(mailbox.getMailboxId(), toUid), messageRowKey(mailbox.getMailboxId(), fromUid - 1)));
     }
 
     private void deleteDeletedMessagesInMailboxAfterUID(Mailbox<HBaseId> mailbox, long fromUid) throws IOException {
-        HTable messages = new HTable(conf, MESSAGES_TABLE);
-        HTable mailboxes = new HTable(conf, MAILBOXES_TABLE);
-        List<Delete> deletes = new ArrayList<Delete>();
-        /*TODO: check if Between should be inclusive or exclusive regarding limits.
-         * HBase scan operaion are exclusive to the upper bound when providing stop row key.
-         */
-        Scan scan = new Scan(messageRowKey(mailbox.getMailboxId(), fromUid));
-        scan.addColumn(MESSAGES_META_CF, FLAGS_DELETED);
-        SingleColumnValueFilter filter = new SingleColumnValueFilter(MESSAGES_META_CF, FLAGS_DELETED, CompareOp.EQUAL, MARKER_PRESENT);
-        scan.setFilter(filter);
-        scan.setMaxVersions(1);
-        ResultScanner scanner = messages.getScanner(scan);
-        Result result;
-        while ((result = scanner.next()) != null) {
-            deletes.add(new Delete(result.getRow()));
-        }
-        long totalDeletes = deletes.size();
-        scanner.close();
-        messages.delete(deletes);
-        mailboxes.incrementColumnValue(mailbox.getMailboxId().toBytes(), MAILBOX_CF, MAILBOX_MESSAGE_COUNT, -(totalDeletes - deletes.size()));
-        mailboxes.incrementColumnValue(mailbox.getMailboxId().toBytes(), MAILBOX_CF, MAILBOX_HIGHEST_MODSEQ, 1);
-        mailboxes.close();
-        messages.close();
+        deleteDeletedMessages(mailbox, new Scan(messageRowKey(mailbox.getMailboxId(), Long.MAX_VALUE), messageRowKey(mailbox.getMailboxId(), fromUid - 1)));
     }
 
     private void deleteDeletedMessagesInMailbox(Mailbox<HBaseId> mailbox) throws IOException {
-        HTable messages = new HTable(conf, MESSAGES_TABLE);
-        HTable mailboxes = new HTable(conf, MAILBOXES_TABLE);
-        List<Delete> deletes = new ArrayList<Delete>();
-        /*TODO: check if Between should be inclusive or exclusive regarding limits.
-         * HBase scan operaion are exclusive to the upper bound when providing stop row key.
-         */
-        Scan scan = new Scan(customMessageRowKey(mailbox.getMailboxId(), 0L),
-                new PrefixFilter(mailbox.getMailboxId().toBytes()));
-        scan.addColumn(MESSAGES_META_CF, FLAGS_DELETED);
-        SingleColumnValueFilter filter = new SingleColumnValueFilter(MESSAGES_META_CF, FLAGS_DELETED, CompareOp.EQUAL, MARKER_PRESENT);
-        scan.setFilter(filter);
-        scan.setMaxVersions(1);
-        ResultScanner scanner = messages.getScanner(scan);
-        Result result;
-        while ((result = scanner.next()) != null) {
-            deletes.add(new Delete(result.getRow()));
+        deleteDeletedMessages(mailbox, new Scan(customMessageRowKey(mailbox.getMailboxId(), 0L),
+                new PrefixFilter(mailbox.getMailboxId().toBytes())));
+    }
+
+    /**
+     * Delete the messages flagged for deletion which are returned by the scan. All
+     * rows are deleted with one batch and the mailbox counters are updated once.
+     */
+    private void deleteDeletedMessages(Mailbox<HBaseId> mailbox, Scan scan) throws IOException {
+        HTableInterface messages = tablePool.getTable(MESSAGES_TABLE);
+        HTableInterface mailboxes = tablePool.getTable(MAILBOXES_TABLE);
+        ResultScanner scanner = null;
+        try {
+            List<Delete> deletes = new ArrayList<Delete>();
+            Map<Long, Flags> deletedFlags = new HashMap<Long, Flags>();
+            scan.addColumn(MESSAGES_META_CF, FLAGS_DELETED);
+            scan.addColumn(MESSAGES_META_CF, FLAGS_SEEN);
+            scan.addColumn(MESSAGES_META_CF, FLAGS_RECENT);
+            SingleColumnValueFilter filter = new SingleColumnValueFilter(MESSAGES_META_CF, FLAGS_DELETED, CompareOp.EQUAL, MARKER_PRESENT);
+            filter.setFilterIfMissing(true);
+            scan.setFilter(filter);
+            scan.setCaching(tablePool.getScannerCaching() * 2);
+            scan.setMaxVersions(1);
+            scanner = messages.getScanner(scan);
+            Result result;
+            while ((result = scanner.next()) != null) {
+                deletes.add(new Delete(result.getRow()));
+                deletedFlags.put(Long.MAX_VALUE - Bytes.toLong(result.getRow(), 16, 8), HBaseMailboxCounters.seenAndRecentFlags(result));
+            }
+            // the deletes which succeeded are removed from the list
+            messages.delete(deletes);
+            for (Delete failed : deletes) {
+                deletedFlags.remove(Long.MAX_VALUE - Bytes.toLong(failed.getRow(), 16, 8));
+            }
+            HBaseMailboxCounters counters = new HBaseMailboxCounters(mailbox.getMailboxId());
+            for (Map.Entry<Long, Flags> deleted : deletedFlags.entrySet()) {
+                counters.removed(deleted.getKey(), deleted.getValue());
+            }
+            counters.incrementHighestModSeq();
+            counters.apply(mailboxes);
+        } finally {
+            IOUtils.cleanup(null, scanner, mailboxes, messages);
         }
-        long totalDeletes = deletes.size();
-        scanner.close();
-        messages.delete(deletes);
-        mailboxes.incrementColumnValue(mailbox.getMailboxId().toBytes(), MAILBOX_CF, MAILBOX_MESSAGE_COUNT, -(totalDeletes - deletes.size()));
-        mailboxes.incrementColumnValue(mailbox.getMailboxId().toBytes(), MAILBOX_CF, MAILBOX_HIGHEST_MODSEQ, 1);
-        mailboxes.close();
-        messages.close();
     }
 
     private Map<Long, MessageMetaData> createMetaData(List<Message<HBaseId>> uids) {
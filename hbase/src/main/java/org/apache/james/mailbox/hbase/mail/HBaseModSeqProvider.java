@@ -24,14 +24,14 @@ import static org.apache.james.mailbox.hbase.HBaseNames.MAILBOX_HIGHEST_MODSEQ;
 
 import java.io.IOException;
 
-import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hbase.client.Get;
-import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.HTableInterface;
 import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.apache.james.mailbox.MailboxSession;
 import org.apache.james.mailbox.exception.MailboxException;
 import org.apache.james.mailbox.hbase.HBaseId;
+import org.apache.james.mailbox.hbase.HBaseTablePool;
 import org.apache.james.mailbox.store.mail.ModSeqProvider;
 import org.apache.james.mailbox.store.mail.model.Mailbox;
 /**
@@ -40,18 +40,18 @@ import org.apache.james.mailbox.store.mail.model.Mailbox;
  */
 public class HBaseModSeqProvider implements ModSeqProvider<HBaseId> {
 
-    /** Link to the HBase Configuration object and specific mailbox names */
-    private final Configuration conf;
+    /** Pool of the table handles of the HBase cluster */
+    private final HBaseTablePool tablePool;
 
-    public HBaseModSeqProvider(Configuration conf) {
-        this.conf = conf;
+    public HBaseModSeqProvider(HBaseTablePool tablePool) {
+        this.tablePool = tablePool;
     }
 
     @Override
     public long highestModSeq(MailboxSession session, Mailbox<HBaseId> mailbox) throws MailboxException {
-        HTable mailboxes = null;
+        HTableInterface mailboxes = null;
         try {
-            mailboxes = new HTable(conf, MAILBOXES_TABLE);
+            mailboxes = tablePool.getTable(MAILBOXES_TABLE);
             Get get = new Get(mailbox.getMailboxId().toBytes());
             get.addColumn(MAILBOX_CF, MAILBOX_HIGHEST_MODSEQ);
             get.setMaxVersions(1);
@@ -77,11 +77,16 @@ public class HBaseModSeqProvider implements ModSeqProvider<HBaseId> {
 
     @Override
     public long nextModSeq(MailboxSession session, Mailbox<HBaseId> mailbox) throws MailboxException {
-        HTable mailboxes = null;
+        return nextModSeqs(session, mailbox, 1);
+    }
+
+    @Override
+    public long nextModSeqs(MailboxSession session, Mailbox<HBaseId> mailbox, int count) throws MailboxException {
+        HTableInterface mailboxes = null;
         try {
-            mailboxes = new HTable(conf, MAILBOXES_TABLE);
-            long newValue = mailboxes.incrementColumnValue(mailbox.getMailboxId().toBytes(), MAILBOX_CF, MAILBOX_HIGHEST_MODSEQ, 1);
-            return newValue;
+            mailboxes = tablePool.getTable(MAILBOXES_TABLE);
+            long newValue = mailboxes.incrementColumnValue(mailbox.getMailboxId().toBytes(), MAILBOX_CF, MAILBOX_HIGHEST_MODSEQ, count);
+            return newValue - count + 1;
         } catch (IOException e) {
             throw new MailboxException("lastUid", e);
         } finally {
@@ -24,14 +24,14 @@ import static org.apache.james.mailbox.hbase.HBaseNames.MAILBOX_LASTUID;
 
 import java.io.IOException;
 
-import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hbase.client.Get;
-import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.HTableInterface;
 import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.apache.james.mailbox.MailboxSession;
 import org.apache.james.mailbox.exception.MailboxException;
 import org.apache.james.mailbox.hbase.HBaseId;
+import org.apache.james.mailbox.hbase.HBaseTablePool;
 import org.apache.james.mailbox.store.mail.UidProvider;
 import org.apache.james.mailbox.store.mail.model.Mailbox;
 /**
@@ -40,11 +40,11 @@ import org.apache.james.mailbox.store.mail.model.Mailbox;
  */
 public class HBaseUidProvider implements UidProvider<HBaseId> {
 
-    /** Link to the HBase Configuration object and specific mailbox names */
-    private final Configuration conf;
+    /** Pool of the table handles of the HBase cluster */
+    private final HBaseTablePool tablePool;
 
-    public HBaseUidProvider(Configuration conf) {
-        this.conf = conf;
+    public HBaseUidProvider(HBaseTablePool tablePool) {
+        this.tablePool = tablePool;
     }
 
     /**
@@ -56,9 +56,9 @@ public class HBaseUidProvider implements UidProvider<HBaseId> {
      */
     @Override
     public long lastUid(MailboxSession session, Mailbox<HBaseId> mailbox) throws MailboxException {
-        HTable mailboxes = null;
+        HTableInterface mailboxes = null;
         try {
-            mailboxes = new HTable(conf, MAILBOXES_TABLE);
+            mailboxes = tablePool.getTable(MAILBOXES_TABLE);
             Get get = new Get(mailbox.getMailboxId().toBytes());
             get.addColumn(MAILBOX_CF, MAILBOX_LASTUID);
             get.setMaxVersions(1);
@@ -92,12 +92,25 @@ public class HBaseUidProvider implements UidProvider<HBaseId> {
      */
     @Override
     public long nextUid(MailboxSession session, Mailbox<HBaseId> mailbox) throws MailboxException {
-        HTable mailboxes = null;
+        return nextUids(session, mailbox, 1);
+    }
+
+    /**
+     * Reserves count uids with a single HTable.incrementColumnValue(row, family, qualifier, amount).
+     * 
+     * @param session the mailbox session
+     * @param mailbox the mailbox for which we are reserving uids.
+     * @param count the number of uids to reserve
+     * @return the first reserved uid.
+     * @throws MailboxException 
+     */
+    @Override
+    public long nextUids(MailboxSession session, Mailbox<HBaseId> mailbox, int count) throws MailboxException {
+        HTableInterface mailboxes = null;
         try {
-            mailboxes = new HTable(conf, MAILBOXES_TABLE);
-            long newValue = mailboxes.incrementColumnValue(mailbox.getMailboxId().toBytes(), MAILBOX_CF, MAILBOX_LASTUID, 1);
-            mailboxes.close();
-            return newValue;
+            mailboxes = tablePool.getTable(MAILBOXES_TABLE);
+            long newValue = mailboxes.incrementColumnValue(mailbox.getMailboxId().toBytes(), MAILBOX_CF, MAILBOX_LASTUID, count);
+            return newValue - count + 1;
         } catch (IOException e) {
             throw new MailboxException("lastUid", e);
         } finally {
@@ -46,6 +46,7 @@ public final class HBaseClusterSingleton {
     private static HBaseClusterSingleton cluster = null;
     private MiniHBaseCluster hbaseCluster;
     private Configuration conf;
+    private HBaseTablePool tablePool;
 
     /**
      * Builds a MiniCluster instance.
@@ -98,6 +99,7 @@ public final class HBaseClusterSingleton {
             LOG.info("After active and ready.");
 //            ensureTables();
             conf = hbaseCluster.getConfiguration();
+            tablePool = new HBaseTablePool(conf);
         } catch (Exception ex) {
             throw new RuntimeException("Minicluster not starting.");
         } finally {
@@ -126,6 +128,14 @@ public final class HBaseClusterSingleton {
         return conf;
     }
 
+    /**
+     * Return the pool of table handles shared by the tests for the running MiniCluster.
+     * @return
+     */
+    public HBaseTablePool getTablePool() {
+        return tablePool;
+    }
+
     /**
      * Creates a table with the specified column families.
      * @param tableName the table name
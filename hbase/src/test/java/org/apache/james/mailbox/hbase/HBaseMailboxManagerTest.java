@@ -41,6 +41,7 @@ import org.slf4j.LoggerFactory;
 public class HBaseMailboxManagerTest extends AbstractMailboxManagerTest {
 
     private static final HBaseClusterSingleton CLUSTER = HBaseClusterSingleton.build();
+    private HBaseMailboxSessionMapperFactory mapperFactory;
 
     /**
      * Setup the mailboxManager.
@@ -55,7 +56,7 @@ public class HBaseMailboxManagerTest extends AbstractMailboxManagerTest {
     }
 
     private void ensureTables() throws IOException {
-        CLUSTER.ensureTable(MAILBOXES_TABLE, new byte[][]{MAILBOX_CF});
+        CLUSTER.ensureTable(MAILBOXES_TABLE, new byte[][]{MAILBOX_CF, MAILBOX_UNSEEN_CF, MAILBOX_RECENT_CF});
         CLUSTER.ensureTable(MESSAGES_TABLE,
                 new byte[][]{MESSAGES_META_CF, MESSAGE_DATA_HEADERS_CF, MESSAGE_DATA_BODY_CF});
         CLUSTER.ensureTable(SUBSCRIPTIONS_TABLE, new byte[][]{SUBSCRIPTION_CF});
@@ -78,6 +79,7 @@ public class HBaseMailboxManagerTest extends AbstractMailboxManagerTest {
         deleteAllMailboxes();
         MailboxSession session = getMailboxManager().createSystemSession("test", LoggerFactory.getLogger("Test"));
         session.close();
+        mapperFactory.close();
     }
 
     /* (non-Javadoc)i deve
@@ -85,9 +87,10 @@ public class HBaseMailboxManagerTest extends AbstractMailboxManagerTest {
      */
     @Override
     protected void createMailboxManager() throws MailboxException {
-        final HBaseUidProvider uidProvider = new HBaseUidProvider(CLUSTER.getConf());
-        final HBaseModSeqProvider modSeqProvider = new HBaseModSeqProvider(CLUSTER.getConf());
-        final HBaseMailboxSessionMapperFactory mapperFactory = new HBaseMailboxSessionMapperFactory(CLUSTER.getConf(),
+        final HBaseTablePool tablePool = new HBaseTablePool(CLUSTER.getConf());
+        final HBaseUidProvider uidProvider = new HBaseUidProvider(tablePool);
+        final HBaseModSeqProvider modSeqProvider = new HBaseModSeqProvider(tablePool);
+        mapperFactory = new HBaseMailboxSessionMapperFactory(CLUSTER.getConf(), tablePool,
                 uidProvider, modSeqProvider);
 
         final MailboxACLResolver aclResolver = new UnionMailboxACLResolver();
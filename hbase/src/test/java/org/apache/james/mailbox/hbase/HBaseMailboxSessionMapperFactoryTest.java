@@ -53,7 +53,7 @@ public class HBaseMailboxSessionMapperFactoryTest {
     }
 
     private void ensureTables() throws IOException {
-        CLUSTER.ensureTable(MAILBOXES_TABLE, new byte[][]{MAILBOX_CF});
+        CLUSTER.ensureTable(MAILBOXES_TABLE, new byte[][]{MAILBOX_CF, MAILBOX_UNSEEN_CF, MAILBOX_RECENT_CF});
         CLUSTER.ensureTable(MESSAGES_TABLE,
                 new byte[][]{MESSAGES_META_CF, MESSAGE_DATA_HEADERS_CF, MESSAGE_DATA_BODY_CF});
         CLUSTER.ensureTable(SUBSCRIPTIONS_TABLE, new byte[][]{SUBSCRIPTION_CF});
@@ -114,7 +114,7 @@ public class HBaseMailboxSessionMapperFactoryTest {
     @Test
     public void testGetModSeqProvider() {
         LOG.info("getModSeqProvider");
-        ModSeqProvider<HBaseId> expResult = new HBaseModSeqProvider(conf);
+        ModSeqProvider<HBaseId> expResult = new HBaseModSeqProvider(CLUSTER.getTablePool());
         HBaseMailboxSessionMapperFactory instance = new HBaseMailboxSessionMapperFactory(conf, null, expResult);
         ModSeqProvider<HBaseId> result = instance.getModSeqProvider();
         assertEquals(expResult, result);
@@ -126,7 +126,7 @@ public class HBaseMailboxSessionMapperFactoryTest {
     @Test
     public void testGetUidProvider() {
         LOG.info("getUidProvider");
-        UidProvider<HBaseId> expResult = new HBaseUidProvider(conf);
+        UidProvider<HBaseId> expResult = new HBaseUidProvider(CLUSTER.getTablePool());
         HBaseMailboxSessionMapperFactory instance = new HBaseMailboxSessionMapperFactory(conf, expResult, null);
         UidProvider<HBaseId> result = instance.getUidProvider();
         assertEquals(expResult, result);
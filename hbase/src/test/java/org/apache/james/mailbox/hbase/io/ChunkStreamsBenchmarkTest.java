@@ -0,0 +1,91 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailbox.hbase.io;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.james.mailbox.hbase.HBaseClusterSingleton;
+import org.apache.james.mailbox.hbase.HBaseNames;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Measures the throughput of {@link ChunkOutputStream} and {@link ChunkInputStream}
+ * on the HBase MiniCluster with a 25 MB attachment.
+ * It only runs with the <code>benchmark</code> profile.
+ */
+public class ChunkStreamsBenchmarkTest {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ChunkStreamsBenchmarkTest.class);
+    private static final HBaseClusterSingleton CLUSTER = HBaseClusterSingleton.build();
+    private static final String TABLE = "chunks";
+    private static final String CF = "data";
+    private static final int ATTACHMENT_SIZE = 25 * 1024 * 1024;
+
+    @Before
+    public void setUp() throws IOException {
+        CLUSTER.ensureTable(TABLE, CF);
+    }
+
+    @After
+    public void tearDown() {
+        CLUSTER.clearTable(TABLE);
+    }
+
+    @Test
+    public void attachmentShouldBeStreamed() throws IOException {
+        byte[] content = new byte[ATTACHMENT_SIZE];
+        new Random(ATTACHMENT_SIZE).nextBytes(content);
+
+        long start = System.nanoTime();
+        ChunkOutputStream out = new ChunkOutputStream(CLUSTER.getTablePool(), Bytes.toBytes(TABLE), Bytes.toBytes(CF), Bytes.toBytes("attachment"), HBaseNames.MAX_COLUMN_SIZE);
+        out.write(content);
+        out.close();
+        long written = System.nanoTime();
+        byte[] read = readFully(new ChunkInputStream(CLUSTER.getTablePool(), TABLE, CF, Bytes.toBytes("attachment")));
+        long end = System.nanoTime();
+
+        assertArrayEquals(content, read);
+        LOG.info("Wrote 25 MB at {} MB/s, read them at {} MB/s", throughput(written - start), throughput(end - written));
+    }
+
+    private byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+    private long throughput(long nanos) {
+        return ATTACHMENT_SIZE * 1000000000L / Math.max(nanos, 1) / (1024 * 1024);
+    }
+}
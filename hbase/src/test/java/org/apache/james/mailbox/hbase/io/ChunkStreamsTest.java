@@ -0,0 +1,121 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailbox.hbase.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.james.mailbox.hbase.HBaseClusterSingleton;
+import org.apache.james.mailbox.hbase.HBaseTablePool;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Round trips of {@link ChunkOutputStream} and {@link ChunkInputStream} on the
+ * HBase MiniCluster. The throughput is measured by {@link ChunkStreamsBenchmarkTest}.
+ */
+public class ChunkStreamsTest {
+
+    private static final HBaseClusterSingleton CLUSTER = HBaseClusterSingleton.build();
+    private static final String TABLE = "chunks";
+    private static final String CF = "data";
+
+    @Before
+    public void setUp() throws IOException {
+        CLUSTER.ensureTable(TABLE, CF);
+    }
+
+    @After
+    public void tearDown() {
+        CLUSTER.clearTable(TABLE);
+    }
+
+    @Test
+    public void contentShouldBeReadAsWritten() throws IOException {
+        byte[] content = content(10 * 1000 + 7);
+
+        write("row", content, 100);
+
+        assertArrayEquals(content, readFully(new ChunkInputStream(CLUSTER.getTablePool(), TABLE, CF, Bytes.toBytes("row")), 33));
+    }
+
+    @Test
+    public void singleByteReadsShouldReturnUnsignedBytes() throws IOException {
+        byte[] content = new byte[] { (byte) 0xff, 0, (byte) 0x80 };
+        write("row", content, 100);
+
+        InputStream in = new ChunkInputStream(CLUSTER.getTablePool(), TABLE, CF, Bytes.toBytes("row"));
+        assertEquals(0xff, in.read());
+        assertEquals(0, in.read());
+        assertEquals(0x80, in.read());
+        assertEquals(-1, in.read());
+        in.close();
+    }
+
+    @Test
+    public void emptyContentShouldBeRead() throws IOException {
+        write("row", new byte[0], 100);
+
+        assertEquals(-1, new ChunkInputStream(CLUSTER.getTablePool(), TABLE, CF, Bytes.toBytes("row")).read());
+    }
+
+    @Test
+    public void contentShouldBeReadWhenPrefetchIsRejected() throws IOException {
+        byte[] content = content(10 * 1000 + 7);
+        write("row", content, 100);
+
+        HBaseTablePool tablePool = new HBaseTablePool(CLUSTER.getConf(), 1, 1);
+        try {
+            tablePool.getPrefetcher().shutdown();
+            assertArrayEquals(content, readFully(new ChunkInputStream(tablePool, TABLE, CF, Bytes.toBytes("row")), 33));
+        } finally {
+            tablePool.close();
+        }
+    }
+
+    private void write(String row, byte[] content, int chunkSize) throws IOException {
+        ChunkOutputStream out = new ChunkOutputStream(CLUSTER.getTablePool(), Bytes.toBytes(TABLE), Bytes.toBytes(CF), Bytes.toBytes(row), chunkSize);
+        out.write(content);
+        out.close();
+    }
+
+    private byte[] readFully(InputStream in, int bufferSize) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[bufferSize];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+    private byte[] content(int size) {
+        byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+        return content;
+    }
+}
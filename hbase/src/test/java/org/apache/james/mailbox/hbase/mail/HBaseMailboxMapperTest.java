@@ -18,6 +18,8 @@ package org.apache.james.mailbox.hbase.mail;
 import static org.apache.james.mailbox.hbase.HBaseNames.MAILBOXES;
 import static org.apache.james.mailbox.hbase.HBaseNames.MAILBOXES_TABLE;
 import static org.apache.james.mailbox.hbase.HBaseNames.MAILBOX_CF;
+import static org.apache.james.mailbox.hbase.HBaseNames.MAILBOX_RECENT_CF;
+import static org.apache.james.mailbox.hbase.HBaseNames.MAILBOX_UNSEEN_CF;
 import static org.apache.james.mailbox.hbase.HBaseNames.MESSAGES;
 import static org.apache.james.mailbox.hbase.HBaseNames.MESSAGES_META_CF;
 import static org.apache.james.mailbox.hbase.HBaseNames.MESSAGES_TABLE;
@@ -48,6 +50,7 @@ import org.apache.james.mailbox.exception.MailboxException;
 import org.apache.james.mailbox.exception.MailboxNotFoundException;
 import org.apache.james.mailbox.hbase.HBaseClusterSingleton;
 import org.apache.james.mailbox.hbase.HBaseId;
+import org.apache.james.mailbox.hbase.HBaseMapperStatistics;
 import org.apache.james.mailbox.hbase.io.ChunkInputStream;
 import org.apache.james.mailbox.hbase.io.ChunkOutputStream;
 import org.apache.james.mailbox.hbase.mail.model.HBaseMailbox;
@@ -82,14 +85,14 @@ public class HBaseMailboxMapperTest {
         clearTables();
         conf = CLUSTER.getConf();
         fillMailboxList();
-        mapper = new HBaseMailboxMapper(conf);
+        mapper = new HBaseMailboxMapper(CLUSTER.getTablePool(), new HBaseMapperStatistics());
         for (HBaseMailbox mailbox : mailboxList) {
             mapper.save(mailbox);
         }
     }
 
     private void ensureTables() throws IOException {
-        CLUSTER.ensureTable(MAILBOXES_TABLE, new byte[][]{MAILBOX_CF});
+        CLUSTER.ensureTable(MAILBOXES_TABLE, new byte[][]{MAILBOX_CF, MAILBOX_UNSEEN_CF, MAILBOX_RECENT_CF});
         CLUSTER.ensureTable(MESSAGES_TABLE,
                 new byte[][]{MESSAGES_META_CF, MESSAGE_DATA_HEADERS_CF, MESSAGE_DATA_BODY_CF});
         CLUSTER.ensureTable(SUBSCRIPTIONS_TABLE, new byte[][]{SUBSCRIPTION_CF});
@@ -275,9 +278,9 @@ public class HBaseMailboxMapperTest {
                 + " qui officia deserunt mollit anim id est laborum";
         byte[] data = Bytes.toBytes(original);
         // we make the column size = 10 bytes
-        ChunkOutputStream out = new ChunkOutputStream(conf,
+        ChunkOutputStream out = new ChunkOutputStream(CLUSTER.getTablePool(),
                 MESSAGES_TABLE, MESSAGE_DATA_BODY_CF, Bytes.toBytes("10"), 10);
-        ChunkInputStream in = new ChunkInputStream(conf,
+        ChunkInputStream in = new ChunkInputStream(CLUSTER.getTablePool(),
                 MESSAGES_TABLE, MESSAGE_DATA_BODY_CF, Bytes.toBytes("10"));
         try {
             //create the stream
@@ -325,7 +328,7 @@ public class HBaseMailboxMapperTest {
     private void addMailbox(HBaseMailbox mailbox) throws MailboxException {
         mailboxList.add(mailbox);
         pathsList.add(new MailboxPath(mailbox.getNamespace(), mailbox.getUser(), mailbox.getName()));
-        mapper = new HBaseMailboxMapper(conf);
+        mapper = new HBaseMailboxMapper(CLUSTER.getTablePool(), new HBaseMapperStatistics());
         mapper.save(mailbox);
         LOG.info("Added new mailbox: {} paths: {}", mailboxList.size(), pathsList.size());
     }
@@ -21,6 +21,10 @@ package org.apache.james.mailbox.hbase.mail;
 import static org.apache.james.mailbox.hbase.HBaseNames.MAILBOXES;
 import static org.apache.james.mailbox.hbase.HBaseNames.MAILBOXES_TABLE;
 import static org.apache.james.mailbox.hbase.HBaseNames.MAILBOX_CF;
+import static org.apache.james.mailbox.hbase.HBaseNames.MAILBOX_RECENT_CF;
+import static org.apache.james.mailbox.hbase.HBaseNames.MAILBOX_UNSEEN_CF;
+import static org.apache.james.mailbox.hbase.HBaseNames.MAILBOX_UNSEEN_COUNT;
+import static org.apache.james.mailbox.hbase.HBaseNames.MARKER_PRESENT;
 import static org.apache.james.mailbox.hbase.HBaseNames.MESSAGES;
 import static org.apache.james.mailbox.hbase.HBaseNames.MESSAGES_META_CF;
 import static org.apache.james.mailbox.hbase.HBaseNames.MESSAGES_TABLE;
@@ -42,10 +46,15 @@ import javax.mail.internet.SharedInputStream;
 import javax.mail.util.SharedByteArrayInputStream;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.apache.james.mailbox.MailboxSession;
 import org.apache.james.mailbox.hbase.HBaseClusterSingleton;
 import org.apache.james.mailbox.hbase.HBaseId;
+import org.apache.james.mailbox.hbase.HBaseMapperStatistics;
+import org.apache.james.mailbox.hbase.HBaseMapperStatistics.Operation;
 import org.apache.james.mailbox.hbase.mail.model.HBaseMailbox;
 import org.apache.james.mailbox.mock.MockMailboxSession;
 import org.apache.james.mailbox.model.MailboxPath;
@@ -69,6 +78,7 @@ public class HBaseMessageMapperTest {
     private static HBaseUidProvider uidProvider;
     private static HBaseModSeqProvider modSeqProvider;
     private static HBaseMessageMapper messageMapper;
+    private static HBaseMapperStatistics statistics;
     private static final List<MailboxPath> MBOX_PATHS = new ArrayList<MailboxPath>();
     private static final List<Mailbox<HBaseId>> MBOXES = new ArrayList<Mailbox<HBaseId>>();
     private static final List<Message<HBaseId>> MESSAGE_NO = new ArrayList<Message<HBaseId>>();
@@ -95,18 +105,20 @@ public class HBaseMessageMapperTest {
         ensureTables();
         clearTables();
         conf = CLUSTER.getConf();
-        uidProvider = new HBaseUidProvider(conf);
-        modSeqProvider = new HBaseModSeqProvider(conf);
+        uidProvider = new HBaseUidProvider(CLUSTER.getTablePool());
+        modSeqProvider = new HBaseModSeqProvider(CLUSTER.getTablePool());
         generateTestData();
         final MailboxSession session = new MockMailboxSession("ieugen");
-        messageMapper = new HBaseMessageMapper(session, uidProvider, modSeqProvider, conf);
+        statistics = new HBaseMapperStatistics();
+        messageMapper = new HBaseMessageMapper(session, uidProvider, modSeqProvider,
+                CLUSTER.getTablePool(), statistics);
         for (int i = 0; i < MESSAGE_NO.size(); i++) {
             messageMapper.add(MBOXES.get(1), MESSAGE_NO.get(i));
         }
     }
 
     private void ensureTables() throws IOException {
-        CLUSTER.ensureTable(MAILBOXES_TABLE, new byte[][]{MAILBOX_CF});
+        CLUSTER.ensureTable(MAILBOXES_TABLE, new byte[][]{MAILBOX_CF, MAILBOX_UNSEEN_CF, MAILBOX_RECENT_CF});
         CLUSTER.ensureTable(MESSAGES_TABLE,
                 new byte[][]{MESSAGES_META_CF, MESSAGE_DATA_HEADERS_CF, MESSAGE_DATA_BODY_CF});
         CLUSTER.ensureTable(SUBSCRIPTIONS_TABLE, new byte[][]{SUBSCRIPTION_CF});
@@ -168,6 +180,8 @@ public class HBaseMessageMapperTest {
         testAdd();
         testGetLastUid();
         testGetHighestModSeq();
+        testCopy();
+        testCountersRepair();
     }
 
     /**
@@ -235,4 +249,43 @@ public class HBaseMessageMapperTest {
         long highestModSeq = messageMapper.getHighestModSeq(MBOXES.get(1));
         assertEquals(MESSAGE_NO.size(), highestModSeq);
     }
+
+    /**
+     * Test of copy method, of class HBaseMessageMapper.
+     */
+    private void testCopy() throws Exception {
+        LOG.info("copy");
+        messageMapper.copy(MBOXES.get(2), new ArrayList<Message<HBaseId>>(MESSAGE_NO));
+        assertEquals(MESSAGE_NO.size(), messageMapper.countMessagesInMailbox(MBOXES.get(2)));
+        assertEquals(MESSAGE_NO.size(), messageMapper.getLastUid(MBOXES.get(2)));
+        assertEquals(1, statistics.getCalls(Operation.COPY_MESSAGES));
+        assertEquals(MESSAGE_NO.size(), statistics.getCalls(Operation.SAVE_MESSAGE));
+    }
+
+    /**
+     * Test of repair method, of class HBaseMailboxCountersRepair.
+     */
+    private void testCountersRepair() throws Exception {
+        LOG.info("countersRepair");
+        HTable mailboxes = new HTable(conf, MAILBOXES_TABLE);
+        try {
+            Put put = new Put(MBOXES.get(1).getMailboxId().toBytes());
+            put.add(MAILBOX_CF, MAILBOX_UNSEEN_COUNT, Bytes.toBytes(42L));
+            put.add(MAILBOX_UNSEEN_CF, Bytes.toBytes(1000L), MARKER_PRESENT);
+            mailboxes.put(put);
+            Delete delete = new Delete(MBOXES.get(1).getMailboxId().toBytes());
+            delete.deleteColumns(MAILBOX_UNSEEN_CF, Bytes.toBytes(1L));
+            mailboxes.delete(delete);
+        } finally {
+            mailboxes.close();
+        }
+        assertEquals(42, messageMapper.countUnseenMessagesInMailbox(MBOXES.get(1)));
+
+        long count = new HBaseMailboxCountersRepair(CLUSTER.getTablePool()).repair(MBOXES.get(1).getMailboxId());
+
+        assertEquals(MESSAGE_NO.size(), count);
+        assertEquals(MESSAGE_NO.size() - 1, messageMapper.countUnseenMessagesInMailbox(MBOXES.get(1)));
+        assertEquals(Long.valueOf(1), messageMapper.findFirstUnseenMessageUid(MBOXES.get(1)));
+        assertEquals(MESSAGE_NO.size() - 1, messageMapper.findRecentMessageUidsInMailbox(MBOXES.get(1)).size());
+    }
 }
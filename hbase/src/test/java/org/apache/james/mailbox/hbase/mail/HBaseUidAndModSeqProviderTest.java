@@ -21,8 +21,8 @@ package org.apache.james.mailbox.hbase.mail;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
-import org.apache.hadoop.conf.Configuration;
 import org.apache.james.mailbox.hbase.HBaseClusterSingleton;
+import org.apache.james.mailbox.hbase.HBaseMapperStatistics;
 import static org.apache.james.mailbox.hbase.HBaseNames.*;
 import org.apache.james.mailbox.hbase.mail.model.HBaseMailbox;
 import org.apache.james.mailbox.model.MailboxPath;
@@ -40,7 +40,6 @@ public class HBaseUidAndModSeqProviderTest {
 
     private static final Logger LOG = LoggerFactory.getLogger(HBaseUidAndModSeqProviderTest.class);
     private static final HBaseClusterSingleton CLUSTER = HBaseClusterSingleton.build();
-    private static Configuration conf;
     private static HBaseUidProvider uidProvider;
     private static HBaseModSeqProvider modSeqProvider;
     private static HBaseMailboxMapper mapper;
@@ -55,10 +54,9 @@ public class HBaseUidAndModSeqProviderTest {
     public void setUpClass() throws Exception {
         ensureTables();
         clearTables();
-        conf = CLUSTER.getConf();
-        uidProvider = new HBaseUidProvider(conf);
-        modSeqProvider = new HBaseModSeqProvider(conf);
-        mapper = new HBaseMailboxMapper(conf);
+        uidProvider = new HBaseUidProvider(CLUSTER.getTablePool());
+        modSeqProvider = new HBaseModSeqProvider(CLUSTER.getTablePool());
+        mapper = new HBaseMailboxMapper(CLUSTER.getTablePool(), new HBaseMapperStatistics());
         fillMailboxList();
         for (HBaseMailbox mailbox : mailboxList) {
             mapper.save(mailbox);
@@ -66,7 +64,7 @@ public class HBaseUidAndModSeqProviderTest {
     }
 
     private void ensureTables() throws IOException {
-        CLUSTER.ensureTable(MAILBOXES_TABLE, new byte[][]{MAILBOX_CF});
+        CLUSTER.ensureTable(MAILBOXES_TABLE, new byte[][]{MAILBOX_CF, MAILBOX_UNSEEN_CF, MAILBOX_RECENT_CF});
         CLUSTER.ensureTable(MESSAGES_TABLE,
                 new byte[][]{MESSAGES_META_CF, MESSAGE_DATA_HEADERS_CF, MESSAGE_DATA_BODY_CF});
         CLUSTER.ensureTable(SUBSCRIPTIONS_TABLE, new byte[][]{SUBSCRIPTION_CF});
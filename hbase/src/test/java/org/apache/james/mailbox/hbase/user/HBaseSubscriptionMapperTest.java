@@ -66,12 +66,12 @@ public class HBaseSubscriptionMapperTest {
         clearTables();
         conf = CLUSTER.getConf();
         mapperFactory = new HBaseMailboxSessionMapperFactory(conf, null, null);
-        mapper = new HBaseSubscriptionMapper(conf);
+        mapper = new HBaseSubscriptionMapper(CLUSTER.getTablePool());
         fillSubscriptionList();
     }
 
     private void ensureTables() throws IOException {
-        CLUSTER.ensureTable(MAILBOXES_TABLE, new byte[][]{MAILBOX_CF});
+        CLUSTER.ensureTable(MAILBOXES_TABLE, new byte[][]{MAILBOX_CF, MAILBOX_UNSEEN_CF, MAILBOX_RECENT_CF});
         CLUSTER.ensureTable(MESSAGES_TABLE,
                 new byte[][]{MESSAGES_META_CF, MESSAGE_DATA_HEADERS_CF, MESSAGE_DATA_BODY_CF});
         CLUSTER.ensureTable(SUBSCRIPTIONS_TABLE, new byte[][]{SUBSCRIPTION_CF});
@@ -18,11 +18,13 @@
  ****************************************************************/
 package org.apache.james.mailbox.jcr;
 
+import org.apache.james.mailbox.MailboxPathLocker;
 import org.apache.james.mailbox.MailboxSession;
 import org.apache.james.mailbox.exception.MailboxException;
 import org.apache.james.mailbox.exception.SubscriptionException;
 import org.apache.james.mailbox.jcr.mail.JCRMailboxMapper;
 import org.apache.james.mailbox.jcr.mail.JCRMessageMapper;
+import org.apache.james.mailbox.jcr.mail.model.JCRMessageContentCache;
 import org.apache.james.mailbox.jcr.user.JCRSubscriptionMapper;
 import org.apache.james.mailbox.store.MailboxSessionMapperFactory;
 import org.apache.james.mailbox.store.mail.MailboxMapper;
@@ -44,18 +46,44 @@ public class JCRMailboxSessionMapperFactory extends MailboxSessionMapperFactory<
     private int messageScaling;
     private UidProvider<JCRId> uidProvider;
     private ModSeqProvider<JCRId> modSeqProvider;
+    private final MailboxPathLocker locker;
+    private JCRMessageContentCache contentCache = new JCRMessageContentCache();
 
     public JCRMailboxSessionMapperFactory(final MailboxSessionJCRRepository repository, final UidProvider<JCRId> uidProvider, final ModSeqProvider<JCRId> modSeqProvider) {
         this(repository, uidProvider, modSeqProvider, DEFAULT_SCALING, JCRMessageMapper.MESSAGE_SCALE_DAY);
     }
 
     public JCRMailboxSessionMapperFactory(final MailboxSessionJCRRepository repository,  final UidProvider<JCRId> uidProvider, final ModSeqProvider<JCRId> modSeqProvider, final int scaling, final int messageScaling) {
+        this(repository, JCRMessageMapper.DEFAULT_COUNTER_LOCKER, uidProvider, modSeqProvider, scaling, messageScaling);
+    }
+
+    public JCRMailboxSessionMapperFactory(final MailboxSessionJCRRepository repository, final MailboxPathLocker locker, final UidProvider<JCRId> uidProvider, final ModSeqProvider<JCRId> modSeqProvider) {
+        this(repository, locker, uidProvider, modSeqProvider, DEFAULT_SCALING, JCRMessageMapper.MESSAGE_SCALE_DAY);
+    }
+
+    /**
+     * @param locker
+     *            {@link MailboxPathLocker} which is held while the message
+     *            counters of a mailbox are updated
+     */
+    public JCRMailboxSessionMapperFactory(final MailboxSessionJCRRepository repository, final MailboxPathLocker locker, final UidProvider<JCRId> uidProvider, final ModSeqProvider<JCRId> modSeqProvider, final int scaling, final int messageScaling) {
         this.repository = repository;
+        this.locker = locker;
         this.scaling = scaling;
         this.messageScaling = messageScaling;
         this.uidProvider= uidProvider;
         this.modSeqProvider = modSeqProvider;
     }
+
+    /**
+     * Set the cache for the content of small messages which is shared by all
+     * {@link JCRMessageMapper}s, null disables the caching
+     * 
+     * @param contentCache
+     */
+    public void setContentCache(JCRMessageContentCache contentCache) {
+        this.contentCache = contentCache;
+    }
     
     @Override
     public MailboxMapper<JCRId> createMailboxMapper(MailboxSession session) throws MailboxException {
@@ -65,7 +93,7 @@ public class JCRMailboxSessionMapperFactory extends MailboxSessionMapperFactory<
 
     @Override
     public MessageMapper<JCRId> createMessageMapper(MailboxSession session) throws MailboxException {
-        JCRMessageMapper messageMapper = new JCRMessageMapper(repository, session, uidProvider, modSeqProvider,  messageScaling);
+        JCRMessageMapper messageMapper = new JCRMessageMapper(repository, session, locker, uidProvider, modSeqProvider, messageScaling, contentCache);
         return messageMapper;
     }
 
@@ -18,10 +18,24 @@
  ****************************************************************/
 package org.apache.james.mailbox.jcr;
 
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import javax.jcr.Repository;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 import javax.jcr.SimpleCredentials;
+import javax.jcr.query.Query;
 
 import org.apache.james.mailbox.MailboxSession;
 import org.apache.james.mailbox.MailboxSession.User;
@@ -29,18 +43,57 @@ import org.apache.james.mailbox.MailboxSession.User;
 /**
  * Manage JCR {@link Session}. It use the username and the password of 
  * the logged in IMAP user to obtain a JCR {@link Session} from the {@link Repository}
+ * 
+ * If enabled with {@link #setMaxIdleSessionsPerUser(int)}, {@link Session}s are not logged
+ * out at the end of a request but kept in a pool per credentials, so that the next request
+ * with the same username and password does not need to login again. Each {@link Session}
+ * keeps the queries prepared by {@link #getQuery(MailboxSession, String, long)}.
  *
  */
 public class MailboxSessionJCRRepository {
     private final static String JCR_SESSION = "JCR_SESSION";
+    private final static String JCR_SESSION_CREDENTIALS = "JCR_SESSION_CREDENTIALS";
+    private final static Charset UTF_8 = Charset.forName("UTF-8");
+    public final static int DEFAULT_MAX_IDLE_SESSIONS_PER_USER = 0;
+    public final static int DEFAULT_MAX_IDLE_SESSIONS = 128;
+    
     private Repository repository;
     private String workspace;
+    private int maxIdleSessionsPerUser = DEFAULT_MAX_IDLE_SESSIONS_PER_USER;
+    private int maxIdleSessions = DEFAULT_MAX_IDLE_SESSIONS;
+    private final ConcurrentMap<String, BlockingQueue<Session>> idleSessions = new ConcurrentHashMap<String, BlockingQueue<Session>>();
+    private final AtomicInteger idleSessionCount = new AtomicInteger();
+    private final Map<Session, Map<String, Query>> queries = Collections.synchronizedMap(new IdentityHashMap<Session, Map<String, Query>>());
     
     public MailboxSessionJCRRepository(Repository repository ,String workspace) {
         this.repository = repository;
         this.workspace = workspace;
     }
 
+    /**
+     * Set the maximal number of idle {@link Session}s kept per credentials, 0 disables the
+     * pooling, which is the default.
+     * 
+     * A pooled {@link Session} is only handed out to a {@link MailboxSession} with the same
+     * username and password as the one it was logged in with, so the {@link Repository} has
+     * accepted these credentials before. Changes of the credentials in the {@link Repository}
+     * are not seen by the pooled {@link Session}s until they are disposed.
+     * 
+     * @param maxIdleSessionsPerUser
+     */
+    public void setMaxIdleSessionsPerUser(int maxIdleSessionsPerUser) {
+        this.maxIdleSessionsPerUser = maxIdleSessionsPerUser;
+    }
+
+    /**
+     * Set the maximal number of idle {@link Session}s kept over all users
+     * 
+     * @param maxIdleSessions
+     */
+    public void setMaxIdleSessions(int maxIdleSessions) {
+        this.maxIdleSessions = maxIdleSessions;
+    }
+
     /**
      * If no {@link Session} exists for the {@link MailboxSession} one will get created.
      * If one exists it just return the existing.
@@ -66,15 +119,137 @@ public class MailboxSessionJCRRepository {
             char[] pass) throws RepositoryException {
         Session session = (Session) mSession.getAttributes().get(JCR_SESSION);
         if (session == null) {
-            session = repository.login(new SimpleCredentials(username, pass),
-                    workspace);
+            String credentials = null;
+            if (maxIdleSessionsPerUser > 0) {
+                credentials = credentialsKey(username, pass);
+                session = borrowIdleSession(credentials);
+            }
+            if (session == null) {
+                session = repository.login(new SimpleCredentials(username, pass),
+                        workspace);
+            }
             mSession.getAttributes().put(JCR_SESSION, session);
+            if (credentials != null) {
+                mSession.getAttributes().put(JCR_SESSION_CREDENTIALS, credentials);
+            }
         }
         return session;
     }
+
+    /**
+     * Return the key of the pool for the given credentials. The password is only kept as
+     * a digest.
+     */
+    private static String credentialsKey(String username, char[] pass) throws RepositoryException {
+        StringBuilder key = new StringBuilder(String.valueOf(username)).append('\u0000');
+        if (pass == null) {
+            return key.append('-').toString();
+        }
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (byte b : digest.digest(new String(pass).getBytes(UTF_8))) {
+                key.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+        } catch (NoSuchAlgorithmException e) {
+            throw new RepositoryException("Unable to digest the credentials", e);
+        }
+        return key.toString();
+    }
+
+    /**
+     * Return the query for the given JCR-SQL2 statement. The query is prepared once
+     * per {@link Session} and reused, so all its variables need to be bound before
+     * it gets executed.
+     * 
+     * @param mSession
+     * @param statement JCR-SQL2 statement
+     * @param limit the maximal number of results, or a negative value for no limit
+     * @return query
+     * @throws RepositoryException
+     */
+    public Query getQuery(MailboxSession mSession, String statement, long limit) throws RepositoryException {
+        Session session = login(mSession);
+        Map<String, Query> sessionQueries = queries.get(session);
+        if (sessionQueries == null) {
+            sessionQueries = new HashMap<String, Query>();
+            queries.put(session, sessionQueries);
+        }
+        String key = limit > 0 ? limit + ":" + statement : statement;
+        Query query = sessionQueries.get(key);
+        if (query == null) {
+            query = session.getWorkspace().getQueryManager().createQuery(statement, Query.JCR_SQL2);
+            if (limit > 0) {
+                query.setLimit(limit);
+            }
+            sessionQueries.put(key, query);
+        }
+        return query;
+    }
+
+    private Session borrowIdleSession(String credentials) {
+        BlockingQueue<Session> idle = idleSessions.get(credentials);
+        if (idle != null) {
+            Session session;
+            while ((session = idle.poll()) != null) {
+                idleSessionCount.decrementAndGet();
+                if (session.isLive()) {
+                    return session;
+                }
+                queries.remove(session);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Put the {@link Session} back in the pool of the credentials it was logged in with, after
+     * discarding its pending changes
+     * 
+     * @return true if the session was added to the pool
+     */
+    private boolean releaseSession(Session session, String key) {
+        if (maxIdleSessionsPerUser <= 0 || key == null) {
+            return false;
+        }
+        try {
+            session.refresh(false);
+        } catch (RepositoryException e) {
+            return false;
+        }
+        BlockingQueue<Session> idle = idleSessions.get(key);
+        if (idle == null) {
+            idle = new ArrayBlockingQueue<Session>(maxIdleSessionsPerUser);
+            BlockingQueue<Session> existing = idleSessions.putIfAbsent(key, idle);
+            if (existing != null) {
+                idle = existing;
+            }
+        }
+        if (idleSessionCount.incrementAndGet() > maxIdleSessions || !idle.offer(session)) {
+            idleSessionCount.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Logout all pooled {@link Session}s
+     */
+    public void dispose() {
+        for (BlockingQueue<Session> idle : idleSessions.values()) {
+            Session session;
+            while ((session = idle.poll()) != null) {
+                idleSessionCount.decrementAndGet();
+                queries.remove(session);
+                if (session.isLive()) {
+                    session.logout();
+                }
+            }
+        }
+    }
     
     /**
-     * Logout the JCR {@link Session} if one exists
+     * Release the JCR {@link Session} if one exists. It is put back in the pool,
+     * or logged out if the pool is full.
      * 
      * @param mSession
      */
@@ -82,10 +257,13 @@ public class MailboxSessionJCRRepository {
         if (mSession == null) return;
         
         Session session = (Session) mSession.getAttributes().remove(JCR_SESSION);
+        String credentials = (String) mSession.getAttributes().remove(JCR_SESSION_CREDENTIALS);
 
         if (session != null) {
-            if (session.isLive())
+            if (session.isLive() && !releaseSession(session, credentials)) {
+                queries.remove(session);
                 session.logout();
+            }
             session = null;
         }
     }
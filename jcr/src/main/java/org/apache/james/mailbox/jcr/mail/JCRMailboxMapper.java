@@ -173,6 +173,9 @@ public class JCRMailboxMapper extends AbstractJCRScalingMapper implements Mailbo
                 }
                 node = JcrUtils.getOrAddNode(node, Text.escapeIllegalJcrChars(jcrMailbox.getName()), "nt:unstructured");
                 node.addMixin("jamesMailbox:mailbox");
+                // a new mailbox is empty, so its counters can be maintained from the start
+                node.setProperty(JCRMailbox.MESSAGE_COUNT_PROPERTY, 0L);
+                node.setProperty(JCRMailbox.UNSEEN_COUNT_PROPERTY, 0L);
 
                 jcrMailbox.merge(node);
                 
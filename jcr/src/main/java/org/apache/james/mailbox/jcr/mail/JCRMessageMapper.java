@@ -22,32 +22,39 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 
 import javax.jcr.ItemNotFoundException;
 import javax.jcr.Node;
 import javax.jcr.NodeIterator;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
+import javax.jcr.ValueFactory;
 import javax.jcr.query.Query;
-import javax.jcr.query.QueryManager;
-import javax.jcr.query.QueryResult;
+import javax.mail.Flags;
 
 import org.apache.jackrabbit.commons.JcrUtils;
-import org.apache.jackrabbit.util.ISO9075;
+import org.apache.james.mailbox.MailboxPathLocker;
+import org.apache.james.mailbox.MailboxPathLocker.LockAwareExecution;
 import org.apache.james.mailbox.MailboxSession;
 import org.apache.james.mailbox.exception.MailboxException;
 import org.apache.james.mailbox.jcr.JCRId;
 import org.apache.james.mailbox.jcr.JCRImapConstants;
 import org.apache.james.mailbox.jcr.MailboxSessionJCRRepository;
+import org.apache.james.mailbox.jcr.mail.model.JCRMailbox;
 import org.apache.james.mailbox.jcr.mail.model.JCRMessage;
+import org.apache.james.mailbox.jcr.mail.model.JCRMessageContentCache;
 import org.apache.james.mailbox.model.MessageMetaData;
 import org.apache.james.mailbox.model.MessageRange;
 import org.apache.james.mailbox.model.MessageRange.Type;
+import org.apache.james.mailbox.model.UpdatedFlags;
+import org.apache.james.mailbox.store.FlagsUpdateCalculator;
+import org.apache.james.mailbox.store.JVMMailboxPathLocker;
 import org.apache.james.mailbox.store.SimpleMessageMetaData;
+import org.apache.james.mailbox.store.StoreMailboxPath;
 import org.apache.james.mailbox.store.mail.AbstractMessageMapper;
 import org.apache.james.mailbox.store.mail.MessageMapper;
 import org.apache.james.mailbox.store.mail.ModSeqProvider;
@@ -59,11 +66,33 @@ import org.apache.james.mailbox.store.mail.model.Message;
  * JCR implementation of a {@link MessageMapper}. The implementation store each
  * message as a seperate child node under the mailbox
  * 
+ * Messages are looked up with JCR-SQL2 queries using bind variables, so they are
+ * prepared only once per JCR {@link Session} (see
+ * {@link MailboxSessionJCRRepository#getQuery(MailboxSession, String, long)}). The
+ * message and unseen counts are kept on the mailbox node and updated on commit.
+ * 
  */
 public class JCRMessageMapper extends AbstractMessageMapper<JCRId> implements JCRImapConstants {
 
-    @SuppressWarnings("deprecation")
-    private static final String XPATH_LANGUAGE = Query.XPATH;
+    private final static String MAILBOX_VARIABLE = "mailbox";
+    private final static String FROM_VARIABLE = "from";
+    private final static String TO_VARIABLE = "to";
+
+    private final static String MESSAGES_IN_MAILBOX = "SELECT * FROM [jamesMailbox:message] AS message WHERE message.["
+            + JCRMessage.MAILBOX_UUID_PROPERTY + "] = $" + MAILBOX_VARIABLE;
+    private final static String AND_UID_FROM = " AND message.[" + JCRMessage.UID_PROPERTY + "] >= $" + FROM_VARIABLE;
+    private final static String AND_UID_TO = " AND message.[" + JCRMessage.UID_PROPERTY + "] <= $" + TO_VARIABLE;
+    private final static String AND_UID = " AND message.[" + JCRMessage.UID_PROPERTY + "] = $" + FROM_VARIABLE;
+    private final static String AND_UNSEEN = " AND message.[" + JCRMessage.SEEN_PROPERTY + "] = CAST('false' AS BOOLEAN)";
+    private final static String AND_RECENT = " AND message.[" + JCRMessage.RECENT_PROPERTY + "] = CAST('true' AS BOOLEAN)";
+    private final static String AND_DELETED = " AND message.[" + JCRMessage.DELETED_PROPERTY + "] = CAST('true' AS BOOLEAN)";
+    private final static String ORDER_BY_UID = " ORDER BY message.[" + JCRMessage.UID_PROPERTY + "]";
+
+    /**
+     * {@link MailboxPathLocker} used to update the counters of the mailboxes if
+     * none is given to the constructor
+     */
+    public final static MailboxPathLocker DEFAULT_COUNTER_LOCKER = new JVMMailboxPathLocker();
 
     /**
      * Store the messages directly in the mailbox: .../mailbox/
@@ -104,6 +133,16 @@ public class JCRMessageMapper extends AbstractMessageMapper<JCRId> implements JC
 
     private final MailboxSessionJCRRepository repository;
 
+    private final JCRMessageContentCache contentCache;
+
+    private final MailboxPathLocker locker;
+
+    /**
+     * The pending changes of the message and unseen count per mailbox uuid,
+     * sorted to lock the mailboxes always in the same order
+     */
+    private final Map<String, CounterDelta> counterDeltas = new TreeMap<String, CounterDelta>();
+
     /**
      * Construct a new {@link JCRMessageMapper} instance
      * 
@@ -123,9 +162,61 @@ public class JCRMessageMapper extends AbstractMessageMapper<JCRId> implements JC
      */
     public JCRMessageMapper(final MailboxSessionJCRRepository repository, MailboxSession mSession,
             UidProvider<JCRId> uidProvider, ModSeqProvider<JCRId> modSeqProvider, int scaleType) {
+        this(repository, mSession, uidProvider, modSeqProvider, scaleType, null);
+    }
+
+    /**
+     * Construct a new {@link JCRMessageMapper} instance
+     * 
+     * @param repository
+     *            {@link MailboxSessionJCRRepository} to use
+     * @param mSession
+     *            {@link MailboxSession} to which the mapper is bound
+     * @param uidProvider
+     *            {@link UidProvider} to use
+     * @param modSeqProvider
+     *            {@link ModSeqProvider} to use
+     * @param scaleType
+     *            message scale type
+     * @param contentCache
+     *            {@link JCRMessageContentCache} shared between the mappers, may
+     *            be null
+     */
+    public JCRMessageMapper(final MailboxSessionJCRRepository repository, MailboxSession mSession,
+            UidProvider<JCRId> uidProvider, ModSeqProvider<JCRId> modSeqProvider, int scaleType,
+            JCRMessageContentCache contentCache) {
+        this(repository, mSession, DEFAULT_COUNTER_LOCKER, uidProvider, modSeqProvider, scaleType, contentCache);
+    }
+
+    /**
+     * Construct a new {@link JCRMessageMapper} instance
+     * 
+     * @param repository
+     *            {@link MailboxSessionJCRRepository} to use
+     * @param mSession
+     *            {@link MailboxSession} to which the mapper is bound
+     * @param locker
+     *            {@link MailboxPathLocker} which is held while the counters of
+     *            a mailbox are counted or updated, it needs to be shared by all
+     *            mappers of the repository
+     * @param uidProvider
+     *            {@link UidProvider} to use
+     * @param modSeqProvider
+     *            {@link ModSeqProvider} to use
+     * @param scaleType
+     *            message scale type
+     * @param contentCache
+     *            {@link JCRMessageContentCache} shared between the mappers, may
+     *            be null
+     */
+    public JCRMessageMapper(final MailboxSessionJCRRepository repository, MailboxSession mSession,
+            MailboxPathLocker locker, UidProvider<JCRId> uidProvider, ModSeqProvider<JCRId> modSeqProvider,
+            int scaleType, JCRMessageContentCache contentCache) {
         super(mSession, uidProvider, modSeqProvider);
         this.repository = repository;
+        this.locker = locker;
         this.scaleType = scaleType;
+        this.contentCache = contentCache;
     }
 
     /**
@@ -170,15 +261,50 @@ public class JCRMessageMapper extends AbstractMessageMapper<JCRId> implements JC
 
     /**
      * Just call save on the underlying JCR Session, because level 1 JCR
-     * implementation does not offer Transactions
+     * implementation does not offer Transactions. The counters of the changed
+     * mailboxes are updated in the same save while their lock is held, so they
+     * can not get out of sync with the messages.
      */
     protected void commit() throws MailboxException {
         try {
-            if (getSession().hasPendingChanges()) {
-                getSession().save();
+            saveLocked(new ArrayList<CounterDelta>(counterDeltas.values()).iterator());
+        } finally {
+            counterDeltas.clear();
+        }
+    }
+
+    /**
+     * Lock the mailboxes of the given deltas one after the other, apply the
+     * deltas to their counters and save the session once all locks are held
+     */
+    private void saveLocked(final Iterator<CounterDelta> deltas) throws MailboxException {
+        if (deltas.hasNext()) {
+            final CounterDelta delta = deltas.next();
+            locker.executeWithLock(mailboxSession, new StoreMailboxPath<JCRId>(delta.mailbox), new LockAwareExecution<Void>() {
+
+                @Override
+                public Void execute() throws MailboxException {
+                    try {
+                        Node mailboxNode = getMailboxNode(getSession(), delta.mailbox.getMailboxId().serialize());
+                        if (mailboxNode != null) {
+                            addToCounter(mailboxNode, JCRMailbox.MESSAGE_COUNT_PROPERTY, delta.messages);
+                            addToCounter(mailboxNode, JCRMailbox.UNSEEN_COUNT_PROPERTY, delta.unseen);
+                        }
+                    } catch (RepositoryException e) {
+                        throw new MailboxException("Unable to update the counters of mailbox " + delta.mailbox, e);
+                    }
+                    saveLocked(deltas);
+                    return null;
+                }
+            }, true);
+        } else {
+            try {
+                if (getSession().hasPendingChanges()) {
+                    getSession().save();
+                }
+            } catch (RepositoryException e) {
+                throw new MailboxException("Unable to commit", e);
             }
-        } catch (RepositoryException e) {
-            throw new MailboxException("Unable to commit", e);
         }
     }
 
@@ -187,6 +313,7 @@ public class JCRMessageMapper extends AbstractMessageMapper<JCRId> implements JC
      * nothing
      */
     protected void rollback() throws MailboxException {
+        counterDeltas.clear();
         try {
             // just refresh session and discard all pending changes
             getSession().refresh(false);
@@ -199,6 +326,7 @@ public class JCRMessageMapper extends AbstractMessageMapper<JCRId> implements JC
      * Logout from open JCR Session
      */
     public void endRequest() {
+        counterDeltas.clear();
         repository.logout(mailboxSession);
     }
 
@@ -211,22 +339,7 @@ public class JCRMessageMapper extends AbstractMessageMapper<JCRId> implements JC
      */
     public long countMessagesInMailbox(Mailbox<JCRId> mailbox) throws MailboxException {
         try {
-            // we use order by because without it count will always be 0 in
-            // jackrabbit
-            String queryString = "/jcr:root" + getMailboxPath(mailbox) + "//element(*,jamesMailbox:message) order by @"
-                    + JCRMessage.UID_PROPERTY;
-            QueryManager manager = getSession().getWorkspace().getQueryManager();
-            QueryResult result = manager.createQuery(queryString, XPATH_LANGUAGE).execute();
-            NodeIterator nodes = result.getNodes();
-            long count = nodes.getSize();
-            if (count == -1) {
-                count = 0;
-                while (nodes.hasNext()) {
-                    nodes.nextNode();
-                    count++;
-                }
-            }
-            return count;
+            return getCounter(mailbox, JCRMailbox.MESSAGE_COUNT_PROPERTY, MESSAGES_IN_MAILBOX);
         } catch (RepositoryException e) {
             throw new MailboxException("Unable to count messages in mailbox " + mailbox, e);
         }
@@ -240,26 +353,8 @@ public class JCRMessageMapper extends AbstractMessageMapper<JCRId> implements JC
      * countUnseenMessagesInMailbox ()
      */
     public long countUnseenMessagesInMailbox(Mailbox<JCRId> mailbox) throws MailboxException {
-
         try {
-            // we use order by because without it count will always be 0 in
-            // jackrabbit
-            String queryString = "/jcr:root" + getMailboxPath(mailbox) + "//element(*,jamesMailbox:message)[@"
-                    + JCRMessage.SEEN_PROPERTY + "='false'] order by @" + JCRMessage.UID_PROPERTY;
-            QueryManager manager = getSession().getWorkspace().getQueryManager();
-            QueryResult result = manager.createQuery(queryString, XPATH_LANGUAGE).execute();
-            NodeIterator nodes = result.getNodes();
-            long count = nodes.getSize();
-
-            if (count == -1) {
-                count = 0;
-                while (nodes.hasNext()) {
-                    nodes.nextNode();
-
-                    count++;
-                }
-            }
-            return count;
+            return getCounter(mailbox, JCRMailbox.UNSEEN_COUNT_PROPERTY, MESSAGES_IN_MAILBOX + AND_UNSEEN);
         } catch (RepositoryException e) {
             throw new MailboxException("Unable to count unseen messages in mailbox " + mailbox, e);
         }
@@ -277,8 +372,12 @@ public class JCRMessageMapper extends AbstractMessageMapper<JCRId> implements JC
         JCRMessage membership = (JCRMessage) message;
         if (membership.isPersistent()) {
             try {
-
+                boolean seen = membership.isSeen();
                 getSession().getNodeByIdentifier(membership.getId()).remove();
+                if (contentCache != null) {
+                    contentCache.remove(membership.getId());
+                }
+                addCounterDeltas(mailbox, -1, seen ? 0 : -1);
             } catch (RepositoryException e) {
                 throw new MailboxException("Unable to delete message " + message + " in mailbox " + mailbox, e);
             }
@@ -338,16 +437,9 @@ public class JCRMessageMapper extends AbstractMessageMapper<JCRId> implements JC
         try {
 
             List<Long> list = new ArrayList<Long>();
-            String queryString = "/jcr:root" + getMailboxPath(mailbox) + "//element(*,jamesMailbox:message)[@"
-                    + JCRMessage.RECENT_PROPERTY + "='true'] order by @" + JCRMessage.UID_PROPERTY;
-
-            QueryManager manager = getSession().getWorkspace().getQueryManager();
-            Query query = manager.createQuery(queryString, XPATH_LANGUAGE);
-            QueryResult result = query.execute();
-
-            NodeIterator iterator = result.getNodes();
+            NodeIterator iterator = executeQuery(mailbox, MESSAGES_IN_MAILBOX + AND_RECENT + ORDER_BY_UID, 0, 0, -1);
             while (iterator.hasNext()) {
-                list.add(new JCRMessage(iterator.nextNode(), mailboxSession.getLog()).getUid());
+                list.add(new JCRMessage(iterator.nextNode(), mailboxSession.getLog(), contentCache).getUid());
             }
             return list;
 
@@ -365,18 +457,9 @@ public class JCRMessageMapper extends AbstractMessageMapper<JCRId> implements JC
      */
     public Long findFirstUnseenMessageUid(Mailbox<JCRId> mailbox) throws MailboxException {
         try {
-            String queryString = "/jcr:root" + getMailboxPath(mailbox) + "//element(*,jamesMailbox:message)[@"
-                    + JCRMessage.SEEN_PROPERTY + "='false'] order by @" + JCRMessage.UID_PROPERTY;
-
-            QueryManager manager = getSession().getWorkspace().getQueryManager();
-
-            Query query = manager.createQuery(queryString, XPATH_LANGUAGE);
-            query.setLimit(1);
-            QueryResult result = query.execute();
-
-            NodeIterator iterator = result.getNodes();
+            NodeIterator iterator = executeQuery(mailbox, MESSAGES_IN_MAILBOX + AND_UNSEEN + ORDER_BY_UID, 0, 0, 1);
             if (iterator.hasNext()) {
-                return new JCRMessage(iterator.nextNode(), mailboxSession.getLog()).getUid();
+                return new JCRMessage(iterator.nextNode(), mailboxSession.getLog(), contentCache).getUid();
             } else {
                 return null;
             }
@@ -432,6 +515,19 @@ public class JCRMessageMapper extends AbstractMessageMapper<JCRId> implements JC
         throw new UnsupportedOperationException("Not implemented - see https://issues.apache.org/jira/browse/IMAP-370");
     }
 
+    /**
+     * @see org.apache.james.mailbox.store.mail.MessageMapper#saveMimeStructure(org.apache.james.mailbox.store.mail.model.Mailbox,
+     *      org.apache.james.mailbox.store.mail.model.Message, byte[])
+     */
+    @Override
+    public void saveMimeStructure(Mailbox<JCRId> mailbox, Message<JCRId> message, byte[] mimeStructure) throws MailboxException {
+        try {
+            ((JCRMessage) message).addMimeStructure(mimeStructure);
+        } catch (RepositoryException e) {
+            throw new MailboxException("Unable to save the MIME structure of message " + message + " in mailbox " + mailbox, e);
+        }
+    }
+
     @Override
     protected MessageMetaData copy(Mailbox<JCRId> mailbox, long uid, long modSeq, Message<JCRId> original)
             throws MailboxException {
@@ -449,7 +545,8 @@ public class JCRMessageMapper extends AbstractMessageMapper<JCRId> implements JC
             // A copy of a message is recent
             // See MAILBOX-85
             node.setProperty(JCRMessage.RECENT_PROPERTY, true);
-            return new SimpleMessageMetaData(new JCRMessage(node, mailboxSession.getLog()));
+            addCounterDeltas(mailbox, 1, original.isSeen() ? 0 : 1);
+            return new SimpleMessageMetaData(new JCRMessage(node, mailboxSession.getLog(), contentCache));
         } catch (RepositoryException e) {
             throw new MailboxException("Unable to copy message " + original + " in mailbox " + mailbox, e);
         }
@@ -521,6 +618,7 @@ public class JCRMessageMapper extends AbstractMessageMapper<JCRId> implements JC
                 } catch (IOException e) {
                     throw new RepositoryException("Unable to merge message in to tree", e);
                 }
+                addCounterDeltas(mailbox, 1, membership.isSeen() ? 0 : 1);
             } else {
                 membership.merge(messageNode);
             }
@@ -532,163 +630,241 @@ public class JCRMessageMapper extends AbstractMessageMapper<JCRId> implements JC
         }
     }
 
-    /**
-     * Return the path to the mailbox. This path is escaped to be able to use it
-     * in xpath queries
+    /*
+     * (non-Javadoc)
      * 
-     * See http://wiki.apache.org/jackrabbit/EncodingAndEscaping
+     * @see
+     * org.apache.james.mailbox.store.mail.AbstractMessageMapper#updateFlags(org.apache.james.mailbox.store.mail.model.Mailbox,
+     * org.apache.james.mailbox.store.FlagsUpdateCalculator,
+     * org.apache.james.mailbox.model.MessageRange)
+     */
+    @Override
+    public Iterator<UpdatedFlags> updateFlags(Mailbox<JCRId> mailbox, FlagsUpdateCalculator flagsUpdateCalculator,
+            MessageRange set) throws MailboxException {
+        List<UpdatedFlags> updatedFlags = new ArrayList<UpdatedFlags>();
+        Iterator<UpdatedFlags> it = super.updateFlags(mailbox, flagsUpdateCalculator, set);
+        long unseenDelta = 0;
+        while (it.hasNext()) {
+            UpdatedFlags flags = it.next();
+            boolean wasSeen = flags.getOldFlags().contains(Flags.Flag.SEEN);
+            boolean isSeen = flags.getNewFlags().contains(Flags.Flag.SEEN);
+            if (wasSeen && !isSeen) {
+                unseenDelta++;
+            } else if (!wasSeen && isSeen) {
+                unseenDelta--;
+            }
+            updatedFlags.add(flags);
+        }
+        addCounterDeltas(mailbox, 0, unseenDelta);
+        return updatedFlags.iterator();
+    }
+
+    /**
+     * Return the value of the given counter property of the mailbox node. If the
+     * property is missing, because the mailbox was created by a former release,
+     * the messages are counted with the given query and the property is
+     * initialized while the mailbox is locked, so no commit can change the
+     * messages between the count and the save.
      * 
      * @param mailbox
-     * @return
-     * @throws ItemNotFoundException
+     * @param property
+     * @param statement
+     * @return count
      * @throws RepositoryException
      */
-    private String getMailboxPath(Mailbox<JCRId> mailbox) throws ItemNotFoundException, RepositoryException {
-        return ISO9075.encodePath(getSession().getNodeByIdentifier(mailbox.getMailboxId().serialize()).getPath());
+    private long getCounter(final Mailbox<JCRId> mailbox, final String property, final String statement) throws RepositoryException, MailboxException {
+        final Session session = getSession();
+        Node mailboxNode = session.getNodeByIdentifier(mailbox.getMailboxId().serialize());
+        if (mailboxNode.hasProperty(property)) {
+            return mailboxNode.getProperty(property).getLong();
+        }
+        // only initialize the counter if this does not save other changes of the session
+        if (session.hasPendingChanges()) {
+            return count(mailbox, statement);
+        }
+        return locker.executeWithLock(mailboxSession, new StoreMailboxPath<JCRId>(mailbox), new LockAwareExecution<Long>() {
+
+            @Override
+            public Long execute() throws MailboxException {
+                try {
+                    Node mailboxNode = session.getNodeByIdentifier(mailbox.getMailboxId().serialize());
+                    if (mailboxNode.hasProperty(property)) {
+                        return mailboxNode.getProperty(property).getLong();
+                    }
+                    long count = count(mailbox, statement);
+                    mailboxNode.setProperty(property, count);
+                    session.save();
+                    return count;
+                } catch (RepositoryException e) {
+                    throw new MailboxException("Unable to initialize " + property + " of mailbox " + mailbox, e);
+                }
+            }
+        }, true);
     }
 
-    private List<Message<JCRId>> findMessagesInMailboxAfterUID(Mailbox<JCRId> mailbox, long uid, int batchSize)
-            throws RepositoryException {
-        List<Message<JCRId>> list = new ArrayList<Message<JCRId>>();
-        String queryString = "/jcr:root" + getMailboxPath(mailbox) + "//element(*,jamesMailbox:message)[@"
-                + JCRMessage.UID_PROPERTY + ">=" + uid + "] order by @" + JCRMessage.UID_PROPERTY;
+    /**
+     * Count the messages of the mailbox again and store the result in its
+     * counters. This repairs counters which got out of sync with the messages,
+     * for example after a restore of the repository. It saves the session so it
+     * must not be called while the mapper has pending changes.
+     * 
+     * @param mailbox
+     * @throws MailboxException
+     */
+    public void recountMessages(final Mailbox<JCRId> mailbox) throws MailboxException {
+        locker.executeWithLock(mailboxSession, new StoreMailboxPath<JCRId>(mailbox), new LockAwareExecution<Void>() {
 
-        QueryManager manager = getSession().getWorkspace().getQueryManager();
-        Query query = manager.createQuery(queryString, XPATH_LANGUAGE);
-        if (batchSize > 0)
-            query.setLimit(batchSize);
-        QueryResult result = query.execute();
+            @Override
+            public Void execute() throws MailboxException {
+                try {
+                    Session session = getSession();
+                    if (session.hasPendingChanges()) {
+                        throw new MailboxException("Unable to recount messages of mailbox " + mailbox + " with pending changes");
+                    }
+                    Node mailboxNode = session.getNodeByIdentifier(mailbox.getMailboxId().serialize());
+                    mailboxNode.setProperty(JCRMailbox.MESSAGE_COUNT_PROPERTY, count(mailbox, MESSAGES_IN_MAILBOX));
+                    mailboxNode.setProperty(JCRMailbox.UNSEEN_COUNT_PROPERTY, count(mailbox, MESSAGES_IN_MAILBOX + AND_UNSEEN));
+                    session.save();
+                    return null;
+                } catch (RepositoryException e) {
+                    throw new MailboxException("Unable to recount messages of mailbox " + mailbox, e);
+                }
+            }
+        }, true);
+    }
 
-        NodeIterator iterator = result.getNodes();
-        while (iterator.hasNext()) {
-            list.add(new JCRMessage(iterator.nextNode(), mailboxSession.getLog()));
+    /**
+     * Count the saved messages which match the given statement
+     */
+    private long count(Mailbox<JCRId> mailbox, String statement) throws RepositoryException {
+        NodeIterator nodes = executeQuery(mailbox, statement, 0, 0, -1);
+        long count = nodes.getSize();
+        if (count == -1) {
+            count = 0;
+            while (nodes.hasNext()) {
+                nodes.nextNode();
+                count++;
+            }
         }
-        return list;
+        return count;
     }
 
-    private List<Message<JCRId>> findMessageInMailboxWithUID(Mailbox<JCRId> mailbox, long uid)
-            throws RepositoryException {
-        List<Message<JCRId>> list = new ArrayList<Message<JCRId>>();
-        String queryString = "/jcr:root" + getMailboxPath(mailbox) + "//element(*,jamesMailbox:message)[@"
-                + JCRMessage.UID_PROPERTY + "=" + uid + "]";
-
-        QueryManager manager = getSession().getWorkspace().getQueryManager();
-        Query query = manager.createQuery(queryString, XPATH_LANGUAGE);
-        query.setLimit(1);
-        QueryResult result = query.execute();
-        NodeIterator iterator = result.getNodes();
-        while (iterator.hasNext()) {
-            list.add(new JCRMessage(iterator.nextNode(), mailboxSession.getLog()));
+    /**
+     * Record a change of the message and unseen count of the given mailbox, which
+     * is saved on the next commit
+     */
+    private void addCounterDeltas(Mailbox<JCRId> mailbox, long messages, long unseen) {
+        if (messages == 0 && unseen == 0) {
+            return;
         }
-        return list;
+        String uuid = mailbox.getMailboxId().serialize();
+        CounterDelta delta = counterDeltas.get(uuid);
+        if (delta == null) {
+            delta = new CounterDelta(mailbox);
+            counterDeltas.put(uuid, delta);
+        }
+        delta.messages += messages;
+        delta.unseen += unseen;
     }
 
-    private List<Message<JCRId>> findMessagesInMailboxBetweenUIDs(Mailbox<JCRId> mailbox, long from, long to,
-            int batchSize) throws RepositoryException {
-        List<Message<JCRId>> list = new ArrayList<Message<JCRId>>();
-        String queryString = "/jcr:root" + getMailboxPath(mailbox) + "//element(*,jamesMailbox:message)[@"
-                + JCRMessage.UID_PROPERTY + ">=" + from + " and @" + JCRMessage.UID_PROPERTY + "<=" + to
-                + "] order by @" + JCRMessage.UID_PROPERTY;
-
-        QueryManager manager = getSession().getWorkspace().getQueryManager();
-        Query query = manager.createQuery(queryString, XPATH_LANGUAGE);
-        if (batchSize > 0)
-            query.setLimit(batchSize);
-        QueryResult result = query.execute();
+    private Node getMailboxNode(Session session, String uuid) throws RepositoryException {
+        try {
+            return session.getNodeByIdentifier(uuid);
+        } catch (ItemNotFoundException e) {
+            // the mailbox was deleted in the meantime
+            return null;
+        }
+    }
 
-        NodeIterator iterator = result.getNodes();
-        while (iterator.hasNext()) {
-            list.add(new JCRMessage(iterator.nextNode(), mailboxSession.getLog()));
+    /**
+     * Add the delta to the counter property, counters which are not present are
+     * left alone as they get counted on the next access
+     */
+    private void addToCounter(Node mailboxNode, String property, long delta) throws RepositoryException {
+        if (delta != 0 && mailboxNode.hasProperty(property)) {
+            mailboxNode.setProperty(property, mailboxNode.getProperty(property).getLong() + delta);
         }
-        return list;
     }
 
-    private List<Message<JCRId>> findMessagesInMailbox(Mailbox<JCRId> mailbox, int batchSize)
+    /**
+     * Execute the cached query for the given statement after binding the
+     * variables used by it
+     * 
+     * @param mailbox
+     * @param statement
+     *            JCR-SQL2 statement which may use the $mailbox, $from and $to
+     *            variables
+     * @param from
+     * @param to
+     * @param limit
+     *            the maximal number of results, or a negative value for no limit
+     * @return nodes
+     * @throws RepositoryException
+     */
+    private NodeIterator executeQuery(Mailbox<JCRId> mailbox, String statement, long from, long to, long limit)
             throws RepositoryException {
-        List<Message<JCRId>> list = new ArrayList<Message<JCRId>>();
-
-        String queryString = "/jcr:root" + getMailboxPath(mailbox) + "//element(*,jamesMailbox:message) order by @"
-                + JCRMessage.UID_PROPERTY;
-        QueryManager manager = getSession().getWorkspace().getQueryManager();
-        Query query = manager.createQuery(queryString, XPATH_LANGUAGE);
-        if (batchSize > 0)
-            query.setLimit(batchSize);
-        QueryResult result = query.execute();
-
-        NodeIterator iterator = result.getNodes();
-        while (iterator.hasNext()) {
-            list.add(new JCRMessage(iterator.nextNode(), mailboxSession.getLog()));
+        Query query = repository.getQuery(mailboxSession, statement, limit);
+        ValueFactory factory = getSession().getValueFactory();
+        for (String variable : query.getBindVariableNames()) {
+            if (MAILBOX_VARIABLE.equals(variable)) {
+                query.bindValue(variable, factory.createValue(mailbox.getMailboxId().serialize()));
+            } else if (FROM_VARIABLE.equals(variable)) {
+                query.bindValue(variable, factory.createValue(from));
+            } else if (TO_VARIABLE.equals(variable)) {
+                query.bindValue(variable, factory.createValue(to));
+            }
         }
-        return list;
+        return query.execute().getNodes();
     }
 
-    private List<Message<JCRId>> findDeletedMessagesInMailboxAfterUID(Mailbox<JCRId> mailbox, long uid)
+    private List<Message<JCRId>> findMessages(Mailbox<JCRId> mailbox, String statement, long from, long to, long limit)
             throws RepositoryException {
         List<Message<JCRId>> list = new ArrayList<Message<JCRId>>();
-        String queryString = "/jcr:root" + getMailboxPath(mailbox) + "//element(*,jamesMailbox:message)[@"
-                + JCRMessage.UID_PROPERTY + ">=" + uid + " and @" + JCRMessage.DELETED_PROPERTY + "='true'] order by @"
-                + JCRMessage.UID_PROPERTY;
-
-        QueryManager manager = getSession().getWorkspace().getQueryManager();
-        QueryResult result = manager.createQuery(queryString, XPATH_LANGUAGE).execute();
-
-        NodeIterator iterator = result.getNodes();
+        NodeIterator iterator = executeQuery(mailbox, statement, from, to, limit);
         while (iterator.hasNext()) {
-            list.add(new JCRMessage(iterator.nextNode(), mailboxSession.getLog()));
+            list.add(new JCRMessage(iterator.nextNode(), mailboxSession.getLog(), contentCache));
         }
         return list;
     }
 
-    private List<Message<JCRId>> findDeletedMessageInMailboxWithUID(Mailbox<JCRId> mailbox, long uid)
+    private List<Message<JCRId>> findMessagesInMailboxAfterUID(Mailbox<JCRId> mailbox, long uid, int batchSize)
             throws RepositoryException {
-        List<Message<JCRId>> list = new ArrayList<Message<JCRId>>();
-        String queryString = "/jcr:root" + getMailboxPath(mailbox) + "//element(*,jamesMailbox:message)[@"
-                + JCRMessage.UID_PROPERTY + "=" + uid + " and @" + JCRMessage.DELETED_PROPERTY + "='true']";
-        QueryManager manager = getSession().getWorkspace().getQueryManager();
-        Query query = manager.createQuery(queryString, XPATH_LANGUAGE);
-        query.setLimit(1);
-        QueryResult result = query.execute();
-
-        NodeIterator iterator = result.getNodes();
-        while (iterator.hasNext()) {
-            JCRMessage member = new JCRMessage(iterator.nextNode(), mailboxSession.getLog());
-            list.add(member);
-        }
-        return list;
+        return findMessages(mailbox, MESSAGES_IN_MAILBOX + AND_UID_FROM + ORDER_BY_UID, uid, 0, batchSize);
     }
 
-    private List<Message<JCRId>> findDeletedMessagesInMailboxBetweenUIDs(Mailbox<JCRId> mailbox, long from, long to)
+    private List<Message<JCRId>> findMessageInMailboxWithUID(Mailbox<JCRId> mailbox, long uid)
             throws RepositoryException {
-        List<Message<JCRId>> list = new ArrayList<Message<JCRId>>();
-        String queryString = "/jcr:root" + getMailboxPath(mailbox) + "//element(*,jamesMailbox:message)[@"
-                + JCRMessage.UID_PROPERTY + ">=" + from + " and @" + JCRMessage.UID_PROPERTY + "<=" + to + " and @"
-                + JCRMessage.DELETED_PROPERTY + "='true'] order by @" + JCRMessage.UID_PROPERTY;
+        return findMessages(mailbox, MESSAGES_IN_MAILBOX + AND_UID, uid, 0, 1);
+    }
 
-        QueryManager manager = getSession().getWorkspace().getQueryManager();
-        QueryResult result = manager.createQuery(queryString, XPATH_LANGUAGE).execute();
+    private List<Message<JCRId>> findMessagesInMailboxBetweenUIDs(Mailbox<JCRId> mailbox, long from, long to,
+            int batchSize) throws RepositoryException {
+        return findMessages(mailbox, MESSAGES_IN_MAILBOX + AND_UID_FROM + AND_UID_TO + ORDER_BY_UID, from, to, batchSize);
+    }
 
-        NodeIterator iterator = result.getNodes();
-        while (iterator.hasNext()) {
-            list.add(new JCRMessage(iterator.nextNode(), mailboxSession.getLog()));
-        }
-        return list;
+    private List<Message<JCRId>> findMessagesInMailbox(Mailbox<JCRId> mailbox, int batchSize)
+            throws RepositoryException {
+        return findMessages(mailbox, MESSAGES_IN_MAILBOX + ORDER_BY_UID, 0, 0, batchSize);
     }
 
-    private List<Message<JCRId>> findDeletedMessagesInMailbox(Mailbox<JCRId> mailbox) throws RepositoryException {
+    private List<Message<JCRId>> findDeletedMessagesInMailboxAfterUID(Mailbox<JCRId> mailbox, long uid)
+            throws RepositoryException {
+        return findMessages(mailbox, MESSAGES_IN_MAILBOX + AND_UID_FROM + AND_DELETED + ORDER_BY_UID, uid, 0, -1);
+    }
 
-        List<Message<JCRId>> list = new ArrayList<Message<JCRId>>();
-        String queryString = "/jcr:root" + getMailboxPath(mailbox) + "//element(*,jamesMailbox:message)[@"
-                + JCRMessage.DELETED_PROPERTY + "='true'] order by @" + JCRMessage.UID_PROPERTY;
+    private List<Message<JCRId>> findDeletedMessageInMailboxWithUID(Mailbox<JCRId> mailbox, long uid)
+            throws RepositoryException {
+        return findMessages(mailbox, MESSAGES_IN_MAILBOX + AND_UID + AND_DELETED, uid, 0, 1);
+    }
 
-        QueryManager manager = getSession().getWorkspace().getQueryManager();
-        QueryResult result = manager.createQuery(queryString, XPATH_LANGUAGE).execute();
+    private List<Message<JCRId>> findDeletedMessagesInMailboxBetweenUIDs(Mailbox<JCRId> mailbox, long from, long to)
+            throws RepositoryException {
+        return findMessages(mailbox, MESSAGES_IN_MAILBOX + AND_UID_FROM + AND_UID_TO + AND_DELETED + ORDER_BY_UID, from,
+                to, -1);
+    }
 
-        NodeIterator iterator = result.getNodes();
-        while (iterator.hasNext()) {
-            JCRMessage member = new JCRMessage(iterator.nextNode(), mailboxSession.getLog());
-            list.add(member);
-        }
-        return list;
+    private List<Message<JCRId>> findDeletedMessagesInMailbox(Mailbox<JCRId> mailbox) throws RepositoryException {
+        return findMessages(mailbox, MESSAGES_IN_MAILBOX + AND_DELETED + ORDER_BY_UID, 0, 0, -1);
     }
 
     /**
@@ -706,4 +882,16 @@ public class JCRMessageMapper extends AbstractMessageMapper<JCRId> implements JC
         }
     }
 
+    /**
+     * The pending change of the message and unseen count of a mailbox
+     */
+    private final static class CounterDelta {
+        private final Mailbox<JCRId> mailbox;
+        private long messages;
+        private long unseen;
+
+        private CounterDelta(Mailbox<JCRId> mailbox) {
+            this.mailbox = mailbox;
+        }
+    }
 }
@@ -53,14 +53,18 @@ public class JCRModSeqProvider extends AbstractLockingModSeqProvider<JCRId>{
 
     @Override
     protected long lockedNextModSeq(MailboxSession session, Mailbox<JCRId> mailbox) throws MailboxException {
+        return lockedNextModSeqs(session, mailbox, 1);
+    }
+
+    @Override
+    protected long lockedNextModSeqs(MailboxSession session, Mailbox<JCRId> mailbox, int count) throws MailboxException {
         try {
             Session s = repository.login(session);
             Node node = s.getNodeByIdentifier(mailbox.getMailboxId().serialize());
             long modseq = node.getProperty(JCRMailbox.HIGHESTMODSEQ_PROPERTY).getLong();
-            modseq++;
-            node.setProperty(JCRMailbox.HIGHESTMODSEQ_PROPERTY, modseq);
+            node.setProperty(JCRMailbox.HIGHESTMODSEQ_PROPERTY, modseq + count);
             s.save();
-            return modseq;
+            return modseq + 1;
         } catch (RepositoryException e) {
             throw new MailboxException("Unable to consume next uid for mailbox " + mailbox, e);
         }
@@ -54,14 +54,18 @@ public class JCRUidProvider extends AbstractLockingUidProvider<JCRId> {
 
     @Override
     protected long lockedNextUid(MailboxSession session, Mailbox<JCRId> mailbox) throws MailboxException {
+        return lockedNextUids(session, mailbox, 1);
+    }
+
+    @Override
+    protected long lockedNextUids(MailboxSession session, Mailbox<JCRId> mailbox, int count) throws MailboxException {
         try {
             Session s = repository.login(session);
             Node node = s.getNodeByIdentifier(mailbox.getMailboxId().serialize());
             long uid = node.getProperty(JCRMailbox.LASTUID_PROPERTY).getLong();
-            uid++;
-            node.setProperty(JCRMailbox.LASTUID_PROPERTY, uid);
+            node.setProperty(JCRMailbox.LASTUID_PROPERTY, uid + count);
             s.save();
-            return uid;
+            return uid + 1;
         } catch (RepositoryException e) {
             throw new MailboxException("Unable to consume next uid for mailbox " + mailbox, e);
         }
@@ -0,0 +1,142 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailbox.jcr.mail.model;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.jcr.Binary;
+import javax.jcr.RepositoryException;
+
+/**
+ * {@link InputStream} over a range of the concatenation of one or more
+ * {@link Binary}s. The content is read with {@link Binary#read(byte[], long)} at
+ * the current position, so {@link #skip(long)} just moves the position and the
+ * skipped bytes are never read from the repository.
+ */
+public class BinaryInputStream extends InputStream {
+
+    private final Binary[] binaries;
+    private final long[] offsets;
+    private final long end;
+    private long position;
+    private long mark;
+    private byte[] buffer;
+
+    /**
+     * @param binaries the binaries which form the content
+     * @param start the position to start at
+     * @param length the number of bytes to read, or a negative value to read up to the end
+     * @throws RepositoryException
+     */
+    public BinaryInputStream(Binary[] binaries, long start, long length) throws RepositoryException {
+        this.binaries = binaries;
+        this.offsets = new long[binaries.length + 1];
+        for (int i = 0; i < binaries.length; i++) {
+            offsets[i + 1] = offsets[i] + binaries[i].getSize();
+        }
+        long size = offsets[binaries.length];
+        this.position = Math.min(Math.max(start, 0), size);
+        if (length < 0) {
+            this.end = size;
+        } else {
+            this.end = Math.min(size, position + length);
+        }
+        this.mark = position;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        if (read(b, 0, 1) == -1) {
+            return -1;
+        }
+        return b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (position >= end) {
+            return -1;
+        }
+        int part = 0;
+        while (offsets[part + 1] <= position) {
+            part++;
+        }
+        int wanted = (int) Math.min(len, Math.min(end, offsets[part + 1]) - position);
+        try {
+            int read;
+            if (off == 0 && wanted == b.length) {
+                read = binaries[part].read(b, position - offsets[part]);
+            } else {
+                if (buffer == null || buffer.length != wanted) {
+                    buffer = new byte[wanted];
+                }
+                read = binaries[part].read(buffer, position - offsets[part]);
+                if (read > 0) {
+                    System.arraycopy(buffer, 0, b, off, read);
+                }
+            }
+            if (read <= 0) {
+                throw new IOException("Unexpected end of binary at position " + position);
+            }
+            position += read;
+            return read;
+        } catch (RepositoryException e) {
+            throw new IOException("Unable to read binary at position " + position, e);
+        }
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = Math.max(0, Math.min(n, end - position));
+        position += skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (int) Math.min(Integer.MAX_VALUE, end - position);
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+        mark = position;
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        position = mark;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (int i = 0; i < binaries.length; i++) {
+            binaries[i].dispose();
+        }
+    }
+}
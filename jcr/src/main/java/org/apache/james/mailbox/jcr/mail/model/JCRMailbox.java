@@ -47,6 +47,8 @@ public class JCRMailbox implements Mailbox<JCRId>, JCRImapConstants, Persistent{
     public final static String UIDVALIDITY_PROPERTY = "jamesMailbox:mailboxUidValidity";
     public final static String LASTUID_PROPERTY = "jamesMailbox:mailboxLastUid";
     public final static String HIGHESTMODSEQ_PROPERTY = "jamesMailbox:mailboxHighestModSeq";
+    public final static String MESSAGE_COUNT_PROPERTY = "jamesMailbox:mailboxMessageCount";
+    public final static String UNSEEN_COUNT_PROPERTY = "jamesMailbox:mailboxUnseenCount";
 
     private String name;
     private long uidValidity;
@@ -18,6 +18,9 @@
  ****************************************************************/
 package org.apache.james.mailbox.jcr.mail.model;
 
+import static org.apache.james.mailbox.store.mail.model.StandardNames.MIME_STRUCTURE_NAME;
+import static org.apache.james.mailbox.store.mail.model.StandardNames.MIME_STRUCTURE_SPACE;
+
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
@@ -29,12 +32,12 @@ import javax.jcr.Binary;
 import javax.jcr.Node;
 import javax.jcr.NodeIterator;
 import javax.jcr.RepositoryException;
+import javax.jcr.ValueFactory;
 import javax.mail.Flags;
 import javax.mail.internet.SharedInputStream;
 import javax.mail.util.SharedByteArrayInputStream;
 
 import org.apache.commons.io.IOUtils;
-import org.apache.commons.io.input.BoundedInputStream;
 import org.apache.jackrabbit.JcrConstants;
 import org.apache.jackrabbit.commons.JcrUtils;
 import org.apache.james.mailbox.exception.MailboxException;
@@ -49,12 +52,20 @@ import org.slf4j.Logger;
 
 /**
  * JCR implementation of {@link Message}
+ * 
+ * The header and the body are stored as separate binaries, the body as data of
+ * the <code>jcr:content</code> node and the header in the
+ * {@link #HEADER_DATA_PROPERTY} of the message node. Messages stored by former
+ * releases keep the full content in the <code>jcr:content</code> node. The content
+ * is read with {@link BinaryInputStream}s, so parts of it can be read without
+ * streaming it from the start.
  *
  */
 public class JCRMessage extends AbstractMessage<JCRId> implements JCRImapConstants, Persistent{
 
     private Node node;
     private final Logger logger;
+    private final JCRMessageContentCache contentCache;
     private SharedInputStream content;
     private String mediaType;
     private Long textualLineCount;
@@ -91,6 +102,7 @@ public class JCRMessage extends AbstractMessage<JCRId> implements JCRImapConstan
     public final static String INTERNAL_DATE_PROPERTY = "jamesMailbox:internalDate"; 
     
     public final static String BODY_START_OCTET_PROPERTY = "jamesMailbox:messageBodyStartOctet";
+    public final static String HEADER_DATA_PROPERTY = "jamesMailbox:messageHeaderData";
     public final static String HEADER_NODE_TYPE =  "jamesMailbox:messageHeader";
 
     public final static String PROPERTY_NODE_TYPE =  "jamesMailbox:messageProperty";
@@ -99,8 +111,18 @@ public class JCRMessage extends AbstractMessage<JCRId> implements JCRImapConstan
     public final static String MODSEQ_PROPERTY = "jamesMailbox:modSeq";
 
     public JCRMessage(Node node, Logger logger) {
+        this(node, logger, null);
+    }
+
+    /**
+     * @param node
+     * @param logger
+     * @param contentCache cache for the content of small messages, may be null
+     */
+    public JCRMessage(Node node, Logger logger, JCRMessageContentCache contentCache) {
         this.logger= logger;
         this.node = node;
+        this.contentCache = contentCache;
     }
     
     public JCRMessage(JCRId mailboxUUID, Date internalDate, int size, Flags flags, SharedInputStream content,
@@ -110,6 +132,7 @@ public class JCRMessage extends AbstractMessage<JCRId> implements JCRImapConstan
         this.internalDate = internalDate;
         this.size = size;
         this.logger = logger;
+        this.contentCache = null;
         setFlags(flags);
         this.content = content;
        
@@ -140,6 +163,7 @@ public class JCRMessage extends AbstractMessage<JCRId> implements JCRImapConstan
         this.uid = uid;
         this.modSeq = modSeq;
         this.logger = logger;
+        this.contentCache = null;
         try {
             this.content = new SharedByteArrayInputStream(IOUtils.toByteArray(message.getFullContent()));
         } catch (IOException e) {
@@ -263,6 +287,26 @@ public class JCRMessage extends AbstractMessage<JCRId> implements JCRImapConstan
         return node != null;
     }
 
+    /**
+     * Adds the MIME structure to the properties of a message stored without one.
+     * Nothing is done if the message has a MIME structure already.
+     * 
+     * @param mimeStructure the structure, not null
+     * @throws RepositoryException
+     */
+    public void addMimeStructure(byte[] mimeStructure) throws RepositoryException {
+        if (!isPersistent() || !new PropertyBuilder(getProperties()).getValues(MIME_STRUCTURE_SPACE, MIME_STRUCTURE_NAME).isEmpty()) {
+            return;
+        }
+        final PropertyBuilder builder = new PropertyBuilder();
+        builder.setMimeStructure(mimeStructure);
+        for (final Property property: builder.toProperties()) {
+            Node propNode = node.addNode("messageProperty", "nt:unstructured");
+            propNode.addMixin(PROPERTY_NODE_TYPE);
+            new JCRProperty(property, logger).merge(propNode);
+        }
+    }
+
     public String getUUID() {
         if (isPersistent()) {
             try {
@@ -308,8 +352,9 @@ public class JCRMessage extends AbstractMessage<JCRId> implements JCRImapConstan
             node.setProperty(INTERNAL_DATE_PROPERTY, cal);
 
             Node contentNode = JcrUtils.getOrAddNode(node, JcrConstants.JCR_CONTENT, JcrConstants.NT_RESOURCE);
-            Binary binaryContent = contentNode.getSession().getValueFactory().createBinary(getFullContent());
-            contentNode.setProperty(JcrConstants.JCR_DATA, binaryContent);
+            ValueFactory factory = contentNode.getSession().getValueFactory();
+            node.setProperty(HEADER_DATA_PROPERTY, factory.createBinary(getHeaderContent()));
+            contentNode.setProperty(JcrConstants.JCR_DATA, factory.createBinary(getBodyContent()));
             contentNode.setProperty(JcrConstants.JCR_MIMETYPE, getMediaType());
 
             if (getTextualLineCount() != null) {
@@ -680,26 +725,70 @@ public class JCRMessage extends AbstractMessage<JCRId> implements JCRImapConstan
 
     @Override
     public InputStream getFullContent() throws IOException {
+        return getContent(0, -1);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.apache.james.mailbox.store.mail.model.Message#getBodyContent()
+     */
+    public InputStream getBodyContent() throws IOException {
+        return getContent(getBodyStartOctet(), -1);
+    }
+
+    /**
+     * Return the given range of the full content. Persistent messages are read
+     * from the cache if they are small enough, and directly from the given
+     * position of the binaries otherwise.
+     * 
+     * @param start
+     * @param length the number of bytes, or a negative value to read up to the end
+     * @return content
+     * @throws IOException
+     */
+    private InputStream getContent(long start, long length) throws IOException {
         if (isPersistent()) {
             try {
-                //TODO: Maybe we should cache this somehow...
-                InputStream contentStream = node.getNode(JcrConstants.JCR_CONTENT).getProperty(JcrConstants.JCR_DATA).getBinary().getStream();
-                return contentStream;
+                SharedByteArrayInputStream cached = getCachedContent();
+                if (cached != null) {
+                    return cached.newStream(start, length < 0 ? -1 : start + length);
+                }
+                return new BinaryInputStream(getBinaries(), start, length);
             } catch (RepositoryException e) {
                 throw new IOException("Unable to retrieve property " + JcrConstants.JCR_CONTENT, e);
             }
         }
-        return content.newStream(0, -1);
+        return content.newStream(start, length < 0 ? -1 : start + length);
     }
 
-    /*
-     * (non-Javadoc)
-     * @see org.apache.james.mailbox.store.mail.model.Message#getBodyContent()
+    /**
+     * Return the binaries which form the full content
      */
-    public InputStream getBodyContent() throws IOException {
-        InputStream body = getFullContent();
-        IOUtils.skipFully(body,  getBodyStartOctet());
-        return body;
+    private Binary[] getBinaries() throws RepositoryException {
+        Binary data = node.getNode(JcrConstants.JCR_CONTENT).getProperty(JcrConstants.JCR_DATA).getBinary();
+        if (node.hasProperty(HEADER_DATA_PROPERTY)) {
+            return new Binary[] { node.getProperty(HEADER_DATA_PROPERTY).getBinary(), data };
+        }
+        // stored by a former release, the data holds the full content
+        return new Binary[] { data };
+    }
+
+    private SharedByteArrayInputStream getCachedContent() throws RepositoryException, IOException {
+        if (contentCache == null || !contentCache.isCacheable(getFullContentOctets())) {
+            return null;
+        }
+        String identifier = node.getIdentifier();
+        byte[] cached = contentCache.get(identifier);
+        if (cached == null) {
+            InputStream in = new BinaryInputStream(getBinaries(), 0, -1);
+            try {
+                cached = IOUtils.toByteArray(in);
+            } finally {
+                IOUtils.closeQuietly(in);
+            }
+            contentCache.put(identifier, cached);
+        }
+        return new SharedByteArrayInputStream(cached);
     }
 
     /*
@@ -760,6 +849,6 @@ public class JCRMessage extends AbstractMessage<JCRId> implements JCRImapConstan
         if (limit < 0) {
             limit = 0;
         }
-        return new BoundedInputStream(getFullContent(), limit);
+        return getContent(0, limit);
     }
 }
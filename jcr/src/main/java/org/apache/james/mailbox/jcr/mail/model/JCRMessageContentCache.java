@@ -0,0 +1,105 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailbox.jcr.mail.model;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Caches the full content of small {@link JCRMessage}s by node identifier, so
+ * that fetching several parts of the same message does not need to read its
+ * binaries again. The content of a message node never changes, so entries do
+ * not need to be invalidated other than when the message gets deleted.
+ * <p>
+ * The cache is bounded by the total size of the cached contents, the least
+ * recently used messages get evicted first.
+ */
+public class JCRMessageContentCache {
+
+    public static final int DEFAULT_MAX_MESSAGE_SIZE = 16 * 1024;
+    public static final long DEFAULT_MAX_SIZE = 8 * 1024 * 1024;
+
+    private final int maxMessageSize;
+    private final long maxSize;
+    private final LinkedHashMap<String, byte[]> contents = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+    private long size = 0;
+
+    public JCRMessageContentCache() {
+        this(DEFAULT_MAX_MESSAGE_SIZE, DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * @param maxMessageSize The maximal size of a message to get cached
+     * @param maxSize The maximal size of all cached contents
+     */
+    public JCRMessageContentCache(int maxMessageSize, long maxSize) {
+        this.maxMessageSize = maxMessageSize;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Return true if a message of the given size should be cached
+     */
+    public boolean isCacheable(long messageSize) {
+        return messageSize <= maxMessageSize;
+    }
+
+    /**
+     * Return the cached content of the message node with the given identifier.
+     * The returned array is shared and must not be modified.
+     *
+     * @param identifier
+     * @return content, or null if it is not cached
+     */
+    public synchronized byte[] get(String identifier) {
+        return contents.get(identifier);
+    }
+
+    /**
+     * Cache the content of the message node with the given identifier
+     *
+     * @param identifier
+     * @param content
+     */
+    public synchronized void put(String identifier, byte[] content) {
+        remove(identifier);
+        if (!isCacheable(content.length)) {
+            return;
+        }
+        contents.put(identifier, content);
+        size += content.length;
+        Iterator<byte[]> it = contents.values().iterator();
+        while (size > maxSize && it.hasNext()) {
+            size -= it.next().length;
+            it.remove();
+        }
+    }
+
+    /**
+     * Drop the content of the message node with the given identifier
+     *
+     * @param identifier
+     */
+    public synchronized void remove(String identifier) {
+        byte[] removed = contents.remove(identifier);
+        if (removed != null) {
+            size -= removed.length;
+        }
+    }
+}
@@ -89,7 +89,7 @@ public class JCRMailboxManagerTest extends AbstractMailboxManagerTest {
         JVMMailboxPathLocker locker = new JVMMailboxPathLocker();
         JCRUidProvider uidProvider = new JCRUidProvider(locker, sessionRepos);
         JCRModSeqProvider modSeqProvider = new JCRModSeqProvider(locker, sessionRepos);
-        JCRMailboxSessionMapperFactory mf = new JCRMailboxSessionMapperFactory(sessionRepos, uidProvider, modSeqProvider);
+        JCRMailboxSessionMapperFactory mf = new JCRMailboxSessionMapperFactory(sessionRepos, locker, uidProvider, modSeqProvider);
 
         MailboxACLResolver aclResolver = new UnionMailboxACLResolver();
         GroupMembershipResolver groupMembershipResolver = new SimpleGroupMembershipResolver();
@@ -0,0 +1,215 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailbox.jcr;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Date;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.mail.Flags;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.jackrabbit.core.RepositoryImpl;
+import org.apache.jackrabbit.core.config.RepositoryConfig;
+import org.apache.james.mailbox.MailboxSession;
+import org.apache.james.mailbox.MessageManager;
+import org.apache.james.mailbox.acl.SimpleGroupMembershipResolver;
+import org.apache.james.mailbox.acl.UnionMailboxACLResolver;
+import org.apache.james.mailbox.exception.MailboxException;
+import org.apache.james.mailbox.jcr.mail.JCRMessageMapper;
+import org.apache.james.mailbox.jcr.mail.JCRModSeqProvider;
+import org.apache.james.mailbox.jcr.mail.JCRUidProvider;
+import org.apache.james.mailbox.jcr.mail.model.JCRMailbox;
+import org.apache.james.mailbox.model.MailboxConstants;
+import org.apache.james.mailbox.model.MailboxPath;
+import org.apache.james.mailbox.store.JVMMailboxPathLocker;
+import org.apache.james.mailbox.store.mail.model.Mailbox;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+import org.xml.sax.InputSource;
+
+/**
+ * Check that the message counters stored on the mailbox node stay in sync with
+ * the messages while they are updated and initialized concurrently.
+ */
+public class JCRMessageCountersTest {
+
+    private static final String JACKRABBIT_HOME = "target/jackrabbit";
+    private static final String USER = "username";
+    private static final int APPEND_OPERATIONS = 100;
+    private static final int THREADS = 10;
+
+    private RepositoryImpl repository;
+    private MailboxSessionJCRRepository sessionRepos;
+    private JCRMailboxSessionMapperFactory mapperFactory;
+    private JCRMailboxManager mailboxManager;
+    private MailboxPath path;
+
+    @Before
+    public void setUp() throws Exception {
+        RepositoryConfig config = RepositoryConfig.create(new InputSource(this.getClass().getClassLoader().getResourceAsStream("test-repository.xml")), JACKRABBIT_HOME);
+        repository = RepositoryImpl.create(config);
+        JCRUtils.registerCnd(repository, null, "user", "pass");
+        sessionRepos = new GlobalMailboxSessionJCRRepository(repository, null, "user", "pass");
+        JVMMailboxPathLocker locker = new JVMMailboxPathLocker();
+        mapperFactory = new JCRMailboxSessionMapperFactory(sessionRepos, locker,
+                new JCRUidProvider(locker, sessionRepos), new JCRModSeqProvider(locker, sessionRepos));
+        mailboxManager = new JCRMailboxManager(mapperFactory, null, locker, new UnionMailboxACLResolver(), new SimpleGroupMembershipResolver());
+        mailboxManager.init();
+
+        path = new MailboxPath(MailboxConstants.USER_NAMESPACE, USER, "INBOX");
+        MailboxSession session = createSession();
+        mailboxManager.createMailbox(path, session);
+        endSession(session);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        repository.shutdown();
+        FileUtils.forceDelete(new File(JACKRABBIT_HOME));
+    }
+
+    @Test
+    public void countersShouldMatchMessagesAfterConcurrentAppends() throws Exception {
+        appendConcurrently(false);
+
+        assertCounters(APPEND_OPERATIONS, APPEND_OPERATIONS / 2);
+    }
+
+    @Test
+    public void countersShouldMatchMessagesWhenInitializedDuringConcurrentAppends() throws Exception {
+        removeCounters();
+
+        appendConcurrently(true);
+
+        assertCounters(APPEND_OPERATIONS, APPEND_OPERATIONS / 2);
+    }
+
+    @Test
+    public void recountMessagesShouldRepairDriftedCounters() throws Exception {
+        appendConcurrently(false);
+        MailboxSession session = createSession();
+        Session jcrSession = sessionRepos.login(session);
+        Node mailboxNode = jcrSession.getNodeByIdentifier(getMailbox(session).getMailboxId().serialize());
+        mailboxNode.setProperty(JCRMailbox.MESSAGE_COUNT_PROPERTY, 3L);
+        mailboxNode.setProperty(JCRMailbox.UNSEEN_COUNT_PROPERTY, 1000L);
+        jcrSession.save();
+
+        ((JCRMessageMapper) mapperFactory.getMessageMapper(session)).recountMessages(getMailbox(session));
+        endSession(session);
+
+        assertCounters(APPEND_OPERATIONS, APPEND_OPERATIONS / 2);
+    }
+
+    /**
+     * Append the messages from several threads, every second one is marked as
+     * seen. If readCounters is true the counters are read after each append,
+     * so missing counters get initialized while other threads append.
+     */
+    private void appendConcurrently(final boolean readCounters) throws InterruptedException {
+        final AtomicBoolean fail = new AtomicBoolean(false);
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        for (int i = 0; i < APPEND_OPERATIONS; i++) {
+            final boolean seen = i % 2 == 0;
+            pool.execute(new Runnable() {
+
+                public void run() {
+                    try {
+                        MailboxSession session = createSession();
+                        MessageManager messageManager = mailboxManager.getMailbox(path, session);
+                        messageManager.appendMessage(new ByteArrayInputStream("Subject: test\r\n\r\ntestmail".getBytes()),
+                                new Date(), session, false, seen ? new Flags(Flags.Flag.SEEN) : new Flags());
+                        endSession(session);
+                        if (readCounters) {
+                            session = createSession();
+                            JCRMessageMapper mapper = (JCRMessageMapper) mapperFactory.getMessageMapper(session);
+                            mapper.countMessagesInMailbox(getMailbox(session));
+                            mapper.countUnseenMessagesInMailbox(getMailbox(session));
+                            endSession(session);
+                        }
+                    } catch (Exception e) {
+                        LoggerFactory.getLogger(JCRMessageCountersTest.class).error("Unable to append message", e);
+                        fail.set(true);
+                    }
+                }
+            });
+        }
+        pool.shutdown();
+        assertThat(pool.awaitTermination(5, TimeUnit.MINUTES)).isTrue();
+        assertThat(fail.get()).isFalse();
+    }
+
+    private void assertCounters(long messages, long unseen) throws Exception {
+        MailboxSession session = createSession();
+        Mailbox<JCRId> mailbox = getMailbox(session);
+        Node mailboxNode = sessionRepos.login(session).getNodeByIdentifier(mailbox.getMailboxId().serialize());
+        JCRMessageMapper mapper = (JCRMessageMapper) mapperFactory.getMessageMapper(session);
+
+        assertThat(mapper.countMessagesInMailbox(mailbox)).isEqualTo(messages);
+        assertThat(mapper.countUnseenMessagesInMailbox(mailbox)).isEqualTo(unseen);
+        assertThat(mailboxNode.getProperty(JCRMailbox.MESSAGE_COUNT_PROPERTY).getLong()).isEqualTo(messages);
+        assertThat(mailboxNode.getProperty(JCRMailbox.UNSEEN_COUNT_PROPERTY).getLong()).isEqualTo(unseen);
+        endSession(session);
+    }
+
+    private void removeCounters() throws MailboxException, RepositoryException {
+        MailboxSession session = createSession();
+        removeCounters(session);
+        endSession(session);
+    }
+
+    /**
+     * Remove the counters like a mailbox created by a former release, so they
+     * get initialized on the next access
+     */
+    private void removeCounters(MailboxSession session) throws MailboxException, RepositoryException {
+        Session jcrSession = sessionRepos.login(session);
+        Node mailboxNode = jcrSession.getNodeByIdentifier(getMailbox(session).getMailboxId().serialize());
+        mailboxNode.getProperty(JCRMailbox.MESSAGE_COUNT_PROPERTY).remove();
+        mailboxNode.getProperty(JCRMailbox.UNSEEN_COUNT_PROPERTY).remove();
+        jcrSession.save();
+    }
+
+    private Mailbox<JCRId> getMailbox(MailboxSession session) throws MailboxException {
+        return mapperFactory.getMailboxMapper(session).findMailboxByPath(path);
+    }
+
+    private MailboxSession createSession() throws MailboxException {
+        MailboxSession session = mailboxManager.createSystemSession(USER, LoggerFactory.getLogger(JCRMessageCountersTest.class));
+        mailboxManager.startProcessingRequest(session);
+        return session;
+    }
+
+    private void endSession(MailboxSession session) throws MailboxException {
+        mailboxManager.endProcessingRequest(session);
+        mailboxManager.logout(session, false);
+    }
+}
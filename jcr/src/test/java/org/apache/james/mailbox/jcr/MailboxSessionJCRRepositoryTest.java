@@ -0,0 +1,163 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailbox.jcr;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.jcr.LoginException;
+import javax.jcr.Repository;
+import javax.jcr.Session;
+import javax.jcr.SimpleCredentials;
+
+import org.apache.james.mailbox.MailboxSession;
+import org.apache.james.mailbox.store.SimpleMailboxSession;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+public class MailboxSessionJCRRepositoryTest {
+
+    private static final String USER = "user";
+    private static final String PASSWORD = "secret";
+
+    private Map<String, String> passwords;
+    private List<Session> logins;
+    private MailboxSessionJCRRepository sessionRepository;
+
+    @Before
+    public void setUp() {
+        passwords = new HashMap<String, String>();
+        passwords.put(USER, PASSWORD);
+        logins = new ArrayList<Session>();
+        sessionRepository = new MailboxSessionJCRRepository(repository(), null);
+    }
+
+    @Test
+    public void sessionsShouldNotBePooledByDefault() throws Exception {
+        Session first = loginAndLogout(USER, PASSWORD);
+
+        assertThat(sessionRepository.login(session(USER, PASSWORD))).isNotSameAs(first);
+        assertThat(logins).hasSize(2);
+    }
+
+    @Test
+    public void sameCredentialsShouldGetThePooledSession() throws Exception {
+        sessionRepository.setMaxIdleSessionsPerUser(4);
+        Session first = loginAndLogout(USER, PASSWORD);
+
+        assertThat(sessionRepository.login(session(USER, PASSWORD))).isSameAs(first);
+        assertThat(logins).hasSize(1);
+    }
+
+    @Test
+    public void otherCredentialsShouldNotGetThePooledSession() throws Exception {
+        sessionRepository.setMaxIdleSessionsPerUser(4);
+        Session first = loginAndLogout(USER, PASSWORD);
+        passwords.put(USER, "changed");
+
+        assertThat(sessionRepository.login(session(USER, "changed"))).isNotSameAs(first);
+        assertThat(logins).hasSize(2);
+    }
+
+    @Test
+    public void invalidCredentialsShouldNotGetThePooledSession() throws Exception {
+        sessionRepository.setMaxIdleSessionsPerUser(4);
+        loginAndLogout(USER, PASSWORD);
+
+        try {
+            sessionRepository.login(session(USER, "wrong"));
+            fail("Login with a wrong password should fail");
+        } catch (LoginException e) {
+            // expected
+        }
+        try {
+            sessionRepository.login(session(USER, null));
+            fail("Login without password should fail");
+        } catch (LoginException e) {
+            // expected
+        }
+        assertThat(logins).hasSize(1);
+    }
+
+    private Session loginAndLogout(String user, String password) throws Exception {
+        MailboxSession mailboxSession = session(user, password);
+        Session session = sessionRepository.login(mailboxSession);
+        sessionRepository.logout(mailboxSession);
+        return session;
+    }
+
+    private MailboxSession session(String user, String password) {
+        return new SimpleMailboxSession(0, user, password, LoggerFactory.getLogger("Test"),
+                new ArrayList<Locale>(), '.', MailboxSession.SessionType.User);
+    }
+
+    /**
+     * Repository which accepts the passwords of the map only and records the logins
+     */
+    private Repository repository() {
+        return (Repository) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { Repository.class },
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if (!method.getName().equals("login")) {
+                            throw new UnsupportedOperationException(method.getName());
+                        }
+                        SimpleCredentials credentials = (SimpleCredentials) args[0];
+                        String password = passwords.get(credentials.getUserID());
+                        if (password == null || credentials.getPassword() == null
+                                || !password.equals(new String(credentials.getPassword()))) {
+                            throw new LoginException("Invalid credentials for " + credentials.getUserID());
+                        }
+                        Session session = session(credentials.getUserID());
+                        logins.add(session);
+                        return session;
+                    }
+                });
+    }
+
+    private Session session(final String user) {
+        return (Session) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { Session.class },
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        String name = method.getName();
+                        if (name.equals("isLive")) {
+                            return true;
+                        } else if (name.equals("getUserID")) {
+                            return user;
+                        } else if (name.equals("refresh") || name.equals("logout")) {
+                            return null;
+                        } else if (name.equals("hashCode")) {
+                            return System.identityHashCode(proxy);
+                        } else if (name.equals("equals")) {
+                            return proxy == args[0];
+                        }
+                        throw new UnsupportedOperationException(name);
+                    }
+                });
+    }
+}
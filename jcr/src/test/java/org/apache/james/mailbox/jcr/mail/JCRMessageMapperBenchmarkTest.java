@@ -0,0 +1,213 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailbox.jcr.mail;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.File;
+import java.util.Date;
+import java.util.Iterator;
+
+import javax.mail.Flags;
+import javax.mail.util.SharedByteArrayInputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.jackrabbit.core.RepositoryImpl;
+import org.apache.jackrabbit.core.config.RepositoryConfig;
+import org.apache.james.mailbox.MailboxSession;
+import org.apache.james.mailbox.MessageManager.FlagsUpdateMode;
+import org.apache.james.mailbox.exception.MailboxException;
+import org.apache.james.mailbox.jcr.GlobalMailboxSessionJCRRepository;
+import org.apache.james.mailbox.jcr.JCRId;
+import org.apache.james.mailbox.jcr.JCRMailboxSessionMapperFactory;
+import org.apache.james.mailbox.jcr.JCRUtils;
+import org.apache.james.mailbox.jcr.MailboxSessionJCRRepository;
+import org.apache.james.mailbox.jcr.mail.model.JCRMailbox;
+import org.apache.james.mailbox.jcr.mail.model.JCRMessage;
+import org.apache.james.mailbox.mock.MockMailboxSession;
+import org.apache.james.mailbox.model.MailboxPath;
+import org.apache.james.mailbox.model.MessageRange;
+import org.apache.james.mailbox.model.UpdatedFlags;
+import org.apache.james.mailbox.store.FlagsUpdateCalculator;
+import org.apache.james.mailbox.store.JVMMailboxPathLocker;
+import org.apache.james.mailbox.store.mail.MailboxMapper;
+import org.apache.james.mailbox.store.mail.MessageMapper;
+import org.apache.james.mailbox.store.mail.MessageMapper.FetchType;
+import org.apache.james.mailbox.store.mail.model.Message;
+import org.apache.james.mailbox.store.mail.model.impl.PropertyBuilder;
+import org.apache.james.mailbox.store.transaction.TransactionalMapper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xml.sax.InputSource;
+
+/**
+ * Measures the latency of the queries done by {@link JCRMessageMapper} against
+ * an in memory Jackrabbit repository: single uid lookups, range scans, the
+ * first unseen and recent lookups and the message counts. The number of
+ * messages can be set with the <code>jcr.benchmark.messages</code> system
+ * property.
+ * It only runs with the <code>benchmark</code> profile.
+ */
+public class JCRMessageMapperBenchmarkTest {
+
+    private static final Logger LOG = LoggerFactory.getLogger(JCRMessageMapperBenchmarkTest.class);
+
+    private static final String JACKRABBIT_HOME = "target/jackrabbit-benchmark";
+    private static final String CONTENT = "Subject: Benchmark\r\n\r\nBody of the benchmark message\r\n";
+    private static final int BODY_START = 22;
+    private static final int BATCH_SIZE = 500;
+    private static final int ITERATIONS = 200;
+
+    private final MailboxSession session = new MockMailboxSession("benchmark");
+
+    private RepositoryImpl repository;
+    private MailboxSessionJCRRepository sessionRepository;
+    private MailboxMapper<JCRId> mailboxMapper;
+    private MessageMapper<JCRId> messageMapper;
+    private JCRMailbox mailbox;
+    private int messages;
+
+    @Before
+    public void setUp() throws Exception {
+        RepositoryConfig config = RepositoryConfig.create(new InputSource(JCRMessageMapperBenchmarkTest.class.getClassLoader().getResourceAsStream("test-repository.xml")), JACKRABBIT_HOME);
+        repository = RepositoryImpl.create(config);
+        JCRUtils.registerCnd(repository, null, "user", "pass");
+        sessionRepository = new GlobalMailboxSessionJCRRepository(repository, null, "user", "pass");
+        JVMMailboxPathLocker locker = new JVMMailboxPathLocker();
+        JCRMailboxSessionMapperFactory factory = new JCRMailboxSessionMapperFactory(sessionRepository,
+                new JCRUidProvider(locker, sessionRepository), new JCRModSeqProvider(locker, sessionRepository));
+        mailboxMapper = factory.createMailboxMapper(session);
+        messageMapper = factory.createMessageMapper(session);
+
+        messages = Integer.getInteger("jcr.benchmark.messages", 2000);
+        mailbox = new JCRMailbox(new MailboxPath("#private", "benchmark", "INBOX"), 42, LoggerFactory.getLogger("Test"));
+        mailboxMapper.execute(new TransactionalMapper.VoidTransaction() {
+            public void runVoid() throws MailboxException {
+                mailboxMapper.save(mailbox);
+            }
+        });
+        mailboxMapper.endRequest();
+        for (int i = 0; i < messages; i += BATCH_SIZE) {
+            final int count = Math.min(BATCH_SIZE, messages - i);
+            messageMapper.execute(new TransactionalMapper.VoidTransaction() {
+                public void runVoid() throws MailboxException {
+                    for (int j = 0; j < count; j++) {
+                        messageMapper.add(mailbox, createMessage(j));
+                    }
+                }
+            });
+            messageMapper.endRequest();
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        messageMapper.endRequest();
+        sessionRepository.dispose();
+        repository.shutdown();
+        FileUtils.forceDelete(new File(JACKRABBIT_HOME));
+    }
+
+    @Test
+    public void selectBenchmark() throws MailboxException {
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            Iterator<Message<JCRId>> it = messageMapper.findInMailbox(mailbox, MessageRange.one(i % messages + 1), FetchType.Metadata, -1);
+            assertThat(it.next().getUid()).isEqualTo(i % messages + 1);
+            messageMapper.endRequest();
+        }
+        report("uid lookup", System.nanoTime() - start);
+
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            Iterator<Message<JCRId>> it = messageMapper.findInMailbox(mailbox, MessageRange.range(1, 50), FetchType.Metadata, -1);
+            assertThat(count(it)).isEqualTo(Math.min(50, messages));
+            messageMapper.endRequest();
+        }
+        report("range scan of 50 messages", System.nanoTime() - start);
+
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            assertThat(messageMapper.findFirstUnseenMessageUid(mailbox)).isEqualTo(2L);
+            messageMapper.endRequest();
+        }
+        report("first unseen lookup", System.nanoTime() - start);
+
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            assertThat(messageMapper.findRecentMessageUidsInMailbox(mailbox)).isEmpty();
+            messageMapper.endRequest();
+        }
+        report("recent lookup", System.nanoTime() - start);
+
+        start = System.nanoTime();
+        Iterator<Message<JCRId>> it = messageMapper.findInMailbox(mailbox, MessageRange.all(), FetchType.Metadata, -1);
+        assertThat(count(it)).isEqualTo(messages);
+        messageMapper.endRequest();
+        long elapsed = System.nanoTime() - start;
+        LOG.info(String.format("Scanned %d messages in %d ms", messages, elapsed / 1000000));
+    }
+
+    @Test
+    public void countBenchmark() throws MailboxException {
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            assertThat(messageMapper.countMessagesInMailbox(mailbox)).isEqualTo(messages);
+            assertThat(messageMapper.countUnseenMessagesInMailbox(mailbox)).isEqualTo(messages / 2);
+            messageMapper.endRequest();
+        }
+        report("message and unseen count", System.nanoTime() - start);
+
+        messageMapper.execute(new TransactionalMapper.Transaction<Iterator<UpdatedFlags>>() {
+            public Iterator<UpdatedFlags> run() throws MailboxException {
+                return messageMapper.updateFlags(mailbox, new FlagsUpdateCalculator(new Flags(Flags.Flag.SEEN), FlagsUpdateMode.ADD), MessageRange.range(1, 10));
+            }
+        });
+        messageMapper.endRequest();
+
+        assertThat(messageMapper.countUnseenMessagesInMailbox(mailbox)).isEqualTo(messages / 2 - 5);
+        messageMapper.endRequest();
+    }
+
+    private int count(Iterator<Message<JCRId>> it) {
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        return count;
+    }
+
+    private void report(String operation, long elapsed) {
+        LOG.info(String.format("%s in a mailbox of %d messages: %.0f us per query",
+                operation, messages, elapsed / 1000.0 / ITERATIONS));
+    }
+
+    private JCRMessage createMessage(int i) throws MailboxException {
+        Flags flags = new Flags();
+        if (i % 2 == 0) {
+            flags.add(Flags.Flag.SEEN);
+        }
+        return new JCRMessage(mailbox.getMailboxId(), new Date(), CONTENT.length(), flags,
+                new SharedByteArrayInputStream(CONTENT.getBytes()), BODY_START, new PropertyBuilder(), LoggerFactory.getLogger("Test"));
+    }
+}
@@ -0,0 +1,85 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailbox.jcr.mail.model;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.jcr.Binary;
+import javax.jcr.RepositoryException;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.jackrabbit.value.BinaryImpl;
+import org.junit.Test;
+
+public class BinaryInputStreamTest {
+
+    private static final String HEADER = "Subject: test\r\n\r\n";
+    private static final String BODY = "Body of the message\r\n";
+
+    @Test
+    public void fullRangeShouldConcatenateTheBinaries() throws Exception {
+        assertThat(read(new BinaryInputStream(binaries(), 0, -1))).isEqualTo(HEADER + BODY);
+    }
+
+    @Test
+    public void rangeShouldSpanTheBinaries() throws Exception {
+        assertThat(read(new BinaryInputStream(binaries(), HEADER.length() - 4, 8)))
+            .isEqualTo((HEADER + BODY).substring(HEADER.length() - 4, HEADER.length() + 4));
+    }
+
+    @Test
+    public void rangeShouldBeLimitedToTheContent() throws Exception {
+        assertThat(read(new BinaryInputStream(binaries(), HEADER.length(), 1000))).isEqualTo(BODY);
+        assertThat(read(new BinaryInputStream(binaries(), 1000, 10))).isEmpty();
+    }
+
+    @Test
+    public void skipShouldMoveThePosition() throws Exception {
+        InputStream in = new BinaryInputStream(binaries(), 0, -1);
+        assertThat(in.skip(HEADER.length() + 5)).isEqualTo(HEADER.length() + 5);
+        assertThat(in.read()).isEqualTo(BODY.charAt(5));
+        assertThat(in.skip(1000)).isEqualTo(BODY.length() - 6);
+        assertThat(in.read()).isEqualTo(-1);
+    }
+
+    @Test
+    public void resetShouldReturnToTheMark() throws Exception {
+        InputStream in = new BinaryInputStream(binaries(), 0, -1);
+        in.skip(3);
+        in.mark(0);
+        in.skip(10);
+        in.reset();
+        assertThat(in.read()).isEqualTo(HEADER.charAt(3));
+    }
+
+    private Binary[] binaries() throws IOException, RepositoryException {
+        return new Binary[] { new BinaryImpl(HEADER.getBytes()), new BinaryImpl(BODY.getBytes()) };
+    }
+
+    private String read(InputStream in) throws IOException {
+        try {
+            return new String(IOUtils.toByteArray(in));
+        } finally {
+            in.close();
+        }
+    }
+}
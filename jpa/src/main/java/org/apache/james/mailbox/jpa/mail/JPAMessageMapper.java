@@ -18,11 +18,16 @@
  ****************************************************************/
 package org.apache.james.mailbox.jpa.mail;
 
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
+import javax.mail.Flags;
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
 import javax.persistence.EntityTransaction;
@@ -30,6 +35,7 @@ import javax.persistence.PersistenceException;
 import javax.persistence.Query;
 
 import org.apache.james.mailbox.MailboxSession;
+import org.apache.james.mailbox.MessageManager.FlagsUpdateMode;
 import org.apache.james.mailbox.exception.MailboxException;
 import org.apache.james.mailbox.jpa.JPAId;
 import org.apache.james.mailbox.jpa.mail.model.JPAMailbox;
@@ -40,6 +46,8 @@ import org.apache.james.mailbox.jpa.mail.model.openjpa.JPAStreamingMessage;
 import org.apache.james.mailbox.model.MessageMetaData;
 import org.apache.james.mailbox.model.MessageRange;
 import org.apache.james.mailbox.model.MessageRange.Type;
+import org.apache.james.mailbox.model.UpdatedFlags;
+import org.apache.james.mailbox.store.FlagsUpdateCalculator;
 import org.apache.james.mailbox.store.SimpleMessageMetaData;
 import org.apache.james.mailbox.store.mail.AbstractMessageMapper;
 import org.apache.james.mailbox.store.mail.MessageMapper;
@@ -48,18 +56,52 @@ import org.apache.james.mailbox.store.mail.UidProvider;
 import org.apache.james.mailbox.store.mail.model.Mailbox;
 import org.apache.james.mailbox.store.mail.model.Message;
 import org.apache.openjpa.persistence.ArgumentException;
+import org.apache.openjpa.persistence.FetchPlan;
+import org.apache.openjpa.persistence.OpenJPAEntityManager;
+import org.apache.openjpa.persistence.OpenJPAPersistence;
 
 /**
  * JPA implementation of a {@link MessageMapper}. This class is not thread-safe!
  */
 public class JPAMessageMapper extends AbstractMessageMapper<JPAId> implements MessageMapper<JPAId> {
+    /** The entities which may be mapped to "Message", they all declare the content fields */
+    private static final Class<?>[] MESSAGE_TYPES = { JPAMessage.class, JPAStreamingMessage.class, JPAEncryptedMessage.class };
+
+    /** The system flags in the order of their columns in the "findFlagsInMailboxBetweenUIDs" query */
+    private static final Flags.Flag[] SYSTEM_FLAGS = { Flags.Flag.ANSWERED, Flags.Flag.DELETED, Flags.Flag.DRAFT,
+            Flags.Flag.FLAGGED, Flags.Flag.RECENT, Flags.Flag.SEEN };
+    private static final String[] SYSTEM_FLAG_FIELDS = { "answered", "deleted", "draft", "flagged", "recent", "seen" };
+
+    /**
+     * Copies the row of a message, the content never leaves the database. The
+     * columns are the ones mapped by {@link AbstractJPAMessage} and the content
+     * fields of its subclasses.
+     */
+    private static final String COPY_MESSAGE_SQL = "INSERT INTO JAMES_MAIL (MAILBOX_ID, MAIL_UID, MAIL_MODSEQ, MAIL_IS_RECENT, "
+            + "MAIL_DATE, MAIL_IS_ANSWERED, MAIL_IS_DELETED, MAIL_IS_DRAFT, MAIL_IS_FLAGGED, MAIL_IS_SEEN, "
+            + "MAIL_BODY_START_OCTET, MAIL_CONTENT_OCTETS_COUNT, MAIL_MIME_TYPE, MAIL_MIME_SUBTYPE, MAIL_TEXTUAL_LINE_COUNT, "
+            + "HEADER_BYTES, MAIL_BYTES) "
+            + "SELECT ?, ?, ?, ?, "
+            + "MAIL_DATE, MAIL_IS_ANSWERED, MAIL_IS_DELETED, MAIL_IS_DRAFT, MAIL_IS_FLAGGED, MAIL_IS_SEEN, "
+            + "MAIL_BODY_START_OCTET, MAIL_CONTENT_OCTETS_COUNT, MAIL_MIME_TYPE, MAIL_MIME_SUBTYPE, MAIL_TEXTUAL_LINE_COUNT, "
+            + "HEADER_BYTES, MAIL_BYTES "
+            + "FROM JAMES_MAIL WHERE MAILBOX_ID = ? AND MAIL_UID = ?";
+
+    /** Maximal number of statements sent in one JDBC batch */
+    private static final int BATCH_SIZE = 100;
+
     protected EntityManagerFactory entityManagerFactory;
     protected EntityManager entityManager;
 
+    private final UidProvider<JPAId> uidProvider;
+    private final ModSeqProvider<JPAId> modSeqProvider;
+
     public JPAMessageMapper(final MailboxSession session, final UidProvider<JPAId> uidProvider,
             ModSeqProvider<JPAId> modSeqProvider, final EntityManagerFactory entityManagerFactory) {
         super(session, uidProvider, modSeqProvider);
         this.entityManagerFactory = entityManagerFactory;
+        this.uidProvider = uidProvider;
+        this.modSeqProvider = modSeqProvider;
     }
 
     /**
@@ -135,16 +177,16 @@ public class JPAMessageMapper extends AbstractMessageMapper<JPAId> implements Me
             switch (type) {
             default:
             case ALL:
-                results = findMessagesInMailbox(mailbox, max);
+                results = findMessagesInMailbox(mailbox, fType, max);
                 break;
             case FROM:
-                results = findMessagesInMailboxAfterUID(mailbox, from, max);
+                results = findMessagesInMailboxAfterUID(mailbox, from, fType, max);
                 break;
             case ONE:
-                results = findMessagesInMailboxWithUID(mailbox, from);
+                results = findMessagesInMailboxWithUID(mailbox, from, fType);
                 break;
             case RANGE:
-                results = findMessagesInMailboxBetweenUIDs(mailbox, from, to, max);
+                results = findMessagesInMailboxBetweenUIDs(mailbox, from, to, fType, max);
                 break;
             }
 
@@ -197,14 +239,14 @@ public class JPAMessageMapper extends AbstractMessageMapper<JPAId> implements Me
     @SuppressWarnings("unchecked")
     public Long findFirstUnseenMessageUid(Mailbox<JPAId> mailbox) throws MailboxException {
         try {
-            Query query = getEntityManager().createNamedQuery("findUnseenMessagesInMailboxOrderByUid").setParameter(
+            Query query = getEntityManager().createNamedQuery("findFirstUnseenMessageUidInMailbox").setParameter(
                     "idParam", mailbox.getMailboxId().getRawId());
             query.setMaxResults(1);
-            List<Message<JPAId>> result = query.getResultList();
+            List<Long> result = query.getResultList();
             if (result.isEmpty()) {
                 return null;
             } else {
-                return result.get(0).getUid();
+                return result.get(0);
             }
         } catch (PersistenceException e) {
             throw new MailboxException("Search of first unseen message failed in mailbox " + mailbox, e);
@@ -275,6 +317,24 @@ public class JPAMessageMapper extends AbstractMessageMapper<JPAId> implements Me
         throw new UnsupportedOperationException("Not implemented - see https://issues.apache.org/jira/browse/IMAP-370");
     }
 
+    /**
+     * @see org.apache.james.mailbox.store.mail.MessageMapper#saveMimeStructure(org.apache.james.mailbox.store.mail.model.Mailbox,
+     *      org.apache.james.mailbox.store.mail.model.Message, byte[])
+     */
+    @Override
+    public void saveMimeStructure(Mailbox<JPAId> mailbox, Message<JPAId> message, byte[] mimeStructure) throws MailboxException {
+        try {
+            AbstractJPAMessage jpaMessage = (AbstractJPAMessage) message;
+            if (!getEntityManager().contains(jpaMessage)) {
+                // changes to a detached message would not be written
+                jpaMessage = getEntityManager().merge(jpaMessage);
+            }
+            jpaMessage.addMimeStructure(mimeStructure);
+        } catch (PersistenceException e) {
+            throw new MailboxException("Save of the MIME structure of message " + message + " failed in mailbox " + mailbox, e);
+        }
+    }
+
     /**
      * @see org.apache.james.mailbox.store.mail.AbstractMessageMapper#copy(Mailbox,
      *      long, long, Message)
@@ -292,6 +352,121 @@ public class JPAMessageMapper extends AbstractMessageMapper<JPAId> implements Me
         return save(mailbox, copy);
     }
 
+    /**
+     * Adding or removing system flags is done with one bulk update of the rows which
+     * change. The {@link UpdatedFlags} are built from the flag columns, so no message
+     * gets loaded. Other updates are left to
+     * {@link AbstractMessageMapper#updateFlags(Mailbox, FlagsUpdateCalculator, MessageRange)}.
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public Iterator<UpdatedFlags> updateFlags(Mailbox<JPAId> mailbox, FlagsUpdateCalculator flagsUpdateCalculator,
+            MessageRange set) throws MailboxException {
+        Flags providedFlags = flagsUpdateCalculator.getProvidedFlags();
+        if (flagsUpdateCalculator.getMode() == FlagsUpdateMode.REPLACE || providedFlags.getUserFlags().length > 0
+                || providedFlags.getSystemFlags().length == 0) {
+            return super.updateFlags(mailbox, flagsUpdateCalculator, set);
+        }
+        try {
+            long from = set.getUidFrom();
+            long to = set.getUidTo();
+            switch (set.getType()) {
+            case ONE:
+                to = from;
+                break;
+            case FROM:
+                to = Long.MAX_VALUE;
+                break;
+            case ALL:
+                from = 0;
+                to = Long.MAX_VALUE;
+                break;
+            default:
+                break;
+            }
+
+            List<Object[]> rows = getEntityManager().createNamedQuery("findFlagsInMailboxBetweenUIDs")
+                    .setParameter("idParam", mailbox.getMailboxId().getRawId()).setParameter("fromParam", from)
+                    .setParameter("toParam", to).getResultList();
+            Map<Long, List<String>> userFlags = findUserFlagsInMailboxBetweenUIDs(mailbox, from, to);
+
+            List<UpdatedFlags> updatedFlags = new ArrayList<UpdatedFlags>(rows.size());
+            boolean changed = false;
+            long modSeq = -1;
+            for (Object[] row : rows) {
+                long uid = (Long) row[0];
+                long messageModSeq = (Long) row[1];
+                Flags originalFlags = new Flags();
+                for (int i = 0; i < SYSTEM_FLAGS.length; i++) {
+                    if ((Boolean) row[i + 2]) {
+                        originalFlags.add(SYSTEM_FLAGS[i]);
+                    }
+                }
+                List<String> names = userFlags.get(uid);
+                if (names != null) {
+                    for (String name : names) {
+                        originalFlags.add(name);
+                    }
+                }
+                Flags newFlags = flagsUpdateCalculator.buildNewFlags(originalFlags);
+                if (UpdatedFlags.flagsChanged(originalFlags, newFlags)) {
+                    if (!changed && modSeqProvider != null) {
+                        modSeq = modSeqProvider.nextModSeq(mailboxSession, mailbox);
+                    }
+                    changed = true;
+                    messageModSeq = modSeq;
+                }
+                updatedFlags.add(new UpdatedFlags(uid, messageModSeq, originalFlags, newFlags));
+            }
+
+            if (changed) {
+                updateSystemFlags(mailbox, from, to, providedFlags, flagsUpdateCalculator.getMode() == FlagsUpdateMode.ADD, modSeq);
+            }
+            return updatedFlags.iterator();
+        } catch (PersistenceException e) {
+            throw new MailboxException("Update of flags failed for MessageRange " + set + " in mailbox " + mailbox, e);
+        }
+    }
+
+    /**
+     * Copies the rows of the originals with batched INSERT ... SELECT statements,
+     * so the content is neither loaded nor written again. The user flags and
+     * properties of the originals are then added to the loaded copies.
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public List<MessageMetaData> copy(Mailbox<JPAId> mailbox, List<Message<JPAId>> originals) throws MailboxException {
+        final List<MessageMetaData> metaData = new ArrayList<MessageMetaData>(originals.size());
+        if (originals.isEmpty()) {
+            return metaData;
+        }
+        long firstUid = uidProvider.nextUids(mailboxSession, mailbox, originals.size());
+        long modSeq = -1;
+        if (modSeqProvider != null) {
+            modSeq = modSeqProvider.nextModSeqs(mailboxSession, mailbox, originals.size());
+        }
+        try {
+            insertCopies(mailbox, firstUid, modSeq, originals);
+
+            Query query = withFetchPlan(getEntityManager().createNamedQuery("findMessagesInMailboxBetweenUIDs"), FetchType.Metadata)
+                    .setParameter("idParam", mailbox.getMailboxId().getRawId()).setParameter("fromParam", firstUid)
+                    .setParameter("toParam", firstUid + originals.size() - 1);
+            OpenJPAPersistence.cast(query).getFetchPlan().addField(AbstractJPAMessage.class, "properties");
+            for (AbstractJPAMessage copy : (List<AbstractJPAMessage>) query.getResultList()) {
+                Message<JPAId> original = originals.get((int) (copy.getUid() - firstUid));
+                if (original.createFlags().getUserFlags().length > 0 || !original.getProperties().isEmpty()) {
+                    copy.copyUserFlagsAndProperties(original);
+                }
+                metaData.add(new SimpleMessageMetaData(copy));
+            }
+            return metaData;
+        } catch (SQLException e) {
+            throw new MailboxException("Copy of messages failed in mailbox " + mailbox, e);
+        } catch (PersistenceException e) {
+            throw new MailboxException("Copy of messages failed in mailbox " + mailbox, e);
+        }
+    }
+
     /**
      * @see org.apache.james.mailbox.store.mail.AbstractMessageMapper#save(Mailbox,
      *      Message)
@@ -317,8 +492,8 @@ public class JPAMessageMapper extends AbstractMessageMapper<JPAId> implements Me
     }
 
     @SuppressWarnings("unchecked")
-    private List<Message<JPAId>> findMessagesInMailboxAfterUID(Mailbox<JPAId> mailbox, long uid, int batchSize) {
-        Query query = getEntityManager().createNamedQuery("findMessagesInMailboxAfterUID")
+    private List<Message<JPAId>> findMessagesInMailboxAfterUID(Mailbox<JPAId> mailbox, long uid, FetchType fType, int batchSize) {
+        Query query = withFetchPlan(getEntityManager().createNamedQuery("findMessagesInMailboxAfterUID"), fType)
                 .setParameter("idParam", mailbox.getMailboxId().getRawId()).setParameter("uidParam", uid);
 
         if (batchSize > 0)
@@ -328,16 +503,16 @@ public class JPAMessageMapper extends AbstractMessageMapper<JPAId> implements Me
     }
 
     @SuppressWarnings("unchecked")
-    private List<Message<JPAId>> findMessagesInMailboxWithUID(Mailbox<JPAId> mailbox, long uid) {
-        return getEntityManager().createNamedQuery("findMessagesInMailboxWithUID")
+    private List<Message<JPAId>> findMessagesInMailboxWithUID(Mailbox<JPAId> mailbox, long uid, FetchType fType) {
+        return withFetchPlan(getEntityManager().createNamedQuery("findMessagesInMailboxWithUID"), fType)
                 .setParameter("idParam", mailbox.getMailboxId().getRawId()).setParameter("uidParam", uid).setMaxResults(1)
                 .getResultList();
     }
 
     @SuppressWarnings("unchecked")
     private List<Message<JPAId>> findMessagesInMailboxBetweenUIDs(Mailbox<JPAId> mailbox, long from, long to,
-            int batchSize) {
-        Query query = getEntityManager().createNamedQuery("findMessagesInMailboxBetweenUIDs")
+            FetchType fType, int batchSize) {
+        Query query = withFetchPlan(getEntityManager().createNamedQuery("findMessagesInMailboxBetweenUIDs"), fType)
                 .setParameter("idParam", mailbox.getMailboxId().getRawId()).setParameter("fromParam", from)
                 .setParameter("toParam", to);
 
@@ -348,8 +523,8 @@ public class JPAMessageMapper extends AbstractMessageMapper<JPAId> implements Me
     }
 
     @SuppressWarnings("unchecked")
-    private List<Message<JPAId>> findMessagesInMailbox(Mailbox<JPAId> mailbox, int batchSize) {
-        Query query = getEntityManager().createNamedQuery("findMessagesInMailbox").setParameter("idParam",
+    private List<Message<JPAId>> findMessagesInMailbox(Mailbox<JPAId> mailbox, FetchType fType, int batchSize) {
+        Query query = withFetchPlan(getEntityManager().createNamedQuery("findMessagesInMailbox"), fType).setParameter("idParam",
                 mailbox.getMailboxId().getRawId());
         if (batchSize > 0)
             query.setMaxResults(batchSize);
@@ -388,27 +563,158 @@ public class JPAMessageMapper extends AbstractMessageMapper<JPAId> implements Me
 
     @SuppressWarnings("unchecked")
     private List<Message<JPAId>> findDeletedMessagesInMailbox(Mailbox<JPAId> mailbox) {
-        return getEntityManager().createNamedQuery("findDeletedMessagesInMailbox")
+        return withFetchPlan(getEntityManager().createNamedQuery("findDeletedMessagesInMailbox"), FetchType.Metadata)
                 .setParameter("idParam", mailbox.getMailboxId().getRawId()).getResultList();
     }
 
     @SuppressWarnings("unchecked")
     private List<Message<JPAId>> findDeletedMessagesInMailboxAfterUID(Mailbox<JPAId> mailbox, long uid) {
-        return getEntityManager().createNamedQuery("findDeletedMessagesInMailboxAfterUID")
+        return withFetchPlan(getEntityManager().createNamedQuery("findDeletedMessagesInMailboxAfterUID"), FetchType.Metadata)
                 .setParameter("idParam", mailbox.getMailboxId().getRawId()).setParameter("uidParam", uid).getResultList();
     }
 
     @SuppressWarnings("unchecked")
     private List<Message<JPAId>> findDeletedMessagesInMailboxWithUID(Mailbox<JPAId> mailbox, long uid) {
-        return getEntityManager().createNamedQuery("findDeletedMessagesInMailboxWithUID")
+        return withFetchPlan(getEntityManager().createNamedQuery("findDeletedMessagesInMailboxWithUID"), FetchType.Metadata)
                 .setParameter("idParam", mailbox.getMailboxId().getRawId()).setParameter("uidParam", uid).setMaxResults(1)
                 .getResultList();
     }
 
     @SuppressWarnings("unchecked")
     private List<Message<JPAId>> findDeletedMessagesInMailboxBetweenUIDs(Mailbox<JPAId> mailbox, long from, long to) {
-        return getEntityManager().createNamedQuery("findDeletedMessagesInMailboxBetweenUIDs")
+        return withFetchPlan(getEntityManager().createNamedQuery("findDeletedMessagesInMailboxBetweenUIDs"), FetchType.Metadata)
                 .setParameter("idParam", mailbox.getMailboxId().getRawId()).setParameter("fromParam", from)
                 .setParameter("toParam", to).getResultList();
     }
+
+    @SuppressWarnings("unchecked")
+    private Map<Long, List<String>> findUserFlagsInMailboxBetweenUIDs(Mailbox<JPAId> mailbox, long from, long to) {
+        List<Object[]> rows = getEntityManager().createNamedQuery("findUserFlagsInMailboxBetweenUIDs")
+                .setParameter("idParam", mailbox.getMailboxId().getRawId()).setParameter("fromParam", from)
+                .setParameter("toParam", to).getResultList();
+        Map<Long, List<String>> userFlags = new HashMap<Long, List<String>>();
+        for (Object[] row : rows) {
+            List<String> names = userFlags.get(row[0]);
+            if (names == null) {
+                names = new ArrayList<String>();
+                userFlags.put((Long) row[0], names);
+            }
+            names.add((String) row[1]);
+        }
+        return userFlags;
+    }
+
+    /**
+     * Set or clear the provided system flags on all messages of the range which do
+     * not have them yet, in one bulk update. Messages of the range which are managed
+     * by the {@link EntityManager} get evicted, as their state is outdated then.
+     */
+    private int updateSystemFlags(Mailbox<JPAId> mailbox, long from, long to, Flags flags, boolean value, long modSeq) {
+        StringBuilder assignments = new StringBuilder();
+        StringBuilder conditions = new StringBuilder();
+        for (int i = 0; i < SYSTEM_FLAGS.length; i++) {
+            if (flags.contains(SYSTEM_FLAGS[i])) {
+                assignments.append(", message.").append(SYSTEM_FLAG_FIELDS[i]).append(" = :flagParam");
+                if (conditions.length() > 0) {
+                    conditions.append(" OR ");
+                }
+                conditions.append("message.").append(SYSTEM_FLAG_FIELDS[i]).append(" <> :flagParam");
+            }
+        }
+        int updated = getEntityManager().createQuery("UPDATE Message message SET message.modSeq = :modSeqParam" + assignments
+                + " WHERE message.mailbox.mailboxId = :idParam AND message.uid BETWEEN :fromParam AND :toParam AND ("
+                + conditions + ")")
+                .setParameter("modSeqParam", modSeq).setParameter("flagParam", value)
+                .setParameter("idParam", mailbox.getMailboxId().getRawId()).setParameter("fromParam", from)
+                .setParameter("toParam", to).executeUpdate();
+
+        OpenJPAEntityManager entityManager = OpenJPAPersistence.cast(getEntityManager());
+        List<Object> outdated = new ArrayList<Object>();
+        for (Object managed : entityManager.getManagedObjects()) {
+            if (managed instanceof AbstractJPAMessage) {
+                AbstractJPAMessage message = (AbstractJPAMessage) managed;
+                if (message.getMailboxId().getRawId() == mailbox.getMailboxId().getRawId()
+                        && message.getUid() >= from && message.getUid() <= to) {
+                    outdated.add(message);
+                }
+            }
+        }
+        entityManager.evictAll(outdated);
+        return updated;
+    }
+
+    /**
+     * Insert the copies of the originals, using consecutive uids from the given one.
+     * Pending changes are flushed first, so that the statements see them.
+     */
+    private void insertCopies(Mailbox<JPAId> mailbox, long uid, long modSeq, List<Message<JPAId>> originals) throws SQLException {
+        EntityManager entityManager = getEntityManager();
+        entityManager.flush();
+        Connection connection = (Connection) OpenJPAPersistence.cast(entityManager).getConnection();
+        try {
+            PreparedStatement statement = connection.prepareStatement(COPY_MESSAGE_SQL);
+            try {
+                int batched = 0;
+                for (Message<JPAId> original : originals) {
+                    statement.setLong(1, mailbox.getMailboxId().getRawId());
+                    statement.setLong(2, uid++);
+                    statement.setLong(3, modSeq);
+                    // A copy of a message is recent
+                    // See MAILBOX-85
+                    statement.setBoolean(4, true);
+                    statement.setLong(5, original.getMailboxId().getRawId());
+                    statement.setLong(6, original.getUid());
+                    statement.addBatch();
+                    if (++batched == BATCH_SIZE) {
+                        statement.executeBatch();
+                        batched = 0;
+                    }
+                    if (modSeqProvider != null) {
+                        modSeq++;
+                    }
+                }
+                if (batched > 0) {
+                    statement.executeBatch();
+                }
+            } finally {
+                statement.close();
+            }
+        } finally {
+            connection.close();
+        }
+    }
+
+    /**
+     * Add the fields needed for the given {@link FetchType} to the fetch plan of the query.
+     * The header and body LOBs and the properties are lazy and only loaded by the
+     * fetch types which read them, the user flags are always needed to build the flags.
+     */
+    private Query withFetchPlan(Query query, FetchType fType) {
+        FetchPlan plan = OpenJPAPersistence.cast(query).getFetchPlan();
+        plan.addField(AbstractJPAMessage.class, "userFlags");
+        switch (fType) {
+        case Full:
+            plan.addField(AbstractJPAMessage.class, "properties");
+            addContentField(plan, "header");
+            addContentField(plan, "body");
+            break;
+        case Headers:
+            plan.addField(AbstractJPAMessage.class, "properties");
+            addContentField(plan, "header");
+            break;
+        case Body:
+            addContentField(plan, "body");
+            break;
+        case Metadata:
+        default:
+            break;
+        }
+        return query;
+    }
+
+    private void addContentField(FetchPlan plan, String field) {
+        for (Class<?> type : MESSAGE_TYPES) {
+            plan.addField(type, field);
+        }
+    }
 }
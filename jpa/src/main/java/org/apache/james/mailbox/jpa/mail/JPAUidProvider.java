@@ -63,12 +63,17 @@ public class JPAUidProvider extends AbstractLockingUidProvider<JPAId> {
 
     @Override
     protected long lockedNextUid(MailboxSession session, Mailbox<JPAId> mailbox) throws MailboxException {
+        return lockedNextUids(session, mailbox, 1);
+    }
+
+    @Override
+    protected long lockedNextUids(MailboxSession session, Mailbox<JPAId> mailbox, int count) throws MailboxException {
         EntityManager manager = null;
         try {
             manager = factory.createEntityManager();
             manager.getTransaction().begin();
             JPAMailbox m = manager.find(JPAMailbox.class, mailbox.getMailboxId().getRawId());
-            long uid = m.consumeUid();
+            long uid = m.consumeUids(count);
             manager.persist(m);
             manager.getTransaction().commit();
             return uid;
@@ -215,6 +215,28 @@ public class JPAMailbox implements Mailbox<JPAId> {
     public long consumeModSeq() {
         return ++highestModSeq;
     }
+
+    /**
+     * Consume <code>count</code> uids at once
+     * 
+     * @return the first consumed uid
+     */
+    public long consumeUids(int count) {
+        long first = lastUid + 1;
+        lastUid += count;
+        return first;
+    }
+
+    /**
+     * Consume <code>count</code> mod-sequences at once
+     * 
+     * @return the first consumed mod-sequence
+     */
+    public long consumeModSeqs(int count) {
+        long first = highestModSeq + 1;
+        highestModSeq += count;
+        return first;
+    }
     
     /* (non-Javadoc)
      * @see org.apache.james.mailbox.store.mail.model.Mailbox#getACL()
@@ -18,6 +18,9 @@
  ****************************************************************/
 package org.apache.james.mailbox.jpa.mail.model.openjpa;
 
+import static org.apache.james.mailbox.store.mail.model.StandardNames.MIME_STRUCTURE_NAME;
+import static org.apache.james.mailbox.store.mail.model.StandardNames.MIME_STRUCTURE_SPACE;
+
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Date;
@@ -57,12 +60,16 @@ import org.apache.openjpa.persistence.jdbc.Index;
 @NamedQueries({
     @NamedQuery(name="findRecentMessageUidsInMailbox",
             query="SELECT message.uid FROM Message message WHERE message.mailbox.mailboxId = :idParam AND message.recent = TRUE ORDER BY message.uid ASC"),
-    @NamedQuery(name="findUnseenMessagesInMailboxOrderByUid",
-            query="SELECT message FROM Message message WHERE message.mailbox.mailboxId = :idParam AND message.seen = FALSE ORDER BY message.uid ASC"),
+    @NamedQuery(name="findFirstUnseenMessageUidInMailbox",
+            query="SELECT message.uid FROM Message message WHERE message.mailbox.mailboxId = :idParam AND message.seen = FALSE ORDER BY message.uid ASC"),
     @NamedQuery(name="findMessagesInMailbox",
             query="SELECT message FROM Message message WHERE message.mailbox.mailboxId = :idParam ORDER BY message.uid ASC"),
     @NamedQuery(name="findMessagesInMailboxBetweenUIDs",
             query="SELECT message FROM Message message WHERE message.mailbox.mailboxId = :idParam AND message.uid BETWEEN :fromParam AND :toParam ORDER BY message.uid ASC"),
+    @NamedQuery(name="findFlagsInMailboxBetweenUIDs",
+            query="SELECT message.uid, message.modSeq, message.answered, message.deleted, message.draft, message.flagged, message.recent, message.seen FROM Message message WHERE message.mailbox.mailboxId = :idParam AND message.uid BETWEEN :fromParam AND :toParam ORDER BY message.uid ASC"),
+    @NamedQuery(name="findUserFlagsInMailboxBetweenUIDs",
+            query="SELECT message.uid, flag.name FROM Message message JOIN message.userFlags flag WHERE message.mailbox.mailboxId = :idParam AND message.uid BETWEEN :fromParam AND :toParam ORDER BY message.uid ASC, flag.id ASC"),
     @NamedQuery(name="findMessagesInMailboxWithUID",
             query="SELECT message FROM Message message WHERE message.mailbox.mailboxId = :idParam AND message.uid=:uidParam ORDER BY message.uid ASC"),
     @NamedQuery(name="findMessagesInMailboxAfterUID",
@@ -231,14 +238,15 @@ public abstract class AbstractJPAMessage extends AbstractMessage<JPAId> {
     private Long textualLineCount;
     
 
-    /** Meta data for this message */
-    @OneToMany(cascade = CascadeType.ALL, fetch=FetchType.EAGER)
+    /** Meta data for this message. Lazy loaded, only added to the fetch plan by the fetch types which need it */
+    @OneToMany(cascade = CascadeType.ALL, fetch=FetchType.LAZY)
     @OrderBy("line")
     @ElementJoinColumns({@ElementJoinColumn(name="MAILBOX_ID", referencedColumnName="MAILBOX_ID"),
                 @ElementJoinColumn(name="MAIL_UID", referencedColumnName="MAIL_UID")})
     private List<JPAProperty> properties;
 
-    @OneToMany(cascade = CascadeType.ALL, fetch=FetchType.EAGER, orphanRemoval = true)
+    /** User flags of this message. Lazy loaded, always added to the fetch plan of the message mapper */
+    @OneToMany(cascade = CascadeType.ALL, fetch=FetchType.LAZY, orphanRemoval = true)
     @OrderBy("id")
     @ElementJoinColumns({@ElementJoinColumn(name="MAILBOX_ID", referencedColumnName="MAILBOX_ID"),
     @ElementJoinColumn(name="MAIL_UID", referencedColumnName="MAIL_UID")})
@@ -512,6 +520,48 @@ public abstract class AbstractJPAMessage extends AbstractMessage<JPAId> {
         }
     }
 
+    /**
+     * Takes over the user flags and the properties of the given message. Used for
+     * copies whose row was inserted directly in the database, which does not cover
+     * the user flag and property tables.
+     * 
+     * @param original message the copy was made from, not null
+     */
+    public void copyUserFlagsAndProperties(Message<?> original) {
+        String[] userflags = original.createFlags().getUserFlags();
+        userFlags.clear();
+        for (int i = 0 ; i< userflags.length; i++) {
+            userFlags.add(new JPAUserFlag(userflags[i]));
+        }
+        final List<Property> properties = new PropertyBuilder(original.getProperties()).toProperties();
+        this.properties.clear();
+        int order = 0;
+        for (final Property property:properties) {
+            this.properties.add(new JPAProperty(property, order++));
+        }
+    }
+
+    /**
+     * Adds the MIME structure to the properties of a message stored without one.
+     * Nothing is done if the message has a MIME structure already.
+     * 
+     * @param mimeStructure the structure, not null
+     */
+    public void addMimeStructure(byte[] mimeStructure) {
+        if (!new PropertyBuilder(getProperties()).getValues(MIME_STRUCTURE_SPACE, MIME_STRUCTURE_NAME).isEmpty()) {
+            return;
+        }
+        final PropertyBuilder builder = new PropertyBuilder();
+        builder.setMimeStructure(mimeStructure);
+        int order = 0;
+        for (final JPAProperty property:properties) {
+            order = Math.max(order, property.getOrder() + 1);
+        }
+        for (final Property property:builder.toProperties()) {
+            this.properties.add(new JPAProperty(property, order++));
+        }
+    }
+
     /**
      * Utility getter on Mailbox.
      */
@@ -0,0 +1,342 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailbox.jpa.mail.model.openjpa;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Authenticated encryption of message content in independent chunks, so that the
+ * content can be decrypted as a stream and any position can be reached without
+ * decrypting the chunks before it.
+ * <p>
+ * The encrypted form starts with a header: the magic bytes <code>JMEC</code>, a
+ * version byte, the chunk size and a random nonce. The chunks follow, each one
+ * made of the AES/CTR encrypted plain text and a HMAC-SHA256 tag, truncated to
+ * {@value #TAG_LENGTH} bytes. The tag covers the header, the chunk index, whether
+ * it is the last chunk and the encrypted bytes, so chunks can neither be modified,
+ * reordered nor dropped. Every chunk but the last holds exactly chunk size bytes.
+ * <p>
+ * Instances are thread-safe. {@link Cipher}s and {@link Mac}s are not, they are
+ * kept in pools and reused.
+ */
+public class ChunkedEncryption {
+
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+    private static final byte[] MAGIC = { 'J', 'M', 'E', 'C' };
+    private static final byte VERSION = 1;
+    private static final int NONCE_LENGTH = 8;
+    private static final int HEADER_LENGTH = MAGIC.length + 1 + 4 + NONCE_LENGTH;
+    private static final int TAG_LENGTH = 16;
+
+    private static final String CIPHER = "AES/CTR/NoPadding";
+    private static final String MAC = "HmacSHA256";
+    private static final String KEY_DERIVATION = "PBKDF2WithHmacSHA1";
+    private static final byte[] KEY_DERIVATION_SALT = { 'j', 'a', 'm', 'e', 's', '-', 'm', 'a', 'i', 'l', 'b', 'o', 'x', '-', 'j', 'p', 'a' };
+    private static final int KEY_DERIVATION_ITERATIONS = 10000;
+    private static final int POOL_SIZE = 4 * Runtime.getRuntime().availableProcessors();
+
+    private final SecretKeySpec cipherKey;
+    private final SecretKeySpec macKey;
+    private final int chunkSize;
+    private final SecureRandom random = new SecureRandom();
+    private final BlockingQueue<Cipher> ciphers = new ArrayBlockingQueue<Cipher>(POOL_SIZE);
+    private final BlockingQueue<Mac> macs = new ArrayBlockingQueue<Mac>(POOL_SIZE);
+
+    public ChunkedEncryption(String password) {
+        this(password, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @param password The password the keys are derived from
+     * @param chunkSize The number of plain text bytes per chunk of newly encrypted content
+     */
+    public ChunkedEncryption(String password, int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Chunk size must be positive");
+        }
+        this.chunkSize = chunkSize;
+        try {
+            byte[] keys = SecretKeyFactory.getInstance(KEY_DERIVATION).generateSecret(
+                    new PBEKeySpec(password.toCharArray(), KEY_DERIVATION_SALT, KEY_DERIVATION_ITERATIONS, 256)).getEncoded();
+            this.cipherKey = new SecretKeySpec(keys, 0, 16, "AES");
+            this.macKey = new SecretKeySpec(keys, 16, 16, MAC);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Unable to derive the encryption keys", e);
+        }
+    }
+
+    /**
+     * Tests whether the given bytes are content encrypted by this class, as
+     * opposed to content written by former releases.
+     */
+    public static boolean isChunked(byte[] data) {
+        if (data == null || data.length < HEADER_LENGTH || data[MAGIC.length] != VERSION) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (data[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Encrypt the whole given stream. Only the encrypted form and one chunk of
+     * plain text are held in memory.
+     * 
+     * @param in plain text, not closed by this method
+     * @return encrypted content
+     * @throws IOException
+     */
+    public byte[] encrypt(InputStream in) throws IOException {
+        byte[] header = new byte[HEADER_LENGTH];
+        System.arraycopy(MAGIC, 0, header, 0, MAGIC.length);
+        header[MAGIC.length] = VERSION;
+        writeInt(header, MAGIC.length + 1, chunkSize);
+        byte[] nonce = new byte[NONCE_LENGTH];
+        random.nextBytes(nonce);
+        System.arraycopy(nonce, 0, header, MAGIC.length + 5, NONCE_LENGTH);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(header);
+        Cipher cipher = borrowCipher();
+        Mac mac = borrowMac();
+        try {
+            byte[] chunk = new byte[chunkSize];
+            byte[] next = new byte[1];
+            int length = readFully(in, chunk, 0, chunkSize);
+            boolean last = length < chunkSize || in.read(next) < 0;
+            int index = 0;
+            while (true) {
+                cipher.init(Cipher.ENCRYPT_MODE, cipherKey, iv(header, index));
+                byte[] encrypted = cipher.doFinal(chunk, 0, length);
+                out.write(encrypted);
+                out.write(tag(mac, header, index, last, encrypted, 0, encrypted.length));
+                if (last) {
+                    break;
+                }
+                chunk[0] = next[0];
+                length = 1 + readFully(in, chunk, 1, chunkSize - 1);
+                last = length < chunkSize || in.read(next) < 0;
+                index++;
+            }
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Unable to encrypt content", e);
+        } finally {
+            releaseCipher(cipher);
+            releaseMac(mac);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Return a stream of the decrypted content. Chunks are decrypted and verified
+     * when they are read, {@link InputStream#skip(long)} does not decrypt the
+     * chunks it skips.
+     * 
+     * @param data content encrypted by {@link #encrypt(InputStream)}
+     */
+    public InputStream decrypt(byte[] data) throws IOException {
+        if (!isChunked(data) || data.length < HEADER_LENGTH + TAG_LENGTH) {
+            throw new IOException("Content is not chunk encrypted");
+        }
+        return new DecryptingInputStream(data);
+    }
+
+    /**
+     * Return the length of the plain text of encrypted content
+     */
+    public static long getPlainTextLength(byte[] data) {
+        int chunkSize = readInt(data, MAGIC.length + 1);
+        long payload = data.length - HEADER_LENGTH;
+        long chunks = (payload + chunkSize + TAG_LENGTH - 1) / (chunkSize + TAG_LENGTH);
+        return payload - chunks * TAG_LENGTH;
+    }
+
+    private Cipher borrowCipher() throws IOException {
+        Cipher cipher = ciphers.poll();
+        if (cipher == null) {
+            try {
+                cipher = Cipher.getInstance(CIPHER);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Unable to create cipher", e);
+            }
+        }
+        return cipher;
+    }
+
+    private void releaseCipher(Cipher cipher) {
+        ciphers.offer(cipher);
+    }
+
+    private Mac borrowMac() throws IOException {
+        Mac mac = macs.poll();
+        if (mac == null) {
+            try {
+                mac = Mac.getInstance(MAC);
+                mac.init(macKey);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Unable to create mac", e);
+            }
+        }
+        return mac;
+    }
+
+    private void releaseMac(Mac mac) {
+        macs.offer(mac);
+    }
+
+    private static IvParameterSpec iv(byte[] header, int index) {
+        byte[] iv = new byte[16];
+        System.arraycopy(header, MAGIC.length + 5, iv, 0, NONCE_LENGTH);
+        writeInt(iv, NONCE_LENGTH, index);
+        return new IvParameterSpec(iv);
+    }
+
+    private static byte[] tag(Mac mac, byte[] header, int index, boolean last, byte[] data, int offset, int length) {
+        byte[] position = new byte[5];
+        writeInt(position, 0, index);
+        position[4] = (byte) (last ? 1 : 0);
+        mac.update(header, 0, HEADER_LENGTH);
+        mac.update(position);
+        mac.update(data, offset, length);
+        return Arrays.copyOf(mac.doFinal(), TAG_LENGTH);
+    }
+
+    private static int readFully(InputStream in, byte[] buffer, int offset, int length) throws IOException {
+        int read = 0;
+        while (read < length) {
+            int count = in.read(buffer, offset + read, length - read);
+            if (count < 0) {
+                break;
+            }
+            read += count;
+        }
+        return read;
+    }
+
+    private static void writeInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    private static int readInt(byte[] buffer, int offset) {
+        return ((buffer[offset] & 0xff) << 24) | ((buffer[offset + 1] & 0xff) << 16)
+                | ((buffer[offset + 2] & 0xff) << 8) | (buffer[offset + 3] & 0xff);
+    }
+
+    /**
+     * Decrypts the chunk holding the current position on demand
+     */
+    private final class DecryptingInputStream extends InputStream {
+        private final byte[] data;
+        private final int chunkSize;
+        private final long length;
+        private final int chunks;
+        private long position = 0;
+        private int chunkIndex = -1;
+        private byte[] chunk;
+        private final byte[] single = new byte[1];
+
+        private DecryptingInputStream(byte[] data) {
+            this.data = data;
+            this.chunkSize = readInt(data, MAGIC.length + 1);
+            this.length = getPlainTextLength(data);
+            this.chunks = (int) ((data.length - HEADER_LENGTH + chunkSize + TAG_LENGTH - 1) / (chunkSize + TAG_LENGTH));
+        }
+
+        @Override
+        public int read() throws IOException {
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (position >= length) {
+                return -1;
+            }
+            int index = (int) (position / chunkSize);
+            if (index != chunkIndex) {
+                chunk = decryptChunk(index);
+                chunkIndex = index;
+            }
+            int offsetInChunk = (int) (position - (long) index * chunkSize);
+            int count = Math.min(len, chunk.length - offsetInChunk);
+            System.arraycopy(chunk, offsetInChunk, b, off, count);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public long skip(long n) {
+            long skipped = Math.max(0, Math.min(n, length - position));
+            position += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, length - position);
+        }
+
+        private byte[] decryptChunk(int index) throws IOException {
+            int offset = HEADER_LENGTH + index * (chunkSize + TAG_LENGTH);
+            boolean last = index == chunks - 1;
+            int encryptedLength = (last ? data.length - offset : chunkSize + TAG_LENGTH) - TAG_LENGTH;
+            Cipher cipher = borrowCipher();
+            Mac mac = borrowMac();
+            try {
+                byte[] expected = tag(mac, data, index, last, data, offset, encryptedLength);
+                byte[] actual = Arrays.copyOfRange(data, offset + encryptedLength, offset + encryptedLength + TAG_LENGTH);
+                if (!MessageDigest.isEqual(expected, actual)) {
+                    throw new IOException("Chunk " + index + " of the encrypted content failed verification");
+                }
+                cipher.init(Cipher.DECRYPT_MODE, cipherKey, iv(data, index));
+                return cipher.doFinal(data, offset, encryptedLength);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Unable to decrypt chunk " + index, e);
+            } finally {
+                releaseCipher(cipher);
+                releaseMac(mac);
+            }
+        }
+    }
+}
@@ -23,6 +23,9 @@ import org.jasypt.encryption.pbe.StandardPBEByteEncryptor;
 /**
  * Helper class for encrypt and de-crypt data
  * 
+ * New content is encrypted with the {@link ChunkedEncryption}, the
+ * {@link StandardPBEByteEncryptor} is kept to read the content written
+ * by former releases.
  *
  */
 public class EncryptDecryptHelper {    
@@ -30,10 +33,12 @@ public class EncryptDecryptHelper {
     // Use one static instance as it is thread safe
     private static StandardPBEByteEncryptor encryptor = new StandardPBEByteEncryptor();
     
+    private static ChunkedEncryption chunkedEncryption;
     
     /**
      * Set the password for encrypt / de-crypt. This MUST be done before
-     * the usage of {@link #getDecrypted(byte[])} and {@link #getEncrypted(byte[])}.
+     * the usage of {@link #getDecrypted(byte[])}, {@link #getEncrypted(byte[])}
+     * and {@link #getChunkedEncryption()}.
      * 
      * So to be safe its the best to call this in a constructor
      * 
@@ -41,6 +46,19 @@ public class EncryptDecryptHelper {
      */
     public static void init(String pass) {
         encryptor.setPassword(pass);
+        chunkedEncryption = new ChunkedEncryption(pass);
+    }
+
+    /**
+     * Return the {@link ChunkedEncryption} used for new content
+     * 
+     * @return chunkedEncryption
+     */
+    public static ChunkedEncryption getChunkedEncryption() {
+        if (chunkedEncryption == null) {
+            throw new IllegalStateException("EncryptDecryptHelper was not initialized");
+        }
+        return chunkedEncryption;
     }
 
     /**
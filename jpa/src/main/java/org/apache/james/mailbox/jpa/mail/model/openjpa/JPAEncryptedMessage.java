@@ -32,14 +32,17 @@ import javax.persistence.FetchType;
 import javax.persistence.Lob;
 import javax.persistence.Table;
 
-import org.apache.commons.io.IOUtils;
 import org.apache.james.mailbox.exception.MailboxException;
 import org.apache.james.mailbox.jpa.mail.model.JPAMailbox;
 import org.apache.james.mailbox.store.mail.model.Message;
 import org.apache.james.mailbox.store.mail.model.impl.PropertyBuilder;
-import org.apache.openjpa.persistence.Externalizer;
-import org.apache.openjpa.persistence.Factory;
 
+/**
+ * Message whose header and body are stored encrypted. New content is encrypted
+ * with the {@link ChunkedEncryption}, so it gets decrypted while it is streamed.
+ * Content written by former releases is encrypted as a whole, it is still read
+ * and can be converted with {@link #migrateContent()}.
+ */
 @Entity(name="Message")
 @Table(name="JAMES_MAIL")
 public class JPAEncryptedMessage extends AbstractJPAMessage {
@@ -48,8 +51,6 @@ public class JPAEncryptedMessage extends AbstractJPAMessage {
         /** We use a max length to represent 1gb data. Thats prolly overkill, but who knows */
         @Basic(optional = false, fetch = FetchType.LAZY)
         @Column(name = "MAIL_BYTES", length = 1048576000, nullable = false)
-        @Externalizer("EncryptDecryptHelper.getEncrypted")
-        @Factory("EncryptDecryptHelper.getDecrypted")
         @Lob private byte[] body;
 
 
@@ -57,9 +58,12 @@ public class JPAEncryptedMessage extends AbstractJPAMessage {
         /** We use a max length to represent 1gb data. Thats prolly overkill, but who knows */
         @Basic(optional = false, fetch = FetchType.LAZY)
         @Column(name = "HEADER_BYTES", length = 10485760, nullable = false)
-        @Externalizer("EncryptDecryptHelper.getEncrypted")
-        @Factory("EncryptDecryptHelper.getDecrypted")
         @Lob private byte[] header;
+
+        /** True once the content is encrypted with the {@link ChunkedEncryption}, null for rows of former releases */
+        @Basic(optional = true)
+        @Column(name = "MAIL_CONTENT_CHUNKED", nullable = true)
+        private Boolean contentChunked;
         
         @Deprecated
         public JPAEncryptedMessage() {}
@@ -71,8 +75,10 @@ public class JPAEncryptedMessage extends AbstractJPAMessage {
                 if (headerEnd < 0) {
                     headerEnd = 0;
                 }
-                this.header = IOUtils.toByteArray(content.newStream(0, headerEnd));
-                this.body = IOUtils.toByteArray(content.newStream(getBodyStartOctet(), -1));
+                ChunkedEncryption encryption = EncryptDecryptHelper.getChunkedEncryption();
+                this.header = encryption.encrypt(content.newStream(0, headerEnd));
+                this.body = encryption.encrypt(content.newStream(getBodyStartOctet(), -1));
+                this.contentChunked = Boolean.TRUE;
 
             } catch (IOException e) {
                 throw new MailboxException("Unable to parse message",e);
@@ -88,8 +94,18 @@ public class JPAEncryptedMessage extends AbstractJPAMessage {
         public JPAEncryptedMessage(JPAMailbox mailbox, long uid, long modSeq, Message<?> message) throws MailboxException{
             super(mailbox, uid, modSeq, message);
             try {
-                this.body = IOUtils.toByteArray(message.getBodyContent());
-                this.header = IOUtils.toByteArray(message.getHeaderContent());
+                if (message instanceof JPAEncryptedMessage) {
+                    // The encrypted content does not depend on the message it belongs to
+                    JPAEncryptedMessage original = (JPAEncryptedMessage) message;
+                    this.body = original.getEncryptedBody();
+                    this.header = original.getEncryptedHeader();
+                    this.contentChunked = original.contentChunked;
+                } else {
+                    ChunkedEncryption encryption = EncryptDecryptHelper.getChunkedEncryption();
+                    this.body = encryption.encrypt(message.getBodyContent());
+                    this.header = encryption.encrypt(message.getHeaderContent());
+                    this.contentChunked = Boolean.TRUE;
+                }
             } catch (IOException e) {
                 throw new MailboxException("Unable to parse message",e);
             }
@@ -100,14 +116,51 @@ public class JPAEncryptedMessage extends AbstractJPAMessage {
          * @see org.apache.james.mailbox.store.mail.model.Message#getBodyContent()
          */
         public InputStream getBodyContent() throws IOException {
-            return new ByteArrayInputStream(body);
+            return decrypt(body);
         }
 
         /**
          * @see org.apache.james.mailbox.store.mail.model.Message#getHeaderContent()
          */
         public InputStream getHeaderContent() throws IOException {
-            return new ByteArrayInputStream(header);
+            return decrypt(header);
+        }
+
+        /**
+         * Re-encrypt content written by former releases with the {@link ChunkedEncryption},
+         * and mark the content as chunked.
+         * 
+         * @return true if the content was re-encrypted, false if it was already chunked
+         * @throws IOException
+         */
+        public boolean migrateContent() throws IOException {
+            boolean migrated = false;
+            ChunkedEncryption encryption = EncryptDecryptHelper.getChunkedEncryption();
+            if (!ChunkedEncryption.isChunked(header)) {
+                header = encryption.encrypt(new ByteArrayInputStream(EncryptDecryptHelper.getDecrypted(header)));
+                migrated = true;
+            }
+            if (!ChunkedEncryption.isChunked(body)) {
+                body = encryption.encrypt(new ByteArrayInputStream(EncryptDecryptHelper.getDecrypted(body)));
+                migrated = true;
+            }
+            contentChunked = Boolean.TRUE;
+            return migrated;
+        }
+
+        private byte[] getEncryptedBody() {
+            return body;
+        }
+
+        private byte[] getEncryptedHeader() {
+            return header;
+        }
+
+        private static InputStream decrypt(byte[] content) throws IOException {
+            if (ChunkedEncryption.isChunked(content)) {
+                return EncryptDecryptHelper.getChunkedEncryption().decrypt(content);
+            }
+            return new ByteArrayInputStream(EncryptDecryptHelper.getDecrypted(content));
         }
 
 }
@@ -59,8 +59,15 @@ public class JPAStreamingMessage extends AbstractJPAMessage {
     @Column(name = "HEADER_BYTES", length = 10485760, nullable = false)
     private InputStream header;
 
+    /** The content of a new message */
     private SharedInputStream content;
 
+    /** The header of a loaded message once it was read */
+    private SharedInputStream headerContent;
+
+    /** The body of a loaded message once it was read */
+    private SharedInputStream bodyContent;
+
     @Deprecated
     public JPAStreamingMessage() {}
 
@@ -86,7 +93,13 @@ public class JPAStreamingMessage extends AbstractJPAMessage {
     public JPAStreamingMessage(JPAMailbox mailbox, long uid, long modSeq, Message<?> message) throws MailboxException {
         super(mailbox, uid, modSeq, message);
         try {
-            this.content = new SharedByteArrayInputStream(IOUtils.toByteArray(message.getFullContent()));
+            InputStream fullContent = message.getFullContent();
+            if (fullContent instanceof SharedInputStream) {
+                // no need to copy content which can be shared
+                this.content = (SharedInputStream) fullContent;
+            } else {
+                this.content = new SharedByteArrayInputStream(IOUtils.toByteArray(fullContent));
+            }
             this.header = getHeaderContent();
             this.body = getBodyContent();
         } catch (IOException e) {
@@ -99,18 +112,43 @@ public class JPAStreamingMessage extends AbstractJPAMessage {
      * @see org.apache.james.mailbox.store.mail.model.Message#getBodyContent()
      */
     public InputStream getBodyContent() throws IOException {
-        return content.newStream(getBodyStartOctet(), -1);
+        if (content != null) {
+            return content.newStream(getBodyStartOctet(), -1);
+        }
+        if (bodyContent == null) {
+            bodyContent = load(body);
+        }
+        return bodyContent.newStream(0, -1);
     }
 
     /**
      * @see org.apache.james.mailbox.store.mail.model.Message#getHeaderContent()
      */
     public InputStream getHeaderContent() throws IOException {
-        int headerEnd = getBodyStartOctet() -2;
-        if (headerEnd < 0) {
-            headerEnd = 0;
+        if (content != null) {
+            int headerEnd = getBodyStartOctet() -2;
+            if (headerEnd < 0) {
+                headerEnd = 0;
+            }
+            return content.newStream(0, headerEnd);
+        }
+        if (headerContent == null) {
+            headerContent = load(header);
+        }
+        return headerContent.newStream(0, -1);
+    }
+
+    /**
+     * Read one of the lazy content columns of a message loaded from the database. They
+     * are read through JDBC on the first access only, as their streams can be consumed
+     * only once, and each one on its own, so reading the headers does not read the body.
+     */
+    private SharedInputStream load(InputStream column) throws IOException {
+        try {
+            return new SharedByteArrayInputStream(IOUtils.toByteArray(column));
+        } finally {
+            IOUtils.closeQuietly(column);
         }
-        return content.newStream(0, headerEnd);
     }
 
 }
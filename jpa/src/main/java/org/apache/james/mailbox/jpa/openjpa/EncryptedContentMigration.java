@@ -0,0 +1,126 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailbox.jpa.openjpa;
+
+import java.io.IOException;
+import java.util.List;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceException;
+import javax.persistence.Query;
+
+import org.apache.james.mailbox.exception.MailboxException;
+import org.apache.james.mailbox.jpa.mail.model.openjpa.ChunkedEncryption;
+import org.apache.james.mailbox.jpa.mail.model.openjpa.EncryptDecryptHelper;
+import org.apache.james.mailbox.jpa.mail.model.openjpa.JPAEncryptedMessage;
+import org.apache.openjpa.persistence.FetchPlan;
+import org.apache.openjpa.persistence.OpenJPAPersistence;
+
+/**
+ * Converts the content of {@link JPAEncryptedMessage}s written by former releases,
+ * which is encrypted as a whole, to the {@link ChunkedEncryption} format. The messages
+ * are processed in batches, each one in its own transaction, so the migration can
+ * run while the server is in use and be resumed after a failure.
+ * <p>
+ * Only the rows which are not marked as chunked are read, in the order of their
+ * primary key: each batch continues after the last (mailbox, uid) of the previous
+ * one, so the database does not need to skip over the rows done before. The
+ * MAIL_CONTENT_CHUNKED column needs to be added to the JAMES_MAIL table first, if
+ * the schema is not synchronized by OpenJPA.
+ * <p>
+ * {@link EncryptDecryptHelper#init(String)} must have been called before.
+ */
+public class EncryptedContentMigration {
+
+    public static final int DEFAULT_BATCH_SIZE = 100;
+
+    private static final String FIND_NOT_MIGRATED_MESSAGES = "SELECT message FROM Message message"
+            + " WHERE (message.contentChunked IS NULL OR message.contentChunked = FALSE)"
+            + " AND (message.mailbox.mailboxId > :mailboxParam"
+            + " OR (message.mailbox.mailboxId = :mailboxParam AND message.uid > :uidParam))"
+            + " ORDER BY message.mailbox.mailboxId ASC, message.uid ASC";
+
+    private final EntityManagerFactory factory;
+    private final int batchSize;
+
+    public EncryptedContentMigration(EntityManagerFactory factory) {
+        this(factory, DEFAULT_BATCH_SIZE);
+    }
+
+    public EncryptedContentMigration(EntityManagerFactory factory, int batchSize) {
+        this.factory = factory;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Migrate all messages
+     * 
+     * @return the number of migrated messages
+     * @throws MailboxException
+     */
+    public long migrate() throws MailboxException {
+        long migrated = 0;
+        long lastMailboxId = -1;
+        long lastUid = -1;
+        while (true) {
+            List<?> messages;
+            EntityManager manager = null;
+            try {
+                manager = factory.createEntityManager();
+                manager.getTransaction().begin();
+                Query query = manager.createQuery(FIND_NOT_MIGRATED_MESSAGES)
+                        .setParameter("mailboxParam", lastMailboxId).setParameter("uidParam", lastUid)
+                        .setMaxResults(batchSize);
+                FetchPlan plan = OpenJPAPersistence.cast(query).getFetchPlan();
+                plan.addField(JPAEncryptedMessage.class, "header");
+                plan.addField(JPAEncryptedMessage.class, "body");
+                messages = query.getResultList();
+                for (Object message : messages) {
+                    JPAEncryptedMessage encrypted = (JPAEncryptedMessage) message;
+                    if (encrypted.migrateContent()) {
+                        migrated++;
+                    }
+                    lastMailboxId = encrypted.getMailboxId().getRawId();
+                    lastUid = encrypted.getUid();
+                }
+                manager.getTransaction().commit();
+            } catch (PersistenceException e) {
+                rollback(manager);
+                throw new MailboxException("Migration of encrypted messages failed after " + migrated + " messages", e);
+            } catch (IOException e) {
+                rollback(manager);
+                throw new MailboxException("Migration of encrypted messages failed after " + migrated + " messages", e);
+            } finally {
+                if (manager != null) {
+                    manager.close();
+                }
+            }
+            if (messages.size() < batchSize) {
+                return migrated;
+            }
+        }
+    }
+
+    private void rollback(EntityManager manager) {
+        if (manager != null && manager.getTransaction().isActive()) {
+            manager.getTransaction().rollback();
+        }
+    }
+}
@@ -0,0 +1,241 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailbox.jpa.mail;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.mail.Flags;
+import javax.mail.util.SharedByteArrayInputStream;
+import javax.persistence.EntityManagerFactory;
+
+import org.apache.james.mailbox.MailboxSession;
+import org.apache.james.mailbox.MessageManager.FlagsUpdateMode;
+import org.apache.james.mailbox.exception.MailboxException;
+import org.apache.james.mailbox.jpa.JPAId;
+import org.apache.james.mailbox.jpa.mail.model.JPAMailbox;
+import org.apache.james.mailbox.jpa.mail.model.JPAProperty;
+import org.apache.james.mailbox.jpa.mail.model.JPAUserFlag;
+import org.apache.james.mailbox.jpa.mail.model.openjpa.AbstractJPAMessage;
+import org.apache.james.mailbox.jpa.mail.model.openjpa.JPAMessage;
+import org.apache.james.mailbox.mock.MockMailboxSession;
+import org.apache.james.mailbox.model.MailboxPath;
+import org.apache.james.mailbox.model.MessageMetaData;
+import org.apache.james.mailbox.model.MessageRange;
+import org.apache.james.mailbox.model.UpdatedFlags;
+import org.apache.james.mailbox.store.FlagsUpdateCalculator;
+import org.apache.james.mailbox.store.JVMMailboxPathLocker;
+import org.apache.james.mailbox.store.mail.MessageMapper.FetchType;
+import org.apache.james.mailbox.store.mail.model.Message;
+import org.apache.james.mailbox.store.mail.model.impl.PropertyBuilder;
+import org.apache.james.mailbox.store.transaction.TransactionalMapper;
+import org.apache.openjpa.persistence.OpenJPAPersistence;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Measures the {@link JPAMessageMapper} operations which work on whole ranges
+ * against the embedded H2: a FETCH FLAGS like scan, which only needs the metadata
+ * fetch plan, STORE +FLAGS / -FLAGS and COPY. The number of messages can be set
+ * with the <code>jpa.benchmark.messages</code> system property.
+ * It only runs with the <code>benchmark</code> profile.
+ */
+public class JPAMessageMapperBenchmarkTest {
+
+    private static final Logger LOG = LoggerFactory.getLogger(JPAMessageMapperBenchmarkTest.class);
+
+    private static final String CONTENT = "Subject: Benchmark\r\n\r\nBody of the benchmark message\r\n";
+    private static final int BODY_START = 22;
+    private static final int BATCH_SIZE = 1000;
+
+    private final MailboxSession session = new MockMailboxSession("benchmark");
+
+    private EntityManagerFactory entityManagerFactory;
+    private JPAMailboxMapper mailboxMapper;
+    private JPAMessageMapper messageMapper;
+    private JPAMailbox mailbox;
+    private int messages;
+
+    @Before
+    public void setUp() throws MailboxException {
+        HashMap<String, String> properties = new HashMap<String, String>();
+        properties.put("openjpa.ConnectionDriverName", "org.h2.Driver");
+        properties.put("openjpa.ConnectionURL", "jdbc:h2:mem:benchmark;DB_CLOSE_DELAY=-1");
+        properties.put("openjpa.Log", "JDBC=WARN, SQL=WARN, Runtime=WARN");
+        properties.put("openjpa.jdbc.SynchronizeMappings", "buildSchema(ForeignKeys=true)");
+        properties.put("openjpa.jdbc.DBDictionary", "batchLimit=100");
+        properties.put("openjpa.MetaDataFactory", "jpa(Types=" +
+                JPAMailbox.class.getName() + ";" +
+                AbstractJPAMessage.class.getName() + ";" +
+                JPAMessage.class.getName() + ";" +
+                JPAProperty.class.getName() + ";" +
+                JPAUserFlag.class.getName() + ")");
+        entityManagerFactory = OpenJPAPersistence.getEntityManagerFactory(properties);
+
+        JVMMailboxPathLocker locker = new JVMMailboxPathLocker();
+        mailboxMapper = new JPAMailboxMapper(entityManagerFactory);
+        messageMapper = new JPAMessageMapper(session, new JPAUidProvider(locker, entityManagerFactory),
+                new JPAModSeqProvider(locker, entityManagerFactory), entityManagerFactory);
+
+        messages = Integer.getInteger("jpa.benchmark.messages", 10000);
+        mailbox = createMailbox("INBOX");
+        for (int i = 0; i < messages; i += BATCH_SIZE) {
+            final int count = Math.min(BATCH_SIZE, messages - i);
+            messageMapper.execute(new TransactionalMapper.VoidTransaction() {
+                public void runVoid() throws MailboxException {
+                    for (int j = 0; j < count; j++) {
+                        messageMapper.add(mailbox, createMessage(j));
+                    }
+                }
+            });
+            messageMapper.endRequest();
+        }
+    }
+
+    @After
+    public void tearDown() throws MailboxException {
+        messageMapper.endRequest();
+        mailboxMapper.execute(new TransactionalMapper.VoidTransaction() {
+            public void runVoid() throws MailboxException {
+                mailboxMapper.deleteAllMemberships();
+            }
+        });
+        mailboxMapper.execute(new TransactionalMapper.VoidTransaction() {
+            public void runVoid() throws MailboxException {
+                mailboxMapper.deleteAllMailboxes();
+            }
+        });
+        mailboxMapper.endRequest();
+        entityManagerFactory.close();
+    }
+
+    @Test
+    public void fetchFlagsBenchmark() throws MailboxException {
+        fetch(FetchType.Metadata);
+        fetch(FetchType.Metadata);
+        fetch(FetchType.Full);
+    }
+
+    @Test
+    public void updateFlagsBenchmark() throws MailboxException {
+        assertThat(updateFlags(FlagsUpdateMode.ADD)).isEqualTo(messages / 2);
+        assertThat(updateFlags(FlagsUpdateMode.REMOVE)).isEqualTo(messages);
+        assertThat(messageMapper.countUnseenMessagesInMailbox(mailbox)).isEqualTo(messages);
+    }
+
+    @Test
+    public void copyBenchmark() throws MailboxException {
+        final JPAMailbox target = createMailbox("Archive");
+        final List<Message<JPAId>> originals = new ArrayList<Message<JPAId>>();
+        Iterator<Message<JPAId>> it = messageMapper.findInMailbox(mailbox, MessageRange.all(), FetchType.Full, -1);
+        while (it.hasNext()) {
+            originals.add(it.next());
+        }
+
+        long start = System.nanoTime();
+        List<MessageMetaData> copies = messageMapper.execute(new TransactionalMapper.Transaction<List<MessageMetaData>>() {
+            public List<MessageMetaData> run() throws MailboxException {
+                return messageMapper.copy(target, originals);
+            }
+        });
+        long elapsed = System.nanoTime() - start;
+        messageMapper.endRequest();
+
+        assertThat(copies).hasSize(messages);
+        assertThat(messageMapper.countMessagesInMailbox(target)).isEqualTo(messages);
+        assertThat(messageMapper.countUnseenMessagesInMailbox(target)).isEqualTo(messages / 2);
+        LOG.info(String.format("Copied %d messages in %d ms: %.0f rows/s",
+            messages, elapsed / 1000000, messages * 1000000000.0 / elapsed));
+    }
+
+    private void fetch(FetchType fetchType) throws MailboxException {
+        long start = System.nanoTime();
+        Iterator<Message<JPAId>> it = messageMapper.findInMailbox(mailbox, MessageRange.all(), fetchType, -1);
+        int rows = 0;
+        int seen = 0;
+        while (it.hasNext()) {
+            if (it.next().createFlags().contains(Flags.Flag.SEEN)) {
+                seen++;
+            }
+            rows++;
+        }
+        long elapsed = System.nanoTime() - start;
+        messageMapper.endRequest();
+
+        assertThat(rows).isEqualTo(messages);
+        assertThat(seen).isEqualTo((messages + 1) / 2);
+        LOG.info(String.format("Fetched %s of %d messages in %d ms: %.0f rows/s",
+            fetchType, rows, elapsed / 1000000, rows * 1000000000.0 / elapsed));
+    }
+
+    /**
+     * Adds or removes \Seen on all messages and returns the number of changed messages
+     */
+    private int updateFlags(final FlagsUpdateMode mode) throws MailboxException {
+        long start = System.nanoTime();
+        Iterator<UpdatedFlags> it = messageMapper.execute(new TransactionalMapper.Transaction<Iterator<UpdatedFlags>>() {
+            public Iterator<UpdatedFlags> run() throws MailboxException {
+                return messageMapper.updateFlags(mailbox, new FlagsUpdateCalculator(new Flags(Flags.Flag.SEEN), mode), MessageRange.all());
+            }
+        });
+        long elapsed = System.nanoTime() - start;
+        messageMapper.endRequest();
+
+        int rows = 0;
+        int changed = 0;
+        while (it.hasNext()) {
+            if (it.next().flagsChanged()) {
+                changed++;
+            }
+            rows++;
+        }
+        assertThat(rows).isEqualTo(messages);
+        LOG.info(String.format("Updated flags (%s) of %d messages in %d ms: %.0f rows/s",
+            mode, rows, elapsed / 1000000, rows * 1000000000.0 / elapsed));
+        return changed;
+    }
+
+    private JPAMailbox createMailbox(String name) throws MailboxException {
+        final JPAMailbox created = new JPAMailbox(new MailboxPath("#private", "benchmark", name), 42);
+        mailboxMapper.execute(new TransactionalMapper.VoidTransaction() {
+            public void runVoid() throws MailboxException {
+                mailboxMapper.save(created);
+            }
+        });
+        mailboxMapper.endRequest();
+        return created;
+    }
+
+    private JPAMessage createMessage(int i) throws MailboxException {
+        Flags flags = new Flags();
+        if (i % 2 == 0) {
+            flags.add(Flags.Flag.SEEN);
+        }
+        return new JPAMessage(mailbox, new Date(), CONTENT.length(), flags,
+                new SharedByteArrayInputStream(CONTENT.getBytes()), BODY_START, new PropertyBuilder());
+    }
+}
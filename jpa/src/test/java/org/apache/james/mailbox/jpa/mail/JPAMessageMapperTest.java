@@ -0,0 +1,305 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailbox.jpa.mail;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.mail.Flags;
+import javax.mail.util.SharedByteArrayInputStream;
+import javax.persistence.EntityManagerFactory;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.james.mailbox.MailboxSession;
+import org.apache.james.mailbox.MessageManager.FlagsUpdateMode;
+import org.apache.james.mailbox.exception.MailboxException;
+import org.apache.james.mailbox.jpa.JPAId;
+import org.apache.james.mailbox.jpa.mail.model.JPAMailbox;
+import org.apache.james.mailbox.jpa.mail.model.JPAProperty;
+import org.apache.james.mailbox.jpa.mail.model.JPAUserFlag;
+import org.apache.james.mailbox.jpa.mail.model.openjpa.AbstractJPAMessage;
+import org.apache.james.mailbox.jpa.mail.model.openjpa.JPAMessage;
+import org.apache.james.mailbox.mock.MockMailboxSession;
+import org.apache.james.mailbox.model.MailboxPath;
+import org.apache.james.mailbox.model.MessageMetaData;
+import org.apache.james.mailbox.model.MessageRange;
+import org.apache.james.mailbox.model.UpdatedFlags;
+import org.apache.james.mailbox.store.FlagsUpdateCalculator;
+import org.apache.james.mailbox.store.JVMMailboxPathLocker;
+import org.apache.james.mailbox.store.mail.MessageMapper.FetchType;
+import org.apache.james.mailbox.store.mail.model.Message;
+import org.apache.james.mailbox.store.mail.model.impl.PropertyBuilder;
+import org.apache.james.mailbox.store.transaction.TransactionalMapper;
+import org.apache.openjpa.persistence.OpenJPAPersistence;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the {@link JPAMessageMapper} operations which work on the rows directly:
+ * the bulk update of the system flags, which is used for adding and removing
+ * them, and the copy of messages with INSERT ... SELECT.
+ */
+public class JPAMessageMapperTest {
+
+    private static final String USER_FLAG = "userFlag";
+    private static final String CONTENT = "Subject: Test\r\n\r\nBody of the test message\r\n";
+    private static final int BODY_START = 17;
+    private static final int MESSAGES = 5;
+
+    private final MailboxSession session = new MockMailboxSession("benwa");
+
+    private EntityManagerFactory entityManagerFactory;
+    private JPAMailboxMapper mailboxMapper;
+    private JPAMessageMapper messageMapper;
+    private JPAMailbox inbox;
+    private JPAMailbox archive;
+
+    @Before
+    public void setUp() throws MailboxException {
+        HashMap<String, String> properties = new HashMap<String, String>();
+        properties.put("openjpa.ConnectionDriverName", "org.h2.Driver");
+        properties.put("openjpa.ConnectionURL", "jdbc:h2:mem:mappertest;DB_CLOSE_DELAY=-1");
+        properties.put("openjpa.Log", "JDBC=WARN, SQL=WARN, Runtime=WARN");
+        properties.put("openjpa.jdbc.SynchronizeMappings", "buildSchema(ForeignKeys=true)");
+        properties.put("openjpa.MetaDataFactory", "jpa(Types=" +
+                JPAMailbox.class.getName() + ";" +
+                AbstractJPAMessage.class.getName() + ";" +
+                JPAMessage.class.getName() + ";" +
+                JPAProperty.class.getName() + ";" +
+                JPAUserFlag.class.getName() + ")");
+        entityManagerFactory = OpenJPAPersistence.getEntityManagerFactory(properties);
+
+        JVMMailboxPathLocker locker = new JVMMailboxPathLocker();
+        mailboxMapper = new JPAMailboxMapper(entityManagerFactory);
+        messageMapper = new JPAMessageMapper(session, new JPAUidProvider(locker, entityManagerFactory),
+                new JPAModSeqProvider(locker, entityManagerFactory), entityManagerFactory);
+
+        inbox = createMailbox("INBOX");
+        archive = createMailbox("Archive");
+        messageMapper.execute(new TransactionalMapper.VoidTransaction() {
+            public void runVoid() throws MailboxException {
+                for (int i = 0; i < MESSAGES; i++) {
+                    messageMapper.add(inbox, createMessage(new Flags()));
+                }
+            }
+        });
+        messageMapper.endRequest();
+    }
+
+    @After
+    public void tearDown() throws MailboxException {
+        messageMapper.endRequest();
+        mailboxMapper.execute(new TransactionalMapper.VoidTransaction() {
+            public void runVoid() throws MailboxException {
+                mailboxMapper.deleteAllMemberships();
+            }
+        });
+        mailboxMapper.execute(new TransactionalMapper.VoidTransaction() {
+            public void runVoid() throws MailboxException {
+                mailboxMapper.deleteAllMailboxes();
+            }
+        });
+        mailboxMapper.endRequest();
+        entityManagerFactory.close();
+    }
+
+    @Test
+    public void addFlagsShouldOnlyChangeTheMessagesOfTheRange() throws MailboxException {
+        long modSeq = messageMapper.getHighestModSeq(inbox);
+
+        List<UpdatedFlags> updated = updateFlags(new Flags(Flags.Flag.SEEN), FlagsUpdateMode.ADD, MessageRange.range(2, 4));
+
+        assertThat(uids(updated)).containsExactly(2L, 3L, 4L);
+        for (UpdatedFlags flags : updated) {
+            assertThat(flags.getNewFlags().contains(Flags.Flag.SEEN)).isTrue();
+            assertThat(flags.getModSeq()).isEqualTo(modSeq + 1);
+        }
+        assertThat(seenUids()).containsExactly(2L, 3L, 4L);
+        assertThat(modSeqs()).containsExactly(modSeq - 4, modSeq - 3, modSeq + 1, modSeq + 1, modSeq + 1);
+        assertThat(messageMapper.countUnseenMessagesInMailbox(inbox)).isEqualTo(2);
+    }
+
+    @Test
+    public void removeFlagsShouldOnlyBumpTheModSeqOfChangedMessages() throws MailboxException {
+        updateFlags(new Flags(Flags.Flag.SEEN), FlagsUpdateMode.ADD, MessageRange.range(1, 2));
+        long modSeq = messageMapper.getHighestModSeq(inbox);
+
+        List<UpdatedFlags> updated = updateFlags(new Flags(Flags.Flag.SEEN), FlagsUpdateMode.REMOVE, MessageRange.all());
+
+        assertThat(uids(updated)).containsExactly(1L, 2L, 3L, 4L, 5L);
+        assertThat(updated.get(0).flagsChanged()).isTrue();
+        assertThat(updated.get(1).flagsChanged()).isTrue();
+        assertThat(updated.get(2).flagsChanged()).isFalse();
+        assertThat(seenUids()).isEmpty();
+        assertThat(modSeqs()).containsExactly(modSeq + 1, modSeq + 1, modSeq - 3, modSeq - 2, modSeq - 1);
+    }
+
+    @Test
+    public void updateFlagsShouldNotChangeTheModSeqWhenNothingChanges() throws MailboxException {
+        long modSeq = messageMapper.getHighestModSeq(inbox);
+
+        List<UpdatedFlags> updated = updateFlags(new Flags(Flags.Flag.SEEN), FlagsUpdateMode.REMOVE, MessageRange.from(3));
+
+        assertThat(uids(updated)).containsExactly(3L, 4L, 5L);
+        assertThat(messageMapper.getHighestModSeq(inbox)).isEqualTo(modSeq);
+    }
+
+    @Test
+    public void replaceFlagsShouldReplaceSystemAndUserFlags() throws MailboxException {
+        updateFlags(new Flags(Flags.Flag.SEEN), FlagsUpdateMode.ADD, MessageRange.one(1));
+        Flags flags = new Flags(Flags.Flag.FLAGGED);
+        flags.add(USER_FLAG);
+
+        updateFlags(flags, FlagsUpdateMode.REPLACE, MessageRange.one(1));
+
+        Flags stored = find(MessageRange.one(1)).get(0).createFlags();
+        assertThat(stored.contains(Flags.Flag.SEEN)).isFalse();
+        assertThat(stored.contains(Flags.Flag.FLAGGED)).isTrue();
+        assertThat(stored.contains(USER_FLAG)).isTrue();
+    }
+
+    @Test
+    public void managedMessagesShouldBeUpToDateAfterABulkUpdate() throws MailboxException {
+        List<Message<JPAId>> messages = messageMapper.execute(new TransactionalMapper.Transaction<List<Message<JPAId>>>() {
+            public List<Message<JPAId>> run() throws MailboxException {
+                find(MessageRange.all());
+                messageMapper.updateFlags(inbox, new FlagsUpdateCalculator(new Flags(Flags.Flag.FLAGGED), FlagsUpdateMode.ADD), MessageRange.all());
+                return find(MessageRange.all());
+            }
+        });
+        messageMapper.endRequest();
+
+        long modSeq = messageMapper.getHighestModSeq(inbox);
+        assertThat(messages).hasSize(MESSAGES);
+        for (Message<JPAId> message : messages) {
+            assertThat(message.isFlagged()).isTrue();
+            assertThat(message.getModSeq()).isEqualTo(modSeq);
+        }
+    }
+
+    @Test
+    public void copyShouldKeepTheUserFlagsAndTheContent() throws Exception {
+        Flags flags = new Flags(Flags.Flag.ANSWERED);
+        flags.add(USER_FLAG);
+        updateFlags(flags, FlagsUpdateMode.REPLACE, MessageRange.one(2));
+        final List<Message<JPAId>> originals = find(MessageRange.range(1, 3));
+        long modSeq = messageMapper.getHighestModSeq(archive);
+
+        List<MessageMetaData> copies = messageMapper.execute(new TransactionalMapper.Transaction<List<MessageMetaData>>() {
+            public List<MessageMetaData> run() throws MailboxException {
+                return messageMapper.copy(archive, originals);
+            }
+        });
+        messageMapper.endRequest();
+
+        assertThat(copies).hasSize(3);
+        List<Message<JPAId>> copied = new ArrayList<Message<JPAId>>();
+        Iterator<Message<JPAId>> it = messageMapper.findInMailbox(archive, MessageRange.all(), FetchType.Full, -1);
+        while (it.hasNext()) {
+            copied.add(it.next());
+        }
+        assertThat(copied).hasSize(3);
+        for (int i = 0; i < copied.size(); i++) {
+            Message<JPAId> copy = copied.get(i);
+            assertThat(copy.getUid()).isEqualTo(i + 1);
+            assertThat(copy.getModSeq()).isEqualTo(modSeq + i + 1);
+            assertThat(copy.isRecent()).isTrue();
+            assertThat(IOUtils.toString(copy.getFullContent(), "US-ASCII")).isEqualTo(CONTENT);
+        }
+        Flags copiedFlags = copied.get(1).createFlags();
+        assertThat(copiedFlags.contains(Flags.Flag.ANSWERED)).isTrue();
+        assertThat(copiedFlags.contains(USER_FLAG)).isTrue();
+        assertThat(copied.get(0).createFlags().getUserFlags()).isEmpty();
+        assertThat(messageMapper.countMessagesInMailbox(archive)).isEqualTo(3);
+        assertThat(messageMapper.countUnseenMessagesInMailbox(archive)).isEqualTo(3);
+    }
+
+    private List<UpdatedFlags> updateFlags(final Flags flags, final FlagsUpdateMode mode, final MessageRange range) throws MailboxException {
+        Iterator<UpdatedFlags> it = messageMapper.execute(new TransactionalMapper.Transaction<Iterator<UpdatedFlags>>() {
+            public Iterator<UpdatedFlags> run() throws MailboxException {
+                return messageMapper.updateFlags(inbox, new FlagsUpdateCalculator(flags, mode), range);
+            }
+        });
+        messageMapper.endRequest();
+        List<UpdatedFlags> updated = new ArrayList<UpdatedFlags>();
+        while (it.hasNext()) {
+            updated.add(it.next());
+        }
+        return updated;
+    }
+
+    private List<Message<JPAId>> find(MessageRange range) throws MailboxException {
+        List<Message<JPAId>> messages = new ArrayList<Message<JPAId>>();
+        Iterator<Message<JPAId>> it = messageMapper.findInMailbox(inbox, range, FetchType.Metadata, -1);
+        while (it.hasNext()) {
+            messages.add(it.next());
+        }
+        return messages;
+    }
+
+    private List<Long> seenUids() throws MailboxException {
+        List<Long> uids = new ArrayList<Long>();
+        for (Message<JPAId> message : find(MessageRange.all())) {
+            if (message.isSeen()) {
+                uids.add(message.getUid());
+            }
+        }
+        messageMapper.endRequest();
+        return uids;
+    }
+
+    private List<Long> modSeqs() throws MailboxException {
+        List<Long> modSeqs = new ArrayList<Long>();
+        for (Message<JPAId> message : find(MessageRange.all())) {
+            modSeqs.add(message.getModSeq());
+        }
+        messageMapper.endRequest();
+        return modSeqs;
+    }
+
+    private List<Long> uids(List<UpdatedFlags> updated) {
+        List<Long> uids = new ArrayList<Long>();
+        for (UpdatedFlags flags : updated) {
+            uids.add(flags.getUid());
+        }
+        return uids;
+    }
+
+    private JPAMailbox createMailbox(String name) throws MailboxException {
+        final JPAMailbox created = new JPAMailbox(new MailboxPath("#private", "benwa", name), 42);
+        mailboxMapper.execute(new TransactionalMapper.VoidTransaction() {
+            public void runVoid() throws MailboxException {
+                mailboxMapper.save(created);
+            }
+        });
+        mailboxMapper.endRequest();
+        return created;
+    }
+
+    private JPAMessage createMessage(Flags flags) throws MailboxException {
+        return new JPAMessage(inbox, new Date(), CONTENT.length(), flags,
+                new SharedByteArrayInputStream(CONTENT.getBytes()), BODY_START, new PropertyBuilder());
+    }
+}
@@ -0,0 +1,118 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailbox.jpa.mail.model.openjpa;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import org.jasypt.encryption.pbe.StandardPBEByteEncryptor;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compares the throughput and the heap needed to read a message of the
+ * {@link ChunkedEncryption} to the former whole content encryption. The content
+ * size in MB can be set with the <code>jpa.benchmark.contentSize</code> system
+ * property.
+ * It only runs with the <code>benchmark</code> profile.
+ */
+public class ChunkedEncryptionBenchmarkTest {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ChunkedEncryptionBenchmarkTest.class);
+
+    private static final int ROUNDS = 5;
+
+    @Test
+    public void encryptionBenchmark() throws IOException {
+        int size = Integer.getInteger("jpa.benchmark.contentSize", 8) * 1024 * 1024;
+        byte[] content = new byte[size];
+        new Random().nextBytes(content);
+
+        StandardPBEByteEncryptor encryptor = new StandardPBEByteEncryptor();
+        encryptor.setPassword("benchmark");
+        ChunkedEncryption encryption = new ChunkedEncryption("benchmark");
+
+        byte[] legacy = null;
+        long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            legacy = encryptor.encrypt(content);
+        }
+        report("Whole content encryption", size, System.nanoTime() - start);
+
+        byte[] chunked = null;
+        start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            chunked = encryption.encrypt(new ByteArrayInputStream(content));
+        }
+        report("Chunked encryption", size, System.nanoTime() - start);
+
+        long before = usedHeap();
+        start = System.nanoTime();
+        byte[] decrypted = null;
+        for (int i = 0; i < ROUNDS; i++) {
+            decrypted = encryptor.decrypt(legacy);
+        }
+        report("Whole content decryption", size, System.nanoTime() - start);
+        long legacyHeap = usedHeap() - before;
+        assertThat(decrypted).hasSize(size);
+        decrypted = null;
+
+        before = usedHeap();
+        start = System.nanoTime();
+        InputStream in = null;
+        long read = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            in = encryption.decrypt(chunked);
+            read = consume(in);
+        }
+        report("Chunked decryption", size, System.nanoTime() - start);
+        long chunkedHeap = usedHeap() - before;
+        assertThat(read).isEqualTo(size);
+
+        LOG.info(String.format("Heap retained while reading %d KB: %d KB whole content, %d KB chunked",
+            size / 1024, legacyHeap / 1024, chunkedHeap / 1024));
+        assertThat(in).isNotNull();
+    }
+
+    private long consume(InputStream in) throws IOException {
+        byte[] buffer = new byte[8192];
+        long read = 0;
+        int count;
+        while ((count = in.read(buffer)) >= 0) {
+            read += count;
+        }
+        return read;
+    }
+
+    private long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private void report(String operation, int size, long elapsed) {
+        LOG.info(String.format("%s of %d KB: %.1f MB/s",
+            operation, size / 1024, ROUNDS * size / 1024.0 / 1024.0 * 1000000000.0 / elapsed));
+    }
+}
@@ -0,0 +1,108 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailbox.jpa.mail.model.openjpa;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.commons.io.IOUtils;
+import org.jasypt.encryption.pbe.StandardPBEByteEncryptor;
+import org.junit.Test;
+
+public class ChunkedEncryptionTest {
+
+    private static final int CHUNK_SIZE = 16;
+
+    private final ChunkedEncryption encryption = new ChunkedEncryption("secret", CHUNK_SIZE);
+
+    @Test
+    public void decryptShouldReturnTheEncryptedContent() throws IOException {
+        for (int length : new int[] {0, 1, CHUNK_SIZE - 1, CHUNK_SIZE, CHUNK_SIZE + 1, 10 * CHUNK_SIZE, 10 * CHUNK_SIZE + 7}) {
+            byte[] content = content(length);
+            byte[] encrypted = encryption.encrypt(new ByteArrayInputStream(content));
+
+            assertThat(ChunkedEncryption.isChunked(encrypted)).isTrue();
+            assertThat(ChunkedEncryption.getPlainTextLength(encrypted)).isEqualTo(length);
+            assertThat(IOUtils.toByteArray(encryption.decrypt(encrypted))).isEqualTo(content);
+        }
+    }
+
+    @Test
+    public void skipShouldReachAnyPosition() throws IOException {
+        byte[] content = content(10 * CHUNK_SIZE + 7);
+        byte[] encrypted = encryption.encrypt(new ByteArrayInputStream(content));
+
+        InputStream in = encryption.decrypt(encrypted);
+        assertThat(in.skip(5 * CHUNK_SIZE + 3)).isEqualTo(5 * CHUNK_SIZE + 3);
+        assertThat(IOUtils.toByteArray(in)).isEqualTo(Arrays.copyOfRange(content, 5 * CHUNK_SIZE + 3, content.length));
+    }
+
+    @Test
+    public void skipShouldNotVerifySkippedChunks() throws IOException {
+        byte[] content = content(3 * CHUNK_SIZE);
+        byte[] encrypted = encryption.encrypt(new ByteArrayInputStream(content));
+        // corrupt the first chunk
+        encrypted[20] ^= 1;
+
+        InputStream in = encryption.decrypt(encrypted);
+        in.skip(2 * CHUNK_SIZE);
+        assertThat(IOUtils.toByteArray(in)).isEqualTo(Arrays.copyOfRange(content, 2 * CHUNK_SIZE, content.length));
+    }
+
+    @Test(expected = IOException.class)
+    public void decryptShouldFailOnModifiedContent() throws IOException {
+        byte[] encrypted = encryption.encrypt(new ByteArrayInputStream(content(3 * CHUNK_SIZE)));
+        encrypted[encrypted.length - 20] ^= 1;
+
+        IOUtils.toByteArray(encryption.decrypt(encrypted));
+    }
+
+    @Test(expected = IOException.class)
+    public void decryptShouldFailOnTruncatedContent() throws IOException {
+        byte[] encrypted = encryption.encrypt(new ByteArrayInputStream(content(3 * CHUNK_SIZE)));
+
+        IOUtils.toByteArray(encryption.decrypt(Arrays.copyOf(encrypted, encrypted.length - CHUNK_SIZE - 16)));
+    }
+
+    @Test(expected = IOException.class)
+    public void decryptShouldFailWithAnotherPassword() throws IOException {
+        byte[] encrypted = encryption.encrypt(new ByteArrayInputStream(content(3 * CHUNK_SIZE)));
+
+        IOUtils.toByteArray(new ChunkedEncryption("other", CHUNK_SIZE).decrypt(encrypted));
+    }
+
+    @Test
+    public void formerContentShouldNotBeTakenAsChunked() {
+        StandardPBEByteEncryptor encryptor = new StandardPBEByteEncryptor();
+        encryptor.setPassword("secret");
+
+        assertThat(ChunkedEncryption.isChunked(encryptor.encrypt(content(10 * CHUNK_SIZE)))).isFalse();
+    }
+
+    private byte[] content(int length) {
+        byte[] content = new byte[length];
+        new Random(length).nextBytes(content);
+        return content;
+    }
+}
@@ -0,0 +1,103 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailbox.jpa.mail.model.openjpa;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+public class JPAStreamingMessageTest {
+
+    private static final String HEADER = "Subject: test";
+    private static final String BODY = "body\r\n";
+
+    private JPAStreamingMessage message;
+    private ColumnInputStream header;
+    private ColumnInputStream body;
+
+    @Before
+    @SuppressWarnings("deprecation")
+    public void setUp() throws Exception {
+        // a message loaded from the database, whose content columns are not read yet
+        message = new JPAStreamingMessage();
+        header = new ColumnInputStream(HEADER);
+        body = new ColumnInputStream(BODY);
+        setColumn("header", header);
+        setColumn("body", body);
+    }
+
+    @Test
+    public void getHeaderContentShouldNotReadTheBody() throws IOException {
+        assertThat(IOUtils.toString(message.getHeaderContent(), "US-ASCII")).isEqualTo(HEADER);
+        assertThat(header.read).isTrue();
+        assertThat(body.read).isFalse();
+    }
+
+    @Test
+    public void getBodyContentShouldNotReadTheHeader() throws IOException {
+        assertThat(IOUtils.toString(message.getBodyContent(), "US-ASCII")).isEqualTo(BODY);
+        assertThat(header.read).isFalse();
+        assertThat(body.read).isTrue();
+    }
+
+    @Test
+    public void contentShouldBeReadableMoreThanOnce() throws IOException {
+        assertThat(IOUtils.toString(message.getHeaderContent(), "US-ASCII")).isEqualTo(HEADER);
+        assertThat(IOUtils.toString(message.getBodyContent(), "US-ASCII")).isEqualTo(BODY);
+        assertThat(IOUtils.toString(message.getHeaderContent(), "US-ASCII")).isEqualTo(HEADER);
+        assertThat(IOUtils.toString(message.getBodyContent(), "US-ASCII")).isEqualTo(BODY);
+    }
+
+    private void setColumn(String name, InputStream value) throws Exception {
+        Field field = JPAStreamingMessage.class.getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(message, value);
+    }
+
+    /**
+     * Stream of a content column which records whether it was read
+     */
+    private static class ColumnInputStream extends ByteArrayInputStream {
+
+        private boolean read;
+
+        private ColumnInputStream(String content) {
+            super(content.getBytes());
+        }
+
+        @Override
+        public synchronized int read() {
+            read = true;
+            return super.read();
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            read = true;
+            return super.read(b, off, len);
+        }
+    }
+}
@@ -27,6 +27,7 @@ import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -35,6 +36,13 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.mail.Flags;
 import javax.mail.Flags.Flag;
@@ -56,6 +64,9 @@ import org.apache.james.mailbox.model.SearchQuery.HeaderOperator;
 import org.apache.james.mailbox.model.SearchQuery.NumericOperator;
 import org.apache.james.mailbox.model.SearchQuery.NumericRange;
 import org.apache.james.mailbox.model.SearchQuery.UidCriterion;
+import org.apache.james.mailbox.model.UpdatedFlags;
+import org.apache.james.mailbox.store.mail.MessageMapper;
+import org.apache.james.mailbox.store.mail.MessageMapper.FetchType;
 import org.apache.james.mailbox.store.mail.MessageMapperFactory;
 import org.apache.james.mailbox.store.mail.model.MailboxId;
 import org.apache.james.mailbox.store.mail.model.Mailbox;
@@ -93,11 +104,15 @@ import org.apache.lucene.index.IndexWriterConfig.OpenMode;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.FieldCache;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.NumericRangeQuery;
 import org.apache.lucene.search.PrefixQuery;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.SearcherManager;
 import org.apache.lucene.search.Sort;
 import org.apache.lucene.search.SortField;
 import org.apache.lucene.search.TermQuery;
@@ -106,12 +121,22 @@ import org.apache.lucene.search.TopDocs;
 import org.apache.lucene.search.WildcardQuery;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.LockObtainFailedException;
-import org.apache.lucene.util.IOUtils;
 import org.apache.lucene.util.Version;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Lucene based {@link ListeningMessageSearchIndex} which offers message searching via a Lucene index
  * 
+ * Searches use a near-real-time {@link IndexSearcher} managed by a {@link SearcherManager}. It is
+ * reopened before a search once {@link #setRefreshAfterWrites(int)} writes were done, and in the
+ * background every {@link #setRefreshInterval(long)} milliseconds. The changes are committed in the
+ * background every {@link #setCommitInterval(long)} milliseconds and on {@link #close()}.
+ * 
+ * The flags and the mod-sequence of a message are indexed in a separate flags document, as the
+ * message document can not be updated without indexing the full message again. Searches which
+ * only use flag and mod-sequence criteria are answered from the flags documents alone. Indexes
+ * written by former releases lack the mod-sequence, see {@link #migrate(MailboxSession, Mailbox)}.
  * 
 
  * @param <Id>
@@ -133,6 +158,23 @@ public class LuceneMessageSearchIndex<Id extends MailboxId> extends ListeningMes
      * Default max query results
      */
     public final static int DEFAULT_MAX_QUERY_RESULTS = 100000;
+
+    /**
+     * Default number of writes after which the searcher is reopened before the next search
+     */
+    public final static int DEFAULT_REFRESH_AFTER_WRITES = 1;
+
+    /**
+     * Default interval in milliseconds of the background reopening of the searcher
+     */
+    public final static long DEFAULT_REFRESH_INTERVAL = 1000;
+
+    /**
+     * Default interval in milliseconds of the background commits
+     */
+    public final static long DEFAULT_COMMIT_INTERVAL = 5000;
+
+    private final static Logger LOGGER = LoggerFactory.getLogger(LuceneMessageSearchIndex.class);
     
     /**
      * {@link Field} which will contain the unique index of the {@link Document}
@@ -297,6 +339,22 @@ public class LuceneMessageSearchIndex<Id extends MailboxId> extends ListeningMes
     private final static String DEFAULT_ENCODING = "US-ASCII";
     
     private final IndexWriter writer;
+
+    private final Object refreshLock = new Object();
+    private SearcherManager searcherManager;
+    private final AtomicInteger unrefreshedWrites = new AtomicInteger();
+    private final AtomicBoolean uncommittedWrites = new AtomicBoolean();
+    private int refreshAfterWrites = DEFAULT_REFRESH_AFTER_WRITES;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "lucene-message-search-index");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private ScheduledFuture<?> refreshTask;
+    private ScheduledFuture<?> commitTask;
     
     private int maxQueryResults = DEFAULT_MAX_QUERY_RESULTS;
 
@@ -342,12 +400,158 @@ public class LuceneMessageSearchIndex<Id extends MailboxId> extends ListeningMes
     public LuceneMessageSearchIndex(MessageMapperFactory<Id> factory, Directory directory, boolean dropIndexOnStart, boolean lenient) throws CorruptIndexException, LockObtainFailedException, IOException {
         super(factory);
         this.writer = new IndexWriter(directory,  createConfig(createAnalyzer(lenient), dropIndexOnStart));
+        setRefreshInterval(DEFAULT_REFRESH_INTERVAL);
+        setCommitInterval(DEFAULT_COMMIT_INTERVAL);
     }
     
     
     public LuceneMessageSearchIndex(MessageMapperFactory<Id> factory, IndexWriter writer) {
         super(factory);
         this.writer = writer;
+        setRefreshInterval(DEFAULT_REFRESH_INTERVAL);
+        setCommitInterval(DEFAULT_COMMIT_INTERVAL);
+    }
+
+    /**
+     * Set the number of writes after which the searcher gets reopened before the next search. The default
+     * is {@link #DEFAULT_REFRESH_AFTER_WRITES}, so every search sees all former changes. Higher values
+     * trade the freshness of the results for less reopening, 0 only reopens in the background.
+     * 
+     * @param refreshAfterWrites
+     */
+    public void setRefreshAfterWrites(int refreshAfterWrites) {
+        this.refreshAfterWrites = refreshAfterWrites;
+    }
+
+    /**
+     * Set the interval in milliseconds in which the searcher gets reopened in the background if there
+     * were changes. The default is {@link #DEFAULT_REFRESH_INTERVAL}, 0 disables it.
+     * 
+     * @param refreshInterval
+     */
+    public synchronized void setRefreshInterval(long refreshInterval) {
+        if (refreshTask != null) {
+            refreshTask.cancel(false);
+            refreshTask = null;
+        }
+        if (refreshInterval > 0) {
+            refreshTask = scheduler.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    try {
+                        refreshSearcher();
+                    } catch (IOException e) {
+                        LOGGER.warn("Unable to reopen the index searcher", e);
+                    }
+                }
+            }, refreshInterval, refreshInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Set the interval in milliseconds in which the changes get committed in the background. The default
+     * is {@link #DEFAULT_COMMIT_INTERVAL}, 0 disables it.
+     * 
+     * @param commitInterval
+     */
+    public synchronized void setCommitInterval(long commitInterval) {
+        if (commitTask != null) {
+            commitTask.cancel(false);
+            commitTask = null;
+        }
+        if (commitInterval > 0) {
+            commitTask = scheduler.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    try {
+                        commit();
+                    } catch (IOException e) {
+                        LOGGER.warn("Unable to commit the index", e);
+                    }
+                }
+            }, commitInterval, commitInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Commit all changes done since the last commit
+     * 
+     * @throws IOException
+     */
+    public void commit() throws IOException {
+        if (uncommittedWrites.getAndSet(false)) {
+            try {
+                writer.commit();
+            } catch (IOException e) {
+                uncommittedWrites.set(true);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Stop the background tasks, commit the pending changes and release the searcher. The
+     * {@link IndexWriter} is left open.
+     * 
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        scheduler.shutdown();
+        commit();
+        synchronized (refreshLock) {
+            if (searcherManager != null) {
+                searcherManager.close();
+                searcherManager = null;
+            }
+        }
+    }
+
+    private SearcherManager getSearcherManager() throws IOException {
+        synchronized (refreshLock) {
+            if (searcherManager == null) {
+                searcherManager = new SearcherManager(writer, true, null);
+                unrefreshedWrites.set(0);
+            }
+            return searcherManager;
+        }
+    }
+
+    /**
+     * Reopen the searcher if there were writes since it was opened. Only one thread reopens
+     * at a time, the others wait for it.
+     */
+    private void refreshSearcher() throws IOException {
+        synchronized (refreshLock) {
+            if (searcherManager != null && unrefreshedWrites.getAndSet(0) > 0) {
+                searcherManager.maybeRefresh();
+            }
+        }
+    }
+
+    /**
+     * Return the current searcher, which needs to be given back with {@link #releaseSearcher(IndexSearcher)}
+     */
+    private IndexSearcher acquireSearcher() throws IOException {
+        if (refreshAfterWrites > 0 && unrefreshedWrites.get() >= refreshAfterWrites) {
+            refreshSearcher();
+        }
+        return getSearcherManager().acquire();
+    }
+
+    private void releaseSearcher(IndexSearcher searcher) {
+        if (searcher != null) {
+            try {
+                getSearcherManager().release(searcher);
+            } catch (IOException e) {
+                // ignore on release
+            }
+        }
+    }
+
+    /**
+     * Record a change of the index
+     */
+    private void written() {
+        unrefreshedWrites.incrementAndGet();
+        uncommittedWrites.set(true);
     }
     
     /**
@@ -404,11 +608,14 @@ public class LuceneMessageSearchIndex<Id extends MailboxId> extends ListeningMes
      * @see org.apache.james.mailbox.store.search.MessageSearchIndex#search(org.apache.james.mailbox.MailboxSession, org.apache.james.mailbox.store.mail.model.Mailbox, org.apache.james.mailbox.model.SearchQuery)
      */
     public Iterator<Long> search(MailboxSession session, Mailbox<Id> mailbox, SearchQuery searchQuery) throws MailboxException {
+        if (isFlagsSearch(searchQuery)) {
+            return searchFlags(mailbox, searchQuery);
+        }
         Set<Long> uids = new LinkedHashSet<Long>();
         IndexSearcher searcher = null;
 
         try {
-            searcher = new IndexSearcher(IndexReader.open(writer, true));
+            searcher = acquireSearcher();
             BooleanQuery query = new BooleanQuery();
             query.add(new TermQuery(new Term(MAILBOX_ID_FIELD, mailbox.getMailboxId().serialize())), BooleanClause.Occur.MUST);
             // Not return flags documents
@@ -428,22 +635,135 @@ public class LuceneMessageSearchIndex<Id extends MailboxId> extends ListeningMes
         } catch (IOException e) {
             throw new MailboxException("Unable to search the mailbox", e);
         } finally {
-            if (searcher != null) {
-                try {
-                    searcher.close();
-                } catch (IOException e) {
-                    // ignore on close
+            releaseSearcher(searcher);
+        }
+        return uids.iterator();
+    }
+
+    /**
+     * Return true if the {@link SearchQuery} only uses flag and mod-sequence criteria and is sorted
+     * by uid, so it can be answered from the flags documents
+     */
+    private boolean isFlagsSearch(SearchQuery searchQuery) {
+        List<SearchQuery.Sort> sorts = searchQuery.getSorts();
+        if (sorts.size() > 1 || (sorts.size() == 1 && sorts.get(0).getSortClause() != SortClause.Uid)) {
+            return false;
+        }
+        List<Criterion> crits = searchQuery.getCriterias();
+        if (crits.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < crits.size(); i++) {
+            Criterion crit = crits.get(i);
+            if (crit instanceof FlagCriterion) {
+                // recent is not indexed but part of the query
+                if (((FlagCriterion) crit).getFlag() == Flag.RECENT) {
+                    return false;
                 }
+            } else if (!(crit instanceof CustomFlagCriterion) && !(crit instanceof SearchQuery.ModSeqCriterion)) {
+                return false;
             }
         }
+        return true;
+    }
+
+    /**
+     * Search the flags documents of the mailbox, see {@link #isFlagsSearch(SearchQuery)}
+     */
+    private Iterator<Long> searchFlags(Mailbox<Id> mailbox, SearchQuery searchQuery) throws MailboxException {
+        BooleanQuery query = createFlagsDocumentsQuery(mailbox);
+        List<Criterion> crits = searchQuery.getCriterias();
+        try {
+            for (int i = 0; i < crits.size(); i++) {
+                Criterion crit = crits.get(i);
+                if (crit instanceof FlagCriterion) {
+                    FlagCriterion flagCrit = (FlagCriterion) crit;
+                    query.add(new TermQuery(new Term(FLAGS_FIELD, toString(flagCrit.getFlag()))), flagCrit.getOperator().isSet() ? BooleanClause.Occur.MUST : BooleanClause.Occur.MUST_NOT);
+                } else if (crit instanceof CustomFlagCriterion) {
+                    CustomFlagCriterion flagCrit = (CustomFlagCriterion) crit;
+                    query.add(new TermQuery(new Term(FLAGS_FIELD, flagCrit.getFlag())), flagCrit.getOperator().isSet() ? BooleanClause.Occur.MUST : BooleanClause.Occur.MUST_NOT);
+                } else {
+                    query.add(createModSeqRangeQuery((SearchQuery.ModSeqCriterion) crit), BooleanClause.Occur.MUST);
+                }
+            }
+        } catch (UnsupportedSearchException e) {
+            throw new MailboxException("Unable to search the mailbox", e);
+        }
+        List<Long> uids = searchFlagsDocuments(mailbox, query);
+        Collections.sort(uids);
+        if (searchQuery.getSorts().size() == 1 && searchQuery.getSorts().get(0).isReverse()) {
+            Collections.reverse(uids);
+        }
+        if (uids.size() > maxQueryResults) {
+            uids = uids.subList(0, maxQueryResults);
+        }
         return uids.iterator();
     }
 
+    /**
+     * Return a query for all flags documents of the mailbox
+     */
+    private BooleanQuery createFlagsDocumentsQuery(Mailbox<?> mailbox) {
+        BooleanQuery query = new BooleanQuery();
+        query.add(new TermQuery(new Term(MAILBOX_ID_FIELD, mailbox.getMailboxId().serialize())), BooleanClause.Occur.MUST);
+        query.add(new PrefixQuery(new Term(FLAGS_FIELD, "")), BooleanClause.Occur.MUST);
+        return query;
+    }
+
+    /**
+     * Return the uids of the flags documents matching the query. The uids are read from the
+     * {@link FieldCache}, so no stored document needs to be loaded.
+     */
+    private List<Long> searchFlagsDocuments(Mailbox<?> mailbox, Query query) throws MailboxException {
+        final List<Long> uids = new ArrayList<Long>();
+        IndexSearcher searcher = null;
+        try {
+            searcher = acquireSearcher();
+            searcher.search(query, new Collector() {
+                private long[] docUids;
+
+                public void setScorer(Scorer scorer) throws IOException {
+                    // scores are not needed
+                }
+
+                public void collect(int doc) throws IOException {
+                    uids.add(docUids[doc]);
+                }
+
+                public void setNextReader(IndexReader reader, int docBase) throws IOException {
+                    docUids = FieldCache.DEFAULT.getLongs(reader, UID_FIELD, FieldCache.NUMERIC_UTILS_LONG_PARSER);
+                }
+
+                public boolean acceptsDocsOutOfOrder() {
+                    return true;
+                }
+            });
+        } catch (IOException e) {
+            throw new MailboxException("Unable to search mailbox " + mailbox, e);
+        } finally {
+            releaseSearcher(searcher);
+        }
+        return uids;
+    }
+
+    /**
+     * Return a {@link Query} which matches the message documents with the given uids
+     */
+    private Query createUidQuery(Collection<Long> uids) throws UnsupportedSearchException {
+        List<MessageRange> ranges = MessageRange.toRanges(new ArrayList<Long>(uids));
+        NumericRange[] nRanges = new NumericRange[ranges.size()];
+        for (int i = 0; i < ranges.size(); i++) {
+            MessageRange range = ranges.get(i);
+            nRanges[i] = new NumericRange(range.getUidFrom(), range.getUidTo());
+        }
+        return createUidQuery((UidCriterion) SearchQuery.uid(nRanges));
+    }
+
    
     /**
      * Create a new {@link Document} for the given {@link Message}. This Document does not contain any flags data. The {@link Flags} are stored in a seperate Document. 
      * 
-     * See {@link #createFlagsDocument(Message)}
+     * See {@link #createFlagsDocument(String, long, Flags, long)}
      * 
      * @param membership
      * @return document
@@ -859,7 +1179,16 @@ public class LuceneMessageSearchIndex<Id extends MailboxId> extends ListeningMes
      * @return query
      * @throws UnsupportedSearchException
      */
-    private Query createModSeqQuery(SearchQuery.ModSeqCriterion crit) throws UnsupportedSearchException {
+    private Query createModSeqQuery(SearchQuery.ModSeqCriterion crit, Mailbox<?> mailbox) throws UnsupportedSearchException, MailboxException {
+        BooleanQuery query = createFlagsDocumentsQuery(mailbox);
+        query.add(createModSeqRangeQuery(crit), BooleanClause.Occur.MUST);
+        return createUidQuery(searchFlagsDocuments(mailbox, query));
+    }
+
+    /**
+     * Return a {@link Query} which matches the flags documents for the given {@link SearchQuery.ModSeqCriterion}
+     */
+    private Query createModSeqRangeQuery(SearchQuery.ModSeqCriterion crit) throws UnsupportedSearchException {
         NumericOperator op = crit.getOperator();
         switch (op.getType()) {
         case EQUALS:
@@ -896,48 +1225,17 @@ public class LuceneMessageSearchIndex<Id extends MailboxId> extends ListeningMes
         }
         query.add(new TermQuery(new Term(MAILBOX_ID_FIELD, mailbox.getMailboxId().serialize())), BooleanClause.Occur.MUST);
         
-        
-        IndexSearcher searcher = null;
-
-        try {
-            Set<Long> uids = new HashSet<Long>();
-            searcher = new IndexSearcher(IndexReader.open(writer, true));
-            
-            // query for all the documents sorted by uid
-            TopDocs docs = searcher.search(query, null, maxQueryResults, new Sort(UID_SORT));
-            ScoreDoc[] sDocs = docs.scoreDocs;
-            for (int i = 0; i < sDocs.length; i++) {
-                long uid = Long.valueOf(searcher.doc(sDocs[i].doc).get(UID_FIELD));
-                uids.add(uid);
-            }
-            
-            // add or remove recent uids
-            if (flag.equalsIgnoreCase("\\RECENT")){
-                if (isSet) {
-                    uids.addAll(recentUids);
-                } else {
-                    uids.removeAll(recentUids);
-                }
-            }
+        Set<Long> uids = new HashSet<Long>(searchFlagsDocuments(mailbox, query));
             
-            List<MessageRange> ranges = MessageRange.toRanges(new ArrayList<Long>(uids));
-            NumericRange[] nRanges = new NumericRange[ranges.size()];
-            for (int i = 0; i < ranges.size(); i++) {
-                MessageRange range = ranges.get(i);
-                nRanges[i] = new NumericRange(range.getUidFrom(), range.getUidTo());
-            }
-            return createUidQuery((UidCriterion) SearchQuery.uid(nRanges));
-        } catch (IOException e) {
-            throw new MailboxException("Unable to search mailbox " + mailbox, e);
-        } finally {
-            if (searcher != null) {
-                try {
-                    searcher.close();
-                } catch (IOException e) {
-                    // ignore on close
-                }
+        // add or remove recent uids
+        if (flag.equalsIgnoreCase("\\RECENT")){
+            if (isSet) {
+                uids.addAll(recentUids);
+            } else {
+                uids.removeAll(recentUids);
             }
         }
+        return createUidQuery(uids);
     }
     
     private Sort createSort(List<SearchQuery.Sort> sorts) {
@@ -1175,7 +1473,7 @@ public class LuceneMessageSearchIndex<Id extends MailboxId> extends ListeningMes
             SearchQuery.ConjunctionCriterion crit = (SearchQuery.ConjunctionCriterion) criterion;
             return createConjunctionQuery(crit, mailbox, recentUids);
         } else if (criterion instanceof SearchQuery.ModSeqCriterion) {
-            return createModSeqQuery((SearchQuery.ModSeqCriterion) criterion);
+            return createModSeqQuery((SearchQuery.ModSeqCriterion) criterion, mailbox);
         }
         throw new UnsupportedSearchException();
 
@@ -1188,11 +1486,12 @@ public class LuceneMessageSearchIndex<Id extends MailboxId> extends ListeningMes
      */
     public void add(MailboxSession session, Mailbox<Id> mailbox, Message<Id> membership) throws MailboxException {
         Document doc = createMessageDocument(session, membership);
-        Document flagsDoc = createFlagsDocument(membership);
+        Document flagsDoc = createFlagsDocument(membership.getMailboxId().serialize(), membership.getUid(), membership.createFlags(), membership.getModSeq());
 
         try {
             writer.addDocument(doc);
             writer.addDocument(flagsDoc);
+            written();
         } catch (CorruptIndexException e) {
             throw new MailboxException("Unable to add message to index", e);
         } catch (IOException e) {
@@ -1204,53 +1503,130 @@ public class LuceneMessageSearchIndex<Id extends MailboxId> extends ListeningMes
      * @see org.apache.james.mailbox.store.search.ListeningMessageSearchIndex#update(org.apache.james.mailbox.MailboxSession, org.apache.james.mailbox.store.mail.model.Mailbox, org.apache.james.mailbox.model.MessageRange, javax.mail.Flags)
      */
     public void update(MailboxSession session, Mailbox<Id> mailbox, MessageRange range, Flags f, long modSeq) throws MailboxException {
-        IndexSearcher searcher = null;
-        try {
-            searcher = new IndexSearcher(IndexReader.open(writer, true));
-            BooleanQuery query = new BooleanQuery();
-            query.add(new TermQuery(new Term(MAILBOX_ID_FIELD, mailbox.getMailboxId().serialize())), BooleanClause.Occur.MUST);
-            query.add(createQuery(range), BooleanClause.Occur.MUST);
-            query.add( new PrefixQuery(new Term(FLAGS_FIELD, "")), BooleanClause.Occur.MUST);
+        BooleanQuery query = createFlagsDocumentsQuery(mailbox);
+        query.add(createQuery(range), BooleanClause.Occur.MUST);
 
-            TopDocs docs = searcher.search(query, 100000);
-            ScoreDoc[] sDocs = docs.scoreDocs;
-            for (int i = 0; i < sDocs.length; i++) {
-                Document doc = searcher.doc(sDocs[i].doc);
-                
-                if (doc.getFieldable(FLAGS_FIELD) == null) {
-                    doc.removeFields(FLAGS_FIELD);
-                    indexFlags(doc, f);
+        // the flags documents are rebuilt from scratch, so only the uids need to be looked up
+        List<Long> uids = searchFlagsDocuments(mailbox, query);
+        if (uids.isEmpty()) {
+            return;
+        }
+        String mailboxId = mailbox.getMailboxId().serialize();
+        try {
+            for (int i = 0; i < uids.size(); i++) {
+                long uid = uids.get(i);
+                writer.updateDocument(new Term(ID_FIELD, createFlagsDocumentId(mailboxId, uid)), createFlagsDocument(mailboxId, uid, f, modSeq));
+            }
+        } catch (IOException e) {
+            throw new MailboxException("Unable to add messages in index", e);
+        } finally {
+            written();
+        }
+    }
 
-                    writer.updateDocument(new Term(ID_FIELD, doc.get(ID_FIELD)), doc);
-            
+    /**
+     * Update the flags documents of all the given {@link UpdatedFlags} at once. Updates which did not change
+     * any flag are skipped.
+     * 
+     * @see org.apache.james.mailbox.store.search.ListeningMessageSearchIndex#update(org.apache.james.mailbox.MailboxSession, org.apache.james.mailbox.store.mail.model.Mailbox, java.util.List)
+     */
+    @Override
+    public void update(MailboxSession session, Mailbox<Id> mailbox, List<UpdatedFlags> updatedFlags) throws MailboxException {
+        String mailboxId = mailbox.getMailboxId().serialize();
+        boolean updated = false;
+        try {
+            for (int i = 0; i < updatedFlags.size(); i++) {
+                UpdatedFlags u = updatedFlags.get(i);
+                if (u.flagsChanged()) {
+                    writer.updateDocument(new Term(ID_FIELD, createFlagsDocumentId(mailboxId, u.getUid())), createFlagsDocument(mailboxId, u.getUid(), u.getNewFlags(), u.getModSeq()));
+                    updated = true;
                 }
             }
         } catch (IOException e) {
-            throw new MailboxException("Unable to add messages in index", e);
+            throw new MailboxException("Unable to update flags in index", e);
+        } finally {
+            if (updated) {
+                written();
+            }
+        }
+    }
 
+    /**
+     * Return true if the index holds flags documents of the given {@link Mailbox} which were written by a
+     * former release and so lack the mod-sequence. Searches for mod-sequences will not match these messages
+     * until the mailbox was migrated with {@link #migrate(MailboxSession, Mailbox)}.
+     * 
+     * @param mailbox
+     * @return needsMigration
+     * @throws MailboxException
+     */
+    public boolean needsMigration(Mailbox<Id> mailbox) throws MailboxException {
+        BooleanQuery query = createFlagsDocumentsQuery(mailbox);
+        query.add(NumericRangeQuery.newLongRange(MODSEQ_FIELD, null, null, true, true), BooleanClause.Occur.MUST_NOT);
+        IndexSearcher searcher = null;
+        try {
+            searcher = acquireSearcher();
+            return searcher.search(query, 1).totalHits > 0;
+        } catch (IOException e) {
+            throw new MailboxException("Unable to search mailbox " + mailbox, e);
         } finally {
-            try {
-                IOUtils.closeWhileHandlingException(searcher);
-            } catch (IOException e) {
-                //can't happen anyway
+            releaseSearcher(searcher);
+        }
+    }
+
+    /**
+     * Rewrite the flags documents of the given {@link Mailbox} with the flags and mod-sequences stored
+     * in the mailbox. Only messages which are already indexed are touched.
+     * 
+     * @param session
+     * @param mailbox
+     * @throws MailboxException
+     */
+    public void migrate(MailboxSession session, Mailbox<Id> mailbox) throws MailboxException {
+        Set<Long> indexed = new HashSet<Long>(searchFlagsDocuments(mailbox, createFlagsDocumentsQuery(mailbox)));
+        if (indexed.isEmpty()) {
+            return;
+        }
+        String mailboxId = mailbox.getMailboxId().serialize();
+        MessageMapper<Id> mapper = getFactory().getMessageMapper(session);
+        Iterator<Message<Id>> messages = mapper.findInMailbox(mailbox, MessageRange.all(), FetchType.Metadata, -1);
+        try {
+            while (messages.hasNext()) {
+                Message<Id> message = messages.next();
+                if (indexed.contains(message.getUid())) {
+                    writer.updateDocument(new Term(ID_FIELD, createFlagsDocumentId(mailboxId, message.getUid())), createFlagsDocument(mailboxId, message.getUid(), message.createFlags(), message.getModSeq()));
+                }
             }
+        } catch (IOException e) {
+            throw new MailboxException("Unable to migrate mailbox " + mailbox, e);
+        } finally {
+            written();
         }
-        
     }
 
     /**
-     * Index the {@link Flags} and add it to the {@link Document}
+     * Return the id of the flags {@link Document} of the message
+     */
+    private static String createFlagsDocumentId(String mailboxId, long uid) {
+        return "flags-" + mailboxId + "-" + Long.toString(uid);
+    }
+
+    /**
+     * Create the {@link Document} which holds the {@link Flags} and the mod-sequence of a message
      * 
+     * @param mailboxId
+     * @param uid
      * @param f
-     * @param doc
+     * @param modSeq
      */
-    private Document createFlagsDocument(Message<?> message) {
+    private Document createFlagsDocument(String mailboxId, long uid, Flags f, long modSeq) {
         Document doc = new Document();
-        doc.add(new Field(ID_FIELD, "flags-" + message.getMailboxId().serialize() +"-" + Long.toString(message.getUid()), Store.YES, Index.NOT_ANALYZED));
-        doc.add(new Field(MAILBOX_ID_FIELD, message.getMailboxId().serialize(), Store.YES, Index.NOT_ANALYZED));
-        doc.add(new NumericField(UID_FIELD,Store.YES, true).setLongValue(message.getUid()));
+        doc.add(new Field(ID_FIELD, createFlagsDocumentId(mailboxId, uid), Store.YES, Index.NOT_ANALYZED));
+        doc.add(new Field(MAILBOX_ID_FIELD, mailboxId, Store.YES, Index.NOT_ANALYZED));
+        doc.add(new NumericField(UID_FIELD,Store.YES, true).setLongValue(uid));
+        doc.add(new NumericField(MODSEQ_FIELD,Store.NO, true).setLongValue(modSeq));
         
-        indexFlags(doc, message.createFlags());
+        indexFlags(doc, f);
         return doc;
     }
     
@@ -1283,6 +1659,7 @@ public class LuceneMessageSearchIndex<Id extends MailboxId> extends ListeningMes
     private Query createQuery(MessageRange range) {
         switch (range.getType()) {
         case ONE:
+        case RANGE:
             return NumericRangeQuery.newLongRange(UID_FIELD, range.getUidFrom(), range.getUidTo(), true, true);
         case FROM:
             return NumericRangeQuery.newLongRange(UID_FIELD, range.getUidFrom(), Long.MAX_VALUE, true, true);
@@ -1300,6 +1677,7 @@ public class LuceneMessageSearchIndex<Id extends MailboxId> extends ListeningMes
         
         try {
             writer.deleteDocuments(query);
+            written();
         } catch (CorruptIndexException e) {
             throw new MailboxException("Unable to delete message from index", e);
 
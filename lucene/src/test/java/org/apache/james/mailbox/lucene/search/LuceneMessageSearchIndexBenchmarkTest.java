@@ -0,0 +1,181 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailbox.lucene.search;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.mail.Flags;
+import javax.mail.Flags.Flag;
+
+import org.apache.james.mailbox.model.MailboxPath;
+import org.apache.james.mailbox.model.MessageRange;
+import org.apache.james.mailbox.model.SearchQuery;
+import org.apache.james.mailbox.store.SimpleMailboxMembership;
+import org.apache.james.mailbox.store.TestId;
+import org.apache.james.mailbox.store.mail.model.impl.SimpleMailbox;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Measures the SEARCH throughput of {@link LuceneMessageSearchIndex} while other
+ * threads keep appending messages and changing flags. The duration of each run in
+ * seconds can be set with the <code>lucene.benchmark.seconds</code> system property.
+ * It only runs with the <code>benchmark</code> profile.
+ */
+public class LuceneMessageSearchIndexBenchmarkTest {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LuceneMessageSearchIndexBenchmarkTest.class);
+
+    private static final int MESSAGES = 2000;
+    private static final int SEARCH_THREADS = 4;
+
+    private LuceneMessageSearchIndex<TestId> index;
+    private SimpleMailbox<TestId> mailbox;
+    private final AtomicLong nextUid = new AtomicLong(1);
+
+    @Before
+    public void setUp() throws Exception {
+        index = new LuceneMessageSearchIndex<TestId>(null, new RAMDirectory(), true, true);
+        mailbox = new SimpleMailbox<TestId>(new MailboxPath("#private", "benchmark", "INBOX"), 1);
+        mailbox.setMailboxId(TestId.of(1));
+        for (int i = 0; i < MESSAGES; i++) {
+            append();
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        index.close();
+    }
+
+    @Test
+    public void searchShouldBeFreshAfterEveryWrite() throws Exception {
+        run("refresh after every write");
+    }
+
+    @Test
+    public void searchWithBackgroundRefresh() throws Exception {
+        index.setRefreshAfterWrites(0);
+        index.setRefreshInterval(100);
+        run("background refresh every 100 ms");
+    }
+
+    private void run(String policy) throws Exception {
+        final long duration = Long.getLong("lucene.benchmark.seconds", 2) * 1000;
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicInteger searches = new AtomicInteger();
+        final AtomicInteger writes = new AtomicInteger();
+        final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+        final CountDownLatch done = new CountDownLatch(SEARCH_THREADS + 1);
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < SEARCH_THREADS; i++) {
+            threads.add(new Thread() {
+                public void run() {
+                    try {
+                        while (running.get()) {
+                            SearchQuery query = new SearchQuery();
+                            query.andCriteria(SearchQuery.flagIsUnSet(Flag.SEEN));
+                            query.andCriteria(SearchQuery.headerContains("Subject", "benchmark"));
+                            index.search(null, mailbox, query);
+                            searches.incrementAndGet();
+                        }
+                    } catch (Exception e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        threads.add(new Thread() {
+            public void run() {
+                try {
+                    while (running.get()) {
+                        long uid = append();
+                        index.update(null, mailbox, MessageRange.one(uid - 1), new Flags(Flag.SEEN), uid);
+                        writes.addAndGet(2);
+                    }
+                } catch (Exception e) {
+                    failure.compareAndSet(null, e);
+                } finally {
+                    done.countDown();
+                }
+            }
+        });
+
+        long start = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        Thread.sleep(duration);
+        running.set(false);
+        done.await();
+        long elapsed = System.nanoTime() - start;
+
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        assertTrue(searches.get() > 0);
+        LOG.info(String.format("%s: %.0f searches/s and %.0f writes/s with %d search threads",
+                policy, searches.get() * 1000000000.0 / elapsed, writes.get() * 1000000000.0 / elapsed, SEARCH_THREADS));
+
+        index.setRefreshAfterWrites(1);
+        SearchQuery all = new SearchQuery();
+        all.andCriteria(SearchQuery.all());
+        assertEquals(nextUid.get() - 1, count(index.search(null, mailbox, all)));
+    }
+
+    private long append() throws Exception {
+        long uid = nextUid.getAndIncrement();
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("Subject", "benchmark message " + uid);
+        headers.put("From", "sender <sender@localhost>");
+        SimpleMailboxMembership message = new SimpleMailboxMembership(mailbox.getMailboxId(), uid, uid, new Date(), 20,
+                new Flags(), ("Body of message " + uid).getBytes(), headers);
+        index.add(null, mailbox, message);
+        return uid;
+    }
+
+    private long count(Iterator<Long> uids) {
+        long count = 0;
+        while (uids.hasNext()) {
+            uids.next();
+            count++;
+        }
+        return count;
+    }
+}
@@ -40,6 +40,7 @@ import org.apache.james.mailbox.model.SimpleMailboxACL;
 import org.apache.james.mailbox.model.SearchQuery.AddressType;
 import org.apache.james.mailbox.model.SearchQuery.DateResolution;
 import org.apache.james.mailbox.model.SearchQuery.Sort.SortClause;
+import org.apache.james.mailbox.model.UpdatedFlags;
 import org.apache.james.mailbox.store.MessageBuilder;
 import org.apache.james.mailbox.store.SimpleMailboxMembership;
 import org.apache.james.mailbox.store.TestId;
@@ -320,6 +321,44 @@ public class LuceneMessageSearchIndexTest {
         assertFalse(it4.hasNext());
     }
     
+    @Test
+    public void testSearchFlagAfterBatchUpdate() throws Exception {
+        index.update(null, mailbox, Arrays.asList(
+                new UpdatedFlags(2, 5, new Flags(Flag.DELETED), new Flags(Flag.SEEN)),
+                new UpdatedFlags(3, 6, new Flags(Flag.DELETED), new Flags(Flag.DELETED))));
+
+        SearchQuery q = new SearchQuery();
+        q.andCriteria(SearchQuery.flagIsSet(Flag.DELETED));
+        Iterator<Long> it = index.search(null, mailbox, q);
+        assertEquals(3L, it.next().longValue());
+        assertFalse(it.hasNext());
+
+        SearchQuery q2 = new SearchQuery();
+        q2.andCriteria(SearchQuery.flagIsSet(Flag.SEEN));
+        q2.setSorts(Arrays.asList(new SearchQuery.Sort(SortClause.Uid, true)));
+        Iterator<Long> it2 = index.search(null, mailbox, q2);
+        assertEquals(2L, it2.next().longValue());
+        assertFalse(it2.hasNext());
+    }
+    
+    @Test
+    public void testSearchModSeq() throws Exception {
+        index.update(null, mailbox, Arrays.asList(new UpdatedFlags(2, 5, new Flags(Flag.DELETED), new Flags(Flag.SEEN))));
+
+        SearchQuery q = new SearchQuery();
+        q.andCriteria(SearchQuery.modSeqGreaterThan(4));
+        Iterator<Long> it = index.search(null, mailbox, q);
+        assertEquals(2L, it.next().longValue());
+        assertFalse(it.hasNext());
+
+        SearchQuery q2 = new SearchQuery();
+        q2.andCriteria(SearchQuery.headerExists("Test"));
+        q2.andCriteria(SearchQuery.modSeqLessThan(5));
+        Iterator<Long> it2 = index.search(null, mailbox, q2);
+        assertEquals(3L, it2.next().longValue());
+        assertFalse(it2.hasNext());
+    }
+    
     
     @Test
     public void testSearchInternalDateBefore() throws Exception {
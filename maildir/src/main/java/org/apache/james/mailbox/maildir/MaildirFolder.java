@@ -18,27 +18,38 @@
  ****************************************************************/
 package org.apache.james.mailbox.maildir;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.io.FileReader;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.NoSuchElementException;
+import java.util.NavigableMap;
 import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
@@ -46,27 +57,48 @@ import org.apache.commons.lang.ArrayUtils;
 import org.apache.james.mailbox.MailboxPathLocker;
 import org.apache.james.mailbox.MailboxPathLocker.LockAwareExecution;
 import org.apache.james.mailbox.MailboxSession;
+import org.apache.james.mailbox.MailboxSession.SessionType;
 import org.apache.james.mailbox.exception.MailboxException;
 import org.apache.james.mailbox.model.MailboxACL;
 import org.apache.james.mailbox.model.MailboxACL.MailboxACLEntryKey;
 import org.apache.james.mailbox.model.MailboxACL.MailboxACLRights;
 import org.apache.james.mailbox.model.MailboxPath;
 import org.apache.james.mailbox.model.SimpleMailboxACL;
+import org.apache.james.mailbox.store.SimpleMailboxSession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class MaildirFolder {
 
     public static final String VALIDITY_FILE = "james-uidvalidity";
     public static final String UIDLIST_FILE = "james-uidlist";
+    public static final String UIDLIST_INDEX_FILE = UIDLIST_FILE + MaildirUidList.INDEX_SUFFIX;
     public static final String ACL_FILE = "james-acl";
     public static final String CUR = "cur";
     public static final String NEW = "new";
     public static final String TMP = "tmp";
+
+    /**
+     * Compacts the uid lists of all folders, see {@link MaildirUidList#compact()}
+     */
+    private static final ExecutorService COMPACTION_EXECUTOR = Executors.newSingleThreadExecutor(daemonThreadFactory("maildir-uidlist-compaction"));
+    private static final Set<String> PENDING_COMPACTIONS = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private static final Logger COMPACTION_LOG = LoggerFactory.getLogger(MaildirFolder.class);
+    private static final Random COMPACTION_SESSION_IDS = new Random();
+
+    /**
+     * Deletes the message files of bulk expunges
+     */
+    private static final int DELETION_THREADS = 4;
+    private static final int MIN_PARALLEL_DELETIONS = 16;
+    private static final ExecutorService DELETION_EXECUTOR = Executors.newFixedThreadPool(DELETION_THREADS, daemonThreadFactory("maildir-deletion"));
     
     private File rootFolder;
     private File curFolder;
     private File newFolder;
     private File tmpFolder;
     private File uidFile;
+    private MaildirUidList uidList;
     private File aclFile;
     
     private long lastUid = -1;
@@ -74,6 +106,7 @@ public class MaildirFolder {
     private long uidValidity = -1;
     private MailboxACL acl;
     private boolean messageNameStrictParse = false;
+    private MaildirUidMapCache uidMapCache;
 
     private final MailboxPathLocker locker;
 
@@ -90,11 +123,24 @@ public class MaildirFolder {
         this.newFolder = new File(rootFolder, NEW);
         this.tmpFolder = new File(rootFolder, TMP);
         this.uidFile = new File(rootFolder, UIDLIST_FILE);
+        this.uidList = new MaildirUidList(uidFile);
         this.aclFile = new File(rootFolder, ACL_FILE);
         this.locker = locker;
         this.path = path;
     }
 
+    private static ThreadFactory daemonThreadFactory(final String name) {
+        return new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
     private MaildirMessageName newMaildirMessageName(MaildirFolder folder, String fullName) {
         MaildirMessageName mdn = new MaildirMessageName(folder, fullName);
         mdn.setMessageNameStrictParse(isMessageNameStrictParse());
@@ -123,6 +169,16 @@ public class MaildirFolder {
         this.messageNameStrictParse = messageNameStrictParse;
     }
 
+    /**
+     * Sets the cache which holds the uid map of this folder across sessions.
+     * <code>null</code> disables caching.
+     *
+     * @param uidMapCache
+     */
+    public void setUidMapCache(MaildirUidMapCache uidMapCache) {
+        this.uidMapCache = uidMapCache;
+    }
+
   /**
      * Returns the {@link File} of this Maildir folder.
      * @return the root folder
@@ -154,6 +210,55 @@ public class MaildirFolder {
         }
         return false;
     }
+
+    /**
+     * Returns the current state of the folder on disk, as used to validate the
+     * cached uid map.
+     */
+    private MaildirUidMapCache.Stamp stamp() {
+        return new MaildirUidMapCache.Stamp(uidFile, curFolder, newFolder);
+    }
+
+    /**
+     * Returns the cached uid map of this folder if it still matches the folder
+     * on disk.
+     * @return The uid map, or null if it needs to be read from the uid list
+     */
+    private SortedMap<Long, MaildirMessageName> getCachedUidMap() {
+        if (uidMapCache == null || isModified())
+            return null;
+        return uidMapCache.get(toString(), stamp());
+    }
+
+    private void cacheUidMap(Map<Long, MaildirMessageName> uidMap) {
+        if (uidMapCache != null)
+            uidMapCache.put(toString(), stamp(), copyNames(uidMap));
+    }
+
+    /**
+     * Copies the message names of a uid map, so that the instances held by
+     * the cache are never shared with a caller who may change their flags.
+     */
+    private SortedMap<Long, MaildirMessageName> copyNames(Map<Long, MaildirMessageName> uidMap) {
+        SortedMap<Long, MaildirMessageName> copy = new TreeMap<Long, MaildirMessageName>();
+        for (Entry<Long, MaildirMessageName> entry : uidMap.entrySet()) {
+            copy.put(entry.getKey(), newMaildirMessageName(this, entry.getValue().getFullName()));
+        }
+        return copy;
+    }
+
+    /**
+     * Applies the change of one uid to the cached uid map.
+     * @param before The state of the folder before the change
+     * @param uid The changed uid
+     * @param name The new name of the message file, null if the uid was removed
+     */
+    private void updateCachedUidMap(MaildirUidMapCache.Stamp before, long uid, String name) {
+        if (uidMapCache != null) {
+            MaildirMessageName messageName = name == null ? null : newMaildirMessageName(this, name);
+            uidMapCache.apply(toString(), before, stamp(), uid, messageName);
+        }
+    }
     
     /**
      * Returns the ./cur folder of this Maildir folder.
@@ -220,24 +325,17 @@ public class MaildirFolder {
             
             @Override
             public Void execute() throws MailboxException {
-                File uidList = uidFile;
-                FileReader fileReader = null;
-                BufferedReader reader = null;
                 try {
                     if (!uidList.exists())
                         createUidFile();
-                    fileReader = new FileReader(uidList);
-                    reader = new BufferedReader(fileReader);
-                    String line = reader.readLine();
-                    if (line != null)
-                        readUidListHeader(line);
+                    else {
+                        uidList.readHeader();
+                        readUidListHeader();
+                    }
                     return null;
                 } catch (IOException e) {
                     throw new MailboxException("Unable to read last uid", e);
-                } finally {
-                    IOUtils.closeQuietly(reader);
-                    IOUtils.closeQuietly(fileReader);
-                }                
+                }
             }
         }, true);
         
@@ -334,38 +432,23 @@ public class MaildirFolder {
             
             @Override
             public MaildirMessageName execute() throws MailboxException {
-                FileReader fileReader = null;
-                BufferedReader reader = null;
-                File uidList = uidFile;
+                SortedMap<Long, MaildirMessageName> cachedUidMap = getCachedUidMap();
+                if (cachedUidMap != null) {
+                    MaildirMessageName cached = cachedUidMap.get(uid);
+                    // hand out a copy, as the caller may change the flags
+                    return cached == null ? null : newMaildirMessageName(MaildirFolder.this, cached.getFullName());
+                }
                 try {
-                    fileReader = new FileReader(uidList);
-                    reader = new BufferedReader(fileReader);
-                    String uidString = String.valueOf(uid);
-                    String line = reader.readLine(); // the header
-                    int lineNumber = 1;
-                    while ((line = reader.readLine()) != null) {
-                        if (!line.equals("")) {
-                            int gap = line.indexOf(" ");
-                            if (gap == -1) {
-                                // there must be some issues in the file if no gap can be found
-                            	session.getLog().info("Corrupted entry in uid-file " + uidList + " line " + lineNumber++);
-                                continue;
-                            }
-                            
-                            if (line.substring(0, gap).equals(uidString)) {
-                                return newMaildirMessageName(MaildirFolder.this, line.substring(gap + 1));
-                            }
-                        }
+                    String name = uidList.get(uid);
+                    readUidListHeader();
+                    if (name == null) {
+                        // TODO: Is this right!?
+                        return null;
                     }
-                    
-                    // TODO: Is this right!?
-                    return null;
+                    return newMaildirMessageName(MaildirFolder.this, name);
                 } catch (IOException e) {
                     throw new MailboxException("Unable to read messagename for uid " + uid, e);
-                } finally {
-                    IOUtils.closeQuietly(reader);
-                    IOUtils.closeQuietly(fileReader);
-                }                
+                }
             }
         }, true);
     }
@@ -388,9 +471,7 @@ public class MaildirFolder {
             public SortedMap<Long, MaildirMessageName> execute() throws MailboxException {
                 final SortedMap<Long, MaildirMessageName> uidMap = new TreeMap<Long, MaildirMessageName>();
 
-                File uidList = uidFile;
-
-                if (uidList.isFile()) {
+                if (uidList.exists()) {
                     if (isModified()) {
                         try {
                             uidMap.putAll(truncateMap(updateUidFile(), from, to));
@@ -400,6 +481,18 @@ public class MaildirFolder {
                             // existence and before trying to update it.
                             uidMap.putAll(truncateMap(createUidFile(), from, to));
                         }
+                    } else if (uidMapCache != null) {
+                        // the uidList is up to date, so is the cache if it holds the folder
+                        SortedMap<Long, MaildirMessageName> cachedUidMap = getCachedUidMap();
+                        if (cachedUidMap == null) {
+                            Map<Long, MaildirMessageName> allUids = readUidFile(session, 0, -1);
+                            cacheUidMap(allUids);
+                            uidMap.putAll(truncateMap(allUids, from, to));
+                        } else if (to != -1) {
+                            uidMap.putAll(copyNames(cachedUidMap.subMap(from, to + 1)));
+                        } else {
+                            uidMap.putAll(copyNames(cachedUidMap.tailMap(from)));
+                        }
                     } else {
                         // the uidList is up to date
                         uidMap.putAll(readUidFile(session, from, to));
@@ -463,7 +556,7 @@ public class MaildirFolder {
      */
     public SortedMap<Long, MaildirMessageName> getRecentMessages(final MailboxSession session) throws MailboxException {
         final String[] recentFiles = getNewFolder().list();
-        final LinkedList<String> lines = new LinkedList<String>();
+        final Set<String> recentNames = new HashSet<String>(Arrays.asList(recentFiles));
         final int theLimit = recentFiles.length;
         return locker.executeWithLock(session, path, new LockAwareExecution<SortedMap<Long, MaildirMessageName>>() {
             
@@ -471,69 +564,24 @@ public class MaildirFolder {
             public SortedMap<Long, MaildirMessageName> execute() throws MailboxException {
                 final SortedMap<Long, MaildirMessageName> recentMessages = new TreeMap<Long, MaildirMessageName>();
 
-                File uidList = uidFile;
-
                 try {
-                    if (!uidList.isFile()) {
-                        if (!uidList.createNewFile())
-                            throw new IOException("Could not create file " + uidList);
-                        String[] curFiles = curFolder.list();
-                        String[] newFiles = newFolder.list();
-                        messageCount = curFiles.length + newFiles.length;
-                        String[] allFiles = (String[]) ArrayUtils.addAll(curFiles, newFiles);
-                        for (String file : allFiles)
-                            lines.add(String.valueOf(getNextUid()) + " " + file);
-                        PrintWriter pw = new PrintWriter(uidList);
-                        try {
-                            pw.println(createUidListHeader());
-                            for (String line : lines)
-                            pw.println(line);
-                        } finally {
-                            IOUtils.closeQuietly(pw);
-                        }
-                    }
-                    else {
-                        FileReader fileReader = null;
-                        BufferedReader reader = null;
-                    try {
-                            fileReader = new FileReader(uidList);
-                            reader = new BufferedReader(fileReader);
-                            String line = reader.readLine();
-                            // the first line in the file contains the next uid and message count
-                            while ((line = reader.readLine()) != null)
-                                lines.add(line);
-                        } finally {
-                            IOUtils.closeQuietly(reader);
-                            IOUtils.closeQuietly(fileReader);
-                        }
+                    NavigableMap<Long, String> names;
+                    if (!uidList.exists()) {
+                        names = new TreeMap<Long, String>();
+                        for (Entry<Long, MaildirMessageName> entry : createUidFile().entrySet())
+                            names.put(entry.getKey(), entry.getValue().getFullName());
+                    } else {
+                        names = new TreeMap<Long, String>(uidList.read(0, -1));
+                        readUidListHeader();
                     }
                     int counter = 0;
-                    String line;
-                    while (counter < theLimit) {
-                        // walk backwards as recent files are supposedly recent
-                        try {
-                            line = lines.removeLast();
-                        } catch (NoSuchElementException e) {
-                            break; // the list is empty
-                        }
-                        if (!line.equals("")) {
-                            int gap = line.indexOf(" ");
-                            if (gap == -1) {
-                                // there must be some issues in the file if no gap can be found
-                                // there must be some issues in the file if no gap can be found
-                            	session.getLog().info("Corrupted entry in uid-file " + uidList + " line " + lines.size());
-                                continue;
-                            }
-                            
-                            Long uid = Long.valueOf(line.substring(0, gap));
-                            String name = line.substring(gap + 1, line.length());
-                            for (String recentFile : recentFiles) {
-                                if (recentFile.equals(name)) {
-                                    recentMessages.put(uid, newMaildirMessageName(MaildirFolder.this, recentFile));
-                                    counter++;
-                                    break;
-                                }
-                            }
+                    // walk backwards as recent files are supposedly recent
+                    for (Entry<Long, String> entry : names.descendingMap().entrySet()) {
+                        if (counter >= theLimit)
+                            break;
+                        if (recentNames.contains(entry.getValue())) {
+                            recentMessages.put(entry.getKey(), newMaildirMessageName(MaildirFolder.this, entry.getValue()));
+                            counter++;
                         }
                     }
                 } catch (IOException e) {
@@ -552,126 +600,66 @@ public class MaildirFolder {
      */
     private Map<Long, MaildirMessageName> createUidFile() throws MailboxException {
         final Map<Long, MaildirMessageName> uidMap = new TreeMap<Long, MaildirMessageName>();
-        File uidList = uidFile;
-        PrintWriter pw = null;
         try {
-            if (!uidList.createNewFile())
-                throw new IOException("Could not create file " + uidList);
             lastUid = 0;
             String[] curFiles = curFolder.list();
             String[] newFiles = newFolder.list();
             messageCount = curFiles.length + newFiles.length;
             String[] allFiles = (String[]) ArrayUtils.addAll(curFiles, newFiles);
-            for (String file : allFiles)
-                uidMap.put(getNextUid(), newMaildirMessageName(MaildirFolder.this, file));
-            //uidMap = new TreeMap<Long, MaildirMessageName>(uidMap);
-            pw = new PrintWriter(uidList);
-            pw.println(createUidListHeader());
-            for (Entry<Long, MaildirMessageName> entry : uidMap.entrySet())
-                pw.println(String.valueOf(entry.getKey()) + " " + entry.getValue().getFullName());
+            SortedMap<Long, String> names = new TreeMap<Long, String>();
+            for (String file : allFiles) {
+                long uid = getNextUid();
+                uidMap.put(uid, newMaildirMessageName(MaildirFolder.this, file));
+                names.put(uid, file);
+            }
+            uidList.write(lastUid, names);
+            cacheUidMap(uidMap);
         } catch (IOException e) {
             throw new MailboxException("Unable to create uid file", e);
-        } finally {
-            IOUtils.closeQuietly(pw);
-        }     
+        }
 
         return uidMap;
     }
     
     private Map<Long, MaildirMessageName> updateUidFile() throws MailboxException {
         final Map<Long, MaildirMessageName> uidMap = new TreeMap<Long, MaildirMessageName>();
-        File uidList = uidFile;
         String[] curFiles = curFolder.list();
         String[] newFiles = newFolder.list();
         messageCount = curFiles.length + newFiles.length;
         HashMap<String, Long> reverseUidMap = new HashMap<String, Long>(messageCount);
-        FileReader fileReader = null;
-        BufferedReader reader = null;
-        PrintWriter pw = null;
         try {
-            fileReader = new FileReader(uidList);
-            reader = new BufferedReader(fileReader);
-            String line = reader.readLine();
-            // the first line in the file contains the next uid and message count
-            if (line != null)
-                readUidListHeader(line);
-            int lineNumber = 1;
-            while ((line = reader.readLine()) != null) {
-                if (!line.equals("")) {
-                    int gap = line.indexOf(" ");
-                    if (gap == -1) {
-                        // there must be some issues in the file if no gap can be found
-                        throw new MailboxException("Corrupted entry in uid-file " + uidList + " line " + lineNumber++);
-                    }
-                    Long uid = Long.valueOf(line.substring(0, gap));
-                    String name = line.substring(gap + 1, line.length());
-                    reverseUidMap.put(stripMetaFromName(name), uid);
-                }
-            }
+            // the header of the list contains the last uid
+            SortedMap<Long, String> names = uidList.read(0, -1);
+            lastUid = uidList.getLastUid();
+            for (Entry<Long, String> entry : names.entrySet())
+                reverseUidMap.put(stripMetaFromName(entry.getValue()), entry.getKey());
             String[] allFiles = (String[]) ArrayUtils.addAll(curFiles, newFiles);
+            SortedMap<Long, String> newNames = new TreeMap<Long, String>();
             for (String file : allFiles) {
                 MaildirMessageName messageName = newMaildirMessageName(MaildirFolder.this, file);
                 Long uid = reverseUidMap.get(messageName.getBaseName());
                 if (uid == null)
                     uid = getNextUid();
                 uidMap.put(uid, messageName);
+                newNames.put(uid, file);
             }
-            pw = new PrintWriter(uidList);
-            pw.println(createUidListHeader());
-            for (Entry<Long, MaildirMessageName> entry : uidMap.entrySet())
-                pw.println(String.valueOf(entry.getKey()) + " " + entry.getValue().getFullName());
+            uidList.write(lastUid, newNames);
+            cacheUidMap(uidMap);
         } catch (IOException e) {
             throw new MailboxException("Unable to update uid file", e);
-        } finally {
-            IOUtils.closeQuietly(pw);
-            IOUtils.closeQuietly(fileReader);
-            IOUtils.closeQuietly(reader);
-        }               
+        }
         return uidMap;
     }
 
     private Map<Long, MaildirMessageName> readUidFile(MailboxSession session, final long from, final long to) throws MailboxException {
-        final Map<Long, MaildirMessageName> uidMap = new HashMap<Long, MaildirMessageName>();
-
-        File uidList = uidFile;
-        FileReader fileReader = null;
-        BufferedReader reader = null;
+        final Map<Long, MaildirMessageName> uidMap = new TreeMap<Long, MaildirMessageName>();
         try {
-            fileReader = new FileReader(uidList);
-            reader = new BufferedReader(fileReader);
-            String line = reader.readLine();
-            // the first line in the file contains the next uid and message
-            // count
-            if (line != null)
-                readUidListHeader(line);
-            int lineNumber = 1;
-            while ((line = reader.readLine()) != null) {
-                if (!line.equals("")) {
-                    int gap = line.indexOf(" ");
-
-                    if (gap == -1) {
-                        // there must be some issues in the file if no gap can be found
-                    	session.getLog().info("Corrupted entry in uid-file " + uidList + " line " + lineNumber++);
-                        continue;
-                    }
-
-                    Long uid = Long.valueOf(line.substring(0, gap));
-                    if (uid >= from) {
-                        if (to != -1 && uid > to)
-                            break;
-                        String name = line.substring(gap + 1, line.length());
-                        uidMap.put(uid, newMaildirMessageName(MaildirFolder.this, name));
-                    }
-                }
-            }
+            for (Entry<Long, String> entry : uidList.read(from, to).entrySet())
+                uidMap.put(entry.getKey(), newMaildirMessageName(MaildirFolder.this, entry.getValue()));
+            readUidListHeader();
         } catch (IOException e) {
             throw new MailboxException("Unable to read uid file", e);
-        } finally {
-            IOUtils.closeQuietly(reader);
-            IOUtils.closeQuietly(fileReader);
         }
-        messageCount = uidMap.size();
-
         return uidMap;
     }
     
@@ -692,34 +680,12 @@ public class MaildirFolder {
     }
     
     /**
-     * Parses the header line in uid list files.
-     * The format is: version lastUid messageCount (e.g. 1 615 273)
-     * @param line The raw header line
-     * @throws IOException
+     * Takes over the last uid and the message count from the header of the uid list
+     * as read by the latest operation on it.
      */
-    private void readUidListHeader(String line) throws IOException {
-        if (line == null)
-            throw new IOException("Header entry in uid-file is null");
-        int gap1 = line.indexOf(" ");
-        if (gap1 == -1) {
-            // there must be some issues in the file if no gap can be found
-            throw new IOException("Corrupted header entry in uid-file");
-            
-        }
-        int version = Integer.valueOf(line.substring(0, gap1));
-        if (version != 1)
-            throw new IOException("Cannot read uidlists with versions other than 1.");
-        int gap2 = line.indexOf(" ", gap1 + 1);
-        lastUid = Long.valueOf(line.substring(gap1 + 1, gap2));
-        messageCount = Integer.valueOf(line.substring(gap2 + 1, line.length()));
-    }
-    
-    /**
-     * Creates a line to put as a header in the uid list file.
-     * @return the line which ought to be the header
-     */
-    private String createUidListHeader() {
-        return "1 " + String.valueOf(lastUid) + " " + String.valueOf(messageCount);
+    private void readUidListHeader() {
+        lastUid = uidList.getLastUid();
+        messageCount = uidList.getMessageCount();
     }
     
     /**
@@ -748,57 +714,26 @@ public class MaildirFolder {
             
             @Override
             public Long execute() throws MailboxException {
-                File uidList = uidFile;
                 long uid = -1;
-                FileReader fileReader = null;
-                BufferedReader reader = null;
-                PrintWriter pw = null;
                 try {
-                    if (uidList.isFile()) {
-                        fileReader = new FileReader(uidList);
-                        reader = new BufferedReader(fileReader);
-                        String line = reader.readLine();
-                        // the first line in the file contains the next uid and message count
-                        if (line != null)
-                            readUidListHeader(line);
-                        ArrayList<String> lines = new ArrayList<String>();
-                        while ((line = reader.readLine()) != null)
-                            lines.add(line);
+                    if (uidList.exists()) {
+                        MaildirUidMapCache.Stamp before = stamp();
+                        uidList.readHeader();
+                        readUidListHeader();
                         uid = getNextUid();
-                        lines.add(String.valueOf(uid) + " " + name);
+                        uidList.append(uid, name);
                         messageCount++;
-                        pw = new PrintWriter(uidList);
-                        pw.println(createUidListHeader());
-                        for (String entry : lines)
-                            pw.println(entry);
+                        updateCachedUidMap(before, uid, name);
                     }
                     else {
-                        // create the file
-                        if (!uidList.createNewFile())
-                            throw new IOException("Could not create file " + uidList);
-                        String[] curFiles = curFolder.list();
-                        String[] newFiles = newFolder.list();
-                        messageCount = curFiles.length + newFiles.length;
-                        ArrayList<String> lines = new ArrayList<String>();
-                        String[] allFiles = (String[]) ArrayUtils.addAll(curFiles, newFiles);
-                        for (String file : allFiles) {
-                            long theUid = getNextUid();
-                            lines.add(String.valueOf(theUid) + " " + file);
-                            // the listed names already include the message to append
-                            if (file.equals(name))
-                                uid = theUid;
+                        // create the file, the listed names already include the message to append
+                        for (Entry<Long, MaildirMessageName> entry : createUidFile().entrySet()) {
+                            if (entry.getValue().getFullName().equals(name))
+                                uid = entry.getKey();
                         }
-                        pw = new PrintWriter(uidList);
-                        pw.println(createUidListHeader());
-                        for (String line : lines)
-                            pw.println(line);
                     }
                 } catch (IOException e) {
                     throw new MailboxException("Unable to append msg", e);
-                } finally {
-                    IOUtils.closeQuietly(pw);
-                    IOUtils.closeQuietly(reader);
-                    IOUtils.closeQuietly(fileReader);
                 }
                 if (uid == -1) {
                     throw new MailboxException("Unable to append msg");
@@ -822,32 +757,15 @@ public class MaildirFolder {
             
             @Override
             public Void execute() throws MailboxException {
-                File uidList = uidFile;
-                FileReader fileReader = null;
-                BufferedReader reader = null;
-                PrintWriter writer = null;
                 try {
-                    fileReader = new FileReader(uidList);
-                    reader = new BufferedReader(fileReader);
-                    String line = reader.readLine();
-                    readUidListHeader(line);
-                    ArrayList<String> lines = new ArrayList<String>();
-                    while ((line = reader.readLine()) != null) {
-                        if (uid == Long.valueOf(line.substring(0, line.indexOf(" "))))
-                            line = String.valueOf(uid) + " " + messageName;
-                        lines.add(line);
-                    }
-                    writer = new PrintWriter(uidList);
-                    writer.println(createUidListHeader());
-                    for (String entry : lines)
-                        writer.println(entry);
+                    MaildirUidMapCache.Stamp before = stamp();
+                    if (uidList.update(uid, messageName))
+                        updateCachedUidMap(before, uid, messageName);
+                    readUidListHeader();
                 } catch (IOException e) {
                     throw new MailboxException("Unable to update msg with uid " + uid, e);
-                } finally {
-                    IOUtils.closeQuietly(writer);
-                    IOUtils.closeQuietly(reader);
-                    IOUtils.closeQuietly(fileReader);
-                }    
+                }
+                scheduleCompaction(session);
                 return null;
             }
         }, true);
@@ -862,61 +780,147 @@ public class MaildirFolder {
      * @throws MailboxException If the file cannot be deleted of there is a problem with the uid list
      */
     public MaildirMessageName delete(final MailboxSession session, final long uid) throws MailboxException {        
-        return locker.executeWithLock(session, path, new LockAwareExecution<MaildirMessageName>() {
+        return delete(session, Collections.singleton(uid)).get(uid);
+    }
+
+    /**
+     * Retrieves the files belonging to the given uids, deletes them and updates
+     * the uid list once for all of them.
+     * @param uids The uids of the messages to delete
+     * @return The {@link MaildirMessageName}s of the deleted messages
+     * @throws MailboxException If a file cannot be deleted of there is a problem with the uid list.
+     * The messages whose files were deleted are removed from the uid list anyway.
+     */
+    public SortedMap<Long, MaildirMessageName> delete(final MailboxSession session, final Collection<Long> uids) throws MailboxException {
+        return locker.executeWithLock(session, path, new LockAwareExecution<SortedMap<Long, MaildirMessageName>>() {
             
             @Override
-            public MaildirMessageName execute() throws MailboxException {
-                File uidList = uidFile;
-                FileReader fileReader = null;
-                BufferedReader reader = null;
-                PrintWriter writer = null;
-                MaildirMessageName deletedMessage = null;
+            public SortedMap<Long, MaildirMessageName> execute() throws MailboxException {
+                SortedMap<Long, MaildirMessageName> deletedMessages = new TreeMap<Long, MaildirMessageName>();
+                IOException failure;
                 try {
-                    fileReader = new FileReader(uidList);
-                    reader = new BufferedReader(fileReader);
-                    readUidListHeader(reader.readLine());
-                    
-                    // It may be possible that message count is 0 so we should better not try to calculate the size of the ArrayList
-                    ArrayList<String> lines = new ArrayList<String>();
-                    String line;
-                    int lineNumber = 1;
-                    while ((line = reader.readLine()) != null) {
-                        int gap = line.indexOf(" ");
-                        if (gap == -1) {
-                            // there must be some issues in the file if no gap can be found
-                        	session.getLog().info("Corrupted entry in uid-file " + uidList + " line " + lineNumber++);
-                            continue;
-                        }
-                        
-                        if (uid == Long.valueOf(line.substring(0, line.indexOf(" ")))) {
-                            deletedMessage = newMaildirMessageName(MaildirFolder.this, line.substring(gap + 1, line.length()));
-                            messageCount--;
-                        }
-                        else {
-                            lines.add(line);
+                    for (Entry<Long, String> entry : uidList.get(uids).entrySet())
+                        deletedMessages.put(entry.getKey(), newMaildirMessageName(MaildirFolder.this, entry.getValue()));
+                    failure = deleteFiles(deletedMessages);
+                    if (!deletedMessages.isEmpty()) {
+                        MaildirUidMapCache.Stamp before = stamp();
+                        uidList.delete(deletedMessages.keySet());
+                        if (uidMapCache != null) {
+                            Map<Long, MaildirMessageName> removals = new HashMap<Long, MaildirMessageName>();
+                            for (Long uid : deletedMessages.keySet())
+                                removals.put(uid, null);
+                            uidMapCache.apply(MaildirFolder.this.toString(), before, stamp(), removals);
                         }
                     }
-                    if (deletedMessage != null) {
-                        FileUtils.forceDelete(deletedMessage.getFile());
-                        writer = new PrintWriter(uidList);
-                        writer.println(createUidListHeader());
-                        for (String entry : lines)
-                            writer.println(entry);
-                    }
-                    return deletedMessage;
-
+                    readUidListHeader();
                 } catch (IOException e) {
-                    throw new MailboxException("Unable to delete msg with uid " + uid, e);
-                } finally {
-                    IOUtils.closeQuietly(writer);
-                    IOUtils.closeQuietly(reader);
-                    IOUtils.closeQuietly(fileReader);
-                }   
+                    throw new MailboxException("Unable to delete msgs with uids " + uids, e);
+                }
+                scheduleCompaction(session);
+                if (failure != null)
+                    throw new MailboxException("Unable to delete msgs with uids " + uids, failure);
+                return deletedMessages;
             }
         }, true);
         
 
     }
+
+    /**
+     * Deletes the files of the given messages, using several threads for large
+     * amounts of messages. The messages whose files could not be deleted are
+     * removed from the given map.
+     * @return the first failure, null if all files were deleted
+     */
+    private IOException deleteFiles(SortedMap<Long, MaildirMessageName> messages) throws MailboxException {
+        final List<Entry<Long, MaildirMessageName>> entries = new ArrayList<Entry<Long, MaildirMessageName>>(messages.entrySet());
+        final Set<Long> failed = Collections.synchronizedSet(new HashSet<Long>());
+        final AtomicReference<IOException> failure = new AtomicReference<IOException>();
+        int threads = entries.size() < MIN_PARALLEL_DELETIONS ? 1 : DELETION_THREADS;
+        List<Future<?>> futures = new ArrayList<Future<?>>(threads);
+        for (int i = 0; i < threads; i++) {
+            final int first = i;
+            final int step = threads;
+            Runnable deletion = new Runnable() {
+
+                @Override
+                public void run() {
+                    for (int j = first; j < entries.size(); j += step) {
+                        Entry<Long, MaildirMessageName> entry = entries.get(j);
+                        try {
+                            FileUtils.forceDelete(entry.getValue().getFile());
+                        } catch (IOException e) {
+                            failed.add(entry.getKey());
+                            failure.compareAndSet(null, e);
+                        }
+                    }
+                }
+            };
+            if (threads == 1)
+                deletion.run();
+            else
+                futures.add(DELETION_EXECUTOR.submit(deletion));
+        }
+        try {
+            for (Future<?> future : futures)
+                future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MailboxException("Interrupted while deleting messages", e);
+        } catch (ExecutionException e) {
+            throw new MailboxException("Unable to delete messages", e.getCause());
+        }
+        messages.keySet().removeAll(failed);
+        return failure.get();
+    }
+    
+    /**
+     * Compacts the uid list in the background once it holds too many superseded
+     * records. This must be called while holding the lock of the folder.
+     * The compaction locks the folder under its own system session, as the
+     * session of the caller may be closed by then.
+     * @param session
+     */
+    private void scheduleCompaction(final MailboxSession session) {
+        if (!uidList.needsCompaction())
+            return;
+        final String key = uidFile.getAbsolutePath();
+        if (!PENDING_COMPACTIONS.add(key))
+            return;
+        final char pathDelimiter = session.getPathDelimiter();
+        COMPACTION_EXECUTOR.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                MailboxSession compactionSession = new SimpleMailboxSession(COMPACTION_SESSION_IDS.nextLong(),
+                        path.getUser(), null, COMPACTION_LOG, new ArrayList<Locale>(), pathDelimiter, SessionType.System);
+                try {
+                    locker.executeWithLock(compactionSession, path, new LockAwareExecution<Void>() {
+
+                        @Override
+                        public Void execute() throws MailboxException {
+                            try {
+                                if (uidList.exists()) {
+                                    MaildirUidMapCache.Stamp before = stamp();
+                                    uidList.compact();
+                                    if (uidMapCache != null)
+                                        uidMapCache.refresh(MaildirFolder.this.toString(), before, stamp());
+                                }
+                            } catch (IOException e) {
+                                throw new MailboxException("Unable to compact uid file", e);
+                            }
+                            return null;
+                        }
+                    }, true);
+                } catch (MailboxException e) {
+                    COMPACTION_LOG.info("Unable to compact uid file " + uidFile, e);
+                } finally {
+                    compactionSession.close();
+                    PENDING_COMPACTIONS.remove(key);
+                }
+            }
+        });
+    }
     
     /** 
      * The absolute path of this folder.
@@ -50,6 +50,8 @@ public class MaildirStore implements UidProvider<MaildirId>, ModSeqProvider<Mail
 
     private boolean messageNameStrictParse = false;
 
+    private MaildirUidMapCache uidMapCache = new MaildirUidMapCache();
+
     /**
      * Construct a MaildirStore with a location. The location String
      * currently may contain the
@@ -81,6 +83,7 @@ public class MaildirStore implements UidProvider<MaildirId>, ModSeqProvider<Mail
     public MaildirFolder createMaildirFolder(Mailbox<MaildirId> mailbox) {
         MaildirFolder mf = new MaildirFolder(getFolderName(mailbox), new MailboxPath(mailbox.getNamespace(), mailbox.getUser(), mailbox.getName()), locker);
         mf.setMessageNameStrictParse(isMessageNameStrictParse());
+        mf.setUidMapCache(uidMapCache);
         return mf;
     }
 
@@ -249,11 +252,28 @@ public class MaildirStore implements UidProvider<MaildirId>, ModSeqProvider<Mail
         }
     }
 
+    /**
+     * The uids are assigned by the {@link MaildirFolder} when messages are added, so this
+     * only returns the next uid, like {@link #nextUid(MailboxSession, Mailbox)}.
+     */
+    @Override
+    public long nextUids(MailboxSession session, Mailbox<MaildirId> mailbox, int count) throws MailboxException {
+        return nextUid(session, mailbox);
+    }
+
     @Override
     public long nextModSeq(MailboxSession session, Mailbox<MaildirId> mailbox) throws MailboxException {
         return System.currentTimeMillis();
     }
 
+    /**
+     * The mod-sequences of maildir messages are their modification times.
+     */
+    @Override
+    public long nextModSeqs(MailboxSession session, Mailbox<MaildirId> mailbox, int count) throws MailboxException {
+        return nextModSeq(session, mailbox);
+    }
+
     @Override
     public long highestModSeq(MailboxSession session, Mailbox<MaildirId> mailbox) throws MailboxException {
         try {
@@ -290,4 +310,20 @@ public class MaildirStore implements UidProvider<MaildirId>, ModSeqProvider<Mail
     public void setMessageNameStrictParse(boolean messageNameStrictParse) {
         this.messageNameStrictParse = messageNameStrictParse;
     }
+
+    /**
+     * Sets the maximal number of messages whose uids and file names are cached
+     * over all folders, see {@link MaildirUidMapCache}. A value smaller than 1
+     * disables the cache.
+     *
+     * Default is {@link MaildirUidMapCache#DEFAULT_MAX_MESSAGES}.
+     *
+     * @param uidMapCacheSize
+     */
+    public void setUidMapCacheSize(int uidMapCacheSize) {
+        if (uidMapCacheSize < 1)
+            this.uidMapCache = null;
+        else
+            this.uidMapCache = new MaildirUidMapCache(uidMapCacheSize);
+    }
 }
@@ -0,0 +1,741 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailbox.maildir;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * The uid list of a {@link MaildirFolder}, which maps uids to the names of the
+ * message files.
+ * <p>
+ * The list is stored in two files:
+ * <ul>
+ * <li>the uid list itself, a text file. Its first line is a fixed width header
+ * <code>version lastUid messageCount</code>, followed by <code>uid name</code>
+ * records. Changes are only ever appended: an updated name is a new
+ * <code>uid name</code> record which supersedes the former one, an expunged
+ * message is a <code>-uid</code> record.</li>
+ * <li>the index, a binary file with a header (the length of the uid list it
+ * was built for and the number of superseded records) followed by fixed size
+ * <code>(uid, offset)</code> entries sorted by uid. The offset points to the
+ * live record of the uid in the uid list, or is <code>-1</code> once the
+ * message has been expunged.</li>
+ * </ul>
+ * This makes a lookup by uid a binary search in the index, and an update or
+ * an expunge an append to the uid list plus an in place write to the index.
+ * Once the superseded records outnumber the live ones the list should be
+ * {@link #compact()}ed.
+ * <p>
+ * Version 1 uid lists, as written by former releases, can be read as they are
+ * and are upgraded to version 2 on the first write. A missing or outdated index
+ * is rebuilt from the uid list.
+ * <p>
+ * Instances are not thread-safe, callers need to hold the lock of the folder.
+ */
+public class MaildirUidList {
+
+    public static final String INDEX_SUFFIX = ".idx";
+
+    private static final int VERSION = 2;
+    private static final String DELETE_MARKER = "-";
+    private static final long DELETED = -1L;
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    private static final int INDEX_HEADER_LENGTH = 16;
+    private static final int INDEX_ENTRY_LENGTH = 16;
+    // enough for any uid followed by a file name of the maximal length
+    private static final int MAX_RECORD_LENGTH = 512;
+
+    /**
+     * The number of superseded records which are tolerated before a compaction
+     * gets worthwhile
+     */
+    private static final long COMPACTION_THRESHOLD = 1024;
+
+    private final File uidFile;
+    private final File indexFile;
+
+    private int version = VERSION;
+    private long lastUid = 0;
+    private int messageCount = 0;
+    private long deadRecords = 0;
+
+    public MaildirUidList(File uidFile) {
+        this.uidFile = uidFile;
+        this.indexFile = new File(uidFile.getParentFile(), uidFile.getName() + INDEX_SUFFIX);
+    }
+
+    /**
+     * Tests whether the uid list exists on disk
+     * @return true if the uid list file exists
+     */
+    public boolean exists() {
+        return uidFile.isFile();
+    }
+
+    /**
+     * Returns the last uid as read from the header of the uid list by the
+     * latest operation
+     * @return lastUid
+     */
+    public long getLastUid() {
+        return lastUid;
+    }
+
+    /**
+     * Returns the message count as read from the header of the uid list by the
+     * latest operation
+     * @return messageCount
+     */
+    public int getMessageCount() {
+        return messageCount;
+    }
+
+    /**
+     * Reads the header of the uid list.
+     * @throws IOException if the uid list cannot be read or is corrupted
+     */
+    public void readHeader() throws IOException {
+        RecordReader reader = new RecordReader(uidFile);
+        try {
+            parseHeader(reader.readRecord());
+        } finally {
+            IOUtils.closeQuietly(reader);
+        }
+    }
+
+    /**
+     * Searches the name of the message file with the given uid.
+     * @param uid The uid to search for
+     * @return The name of the message file, null if the uid is unknown
+     * @throws IOException if the uid list cannot be read
+     */
+    public String get(long uid) throws IOException {
+        return get(Collections.singleton(uid)).get(uid);
+    }
+
+    /**
+     * Searches the names of the message files with the given uids.
+     * @param uids The uids to search for
+     * @return The names of the message files of the known uids
+     * @throws IOException if the uid list cannot be read
+     */
+    public SortedMap<Long, String> get(Collection<Long> uids) throws IOException {
+        load();
+        SortedMap<Long, String> names = new TreeMap<Long, String>();
+        boolean outdated = false;
+        RandomAccessFile index = new RandomAccessFile(indexFile, "r");
+        RandomAccessFile list = new RandomAccessFile(uidFile, "r");
+        try {
+            // sorted, so that the index and the list are read front to back
+            for (Long uid : new TreeSet<Long>(uids)) {
+                long slot = find(index, uid);
+                if (slot < 0) {
+                    continue;
+                }
+                long offset = readOffset(index, slot);
+                if (offset == DELETED) {
+                    continue;
+                }
+                String name = readName(list, offset, uid);
+                if (name == null) {
+                    outdated = true;
+                    break;
+                }
+                names.put(uid, name);
+            }
+        } finally {
+            IOUtils.closeQuietly(list);
+            IOUtils.closeQuietly(index);
+        }
+        if (outdated) {
+            // the index does not match the uid list
+            rebuildIndex();
+            SortedMap<Long, String> entries = scan(0, -1);
+            names.clear();
+            for (Long uid : uids) {
+                String name = entries.get(uid);
+                if (name != null) {
+                    names.put(uid, name);
+                }
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Reads all uids between the two boundaries together with the names of
+     * their message files.
+     * @param from The lower uid limit
+     * @param to The upper uid limit. <code>-1</code> disables the upper limit
+     * @return A map of the uids and the names of the message files
+     * @throws IOException if the uid list cannot be read
+     */
+    public SortedMap<Long, String> read(long from, long to) throws IOException {
+        if (to == -1) {
+            // reading sequentially beats a random access per message
+            return scan(from, to);
+        }
+        load();
+        SortedMap<Long, String> entries = new TreeMap<Long, String>();
+        RandomAccessFile index = new RandomAccessFile(indexFile, "r");
+        RandomAccessFile list = new RandomAccessFile(uidFile, "r");
+        try {
+            long count = countEntries(index);
+            for (long slot = lowerBound(index, count, from); slot < count; slot++) {
+                index.seek(entryPosition(slot));
+                long uid = index.readLong();
+                long offset = index.readLong();
+                if (uid > to) {
+                    break;
+                }
+                if (offset != DELETED) {
+                    String name = readName(list, offset, uid);
+                    if (name == null) {
+                        // the index does not match the uid list
+                        entries = null;
+                        break;
+                    }
+                    entries.put(uid, name);
+                }
+            }
+        } finally {
+            IOUtils.closeQuietly(list);
+            IOUtils.closeQuietly(index);
+        }
+        if (entries == null) {
+            rebuildIndex();
+            return scan(from, to);
+        }
+        return entries;
+    }
+
+    /**
+     * Replaces the whole uid list and its index.
+     * @param lastUid The last uid used in the folder
+     * @param entries All uids of the folder with the names of their message files
+     * @throws IOException if the uid list cannot be written
+     */
+    public void write(long lastUid, SortedMap<Long, String> entries) throws IOException {
+        this.version = VERSION;
+        this.lastUid = lastUid;
+        this.messageCount = entries.size();
+        this.deadRecords = 0;
+
+        long[] uids = new long[entries.size()];
+        long[] offsets = new long[entries.size()];
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(uidFile));
+        try {
+            byte[] header = createHeader();
+            out.write(header);
+            long position = header.length;
+            int i = 0;
+            for (Entry<Long, String> entry : entries.entrySet()) {
+                byte[] record = toBytes(entry.getKey() + " " + entry.getValue());
+                uids[i] = entry.getKey();
+                offsets[i] = position;
+                out.write(record);
+                position += record.length;
+                i++;
+            }
+        } finally {
+            IOUtils.closeQuietly(out);
+        }
+        writeIndex(uids, offsets, uids.length);
+    }
+
+    /**
+     * Adds a new message to the uid list.
+     * @param uid The uid of the new message, which becomes the last uid
+     * @param name The name of the message file
+     * @throws IOException if the uid list cannot be written
+     */
+    public void append(long uid, String name) throws IOException {
+        prepareWrite();
+        if (uid <= lastUid) {
+            // the index must stay sorted, so fall back to a rewrite
+            SortedMap<Long, String> entries = scan(0, -1);
+            entries.put(uid, name);
+            write(lastUid, entries);
+            return;
+        }
+        lastUid = uid;
+        messageCount++;
+        long offset = appendRecord(uid + " " + name);
+        RandomAccessFile index = new RandomAccessFile(indexFile, "rw");
+        try {
+            index.seek(index.length());
+            index.writeLong(uid);
+            index.writeLong(offset);
+            writeIndexHeader(index);
+        } finally {
+            IOUtils.closeQuietly(index);
+        }
+    }
+
+    /**
+     * Changes the name of the message file of an uid.
+     * @param uid The uid of the message
+     * @param name The new name of the message file
+     * @return false if the uid is unknown
+     * @throws IOException if the uid list cannot be written
+     */
+    public boolean update(long uid, String name) throws IOException {
+        prepareWrite();
+        RandomAccessFile index = new RandomAccessFile(indexFile, "rw");
+        try {
+            long slot = find(index, uid);
+            if (slot < 0 || readOffset(index, slot) == DELETED) {
+                return false;
+            }
+            long offset = appendRecord(uid + " " + name);
+            deadRecords++;
+            index.seek(entryPosition(slot) + 8);
+            index.writeLong(offset);
+            writeIndexHeader(index);
+            return true;
+        } finally {
+            IOUtils.closeQuietly(index);
+        }
+    }
+
+    /**
+     * Removes an uid from the uid list.
+     * @param uid The uid of the message
+     * @return false if the uid is unknown
+     * @throws IOException if the uid list cannot be written
+     */
+    public boolean delete(long uid) throws IOException {
+        return delete(Collections.singleton(uid)) == 1;
+    }
+
+    /**
+     * Removes several uids from the uid list with a single write.
+     * @param uids The uids of the messages
+     * @return the number of removed uids, unknown ones are ignored
+     * @throws IOException if the uid list cannot be written
+     */
+    public int delete(Collection<Long> uids) throws IOException {
+        prepareWrite();
+        RandomAccessFile index = new RandomAccessFile(indexFile, "rw");
+        try {
+            List<Long> slots = new ArrayList<Long>(uids.size());
+            StringBuilder records = new StringBuilder();
+            for (Long uid : new TreeSet<Long>(uids)) {
+                long slot = find(index, uid);
+                if (slot >= 0 && readOffset(index, slot) != DELETED) {
+                    slots.add(slot);
+                    records.append(DELETE_MARKER).append(uid).append("\n");
+                }
+            }
+            if (slots.isEmpty()) {
+                return 0;
+            }
+            messageCount -= slots.size();
+            appendRecords(records.toString().getBytes(CHARSET));
+            // the former records and the delete markers themselves
+            deadRecords += 2L * slots.size();
+            for (Long slot : slots) {
+                index.seek(entryPosition(slot) + 8);
+                index.writeLong(DELETED);
+            }
+            writeIndexHeader(index);
+            return slots.size();
+        } finally {
+            IOUtils.closeQuietly(index);
+        }
+    }
+
+    /**
+     * Tells whether the superseded records outnumber the live ones enough to
+     * make a {@link #compact()} worthwhile. This reflects the state after the
+     * latest operation.
+     * @return true if the uid list should be compacted
+     */
+    public boolean needsCompaction() {
+        return deadRecords > COMPACTION_THRESHOLD && deadRecords > messageCount;
+    }
+
+    /**
+     * Rewrites the uid list without the superseded records.
+     * @throws IOException if the uid list cannot be written
+     */
+    public void compact() throws IOException {
+        SortedMap<Long, String> entries = scan(0, -1);
+        write(lastUid, entries);
+    }
+
+    /**
+     * Reads the header and makes sure the index matches the uid list
+     */
+    private void load() throws IOException {
+        readHeader();
+        if (!isIndexValid()) {
+            rebuildIndex();
+        }
+    }
+
+    /**
+     * Upgrades version 1 uid lists, whose variable width header cannot be
+     * rewritten in place
+     */
+    private void prepareWrite() throws IOException {
+        load();
+        if (version != VERSION) {
+            compact();
+        }
+    }
+
+    private boolean isIndexValid() throws IOException {
+        long length = indexFile.length();
+        if (!indexFile.isFile() || length < INDEX_HEADER_LENGTH || (length - INDEX_HEADER_LENGTH) % INDEX_ENTRY_LENGTH != 0) {
+            return false;
+        }
+        RandomAccessFile index = new RandomAccessFile(indexFile, "r");
+        try {
+            long indexedLength = index.readLong();
+            deadRecords = index.readLong();
+            return indexedLength == uidFile.length();
+        } finally {
+            IOUtils.closeQuietly(index);
+        }
+    }
+
+    /**
+     * Builds the index by reading the whole uid list
+     */
+    private void rebuildIndex() throws IOException {
+        SortedMap<Long, Long> offsets = new TreeMap<Long, Long>();
+        long dead = 0;
+        RecordReader reader = new RecordReader(uidFile);
+        try {
+            parseHeader(reader.readRecord());
+            String record;
+            while ((record = reader.readRecord()) != null) {
+                if (record.startsWith(DELETE_MARKER)) {
+                    Long uid = parseUid(record.substring(DELETE_MARKER.length()));
+                    if (uid != null && offsets.remove(uid) != null) {
+                        dead++;
+                    }
+                    dead++;
+                    continue;
+                }
+                int gap = record.indexOf(" ");
+                Long uid = gap == -1 ? null : parseUid(record.substring(0, gap));
+                if (uid == null) {
+                    // corrupted entries are skipped
+                    continue;
+                }
+                if (offsets.put(uid, reader.getRecordStart()) != null) {
+                    dead++;
+                }
+                lastUid = Math.max(lastUid, uid);
+            }
+        } finally {
+            IOUtils.closeQuietly(reader);
+        }
+        messageCount = offsets.size();
+        deadRecords = dead;
+
+        long[] uids = new long[offsets.size()];
+        long[] positions = new long[offsets.size()];
+        int i = 0;
+        for (Entry<Long, Long> entry : offsets.entrySet()) {
+            uids[i] = entry.getKey();
+            positions[i] = entry.getValue();
+            i++;
+        }
+        writeIndex(uids, positions, uids.length);
+    }
+
+    /**
+     * Reads the uid list sequentially and replays its records
+     */
+    private SortedMap<Long, String> scan(long from, long to) throws IOException {
+        SortedMap<Long, String> entries = new TreeMap<Long, String>();
+        RecordReader reader = new RecordReader(uidFile);
+        try {
+            parseHeader(reader.readRecord());
+            String record;
+            while ((record = reader.readRecord()) != null) {
+                if (record.startsWith(DELETE_MARKER)) {
+                    Long uid = parseUid(record.substring(DELETE_MARKER.length()));
+                    if (uid != null) {
+                        entries.remove(uid);
+                    }
+                    continue;
+                }
+                int gap = record.indexOf(" ");
+                Long uid = gap == -1 ? null : parseUid(record.substring(0, gap));
+                if (uid == null) {
+                    // corrupted entries are skipped
+                    continue;
+                }
+                if (uid >= from && (to == -1 || uid <= to)) {
+                    entries.put(uid, record.substring(gap + 1));
+                }
+            }
+        } finally {
+            IOUtils.closeQuietly(reader);
+        }
+        return entries;
+    }
+
+    /**
+     * Parses the header line of the uid list.
+     * The format is: version lastUid messageCount (e.g. 1 615 273)
+     */
+    private void parseHeader(String line) throws IOException {
+        if (line == null) {
+            // an empty file, which gets a proper header on the first write
+            version = 1;
+            lastUid = 0;
+            messageCount = 0;
+            return;
+        }
+        String[] parts = line.trim().split(" +");
+        if (parts.length != 3) {
+            throw new IOException("Corrupted header entry in uid-file " + uidFile);
+        }
+        try {
+            version = Integer.parseInt(parts[0]);
+            lastUid = Long.parseLong(parts[1]);
+            messageCount = Integer.parseInt(parts[2]);
+        } catch (NumberFormatException e) {
+            throw new IOException("Corrupted header entry in uid-file " + uidFile, e);
+        }
+        if (version != 1 && version != VERSION) {
+            throw new IOException("Cannot read uidlists with versions other than 1 and " + VERSION + ".");
+        }
+    }
+
+    /**
+     * Creates the fixed width header of a version 2 uid list
+     */
+    private byte[] createHeader() {
+        return toBytes(String.format("%d %019d %010d", VERSION, lastUid, messageCount));
+    }
+
+    /**
+     * Appends a record to the uid list and rewrites its header
+     * @return the offset of the record
+     */
+    private long appendRecord(String record) throws IOException {
+        return appendRecords(toBytes(record));
+    }
+
+    /**
+     * Appends records, each terminated by a line feed, to the uid list and
+     * rewrites its header
+     * @return the offset of the first record
+     */
+    private long appendRecords(byte[] records) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(uidFile, "rw");
+        try {
+            long offset = file.length();
+            file.seek(offset);
+            file.write(records);
+            file.seek(0);
+            file.write(createHeader());
+            return offset;
+        } finally {
+            IOUtils.closeQuietly(file);
+        }
+    }
+
+    private void writeIndex(long[] uids, long[] offsets, int count) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile)));
+        try {
+            out.writeLong(uidFile.length());
+            out.writeLong(deadRecords);
+            for (int i = 0; i < count; i++) {
+                out.writeLong(uids[i]);
+                out.writeLong(offsets[i]);
+            }
+        } finally {
+            IOUtils.closeQuietly(out);
+        }
+    }
+
+    private void writeIndexHeader(RandomAccessFile index) throws IOException {
+        index.seek(0);
+        index.writeLong(uidFile.length());
+        index.writeLong(deadRecords);
+    }
+
+    private long countEntries(RandomAccessFile index) throws IOException {
+        return (index.length() - INDEX_HEADER_LENGTH) / INDEX_ENTRY_LENGTH;
+    }
+
+    private long entryPosition(long slot) {
+        return INDEX_HEADER_LENGTH + slot * INDEX_ENTRY_LENGTH;
+    }
+
+    private long readOffset(RandomAccessFile index, long slot) throws IOException {
+        index.seek(entryPosition(slot) + 8);
+        return index.readLong();
+    }
+
+    /**
+     * Binary search of the index
+     * @return the slot of the uid, or -1 if it is not indexed
+     */
+    private long find(RandomAccessFile index, long uid) throws IOException {
+        long count = countEntries(index);
+        long slot = lowerBound(index, count, uid);
+        if (slot < count) {
+            index.seek(entryPosition(slot));
+            if (index.readLong() == uid) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Binary search of the index
+     * @return the first slot whose uid is not lower than the given one
+     */
+    private long lowerBound(RandomAccessFile index, long count, long uid) throws IOException {
+        long low = 0;
+        long high = count;
+        while (low < high) {
+            long middle = (low + high) >>> 1;
+            index.seek(entryPosition(middle));
+            if (index.readLong() < uid) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Reads the record at the given offset of the uid list
+     * @return the name of the message file, or null if the record does not belong to the uid
+     */
+    private String readName(RandomAccessFile list, long offset, long uid) throws IOException {
+        byte[] buffer = new byte[MAX_RECORD_LENGTH];
+        list.seek(offset);
+        int length = 0;
+        int read;
+        while (length < buffer.length && (read = list.read(buffer, length, buffer.length - length)) != -1) {
+            length += read;
+        }
+        int end = 0;
+        while (end < length && buffer[end] != '\n') {
+            end++;
+        }
+        if (end > 0 && buffer[end - 1] == '\r') {
+            end--;
+        }
+        String record = new String(buffer, 0, end, CHARSET);
+        String prefix = uid + " ";
+        if (!record.startsWith(prefix)) {
+            return null;
+        }
+        return record.substring(prefix.length());
+    }
+
+    private static Long parseUid(String value) {
+        try {
+            return Long.valueOf(value);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static byte[] toBytes(String record) {
+        return (record + "\n").getBytes(CHARSET);
+    }
+
+    /**
+     * Reads the records of the uid list one by one, keeping track of their
+     * offsets
+     */
+    private static final class RecordReader implements Closeable {
+
+        private final InputStream in;
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(128);
+        private long position = 0;
+        private long recordStart = 0;
+
+        public RecordReader(File file) throws IOException {
+            this.in = new BufferedInputStream(new FileInputStream(file));
+        }
+
+        /**
+         * @return the next non empty record, null at the end of the file
+         */
+        public String readRecord() throws IOException {
+            while (true) {
+                buffer.reset();
+                recordStart = position;
+                int b;
+                while ((b = in.read()) != -1) {
+                    position++;
+                    if (b == '\n') {
+                        break;
+                    }
+                    if (b != '\r') {
+                        buffer.write(b);
+                    }
+                }
+                if (buffer.size() > 0) {
+                    return buffer.toString(CHARSET.name());
+                }
+                if (b == -1) {
+                    return null;
+                }
+            }
+        }
+
+        public long getRecordStart() {
+            return recordStart;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,246 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailbox.maildir;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Caches the uid maps (uid -> {@link MaildirMessageName}) of {@link MaildirFolder}s
+ * across sessions, so that the uid list does not need to be read and parsed again
+ * as long as neither the uid list nor the <code>cur</code> and <code>new</code>
+ * folders have changed.
+ * <p>
+ * Every cached map carries the {@link Stamp} (modification times and uid list
+ * length) it was read at. Changes done through a {@link MaildirFolder} are applied
+ * to the cached map in place, provided that the uid list was not changed by
+ * someone else in between.
+ * <p>
+ * The cache is bounded by the total number of cached messages, the least recently
+ * used folders get evicted first.
+ */
+public class MaildirUidMapCache {
+
+    public static final int DEFAULT_MAX_MESSAGES = 100000;
+
+    private final int maxMessages;
+    private final LinkedHashMap<String, CachedUidMap> uidMaps = new LinkedHashMap<String, CachedUidMap>(16, 0.75f, true);
+    private long cachedMessages = 0;
+
+    public MaildirUidMapCache() {
+        this(DEFAULT_MAX_MESSAGES);
+    }
+
+    /**
+     * @param maxMessages The maximal number of messages cached over all folders
+     */
+    public MaildirUidMapCache(int maxMessages) {
+        this.maxMessages = maxMessages;
+    }
+
+    /**
+     * Returns the cached uid map of a folder, if it is still valid.
+     * The returned map and the {@link MaildirMessageName}s it contains are shared
+     * and must not be modified.
+     *
+     * @param folder The absolute path of the folder
+     * @param stamp The current state of the folder
+     * @return The uid map, or null if none is cached for this state
+     */
+    public synchronized SortedMap<Long, MaildirMessageName> get(String folder, Stamp stamp) {
+        CachedUidMap cached = uidMaps.get(folder);
+        if (cached == null) {
+            return null;
+        }
+        if (!cached.stamp.equals(stamp)) {
+            remove(folder);
+            return null;
+        }
+        return Collections.unmodifiableSortedMap(cached.uidMap);
+    }
+
+    /**
+     * Caches the complete uid map of a folder.
+     *
+     * @param folder The absolute path of the folder
+     * @param stamp The state of the folder the map was read at
+     * @param uidMap The uid map
+     */
+    public synchronized void put(String folder, Stamp stamp, Map<Long, MaildirMessageName> uidMap) {
+        remove(folder);
+        if (uidMap.size() > maxMessages) {
+            return;
+        }
+        uidMaps.put(folder, new CachedUidMap(stamp, new TreeMap<Long, MaildirMessageName>(uidMap)));
+        cachedMessages += uidMap.size();
+        evict();
+    }
+
+    /**
+     * Applies the change of one uid to the cached map of a folder. The change is
+     * only applied if the uid list was unchanged before, otherwise the map is
+     * dropped.
+     *
+     * @param folder The absolute path of the folder
+     * @param before The state of the folder before the change
+     * @param after The state of the folder after the change
+     * @param uid The changed uid
+     * @param messageName The new name, null if the uid was removed
+     */
+    public void apply(String folder, Stamp before, Stamp after, long uid, MaildirMessageName messageName) {
+        apply(folder, before, after, Collections.singletonMap(uid, messageName));
+    }
+
+    /**
+     * Applies the changes of several uids to the cached map of a folder. The
+     * changes are only applied if the uid list was unchanged before, otherwise
+     * the map is dropped.
+     *
+     * @param folder The absolute path of the folder
+     * @param before The state of the folder before the changes
+     * @param after The state of the folder after the changes
+     * @param changes The new names of the changed uids, null values for removed uids
+     */
+    public synchronized void apply(String folder, Stamp before, Stamp after, Map<Long, MaildirMessageName> changes) {
+        CachedUidMap cached = uidMaps.get(folder);
+        if (cached == null) {
+            return;
+        }
+        if (!cached.stamp.isSameUidList(before)) {
+            remove(folder);
+            return;
+        }
+        cached.stamp = after;
+        for (Map.Entry<Long, MaildirMessageName> change : changes.entrySet()) {
+            MaildirMessageName messageName = change.getValue();
+            MaildirMessageName former;
+            if (messageName == null) {
+                former = cached.uidMap.remove(change.getKey());
+            } else {
+                former = cached.uidMap.put(change.getKey(), messageName);
+            }
+            if (former == null && messageName != null) {
+                cachedMessages++;
+            } else if (former != null && messageName == null) {
+                cachedMessages--;
+            }
+        }
+        evict();
+    }
+
+    /**
+     * Takes over a new state of a folder whose uid list was rewritten without
+     * changing its content.
+     *
+     * @param folder The absolute path of the folder
+     * @param before The state of the folder before the rewrite
+     * @param after The state of the folder after the rewrite
+     */
+    public synchronized void refresh(String folder, Stamp before, Stamp after) {
+        CachedUidMap cached = uidMaps.get(folder);
+        if (cached == null) {
+            return;
+        }
+        if (cached.stamp.isSameUidList(before)) {
+            cached.stamp = after;
+        } else {
+            remove(folder);
+        }
+    }
+
+    /**
+     * Drops the cached map of a folder
+     *
+     * @param folder The absolute path of the folder
+     */
+    public synchronized void invalidate(String folder) {
+        remove(folder);
+    }
+
+    private void remove(String folder) {
+        CachedUidMap removed = uidMaps.remove(folder);
+        if (removed != null) {
+            cachedMessages -= removed.uidMap.size();
+        }
+    }
+
+    private void evict() {
+        Iterator<CachedUidMap> it = uidMaps.values().iterator();
+        while (cachedMessages > maxMessages && it.hasNext()) {
+            cachedMessages -= it.next().uidMap.size();
+            it.remove();
+        }
+    }
+
+    private static final class CachedUidMap {
+        private Stamp stamp;
+        private final TreeMap<Long, MaildirMessageName> uidMap;
+
+        private CachedUidMap(Stamp stamp, TreeMap<Long, MaildirMessageName> uidMap) {
+            this.stamp = stamp;
+            this.uidMap = uidMap;
+        }
+    }
+
+    /**
+     * The state of a folder on disk: the modification time and the length of its
+     * uid list and the modification times of its <code>cur</code> and
+     * <code>new</code> folders.
+     */
+    public static final class Stamp {
+        private final long uidListModified;
+        private final long uidListLength;
+        private final long curModified;
+        private final long newModified;
+
+        public Stamp(File uidList, File cur, File newFolder) {
+            this.uidListModified = uidList.lastModified();
+            this.uidListLength = uidList.length();
+            this.curModified = cur.lastModified();
+            this.newModified = newFolder.lastModified();
+        }
+
+        /**
+         * Tests whether the uid list is the same in both states. The message folders
+         * are not compared, as they are changed before the uid list gets updated.
+         */
+        public boolean isSameUidList(Stamp other) {
+            return uidListModified == other.uidListModified && uidListLength == other.uidListLength;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj instanceof Stamp) {
+                Stamp other = (Stamp) obj;
+                return isSameUidList(other) && curModified == other.curModified && newModified == other.newModified;
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (uidListModified ^ uidListLength ^ curModified ^ newModified);
+        }
+    }
+}
@@ -79,6 +79,8 @@ public class MaildirMailboxMapper extends NonTransactionalMapper implements Mail
                         new File(folder, MaildirFolder.TMP),
                         new File(folder, MaildirFolder.UIDLIST_FILE),
                         new File(folder, MaildirFolder.VALIDITY_FILE));
+                // the index of the uid list is optional
+                FileUtils.deleteQuietly(new File(folder, MaildirFolder.UIDLIST_INDEX_FILE));
             }
             else {
                 // We simply delete all the folder for non INBOX mailboxes.
@@ -179,6 +181,8 @@ public class MaildirMailboxMapper extends NonTransactionalMapper implements Mail
                         File newUidListFile = new File(newFolder, MaildirFolder.UIDLIST_FILE);
                         if (!oldUidListFile.renameTo(newUidListFile))
                             throw new IOException("Could not rename file " + oldUidListFile + " to " + newUidListFile);
+                        // the index of the uid list gets rebuilt on demand
+                        FileUtils.deleteQuietly(new File(inboxFolder, MaildirFolder.UIDLIST_INDEX_FILE));
                         File oldValidityFile = new File(inboxFolder, MaildirFolder.VALIDITY_FILE);
                         File newValidityFile = new File(newFolder, MaildirFolder.VALIDITY_FILE);
                         if (!oldValidityFile.renameTo(newValidityFile))
@@ -258,7 +258,15 @@ public class MaildirMessageMapper extends AbstractMessageMapper<MaildirId> {
             Message<MaildirId> m = results.get(i);
             long uid = m.getUid();
             uids.put(uid, new SimpleMessageMetaData(m));
-            delete(mailbox, m);
+        }
+        if (!uids.isEmpty()) {
+            // delete all files at once, so that the uid list only gets written once
+            MaildirFolder folder = maildirStore.createMaildirFolder(mailbox);
+            try {
+                folder.delete(mailboxSession, uids.keySet());
+            } catch (MailboxException e) {
+                throw new MailboxException("Unable to expunge Messages in Mailbox " + mailbox, e);
+            }
         }
 
         return uids;
@@ -0,0 +1,102 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailbox.maildir;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.SortedMap;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.james.mailbox.MailboxSession;
+import org.apache.james.mailbox.exception.MailboxException;
+import org.apache.james.mailbox.mock.MockMailboxSession;
+import org.apache.james.mailbox.model.MailboxPath;
+import org.apache.james.mailbox.store.JVMMailboxPathLocker;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Measures the bulk expunge of {@link MaildirFolder} for growing numbers of
+ * messages, and checks the time per message stays about the same: with eight
+ * times more messages, it may grow at most {@link #MAX_TIME_PER_MESSAGE_RATIO}
+ * times, far below what a quadratic expunge would take. The sizes can be
+ * scaled with the <code>maildir.benchmark.scale</code> system property. It only
+ * runs with the <code>benchmark</code> profile, {@link MaildirFolderTest} covers
+ * the bulk expunge itself.
+ */
+public class MaildirExpungeBenchmarkTest {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MaildirExpungeBenchmarkTest.class);
+
+    private static final int[] SIZES = {500, 1000, 2000, 4000};
+
+    /**
+     * Bound of the time per message of the largest size over the one of the smallest
+     */
+    private static final double MAX_TIME_PER_MESSAGE_RATIO = 3;
+
+    @Rule public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+    private final MailboxSession session = new MockMailboxSession("benchmark");
+
+    @Test
+    public void expungeShouldScaleLinearly() throws Exception {
+        if (OsDetector.isWindows()) {
+            LOG.info("Maildir tests work only on non-windows systems. So skip the test");
+            return;
+        }
+        int scale = Integer.getInteger("maildir.benchmark.scale", 1);
+        double[] timePerMessage = new double[SIZES.length];
+        for (int i = 0; i < SIZES.length; i++) {
+            int size = SIZES[i];
+            int messages = size * scale;
+            MaildirFolder folder = createFolder(messages);
+            SortedMap<Long, MaildirMessageName> uidMap = folder.getUidMap(session, 0, -1);
+
+            long start = System.nanoTime();
+            SortedMap<Long, MaildirMessageName> deleted = folder.delete(session, uidMap.keySet());
+            long elapsed = System.nanoTime() - start;
+
+            assertThat(deleted.keySet()).isEqualTo(uidMap.keySet());
+            assertThat(folder.getUidMap(session, 0, -1)).isEmpty();
+            timePerMessage[i] = elapsed / 1000.0 / messages;
+            LOG.info(String.format("Expunged %d messages in %d ms (%.1f us per message)",
+                    messages, elapsed / 1000000, timePerMessage[i]));
+        }
+        assertThat(timePerMessage[SIZES.length - 1]).isLessThan(MAX_TIME_PER_MESSAGE_RATIO * timePerMessage[0]);
+    }
+
+    private MaildirFolder createFolder(int messages) throws IOException, MailboxException {
+        File root = tmpFolder.newFolder();
+        MaildirFolder folder = new MaildirFolder(root.getAbsolutePath(), new MailboxPath("#private", "benchmark", root.getName()), new JVMMailboxPathLocker());
+        FileUtils.forceMkdir(folder.getCurFolder());
+        FileUtils.forceMkdir(folder.getNewFolder());
+        FileUtils.forceMkdir(folder.getTmpFolder());
+        for (int i = 0; i < messages; i++) {
+            File message = new File(folder.getCurFolder(), "1328026049." + i + "_0.benchmark,S=5:2,T");
+            FileUtils.writeStringToFile(message, "Hello");
+        }
+        return folder;
+    }
+}
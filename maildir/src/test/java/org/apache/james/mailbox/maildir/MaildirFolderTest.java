@@ -0,0 +1,94 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailbox.maildir;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedMap;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.james.mailbox.MailboxSession;
+import org.apache.james.mailbox.mock.MockMailboxSession;
+import org.apache.james.mailbox.model.MailboxPath;
+import org.apache.james.mailbox.store.JVMMailboxPathLocker;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MaildirFolderTest {
+
+    private static final int MESSAGES = 10;
+
+    @Rule public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+    private final MailboxSession session = new MockMailboxSession("test");
+    private MaildirFolder folder;
+
+    @Before
+    public void setUp() throws Exception {
+        // Maildir tests work only on non-windows systems
+        assumeTrue(!OsDetector.isWindows());
+        File root = tmpFolder.newFolder();
+        folder = new MaildirFolder(root.getAbsolutePath(), new MailboxPath("#private", "test", root.getName()), new JVMMailboxPathLocker());
+        FileUtils.forceMkdir(folder.getCurFolder());
+        FileUtils.forceMkdir(folder.getNewFolder());
+        FileUtils.forceMkdir(folder.getTmpFolder());
+        for (int i = 0; i < MESSAGES; i++) {
+            FileUtils.writeStringToFile(new File(folder.getCurFolder(), "1328026049." + i + "_0.test,S=5:2,T"), "Hello");
+        }
+    }
+
+    @Test
+    public void bulkDeleteShouldRemoveTheGivenMessagesOnly() throws Exception {
+        List<Long> uids = new ArrayList<Long>(folder.getUidMap(session, 0, -1).keySet());
+        List<Long> deletedUids = new ArrayList<Long>();
+        List<Long> keptUids = new ArrayList<Long>();
+        for (int i = 0; i < uids.size(); i++) {
+            if (i % 2 == 0) {
+                deletedUids.add(uids.get(i));
+            } else {
+                keptUids.add(uids.get(i));
+            }
+        }
+        List<Long> requested = new ArrayList<Long>(deletedUids);
+        requested.add(uids.get(uids.size() - 1) + 100);
+
+        SortedMap<Long, MaildirMessageName> deleted = folder.delete(session, requested);
+
+        assertThat(deleted.keySet()).containsExactly(deletedUids.toArray(new Long[deletedUids.size()]));
+        assertThat(folder.getUidMap(session, 0, -1).keySet()).containsExactly(keptUids.toArray(new Long[keptUids.size()]));
+        assertThat(folder.getCurFolder().list()).hasSize(MESSAGES - deletedUids.size());
+    }
+
+    @Test
+    public void bulkDeleteOfAllMessagesShouldEmptyTheFolder() throws Exception {
+        SortedMap<Long, MaildirMessageName> uidMap = folder.getUidMap(session, 0, -1);
+
+        SortedMap<Long, MaildirMessageName> deleted = folder.delete(session, uidMap.keySet());
+
+        assertThat(deleted.keySet()).isEqualTo(uidMap.keySet());
+        assertThat(folder.getUidMap(session, 0, -1)).isEmpty();
+        assertThat(folder.getCurFolder().list()).isEmpty();
+    }
+}
@@ -0,0 +1,128 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailbox.maildir;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MaildirUidListTest {
+
+    @Rule public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+    private File uidFile;
+    private MaildirUidList uidList;
+
+    @Before
+    public void setUp() throws IOException {
+        uidFile = new File(tmpFolder.getRoot(), MaildirFolder.UIDLIST_FILE);
+        uidList = new MaildirUidList(uidFile);
+    }
+
+    @Test
+    public void version1ListsShouldBeReadable() throws IOException {
+        writeVersion1List();
+
+        assertThat(uidList.get(3)).isEqualTo("b");
+        assertThat(uidList.get(4)).isNull();
+        assertThat(uidList.read(2, 5)).containsOnlyKeys(3L, 5L);
+        assertThat(uidList.read(0, -1)).containsOnlyKeys(1L, 3L, 5L);
+        assertThat(uidList.getLastUid()).isEqualTo(5);
+    }
+
+    @Test
+    public void changesShouldBeVisibleToLookupsAndScans() throws IOException {
+        writeVersion1List();
+
+        uidList.update(3, "b2");
+        uidList.delete(1);
+        uidList.append(6, "d");
+
+        assertThat(uidList.get(1)).isNull();
+        assertThat(uidList.get(3)).isEqualTo("b2");
+        assertThat(uidList.get(6)).isEqualTo("d");
+        assertThat(uidList.read(0, 10)).isEqualTo(uidList.read(0, -1));
+        assertThat(uidList.read(0, -1)).containsOnlyKeys(3L, 5L, 6L);
+        assertThat(uidList.getLastUid()).isEqualTo(6);
+        assertThat(uidList.getMessageCount()).isEqualTo(3);
+    }
+
+    @Test
+    public void missingIndexShouldBeRebuilt() throws IOException {
+        writeVersion1List();
+        uidList.update(5, "c2");
+
+        FileUtils.forceDelete(new File(tmpFolder.getRoot(), MaildirFolder.UIDLIST_INDEX_FILE));
+
+        assertThat(new MaildirUidList(uidFile).get(5)).isEqualTo("c2");
+    }
+
+    @Test
+    public void outdatedIndexShouldBeRebuilt() throws IOException {
+        writeVersion1List();
+        uidList.get(1);
+
+        // rewritten by a former release
+        PrintWriter writer = new PrintWriter(uidFile);
+        writer.println("1 9 1");
+        writer.println("9 z");
+        writer.close();
+
+        assertThat(uidList.get(9)).isEqualTo("z");
+        assertThat(uidList.get(1)).isNull();
+    }
+
+    @Test
+    public void compactShouldDropSupersededRecords() throws IOException {
+        SortedMap<Long, String> entries = new TreeMap<Long, String>();
+        entries.put(1L, "a");
+        uidList.write(1, entries);
+        long initialLength = uidFile.length();
+
+        for (int i = 0; i < 2000; i++) {
+            uidList.update(1, "a");
+        }
+        assertThat(uidList.needsCompaction()).isTrue();
+
+        uidList.compact();
+
+        assertThat(uidFile.length()).isEqualTo(initialLength);
+        assertThat(uidList.get(1)).isEqualTo("a");
+        assertThat(uidList.needsCompaction()).isFalse();
+    }
+
+    private void writeVersion1List() throws IOException {
+        PrintWriter writer = new PrintWriter(uidFile);
+        writer.println("1 5 3");
+        writer.println("1 a");
+        writer.println("3 b");
+        writer.println("5 c");
+        writer.close();
+    }
+}
@@ -0,0 +1,125 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailbox.maildir;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MaildirUidMapCacheTest {
+
+    private static final String FOLDER_1 = "folder1";
+    private static final String FOLDER_2 = "folder2";
+
+    @Rule public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+    private File uidList;
+    private File cur;
+    private File newFolder;
+    private MaildirUidMapCache cache;
+
+    @Before
+    public void setUp() throws IOException {
+        uidList = tmpFolder.newFile(MaildirFolder.UIDLIST_FILE);
+        cur = tmpFolder.newFolder(MaildirFolder.CUR);
+        newFolder = tmpFolder.newFolder(MaildirFolder.NEW);
+        cache = new MaildirUidMapCache(3);
+    }
+
+    @Test
+    public void getShouldReturnTheMapWhileTheFolderIsUnchanged() {
+        cache.put(FOLDER_1, stamp(), uidMap(1, 2));
+
+        assertThat(cache.get(FOLDER_1, stamp())).containsOnlyKeys(1L, 2L);
+    }
+
+    @Test
+    public void getShouldDropTheMapOnceTheUidListChanged() throws IOException {
+        cache.put(FOLDER_1, stamp(), uidMap(1, 2));
+
+        appendToUidList();
+
+        assertThat(cache.get(FOLDER_1, stamp())).isNull();
+    }
+
+    @Test
+    public void applyShouldUpdateTheMapInPlace() throws IOException {
+        cache.put(FOLDER_1, stamp(), uidMap(1, 2));
+
+        MaildirUidMapCache.Stamp before = stamp();
+        appendToUidList();
+        cache.apply(FOLDER_1, before, stamp(), 3, new MaildirMessageName(null, "3.name"));
+        before = stamp();
+        appendToUidList();
+        cache.apply(FOLDER_1, before, stamp(), 1, null);
+
+        assertThat(cache.get(FOLDER_1, stamp())).containsOnlyKeys(2L, 3L);
+    }
+
+    @Test
+    public void applyShouldDropTheMapIfTheUidListWasChangedBefore() throws IOException {
+        cache.put(FOLDER_1, stamp(), uidMap(1, 2));
+
+        appendToUidList();
+        MaildirUidMapCache.Stamp before = stamp();
+        appendToUidList();
+        cache.apply(FOLDER_1, before, stamp(), 3, new MaildirMessageName(null, "3.name"));
+
+        assertThat(cache.get(FOLDER_1, stamp())).isNull();
+    }
+
+    @Test
+    public void putShouldEvictTheLeastRecentlyUsedFolders() {
+        cache.put(FOLDER_1, stamp(), uidMap(1, 2));
+        cache.put(FOLDER_2, stamp(), uidMap(1, 2));
+
+        assertThat(cache.get(FOLDER_1, stamp())).isNull();
+        assertThat(cache.get(FOLDER_2, stamp())).containsOnlyKeys(1L, 2L);
+    }
+
+    private MaildirUidMapCache.Stamp stamp() {
+        return new MaildirUidMapCache.Stamp(uidList, cur, newFolder);
+    }
+
+    private void appendToUidList() throws IOException {
+        FileOutputStream out = new FileOutputStream(uidList, true);
+        try {
+            out.write('\n');
+        } finally {
+            out.close();
+        }
+    }
+
+    private Map<Long, MaildirMessageName> uidMap(long... uids) {
+        Map<Long, MaildirMessageName> uidMap = new TreeMap<Long, MaildirMessageName>();
+        for (long uid : uids) {
+            uidMap.put(uid, new MaildirMessageName(null, uid + ".name"));
+        }
+        return uidMap;
+    }
+}
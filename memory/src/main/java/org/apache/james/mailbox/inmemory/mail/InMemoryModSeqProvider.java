@@ -38,6 +38,11 @@ public class InMemoryModSeqProvider implements ModSeqProvider<InMemoryId>{
 
     }
 
+    @Override
+    public long nextModSeqs(MailboxSession session, Mailbox<InMemoryId> mailbox, int count) throws MailboxException {
+        return getHighest(mailbox.getMailboxId()).addAndGet(count) - count + 1;
+    }
+
     @Override
     public long highestModSeq(MailboxSession session, Mailbox<InMemoryId> mailbox) throws MailboxException {
         return getHighest(mailbox.getMailboxId()).get();
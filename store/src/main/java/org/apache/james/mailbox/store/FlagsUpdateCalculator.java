@@ -48,4 +48,18 @@ public class FlagsUpdateCalculator {
         return updatedFlags;
     }
 
+    /**
+     * Return the flags given to the update
+     */
+    public Flags getProvidedFlags() {
+        return providedFlags;
+    }
+
+    /**
+     * Return how the provided flags are applied to the flags of a message
+     */
+    public MessageManager.FlagsUpdateMode getMode() {
+        return mode;
+    }
+
 }
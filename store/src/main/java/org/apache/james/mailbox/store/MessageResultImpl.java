@@ -48,6 +48,12 @@ public class MessageResultImpl implements MessageResult {
 
     private MimeDescriptor mimeDescriptor;
 
+    private MimeStructure mimeStructure;
+
+    private boolean mimeStructureLoaded;
+
+    private boolean mimeStructureComputed;
+
 	private final Message<?> message;
 
     private HeadersImpl headers;
@@ -343,7 +349,17 @@ public class MessageResultImpl implements MessageResult {
         if (mimeDescriptor == null) {
             try {
                 if (MimeDescriptorImpl.isComposite(message.getMediaType())) {
-                    mimeDescriptor = MimeDescriptorImpl.build(getFullContent().getInputStream());
+                    final MimeStructure structure = getMimeStructure();
+                    if (structure != null) {
+                        final InputStream headerContent = message.getHeaderContent();
+                        try {
+                            mimeDescriptor = structure.getMimeDescriptor(headerContent);
+                        } finally {
+                            headerContent.close();
+                        }
+                    } else {
+                        mimeDescriptor = MimeDescriptorImpl.build(getFullContent().getInputStream());
+                    }
                 } else {
                     mimeDescriptor = new LazyMimeDescriptor(this, message);
                 }
@@ -356,6 +372,43 @@ public class MessageResultImpl implements MessageResult {
         return mimeDescriptor;
     }
 
+    /**
+     * Gets the {@link MimeStructure} of a composite message. The structure stored with the
+     * message is used, if there is none it gets computed from the full content.
+     * 
+     * @return the structure, or null if the message is not composite or can not be described
+     * @throws IOException
+     */
+    public MimeStructure getMimeStructure() throws IOException {
+        if (!mimeStructureLoaded) {
+            mimeStructureLoaded = true;
+            mimeStructure = MimeStructure.get(message);
+            if (mimeStructure == null && MimeDescriptorImpl.isComposite(message.getMediaType())) {
+                final InputStream in = message.getFullContent();
+                try {
+                    mimeStructure = MimeStructure.parse(in);
+                } finally {
+                    in.close();
+                }
+                mimeStructureComputed = mimeStructure != null;
+            }
+        }
+        return mimeStructure;
+    }
+
+    /**
+     * Gets the {@link MimeStructure} if it had to be computed because none was stored with
+     * the message, so that it can be stored now.
+     * 
+     * @return the computed structure, or null
+     */
+    public MimeStructure getComputedMimeStructure() {
+        if (mimeStructureComputed) {
+            return mimeStructure;
+        }
+        return null;
+    }
+
     /**
      * @see org.apache.james.mailbox.model.MessageMetaData#getModSeq()
      */
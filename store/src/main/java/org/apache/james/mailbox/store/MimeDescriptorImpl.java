@@ -154,7 +154,7 @@ public class MimeDescriptorImpl implements MimeDescriptor {
         return mimeDescriptorImpl;
     }
 
-    private static MimeDescriptorImpl createDescriptor(long bodyOctets,
+    static MimeDescriptorImpl createDescriptor(long bodyOctets,
             long lines, MaximalBodyDescriptor descriptor,
             MimeDescriptor embeddedMessage, final Collection<MessageResult.Header> headers) {
         final String contentDescription = descriptor.getContentDescription();
@@ -296,7 +296,7 @@ public class MimeDescriptorImpl implements MimeDescriptor {
         return parts.iterator();
     }
 
-    private void addPart(MimeDescriptor descriptor) {
+    void addPart(MimeDescriptor descriptor) {
         parts.add(descriptor);
     }
 
@@ -0,0 +1,714 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mailbox.store;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.james.mailbox.model.MessageResult;
+import org.apache.james.mailbox.model.MimeDescriptor;
+import org.apache.james.mailbox.store.mail.model.Message;
+import org.apache.james.mailbox.store.mail.model.impl.PropertyBuilder;
+import org.apache.james.mime4j.MimeException;
+import org.apache.james.mime4j.message.DefaultBodyDescriptorBuilder;
+import org.apache.james.mime4j.message.MaximalBodyDescriptor;
+import org.apache.james.mime4j.stream.EntityState;
+import org.apache.james.mime4j.stream.MimeConfig;
+import org.apache.james.mime4j.stream.MimeTokenStream;
+import org.apache.james.mime4j.stream.RawField;
+import org.apache.james.mime4j.stream.RecursionMode;
+
+/**
+ * The MIME part tree of a composite message: offsets, octets, line counts and
+ * headers of all parts. It is computed once when the message gets appended and
+ * stored with the message properties, so that the BODYSTRUCTURE and the content
+ * of single parts can be served without parsing the whole message again.
+ * <p>
+ * All offsets are relative to the start of the full content. The headers of the
+ * message itself are not part of the structure, they are read from the header
+ * content of the message.
+ * <p>
+ * Messages which can not be described the same way mime4j parses them, like
+ * messages with an encoded <code>message/rfc822</code> part, have no structure.
+ * They are parsed on every access as before.
+ */
+public class MimeStructure {
+
+    /** A part with a simple body */
+    public static final byte SIMPLE = 0;
+
+    /** A <code>multipart</code> part, its body parts are available */
+    public static final byte MULTIPART = 1;
+
+    /** A <code>message/rfc822</code> part, its embedded message is available */
+    public static final byte MESSAGE = 2;
+
+    private static final byte VERSION = 1;
+
+    /** Only the start of long lines is kept when looking for boundaries */
+    private static final int MAX_LINE_PREFIX = 1024;
+
+    private static final byte[] CRLF = { '\r', '\n' };
+
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final Part root;
+
+    private MimeStructure(Part root) {
+        this.root = root;
+    }
+
+    /**
+     * Parses the structure of a message.
+     * 
+     * @param in the full content of the message
+     * @return the structure, or null if the message is not composite or can not be described
+     * @throws IOException
+     */
+    public static MimeStructure parse(InputStream in) throws IOException {
+        try {
+            final Part root = parseEntity(new Scanner(in), null, new ArrayList<byte[]>(), true);
+            if (root.type == SIMPLE) {
+                return null;
+            }
+            return new MimeStructure(root);
+        } catch (MimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads the structure stored with the given message.
+     * 
+     * @param message the message
+     * @return the structure, or null if none or no valid one is stored
+     */
+    public static MimeStructure get(Message<?> message) {
+        if (!MimeDescriptorImpl.isComposite(message.getMediaType())) {
+            return null;
+        }
+        try {
+            final byte[] data = new PropertyBuilder(message.getProperties()).getMimeStructure();
+            if (data == null) {
+                return null;
+            }
+            final MimeStructure structure = read(data);
+            // the structure must describe exactly this content
+            final long headerOctets = message.getFullContentOctets() - message.getBodyOctets();
+            if (structure.root.bodyStart != headerOctets || structure.root.bodyEnd != message.getFullContentOctets()) {
+                return null;
+            }
+            return structure;
+        } catch (IOException e) {
+            return null;
+        } catch (IllegalStateException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads a structure from its binary form.
+     * 
+     * @param data the structure as written by {@link #toByteArray()}
+     * @return the structure
+     * @throws IOException if the data is not valid
+     */
+    public static MimeStructure read(byte[] data) throws IOException {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        if (in.readByte() != VERSION) {
+            throw new IOException("Unsupported MIME structure version");
+        }
+        final Part root = readPart(in);
+        if (in.read() != -1) {
+            throw new IOException("Unexpected data after the MIME structure");
+        }
+        return new MimeStructure(root);
+    }
+
+    /**
+     * Returns the compact binary form of the structure.
+     * 
+     * @return not null
+     */
+    public byte[] toByteArray() {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(VERSION);
+            writePart(out, root);
+            out.flush();
+        } catch (IOException e) {
+            // can not happen when writing to memory
+            throw new IllegalStateException("Unable to write the MIME structure", e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Gets the top level part, which is the message itself.
+     * 
+     * @return not null
+     */
+    public Part getRoot() {
+        return root;
+    }
+
+    /**
+     * Resolves a part the way {@link org.apache.james.mailbox.store.streaming.PartContentBuilder}
+     * does. Only paths through <code>multipart</code> parts, and through
+     * <code>message/rfc822</code> parts embedding a <code>multipart</code> message,
+     * are resolved.
+     * 
+     * @param path the positions of the part, starting with 1
+     * @return the part, or null if the path can not be resolved
+     */
+    public Part getPart(int[] path) {
+        if (path == null || path.length == 0) {
+            return null;
+        }
+        Part part = root;
+        for (int i = 0; i < path.length; i++) {
+            Part container = part;
+            if (i > 0 && container.type == MESSAGE) {
+                container = container.embeddedMessage;
+            }
+            final int position = path[i];
+            if (container.type != MULTIPART || position < 1 || position > container.parts.size()) {
+                return null;
+            }
+            part = container.parts.get(position - 1);
+        }
+        return part;
+    }
+
+    /**
+     * Builds the {@link MimeDescriptor} of the message from the structure.
+     * 
+     * @param headerContent the header content of the message
+     * @return the descriptor, equal to the one built by {@link MimeDescriptorImpl#build(InputStream)}
+     * @throws IOException
+     * @throws MimeException
+     */
+    public MimeDescriptorImpl getMimeDescriptor(InputStream headerContent) throws IOException, MimeException {
+        final Part headerPart = new Part();
+        final MaximalBodyDescriptor descriptor = parseHeader(IOUtils.toByteArray(headerContent), null, headerPart);
+        return describe(root, descriptor, headerPart.getHeaders());
+    }
+
+    private static MimeDescriptorImpl describe(Part part, MaximalBodyDescriptor descriptor, 
+            Collection<MessageResult.Header> headers) throws MimeException {
+        final MimeDescriptorImpl result;
+        switch (part.type) {
+            case MULTIPART:
+                result = MimeDescriptorImpl.createDescriptor(0, 0, descriptor, null, headers);
+                for (Part child: part.parts) {
+                    result.addPart(describe(child, child.buildDescriptor(descriptor.getMimeType()), child.getHeaders()));
+                }
+                break;
+            case MESSAGE:
+                final Part embedded = part.embeddedMessage;
+                final MimeDescriptor embeddedDescriptor = describe(embedded, embedded.buildDescriptor(null), embedded.getHeaders());
+                result = MimeDescriptorImpl.createDescriptor(part.getBodyOctets(), part.lines, descriptor, embeddedDescriptor, headers);
+                break;
+            default:
+                result = MimeDescriptorImpl.createDescriptor(part.getBodyOctets(), part.lines, descriptor, null, headers);
+        }
+        return result;
+    }
+
+    private static Part parseEntity(Scanner scanner, String parentMimeType, List<byte[]> boundaries, boolean root) 
+            throws IOException, MimeException {
+        final Part part = new Part();
+        part.headerStart = scanner.getPosition();
+        final ByteArrayOutputStream header = new ByteArrayOutputStream();
+        while (true) {
+            if (!scanner.peek(true) || scanner.matchDelimiter(boundaries) >= 0) {
+                throw new MimeException("Header without body");
+            }
+            if (scanner.isBlank()) {
+                scanner.consume();
+                break;
+            }
+            scanner.writeLine(header);
+            scanner.consume();
+        }
+        part.bodyStart = scanner.getPosition();
+        final long bodyStartCrs = scanner.getCrs();
+        final MaximalBodyDescriptor descriptor = parseHeader(header.toByteArray(), parentMimeType, root ? null : part);
+
+        if ("multipart".equalsIgnoreCase(descriptor.getMediaType()) && descriptor.getBoundary() != null) {
+            requireIdentityEncoding(descriptor);
+            part.type = MULTIPART;
+            final int depth = boundaries.size();
+            boundaries.add(("--" + descriptor.getBoundary()).getBytes(US_ASCII));
+            int found = skipToDelimiter(scanner, boundaries);
+            while (found == depth && !scanner.isCloseDelimiter()) {
+                scanner.consume();
+                part.parts.add(parseEntity(scanner, descriptor.getMimeType(), boundaries, false));
+                found = scanner.peek(false) ? scanner.matchDelimiter(boundaries) : -1;
+            }
+            boundaries.remove(depth);
+            if (found == depth) {
+                // skip the epilogue
+                scanner.consume();
+                skipToDelimiter(scanner, boundaries);
+            }
+        } else if ("message".equalsIgnoreCase(descriptor.getMediaType()) && "rfc822".equalsIgnoreCase(descriptor.getSubType())) {
+            requireIdentityEncoding(descriptor);
+            part.type = MESSAGE;
+            part.embeddedMessage = parseEntity(scanner, null, boundaries, false);
+        } else {
+            part.type = SIMPLE;
+            skipToDelimiter(scanner, boundaries);
+        }
+
+        // the line break before a delimiter belongs to the delimiter
+        long bodyEnd = scanner.getPosition();
+        long bodyEndCrs = scanner.getCrs();
+        if (scanner.isLoaded()) {
+            bodyEnd -= scanner.getLastTerminator();
+            if (scanner.getLastTerminator() == CRLF.length) {
+                bodyEndCrs--;
+            }
+        }
+        if (bodyEnd < part.bodyStart) {
+            bodyEnd = part.bodyStart;
+            bodyEndCrs = bodyStartCrs;
+        }
+        part.bodyEnd = bodyEnd;
+        part.lines = bodyEndCrs - bodyStartCrs;
+        return part;
+    }
+
+    /**
+     * Only unencoded composite parts can be described by offsets.
+     */
+    private static void requireIdentityEncoding(MaximalBodyDescriptor descriptor) throws MimeException {
+        final String encoding = descriptor.getTransferEncoding();
+        if (encoding != null && !"7bit".equalsIgnoreCase(encoding) && !"8bit".equalsIgnoreCase(encoding) 
+                && !"binary".equalsIgnoreCase(encoding)) {
+            throw new MimeException("Encoded composite part");
+        }
+    }
+
+    /**
+     * Skips lines until a delimiter of one of the given boundaries.
+     * 
+     * @return the depth of the boundary, or -1 at the end of the content
+     */
+    private static int skipToDelimiter(Scanner scanner, List<byte[]> boundaries) throws IOException {
+        while (scanner.peek(false)) {
+            final int depth = scanner.matchDelimiter(boundaries);
+            if (depth >= 0) {
+                return depth;
+            }
+            scanner.consume();
+        }
+        return -1;
+    }
+
+    /**
+     * Parses a header the same way {@link MimeDescriptorImpl} does.
+     * 
+     * @param header the header lines
+     * @param parentMimeType the mime type of the enclosing multipart, null for messages
+     * @param part the part the header fields are added to, null to ignore them
+     * @return the descriptor of the header
+     */
+    private static MaximalBodyDescriptor parseHeader(byte[] header, String parentMimeType, Part part) 
+            throws IOException, MimeException {
+        final MimeConfig config = MimeConfig.custom().setMaxLineLen(-1).setMaxHeaderLen(-1).build();
+        final MimeTokenStream parser = new MimeTokenStream(config, new DefaultBodyDescriptorBuilder(parentMimeType));
+        parser.setRecursionMode(RecursionMode.M_FLAT);
+        final ByteArrayOutputStream content = new ByteArrayOutputStream(header.length + CRLF.length);
+        content.write(header);
+        content.write(CRLF);
+        parser.parse(new ByteArrayInputStream(content.toByteArray()));
+        for (EntityState state = parser.next(); state != EntityState.T_BODY; state = parser.next()) {
+            if (state == EntityState.T_END_OF_STREAM) {
+                throw new MimeException("Premature end of stream");
+            }
+            if (state == EntityState.T_FIELD && part != null) {
+                part.headerNames.add(parser.getField().getName());
+                part.headerValues.add(parser.getField().getBody().trim());
+            }
+        }
+        return (MaximalBodyDescriptor) parser.getBodyDescriptor();
+    }
+
+    private static void writePart(DataOutput out, Part part) throws IOException {
+        out.writeByte(part.type);
+        writeNumber(out, part.headerStart);
+        writeNumber(out, part.bodyStart - part.headerStart);
+        writeNumber(out, part.bodyEnd - part.bodyStart);
+        writeNumber(out, part.lines);
+        writeNumber(out, part.headerNames.size());
+        for (int i = 0; i < part.headerNames.size(); i++) {
+            writeString(out, part.headerNames.get(i));
+            writeString(out, part.headerValues.get(i));
+        }
+        if (part.type == MULTIPART) {
+            writeNumber(out, part.parts.size());
+            for (Part child: part.parts) {
+                writePart(out, child);
+            }
+        } else if (part.type == MESSAGE) {
+            writePart(out, part.embeddedMessage);
+        }
+    }
+
+    private static Part readPart(DataInputStream in) throws IOException {
+        final Part part = new Part();
+        part.type = in.readByte();
+        if (part.type != SIMPLE && part.type != MULTIPART && part.type != MESSAGE) {
+            throw new IOException("Invalid part type " + part.type);
+        }
+        part.headerStart = readNumber(in);
+        part.bodyStart = part.headerStart + readNumber(in);
+        part.bodyEnd = part.bodyStart + readNumber(in);
+        part.lines = readNumber(in);
+        final long headerCount = readCount(in);
+        for (long i = 0; i < headerCount; i++) {
+            part.headerNames.add(readString(in));
+            part.headerValues.add(readString(in));
+        }
+        if (part.type == MULTIPART) {
+            final long partCount = readCount(in);
+            for (long i = 0; i < partCount; i++) {
+                part.parts.add(readPart(in));
+            }
+        } else if (part.type == MESSAGE) {
+            part.embeddedMessage = readPart(in);
+        }
+        return part;
+    }
+
+    private static void writeNumber(DataOutput out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readNumber(DataInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Invalid number");
+    }
+
+    /**
+     * Reads the number of following entries, which can not exceed the remaining bytes.
+     */
+    private static long readCount(DataInputStream in) throws IOException {
+        final long count = readNumber(in);
+        if (count > in.available()) {
+            throw new IOException("Invalid count " + count);
+        }
+        return count;
+    }
+
+    private static void writeString(DataOutput out, String value) throws IOException {
+        final byte[] bytes = value.getBytes(UTF_8);
+        writeNumber(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        final byte[] bytes = new byte[(int) readCount(in)];
+        in.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    /**
+     * A part of the message.
+     */
+    public static final class Part {
+
+        private byte type;
+        private long headerStart;
+        private long bodyStart;
+        private long bodyEnd;
+        private long lines;
+        private final List<String> headerNames = new ArrayList<String>();
+        private final List<String> headerValues = new ArrayList<String>();
+        private final List<Part> parts = new ArrayList<Part>();
+        private Part embeddedMessage;
+
+        private Part() {
+        }
+
+        /**
+         * @return {@link MimeStructure#SIMPLE}, {@link MimeStructure#MULTIPART} or {@link MimeStructure#MESSAGE}
+         */
+        public byte getType() {
+            return type;
+        }
+
+        /**
+         * @return the offset of the first header line of the part
+         */
+        public long getHeaderStart() {
+            return headerStart;
+        }
+
+        /**
+         * @return the offset of the body, after the empty line ending the header
+         */
+        public long getBodyStart() {
+            return bodyStart;
+        }
+
+        /**
+         * @return the offset after the body, the line break before a boundary excluded
+         */
+        public long getBodyEnd() {
+            return bodyEnd;
+        }
+
+        /**
+         * @return the number of octets of the body
+         */
+        public long getBodyOctets() {
+            return bodyEnd - bodyStart;
+        }
+
+        /**
+         * @return the number of lines of the body
+         */
+        public long getLines() {
+            return lines;
+        }
+
+        /**
+         * @return the header fields of the part, empty for the message itself
+         */
+        public List<MessageResult.Header> getHeaders() {
+            final List<MessageResult.Header> headers = new ArrayList<MessageResult.Header>(headerNames.size());
+            for (int i = 0; i < headerNames.size(); i++) {
+                headers.add(new ResultHeader(headerNames.get(i), headerValues.get(i)));
+            }
+            return headers;
+        }
+
+        /**
+         * @return the body parts of a {@link MimeStructure#MULTIPART} part, empty otherwise
+         */
+        public List<Part> getParts() {
+            return Collections.unmodifiableList(parts);
+        }
+
+        /**
+         * @return the embedded message of a {@link MimeStructure#MESSAGE} part, null otherwise
+         */
+        public Part getEmbeddedMessage() {
+            return embeddedMessage;
+        }
+
+        private MaximalBodyDescriptor buildDescriptor(String parentMimeType) throws MimeException {
+            final DefaultBodyDescriptorBuilder builder = new DefaultBodyDescriptorBuilder(parentMimeType);
+            for (int i = 0; i < headerNames.size(); i++) {
+                builder.addField(new RawField(headerNames.get(i), headerValues.get(i)));
+            }
+            return (MaximalBodyDescriptor) builder.build();
+        }
+    }
+
+    /**
+     * Reads the content line by line, keeping track of the offset and the number
+     * of carriage returns before the current line. A line is looked at with
+     * {@link #peek(boolean)} before it gets consumed.
+     */
+    private static final class Scanner {
+
+        private final InputStream in;
+
+        private byte[] line = new byte[128];
+        private int length;
+        private boolean truncated;
+        private long lineOctets;
+        private long lineCrs;
+        private int terminator;
+        private boolean loaded;
+        private boolean closeDelimiter;
+
+        private long position;
+        private long crs;
+        private int lastTerminator;
+
+        private Scanner(InputStream in) {
+            this.in = new BufferedInputStream(in);
+        }
+
+        /**
+         * Reads the next line if it is not read yet.
+         * 
+         * @param full whether to keep the whole line, instead of its start only
+         * @return false at the end of the content
+         */
+        private boolean peek(boolean full) throws IOException {
+            if (loaded) {
+                return true;
+            }
+            length = 0;
+            truncated = false;
+            lineOctets = 0;
+            lineCrs = 0;
+            terminator = 0;
+            boolean lastCr = false;
+            int b;
+            while ((b = in.read()) != -1) {
+                lineOctets++;
+                if (b == '\n') {
+                    terminator = lastCr ? 2 : 1;
+                    break;
+                }
+                if (b == '\r') {
+                    lineCrs++;
+                }
+                lastCr = b == '\r';
+                if (full || length < MAX_LINE_PREFIX) {
+                    if (length == line.length) {
+                        final byte[] grown = new byte[line.length * 2];
+                        System.arraycopy(line, 0, grown, 0, length);
+                        line = grown;
+                    }
+                    line[length++] = (byte) b;
+                } else {
+                    truncated = true;
+                }
+            }
+            if (lineOctets == 0) {
+                return false;
+            }
+            if (terminator == 2 && !truncated) {
+                length--;
+            }
+            loaded = true;
+            return true;
+        }
+
+        private void consume() {
+            position += lineOctets;
+            crs += lineCrs;
+            lastTerminator = terminator;
+            loaded = false;
+        }
+
+        private boolean isLoaded() {
+            return loaded;
+        }
+
+        private boolean isBlank() {
+            return length == 0 && !truncated;
+        }
+
+        private void writeLine(ByteArrayOutputStream out) {
+            out.write(line, 0, length);
+            out.write(CRLF, 0, CRLF.length);
+        }
+
+        /**
+         * Tests whether the current line is a delimiter, the innermost boundary is
+         * tested first.
+         * 
+         * @return the depth of the matching boundary, -1 if the line is no delimiter
+         */
+        private int matchDelimiter(List<byte[]> boundaries) {
+            for (int depth = boundaries.size() - 1; depth >= 0; depth--) {
+                if (isDelimiter(boundaries.get(depth))) {
+                    return depth;
+                }
+            }
+            return -1;
+        }
+
+        private boolean isDelimiter(byte[] boundary) {
+            if (truncated || length < boundary.length) {
+                return false;
+            }
+            for (int i = 0; i < boundary.length; i++) {
+                if (line[i] != boundary[i]) {
+                    return false;
+                }
+            }
+            if (length >= boundary.length + 2 && line[boundary.length] == '-' && line[boundary.length + 1] == '-') {
+                closeDelimiter = true;
+                return true;
+            }
+            for (int i = boundary.length; i < length; i++) {
+                if (line[i] != ' ' && line[i] != '\t') {
+                    return false;
+                }
+            }
+            closeDelimiter = false;
+            return true;
+        }
+
+        /**
+         * @return whether the last matched delimiter closes its multipart
+         */
+        private boolean isCloseDelimiter() {
+            return closeDelimiter;
+        }
+
+        /**
+         * @return the offset of the current line
+         */
+        private long getPosition() {
+            return position;
+        }
+
+        /**
+         * @return the number of carriage returns before the current line
+         */
+        private long getCrs() {
+            return crs;
+        }
+
+        /**
+         * @return the length of the line break of the last consumed line
+         */
+        private int getLastTerminator() {
+            return lastTerminator;
+        }
+    }
+}
@@ -24,15 +24,22 @@ import java.io.InputStream;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 
+import javax.mail.internet.SharedInputStream;
+
+import org.apache.commons.io.IOUtils;
 import org.apache.james.mailbox.exception.MailboxException;
-import org.apache.james.mailbox.model.Content;
 import org.apache.james.mailbox.model.MessageResult;
 import org.apache.james.mailbox.model.MessageResult.FetchGroup;
 import org.apache.james.mailbox.model.MessageResult.MimePath;
 import org.apache.james.mailbox.store.mail.model.Message;
+import org.apache.james.mailbox.store.streaming.ByteContent;
+import org.apache.james.mailbox.store.streaming.FullByteContent;
+import org.apache.james.mailbox.store.streaming.FullRangeContent;
 import org.apache.james.mailbox.store.streaming.PartContentBuilder;
+import org.apache.james.mailbox.store.streaming.RangeContent;
 import org.apache.james.mime4j.MimeException;
 import org.apache.james.mime4j.parser.AbstractContentHandler;
 import org.apache.james.mime4j.parser.MimeStreamParser;
@@ -124,6 +131,8 @@ public class ResultUtils {
                 }
                 if ((content & FetchGroup.MIME_DESCRIPTOR) > 0) {
                     content -= FetchGroup.MIME_DESCRIPTOR;
+                    // load the structure now, so that a computed one can be stored
+                    messageResult.getMimeStructure();
                 }
                 if (content != 0) {
                     throw new UnsupportedOperationException("Unsupported result: " + content);
@@ -141,44 +150,85 @@ public class ResultUtils {
 
     }
 
+    /**
+     * Adds the content of all parts of the {@link FetchGroup}. Parts which can be resolved from the
+     * {@link MimeStructure} are read from their offsets. The others are parsed from the full content
+     * in the order of their paths, so that the parts of one multipart are read with a single walk.
+     */
     private static void addPartContent(final FetchGroup fetchGroup,
             Message<?> message, MessageResultImpl messageResult)
             throws MailboxException, IOException,
             MimeException {
         Collection<FetchGroup.PartContentDescriptor> partContent = fetchGroup.getPartContentDescriptors();
         if (partContent != null) {
+            final List<PartRequest> requests = new ArrayList<PartRequest>();
             for (FetchGroup.PartContentDescriptor descriptor: partContent) {
-                addPartContent(descriptor, message, messageResult);
+                final PartRequest request = addPartContent(descriptor, messageResult, message);
+                if (request != null) {
+                    requests.add(request);
+                }
+            }
+            if (!requests.isEmpty()) {
+                Collections.sort(requests);
+                final FullContentSource source = new FullContentSource(message);
+                try {
+                    for (PartRequest request: requests) {
+                        request.load(source, messageResult);
+                    }
+                } finally {
+                    source.close();
+                }
             }
         }
     }
 
-    private static void addPartContent(
-            FetchGroup.PartContentDescriptor descriptor, Message<?> message,
-            MessageResultImpl messageResult) throws 
-            MailboxException, IOException, MimeException {
+    /**
+     * Adds the content of the descriptor which can be resolved from the {@link MimeStructure}
+     * 
+     * @return the content which needs to be parsed, or null if there is none
+     */
+    private static PartRequest addPartContent(
+            FetchGroup.PartContentDescriptor descriptor, MessageResultImpl messageResult,
+            Message<?> message) throws MailboxException, IOException {
         final MimePath mimePath = descriptor.path();
-        final int content = descriptor.content();
-        if ((content & MessageResult.FetchGroup.FULL_CONTENT) > 0) {
-            addFullContent(message, messageResult, mimePath);
-        }
-        if ((content & MessageResult.FetchGroup.BODY_CONTENT) > 0) {
-            addBodyContent(message, messageResult, mimePath);
-        }
-        if ((content & MessageResult.FetchGroup.MIME_CONTENT) > 0) {
-            addMimeBodyContent(message, messageResult, mimePath);
+        final int[] path = path(mimePath);
+        if (path == null) {
+            return null;
         }
-        if ((content & MessageResult.FetchGroup.HEADERS) > 0) {
-            addHeaders(message, messageResult, mimePath);
+        int content = descriptor.content() & PartRequest.CONTENT;
+        final MimeStructure.Part part = part(path, messageResult);
+        if (part != null) {
+            if ((content & FetchGroup.FULL_CONTENT) > 0) {
+                messageResult.setFullContent(mimePath, new FullRangeContent(part.getHeaders(),
+                        new RangeContent(message, part.getBodyStart(), part.getBodyEnd())));
+            }
+            if ((content & FetchGroup.MIME_CONTENT) > 0) {
+                messageResult.setMimeBodyContent(mimePath, new RangeContent(message, part.getBodyStart(), part.getBodyEnd()));
+            }
+            if ((content & FetchGroup.MIME_HEADERS) > 0) {
+                messageResult.setMimeHeaders(mimePath, part.getHeaders().iterator());
+            }
+            content &= ~(FetchGroup.FULL_CONTENT | FetchGroup.MIME_CONTENT | FetchGroup.MIME_HEADERS);
+
+            if (part.getType() == MimeStructure.MESSAGE) {
+                final MimeStructure.Part embedded = part.getEmbeddedMessage();
+                if ((content & FetchGroup.BODY_CONTENT) > 0) {
+                    messageResult.setBodyContent(mimePath, new RangeContent(message, embedded.getBodyStart(), embedded.getBodyEnd()));
+                }
+                if ((content & FetchGroup.HEADERS) > 0) {
+                    messageResult.setHeaders(mimePath, embedded.getHeaders().iterator());
+                }
+                content &= ~(FetchGroup.BODY_CONTENT | FetchGroup.HEADERS);
+            }
         }
-        if ((content & MessageResult.FetchGroup.MIME_HEADERS) > 0) {
-            addMimeHeaders(message, messageResult, mimePath);
+        if (content == 0) {
+            return null;
         }
+        return new PartRequest(mimePath, path, content);
     }
 
-    private static PartContentBuilder build(int[] path, final Message<?> message)
+    private static PartContentBuilder build(int[] path, final InputStream stream)
             throws IOException, MimeException {
-        final InputStream stream = message.getFullContent();
         PartContentBuilder result = new PartContentBuilder();
         result.parse(stream);
         try {
@@ -206,57 +256,163 @@ public class ResultUtils {
         return result;
     }
 
-    private static void addHeaders(Message<?> message,
-            MessageResultImpl messageResult, MimePath mimePath)
-            throws IOException, MimeException {
-        final int[] path = path(mimePath);
-        if (path != null) {
-       
-            final PartContentBuilder builder = build(path, message);
-            final List<MessageResult.Header> headers = builder.getMessageHeaders();
-            messageResult.setHeaders(mimePath, headers.iterator());
+    /**
+     * Resolves the part from the {@link MimeStructure} of the message
+     * 
+     * @return the part, or null if it needs to be parsed from the content
+     */
+    private static MimeStructure.Part part(int[] path, MessageResultImpl messageResult) throws IOException {
+        final MimeStructure structure = messageResult.getMimeStructure();
+        if (structure == null) {
+            return null;
         }
+        return structure.getPart(path);
     }
 
-    private static void addMimeHeaders(Message<?> message,
-            MessageResultImpl messageResult, MimePath mimePath)
-            throws IOException, MimeException {
-        final int[] path = path(mimePath);
-        if (path != null) {
-            final PartContentBuilder builder = build(path, message);
-            final List<MessageResult.Header> headers = builder.getMimeHeaders();
-            messageResult.setMimeHeaders(mimePath, headers.iterator());
+    /**
+     * The content of one part which needs to be parsed from the full content of the message.
+     * The MIME headers and the MIME body are read with the same parse of the part, which goes
+     * on to the following parts of the same multipart. The headers and the body of an embedded
+     * message need one parse each, as they are looked up past the end of the part.
+     */
+    private static final class PartRequest implements Comparable<PartRequest> {
+
+        private static final int CONTENT = FetchGroup.FULL_CONTENT | FetchGroup.BODY_CONTENT
+                | FetchGroup.MIME_CONTENT | FetchGroup.HEADERS | FetchGroup.MIME_HEADERS;
+
+        private static final int MIME = FetchGroup.FULL_CONTENT | FetchGroup.MIME_CONTENT | FetchGroup.MIME_HEADERS;
+
+        private final MimePath mimePath;
+        private final int[] path;
+        private final int content;
+
+        private PartRequest(MimePath mimePath, int[] path, int content) {
+            this.mimePath = mimePath;
+            this.path = path;
+            this.content = content;
         }
-    }
 
-    private static void addBodyContent(Message<?> message,
-            MessageResultImpl messageResult, MimePath mimePath) throws IOException, MimeException {
-        final int[] path = path(mimePath);
-        if (path != null) {
-            final PartContentBuilder builder = build(path, message);
-            final Content content = builder.getMessageBodyContent();
-            messageResult.setBodyContent(mimePath, content);
+        /**
+         * Orders the parts as they appear in the message, a part before the parts it contains
+         */
+        public int compareTo(PartRequest other) {
+            final int length = Math.min(path.length, other.path.length);
+            for (int i = 0; i < length; i++) {
+                if (path[i] != other.path[i]) {
+                    return path[i] < other.path[i] ? -1 : 1;
+                }
+            }
+            return path.length - other.path.length;
         }
-    }
 
-    private static void addMimeBodyContent(Message<?> message,
-            MessageResultImpl messageResult, MimePath mimePath)
-            throws IOException, MimeException {
-        final int[] path = path(mimePath);
-        final PartContentBuilder builder = build(path, message);
-        final Content content = builder.getMimeBodyContent();
-        messageResult.setMimeBodyContent(mimePath, content);
+        private void load(FullContentSource source, MessageResultImpl messageResult)
+                throws MailboxException, IOException, MimeException {
+            if ((content & MIME) > 0) {
+                final PartContentBuilder builder = source.walkTo(path);
+                List<MessageResult.Header> headers = null;
+                if ((content & (FetchGroup.FULL_CONTENT | FetchGroup.MIME_HEADERS)) > 0) {
+                    headers = builder.getMimeHeaders();
+                }
+                byte[] body = null;
+                if ((content & (FetchGroup.FULL_CONTENT | FetchGroup.MIME_CONTENT)) > 0) {
+                    body = builder.mimeBodyContent();
+                }
+                if ((content & FetchGroup.FULL_CONTENT) > 0) {
+                    messageResult.setFullContent(mimePath, new FullByteContent(body, headers));
+                }
+                if ((content & FetchGroup.MIME_CONTENT) > 0) {
+                    messageResult.setMimeBodyContent(mimePath, new ByteContent(body));
+                }
+                if ((content & FetchGroup.MIME_HEADERS) > 0) {
+                    messageResult.setMimeHeaders(mimePath, headers.iterator());
+                }
+            }
+            if ((content & FetchGroup.BODY_CONTENT) > 0) {
+                final PartContentBuilder builder = build(path, source.open());
+                messageResult.setBodyContent(mimePath, builder.getMessageBodyContent());
+            }
+            if ((content & FetchGroup.HEADERS) > 0) {
+                final PartContentBuilder builder = build(path, source.open());
+                messageResult.setHeaders(mimePath, builder.getMessageHeaders().iterator());
+            }
+        }
     }
 
-    private static void addFullContent(Message<?> message,
-            MessageResultImpl messageResult, MimePath mimePath)
-            throws MailboxException, IOException,
-            MimeException {
-        final int[] path = path(mimePath);
-        if (path != null) {
-            final PartContentBuilder builder = build(path, message);
-            final Content content = builder.getFullContent();
-            messageResult.setFullContent(mimePath, content);
+    /**
+     * Opens the full content of a message for the parses of its parts. A {@link SharedInputStream}
+     * is opened once and shared between the parses, any other content is opened again for each
+     * parse rather than being held in memory.
+     */
+    private static final class FullContentSource {
+
+        private final Message<?> message;
+        private InputStream shared;
+        private final List<InputStream> opened = new ArrayList<InputStream>();
+        private PartContentBuilder walk;
+        private int[] walked;
+
+        private FullContentSource(Message<?> message) {
+            this.message = message;
+        }
+
+        private InputStream open() throws IOException {
+            final InputStream in;
+            if (shared != null) {
+                in = ((SharedInputStream) shared).newStream(0, -1);
+            } else {
+                final InputStream content = message.getFullContent();
+                if (content instanceof SharedInputStream) {
+                    shared = content;
+                    in = ((SharedInputStream) shared).newStream(0, -1);
+                } else {
+                    in = content;
+                }
+            }
+            opened.add(in);
+            return in;
+        }
+
+        /**
+         * Returns a builder positioned at the given part. When the part follows the part walked to
+         * before in the same multipart, that parse goes on instead of parsing the content again.
+         */
+        private PartContentBuilder walkTo(int[] path) throws IOException, MimeException {
+            if (walk != null && isFollowingSibling(walked, path)) {
+                try {
+                    if (walk.toSibling(path[path.length - 1])) {
+                        walked = path;
+                        return walk;
+                    }
+                } catch (PartContentBuilder.PartNotFoundException e) {
+                    // Missing parts should return zero sized content
+                    walk.markEmpty();
+                    walked = path;
+                    return walk;
+                }
+            }
+            walk = build(path, open());
+            walked = path;
+            return walk;
+        }
+
+        private static boolean isFollowingSibling(int[] previous, int[] path) {
+            if (previous.length != path.length || path.length == 0) {
+                return false;
+            }
+            final int last = path.length - 1;
+            for (int i = 0; i < last; i++) {
+                if (previous[i] != path[i]) {
+                    return false;
+                }
+            }
+            return previous[last] < path[last];
+        }
+
+        private void close() {
+            for (InputStream in: opened) {
+                IOUtils.closeQuietly(in);
+            }
+            IOUtils.closeQuietly(shared);
         }
     }
 }
@@ -111,6 +111,12 @@ public class StoreMessageManager<Id extends MailboxId> implements org.apache.jam
         MINIMAL_PERMANET_FLAGS.add(Flags.Flag.SEEN);
     }
 
+    /**
+     * The number of messages copied within one transaction, their uids and
+     * mod-sequences get reserved at once
+     */
+    private final static int COPY_BATCH_SIZE = 100;
+
     private final Mailbox<Id> mailbox;
 
     private final MailboxEventDispatcher<Id> dispatcher;
@@ -370,6 +376,20 @@ public class StoreMessageManager<Id extends MailboxId> implements org.apache.jam
             contentIn = new SharedFileInputStream(file);
             final int size = (int) file.length();
 
+            if (MimeDescriptorImpl.isComposite(mediaType)) {
+                // Record the part tree now, so that it does not need to be parsed
+                // again for every BODYSTRUCTURE or body part fetch
+                final InputStream structureIn = contentIn.newStream(0, -1);
+                try {
+                    final MimeStructure structure = MimeStructure.parse(structureIn);
+                    if (structure != null) {
+                        propertyBuilder.setMimeStructure(structure.toByteArray());
+                    }
+                } finally {
+                    IOUtils.closeQuietly(structureIn);
+                }
+            }
+
             final Message<Id> message = createMessage(internalDate, size, bodyStartOctet, contentIn, flags, propertyBuilder);
 
             new QuotaChecker(quotaManager, quotaRootResolver, mailbox).tryAddition(1, size);
@@ -635,7 +655,7 @@ public class StoreMessageManager<Id extends MailboxId> implements org.apache.jam
      */
     public MessageResultIterator getMessages(final MessageRange set, FetchGroup fetchGroup, MailboxSession mailboxSession) throws MailboxException {
         final MessageMapper<Id> messageMapper = mapperFactory.getMessageMapper(mailboxSession);
-        return new StoreMessageResultIterator<Id>(messageMapper, mailbox, set, fetchBatchSize, fetchGroup);
+        return new StoreMessageResultIterator<Id>(messageMapper, mailbox, set, fetchBatchSize, fetchGroup, mailboxSession.getLog());
     }
 
     /**
@@ -702,21 +722,34 @@ public class StoreMessageManager<Id extends MailboxId> implements org.apache.jam
         final MessageMapper<Id> messageMapper = mapperFactory.getMessageMapper(session);
         QuotaChecker quotaChecker = new QuotaChecker(quotaManager, quotaRootResolver, mailbox);
 
+        List<Message<Id>> batch = new ArrayList<Message<Id>>();
         while (originalRows.hasNext()) {
-            final Message<Id> originalMessage = originalRows.next();
+            Message<Id> originalMessage = originalRows.next();
             quotaChecker.tryAddition(1, originalMessage.getFullContentOctets());
-            MessageMetaData data = messageMapper.execute(new Mapper.Transaction<MessageMetaData>() {
-                public MessageMetaData run() throws MailboxException {
-                    return messageMapper.copy(getMailboxEntity(), originalMessage);
-
-                }
-
-            });
-            copiedRows.add(data);
+            batch.add(originalMessage);
+            if (batch.size() == COPY_BATCH_SIZE) {
+                copiedRows.addAll(copy(messageMapper, batch));
+                batch = new ArrayList<Message<Id>>();
+            }
+        }
+        if (!batch.isEmpty()) {
+            copiedRows.addAll(copy(messageMapper, batch));
         }
         return copiedRows.iterator();
     }
 
+    /**
+     * Copy a batch of messages to this mailbox, their uids and mod-sequences are
+     * reserved at once.
+     */
+    private List<MessageMetaData> copy(final MessageMapper<Id> messageMapper, final List<Message<Id>> originals) throws MailboxException {
+        return messageMapper.execute(new Mapper.Transaction<List<MessageMetaData>>() {
+            public List<MessageMetaData> run() throws MailboxException {
+                return messageMapper.copy(getMailboxEntity(), originals);
+            }
+        });
+    }
+
     private Iterator<MessageMetaData> move(Iterator<Message<Id>> originalRows,
 			MailboxSession session) throws MailboxException {
         final List<MessageMetaData> movedRows = new ArrayList<MessageMetaData>();
@@ -18,8 +18,10 @@
  ****************************************************************/
 package org.apache.james.mailbox.store;
 
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
 
 import javax.mail.Flags;
@@ -38,6 +40,9 @@ import org.apache.james.mailbox.store.mail.MessageMapper.FetchType;
 import org.apache.james.mailbox.store.mail.model.MailboxId;
 import org.apache.james.mailbox.store.mail.model.Mailbox;
 import org.apache.james.mailbox.store.mail.model.Message;
+import org.apache.james.mailbox.store.transaction.Mapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class StoreMessageResultIterator<Id extends MailboxId> implements MessageResultIterator {
 
@@ -52,8 +57,16 @@ public class StoreMessageResultIterator<Id extends MailboxId> implements Message
     private Type type;
     private MessageMapper<Id> mapper;
     private FetchType ftype;
+    private Logger log;
+    private List<Message<Id>> computedMessages = new ArrayList<Message<Id>>();
+    private List<byte[]> computedStructures = new ArrayList<byte[]>();
 
     public StoreMessageResultIterator(MessageMapper<Id> mapper, Mailbox<Id> mailbox, MessageRange range, int batchSize, org.apache.james.mailbox.model.MessageResult.FetchGroup group) {
+        this(mapper, mailbox, range, batchSize, group, LoggerFactory.getLogger(StoreMessageResultIterator.class));
+    }
+
+    public StoreMessageResultIterator(MessageMapper<Id> mapper, Mailbox<Id> mailbox, MessageRange range, int batchSize, org.apache.james.mailbox.model.MessageResult.FetchGroup group, Logger log) {
+        this.log = log;
         this.mailbox = mailbox;
         this.group = group;
         this.mapper = mapper;
@@ -112,10 +125,13 @@ public class StoreMessageResultIterator<Id extends MailboxId> implements Message
 
     @Override
     public boolean hasNext() {
-        if (cursor > to) 
-          return false;
+        if (cursor > to) {
+            saveMimeStructures();
+            return false;
+        }
 
         if (next == null || !next.hasNext()) {
+            saveMimeStructures();
             try {
                 readBatch();
             } catch (MailboxException e) {
@@ -158,6 +174,7 @@ public class StoreMessageResultIterator<Id extends MailboxId> implements Message
         try {
             result = ResultUtils.loadMessageResult(message, group);
             cursor = result.getUid();
+            collectMimeStructure(message, result);
         } catch (MailboxException e) {
             result = new UnloadedMessageResult<Id>(message, e);
         }
@@ -166,6 +183,47 @@ public class StoreMessageResultIterator<Id extends MailboxId> implements Message
         return result;
     }
 
+    /**
+     * Remembers the MIME structure of a message saved without one, if it had to be
+     * computed for the result. The structures are stored once the batch is consumed.
+     */
+    private void collectMimeStructure(Message<Id> message, MessageResult result) {
+        if (result instanceof MessageResultImpl) {
+            MimeStructure structure = ((MessageResultImpl) result).getComputedMimeStructure();
+            if (structure != null) {
+                computedMessages.add(message);
+                computedStructures.add(structure.toByteArray());
+            }
+        }
+    }
+
+    /**
+     * Stores the MIME structures computed for the messages of the last batch, all in
+     * one transaction. Failures are only logged, as the structures just get computed
+     * again on the next access.
+     */
+    private void saveMimeStructures() {
+        if (computedMessages.isEmpty()) {
+            return;
+        }
+        final List<Message<Id>> messages = computedMessages;
+        final List<byte[]> structures = computedStructures;
+        computedMessages = new ArrayList<Message<Id>>();
+        computedStructures = new ArrayList<byte[]>();
+        try {
+            mapper.execute(new Mapper.VoidTransaction() {
+                @Override
+                public void runVoid() throws MailboxException {
+                    for (int i = 0; i < messages.size(); i++) {
+                        mapper.saveMimeStructure(mailbox, messages.get(i), structures.get(i));
+                    }
+                }
+            });
+        } catch (MailboxException e) {
+            log.warn("Unable to store the MIME structure of " + messages.size() + " messages of mailbox " + mailbox.getName(), e);
+        }
+    }
+
     @Override
     public void remove() {
         throw new UnsupportedOperationException("Read only");
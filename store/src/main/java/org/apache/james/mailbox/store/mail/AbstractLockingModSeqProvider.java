@@ -61,4 +61,34 @@ public abstract class AbstractLockingModSeqProvider<Id extends MailboxId> implem
      */
     protected abstract long lockedNextModSeq(MailboxSession session, Mailbox<Id> mailbox) throws MailboxException;
 
+    @Override
+    public long nextModSeqs(final MailboxSession session, final Mailbox<Id> mailbox, final int count) throws MailboxException {
+        return locker.executeWithLock(session, new StoreMailboxPath<Id>(mailbox), new LockAwareExecution<Long>() {
+
+            @Override
+            public Long execute() throws MailboxException {
+                return lockedNextModSeqs(session, mailbox, count);
+            }
+        }, true);
+    }
+
+    /**
+     * Reserve <code>count</code> mod-seqs for the given {@link Mailbox} while holding a lock on it. The default
+     * implementation calls {@link #lockedNextModSeq(MailboxSession, Mailbox)} <code>count</code> times, implementations
+     * which can reserve them at once should override it.
+     * 
+     * @param session
+     * @param mailbox
+     * @param count
+     * @return the first reserved mod-seq
+     * @throws MailboxException
+     */
+    protected long lockedNextModSeqs(MailboxSession session, Mailbox<Id> mailbox, int count) throws MailboxException {
+        long first = lockedNextModSeq(session, mailbox);
+        for (int i = 1; i < count; i++) {
+            lockedNextModSeq(session, mailbox);
+        }
+        return first;
+    }
+
 }
@@ -63,4 +63,34 @@ public abstract class AbstractLockingUidProvider<Id extends MailboxId> implement
      */
     protected abstract long lockedNextUid(MailboxSession session, Mailbox<Id> mailbox) throws MailboxException;
 
+    @Override
+    public long nextUids(final MailboxSession session, final Mailbox<Id> mailbox, final int count) throws MailboxException {
+        return locker.executeWithLock(session, new StoreMailboxPath<Id>(mailbox), new LockAwareExecution<Long>() {
+
+            @Override
+            public Long execute() throws MailboxException {
+                return lockedNextUids(session, mailbox, count);
+            }
+        }, true);
+    }
+
+    /**
+     * Reserve <code>count</code> uids while the {@link Mailbox} is locked. The default implementation calls
+     * {@link #lockedNextUid(MailboxSession, Mailbox)} <code>count</code> times, implementations which can
+     * reserve them at once should override it.
+     * 
+     * @param session
+     * @param mailbox
+     * @param count
+     * @return the first reserved uid
+     * @throws MailboxException
+     */
+    protected long lockedNextUids(MailboxSession session, Mailbox<Id> mailbox, int count) throws MailboxException {
+        long first = lockedNextUid(session, mailbox);
+        for (int i = 1; i < count; i++) {
+            lockedNextUid(session, mailbox);
+        }
+        return first;
+    }
+
 }
@@ -133,6 +133,36 @@ public abstract class AbstractMessageMapper<Id extends MailboxId> extends Transa
         return metaData;
     }
 
+    /**
+     * @see org.apache.james.mailbox.store.mail.MessageMapper#copy(org.apache.james.mailbox.store.mail.model.Mailbox, java.util.List)
+     */
+    public List<MessageMetaData> copy(final Mailbox<Id> mailbox, final List<Message<Id>> originals) throws MailboxException {
+        final List<MessageMetaData> metaData = new ArrayList<MessageMetaData>(originals.size());
+        if (originals.isEmpty()) {
+            return metaData;
+        }
+        long uid = uidProvider.nextUids(mailboxSession, mailbox, originals.size());
+        long modSeq = -1;
+        if (modSeqProvider != null) {
+            modSeq = modSeqProvider.nextModSeqs(mailboxSession, mailbox, originals.size());
+        }
+        for (Message<Id> original : originals) {
+            metaData.add(copy(mailbox, uid++, modSeq, original));
+            if (modSeqProvider != null) {
+                modSeq++;
+            }
+        }
+        return metaData;
+    }
+
+    /**
+     * Does nothing by default, so the structure gets computed again when needed.
+     * 
+     * @see org.apache.james.mailbox.store.mail.MessageMapper#saveMimeStructure(org.apache.james.mailbox.store.mail.model.Mailbox, org.apache.james.mailbox.store.mail.model.Message, byte[])
+     */
+    public void saveMimeStructure(Mailbox<Id> mailbox, Message<Id> message, byte[] mimeStructure) throws MailboxException {
+    }
+
    
     
     
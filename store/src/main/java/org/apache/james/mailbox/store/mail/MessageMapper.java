@@ -149,6 +149,16 @@ public interface MessageMapper<Id extends MailboxId> extends Mapper {
      * @throws StorageException
      */
     MessageMetaData copy(Mailbox<Id> mailbox,Message<Id> original) throws MailboxException;
+
+    /**
+     * Copy the given {@link Message}s to a new mailbox and return the meta data of the copies, in the same order. The uids
+     * and mod-sequences of the copies should be reserved at once.
+     * 
+     * @param mailbox the Mailbox to copy to
+     * @param originals the originals to copy
+     * @throws StorageException
+     */
+    List<MessageMetaData> copy(Mailbox<Id> mailbox, List<Message<Id>> originals) throws MailboxException;
     
     /**
      * Move the given {@link Message} to a new mailbox and return the uid of the moved. Be aware that the given uid is just a suggestion for the uid of the moved
@@ -159,8 +169,19 @@ public interface MessageMapper<Id extends MailboxId> extends Mapper {
      * @throws StorageException
      */
     MessageMetaData move(Mailbox<Id> mailbox,Message<Id> original) throws MailboxException;
-    
-    
+
+    /**
+     * Store the MIME structure of a {@link Message} which was saved without one. Implementations which can not
+     * add properties to stored messages may just ignore it, the structure is computed again when needed.
+     *
+     * @param mailbox the Mailbox of the message
+     * @param message the message
+     * @param mimeStructure the structure, as returned by {@link org.apache.james.mailbox.store.MimeStructure#toByteArray()}
+     * @throws MailboxException
+     */
+    void saveMimeStructure(Mailbox<Id> mailbox, Message<Id> message, byte[] mimeStructure) throws MailboxException;
+
+
     /**
      * Return the last uid which were used for storing a Message in the {@link Mailbox}
      * 
@@ -45,6 +45,19 @@ public interface ModSeqProvider<Id extends MailboxId> {
      * @throws MailboxException
      */
     public long nextModSeq(MailboxSession session, Mailbox<Id> mailbox) throws MailboxException;
+
+    /**
+     * Reserve <code>count</code> consecutive mod-sequences at once. All of them must be higher then the last used one,
+     * the next call of {@link #nextModSeq(MailboxSession, Mailbox)} or of this method must return a higher one than the
+     * last reserved.
+     * 
+     * @param session
+     * @param mailbox
+     * @param count the number of mod-sequences to reserve, at least 1
+     * @return the first of the reserved mod-sequences
+     * @throws MailboxException
+     */
+    public long nextModSeqs(MailboxSession session, Mailbox<Id> mailbox, int count) throws MailboxException;
     
     /**
      * Return the highest mod-sequence which were used for the {@link Mailbox}
@@ -43,6 +43,19 @@ public interface UidProvider<Id extends MailboxId> {
      * @throws MailboxException
      */
     public long nextUid(MailboxSession session, Mailbox<Id> mailbox) throws MailboxException;
+
+    /**
+     * Reserve <code>count</code> consecutive uids at once, for example to copy several messages to the {@link Mailbox}.
+     * All the reserved uids must be higher then the last used one, the next call of {@link #nextUid(MailboxSession, Mailbox)}
+     * or of this method must return a higher one than the last reserved.
+     * 
+     * @param session
+     * @param mailbox
+     * @param count the number of uids to reserve, at least 1
+     * @return the first of the reserved uids
+     * @throws MailboxException
+     */
+    public long nextUids(MailboxSession session, Mailbox<Id> mailbox, int count) throws MailboxException;
     
     /**
      * Return the last uid which were used for storing a Message in the {@link Mailbox}
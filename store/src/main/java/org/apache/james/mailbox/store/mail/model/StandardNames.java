@@ -220,4 +220,21 @@ public class StandardNames {
     * @see #NAMESPACE_RFC_2183
     */
    public static final String MIME_CONTENT_DISPOSITION_PARAMETER_SPACE = MIME_CONTENT_DISPOSITION_SPACE + "/params";
+   
+   /**
+    * Namespace for data computed by the mailbox store itself.
+    */
+   public static final String NAMESPACE_MAILBOX_STORE = "http://james.apache.org/mailbox/store";
+   
+   /**
+    * Namespace for the MIME structure of a message.
+    * @see #NAMESPACE_MAILBOX_STORE
+    */
+   public static final String MIME_STRUCTURE_SPACE = NAMESPACE_MAILBOX_STORE;
+   
+   /**
+    * Local name for the MIME structure of a message. The base64 encoded structure is split over
+    * several values.
+    */
+   public static final String MIME_STRUCTURE_NAME = "mime-structure";
 }
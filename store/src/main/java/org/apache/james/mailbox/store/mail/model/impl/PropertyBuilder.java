@@ -38,8 +38,15 @@ import static org.apache.james.mailbox.store.mail.model.StandardNames.MIME_CONTE
 import static org.apache.james.mailbox.store.mail.model.StandardNames.MIME_CONTENT_TYPE_PARAMETER_SPACE;
 import static org.apache.james.mailbox.store.mail.model.StandardNames.MIME_MEDIA_TYPE_NAME;
 import static org.apache.james.mailbox.store.mail.model.StandardNames.MIME_MIME_TYPE_SPACE;
+import static org.apache.james.mailbox.store.mail.model.StandardNames.MIME_STRUCTURE_NAME;
+import static org.apache.james.mailbox.store.mail.model.StandardNames.MIME_STRUCTURE_SPACE;
 import static org.apache.james.mailbox.store.mail.model.StandardNames.MIME_SUB_TYPE_NAME;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
@@ -47,6 +54,10 @@ import java.util.Map;
 import java.util.SortedMap;
 import java.util.TreeMap;
 
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeUtility;
+
+import org.apache.commons.io.IOUtils;
 import org.apache.james.mailbox.store.mail.model.Property;
 
 /**
@@ -56,6 +67,11 @@ public class PropertyBuilder {
     
     private static final int INITIAL_CAPACITY = 32;
 
+    /** Max length of a single value of the MIME structure, stores limit the length of property values */
+    private static final int MIME_STRUCTURE_VALUE_LENGTH = 1000;
+
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
     private Long textualLineCount;
     private final List<SimpleProperty> properties;
 
@@ -452,6 +468,59 @@ public class PropertyBuilder {
         setProperty(MIME_CONTENT_LANGUAGE_SPACE, MIME_CONTENT_LANGUAGE_NAME, values);
     }
     
+    /**
+     * Gets the binary MIME structure of the message.
+     * 
+     * @return the structure, or null if none is stored
+     * @see org.apache.james.mailbox.store.MimeStructure
+     */
+    public byte[] getMimeStructure() {
+        final List<String> values = getValues(MIME_STRUCTURE_SPACE, MIME_STRUCTURE_NAME);
+        if (values.isEmpty()) {
+            return null;
+        }
+        final StringBuilder encoded = new StringBuilder();
+        for (String value: values) {
+            encoded.append(value);
+        }
+        try {
+            return IOUtils.toByteArray(MimeUtility.decode(new ByteArrayInputStream(encoded.toString().getBytes(US_ASCII)), "base64"));
+        } catch (MessagingException e) {
+            throw new IllegalStateException("Unable to decode the MIME structure", e);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to decode the MIME structure", e);
+        }
+    }
+
+    /**
+     * Sets the binary MIME structure of the message. It is stored base64 encoded, split
+     * over as many values as needed.
+     * 
+     * @param mimeStructure the structure, null to remove the property
+     * @see org.apache.james.mailbox.store.MimeStructure
+     */
+    public void setMimeStructure(byte[] mimeStructure) {
+        final List<String> values = new ArrayList<String>();
+        if (mimeStructure != null) {
+            final String encoded;
+            try {
+                final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                final OutputStream out = MimeUtility.encode(bytes, "base64");
+                out.write(mimeStructure);
+                out.close();
+                encoded = new String(bytes.toByteArray(), US_ASCII).replace("\r\n", "");
+            } catch (MessagingException e) {
+                throw new IllegalStateException("Unable to encode the MIME structure", e);
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to encode the MIME structure", e);
+            }
+            for (int i = 0; i < encoded.length(); i += MIME_STRUCTURE_VALUE_LENGTH) {
+                values.add(encoded.substring(i, Math.min(encoded.length(), i + MIME_STRUCTURE_VALUE_LENGTH)));
+            }
+        }
+        setProperty(MIME_STRUCTURE_SPACE, MIME_STRUCTURE_NAME, values);
+    }
+    
     /**
      * Builds a list of properties.
      * @return not null
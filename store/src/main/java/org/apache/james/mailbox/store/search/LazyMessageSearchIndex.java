@@ -19,6 +19,7 @@
 package org.apache.james.mailbox.store.search;
 
 import java.util.Iterator;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 
 import javax.mail.Flags;
@@ -27,6 +28,7 @@ import org.apache.james.mailbox.MailboxSession;
 import org.apache.james.mailbox.exception.MailboxException;
 import org.apache.james.mailbox.model.MessageRange;
 import org.apache.james.mailbox.model.SearchQuery;
+import org.apache.james.mailbox.model.UpdatedFlags;
 import org.apache.james.mailbox.store.mail.MessageMapper.FetchType;
 import org.apache.james.mailbox.store.mail.model.MailboxId;
 import org.apache.james.mailbox.store.mail.model.Mailbox;
@@ -105,4 +107,9 @@ public class LazyMessageSearchIndex<Id extends MailboxId> extends ListeningMessa
         index.update(session, mailbox, range, flags, modSeq);
     }
 
+    @Override
+    public void update(MailboxSession session, Mailbox<Id> mailbox, List<UpdatedFlags> updatedFlags) throws MailboxException {
+        index.update(session, mailbox, updatedFlags);
+    }
+
 }
@@ -110,14 +110,10 @@ public abstract class ListeningMessageSearchIndex<Id extends MailboxId> implemen
                     FlagsUpdatedImpl flagsUpdated = (FlagsUpdatedImpl) event;
                     final Mailbox<Id> mailbox = flagsUpdated.getMailbox();
 
-                    Iterator<UpdatedFlags> flags = flagsUpdated.getUpdatedFlags().iterator();
-                    while(flags.hasNext()) {
-                        UpdatedFlags uFlags = flags.next();
-                        try {
-                            update(session, mailbox, MessageRange.one(uFlags.getUid()), uFlags.getNewFlags(), uFlags.getModSeq());
-                        } catch (MailboxException e) {
-                            session.getLog().debug("Unable to update flags for message " + uFlags.getUid() + " in index for mailbox " + mailbox, e);
-                        }
+                    try {
+                        update(session, mailbox, flagsUpdated.getUpdatedFlags());
+                    } catch (MailboxException e) {
+                        session.getLog().debug("Unable to update flags in index for mailbox " + mailbox, e);
                     }
                 }
             } else if (event instanceof MailboxDeletionImpl) {
@@ -168,4 +164,26 @@ public abstract class ListeningMessageSearchIndex<Id extends MailboxId> implemen
      * @throws MailboxException
      */
     public abstract void update(MailboxSession session, Mailbox<Id> mailbox, MessageRange range, Flags flags, long modseq) throws MailboxException;
+
+    /**
+     * Update the index with all the {@link UpdatedFlags} of one flags change for the given {@link Mailbox}.
+     * 
+     * This implementation updates every message on its own, implementations which can batch the writes
+     * should override it.
+     * 
+     * @param session
+     * @param mailbox
+     * @param updatedFlags
+     * @throws MailboxException
+     */
+    public void update(MailboxSession session, Mailbox<Id> mailbox, List<UpdatedFlags> updatedFlags) throws MailboxException {
+        for (int i = 0; i < updatedFlags.size(); i++) {
+            UpdatedFlags uFlags = updatedFlags.get(i);
+            try {
+                update(session, mailbox, MessageRange.one(uFlags.getUid()), uFlags.getNewFlags(), uFlags.getModSeq());
+            } catch (MailboxException e) {
+                session.getLog().debug("Unable to update flags for message " + uFlags.getUid() + " in index for mailbox " + mailbox, e);
+            }
+        }
+    }
 }
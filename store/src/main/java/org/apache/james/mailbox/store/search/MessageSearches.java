@@ -24,15 +24,16 @@ import java.io.InputStream;
 import java.io.StringReader;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
-import java.util.Set;
+import java.util.PriorityQueue;
 import java.util.TimeZone;
-import java.util.TreeSet;
 
 import javax.mail.Flags;
 
@@ -44,8 +45,8 @@ import org.apache.james.mailbox.model.SearchQuery.AddressType;
 import org.apache.james.mailbox.model.SearchQuery.DateResolution;
 import org.apache.james.mailbox.model.SearchQuery.NumericRange;
 import org.apache.james.mailbox.store.ResultUtils;
+import org.apache.james.mailbox.store.mail.MessageMapper.FetchType;
 import org.apache.james.mailbox.store.mail.model.Message;
-import org.apache.james.mailbox.store.search.comparator.CombinedComparator;
 import org.apache.james.mime4j.MimeException;
 import org.apache.james.mime4j.dom.address.Address;
 import org.apache.james.mime4j.dom.address.AddressList;
@@ -64,18 +65,35 @@ import org.slf4j.Logger;
  */
 public class MessageSearches implements Iterable<Long> {
 
+    private static final int NEEDS_HEADERS = 0x01;
+    private static final int NEEDS_CONTENT = 0x02;
+
     private Iterator<Message<?>> messages;
     private SearchQuery query;
     private Logger log;
+    private int limit = -1;
+    private Message<?> headersMessage;
+    private List<Header> headers;
 
     public MessageSearches(Iterator<Message<?>> messages, SearchQuery query) {
         this(messages, query, null);
     }
 
     public MessageSearches(Iterator<Message<?>> messages, SearchQuery query, Logger log) {
+        this(messages, query, log, -1);
+    }
+
+    /**
+     * @param messages
+     * @param query
+     * @param log
+     * @param limit the maximal number of uids to return, the first ones in sort order are kept. Use -1 for no limit
+     */
+    public MessageSearches(Iterator<Message<?>> messages, SearchQuery query, Logger log, int limit) {
         this.messages = messages;
         this.query = query;
         this.log = log;
+        this.limit = limit;
     }
 
     /**
@@ -84,26 +102,174 @@ public class MessageSearches implements Iterable<Long> {
     public MessageSearches() {
     }
 
-    private Collection<Long> search() {
-        TreeSet<Message<?>> matched = new TreeSet<Message<?>>(CombinedComparator.create(query.getSorts()));
+    /**
+     * Return the uids of the matching messages in sort order. The {@link SortKey} of each match is
+     * extracted once, only the keys are kept and sorted. With a limit only the first keys in sort
+     * order are kept, in a bounded heap.
+     */
+    private List<Long> search() {
+        final List<SearchQuery.Sort> sorts = query.getSorts();
+        final Comparator<SortKey> comparator = SortKey.comparator(sorts);
+        final Collection<SortKey> matched;
+        final PriorityQueue<SortKey> top;
+        if (limit > 0) {
+            top = new PriorityQueue<SortKey>(limit + 1, Collections.reverseOrder(comparator));
+            matched = top;
+        } else {
+            top = null;
+            matched = new ArrayList<SortKey>();
+        }
         while (messages.hasNext()) {
             Message<?> m = messages.next();
             try {
                 if (isMatch(query, m, log)) {
-                    matched.add(m);
+                    matched.add(SortKey.extract(m, sorts, m == headersMessage ? headers : null));
+                    if (top != null && top.size() > limit) {
+                        // drop the last one in sort order
+                        top.poll();
+                    }
                 }
             } catch (MailboxException e) {
                 log.debug("Unable to search message " + m.getUid(), e);
+            } finally {
+                // do not hold on the message
+                headersMessage = null;
+                headers = null;
             }
         }
-        Set<Long> uids = new HashSet<Long>();
-        Iterator<Message<?>> matchedIt = matched.iterator();
-        while (matchedIt.hasNext()) {
-            uids.add(matchedIt.next().getUid());
+        final List<SortKey> sorted = new ArrayList<SortKey>(matched);
+        Collections.sort(sorted, comparator);
+        final List<Long> uids = new ArrayList<Long>(sorted.size());
+        for (SortKey key : sorted) {
+            uids.add(key.getUid());
         }
         return uids;
     }
 
+    /**
+     * Return the {@link FetchType} which is needed to evaluate and sort the given {@link SearchQuery}
+     * 
+     * @param query
+     * @return fetchType
+     */
+    public static FetchType fetchType(SearchQuery query) {
+        int needs = 0;
+        for (SearchQuery.Criterion criterion : query.getCriterias()) {
+            needs |= needs(criterion);
+        }
+        for (SearchQuery.Sort sort : query.getSorts()) {
+            switch (sort.getSortClause()) {
+            case Arrival:
+            case Size:
+            case Uid:
+                break;
+            default:
+                needs |= NEEDS_HEADERS;
+                break;
+            }
+        }
+        switch (needs) {
+        case 0:
+            return FetchType.Metadata;
+        case NEEDS_HEADERS:
+            return FetchType.Headers;
+        default:
+            return FetchType.Full;
+        }
+    }
+
+    private static int needs(SearchQuery.Criterion criterion) {
+        if (criterion instanceof SearchQuery.HeaderCriterion) {
+            return NEEDS_HEADERS;
+        } else if (criterion instanceof SearchQuery.TextCriterion) {
+            return NEEDS_CONTENT;
+        } else if (criterion instanceof SearchQuery.ConjunctionCriterion) {
+            int needs = 0;
+            for (SearchQuery.Criterion inner : ((SearchQuery.ConjunctionCriterion) criterion).getCriteria()) {
+                needs |= needs(inner);
+            }
+            return needs;
+        }
+        return 0;
+    }
+
+    /**
+     * Evaluate only the criteria of the {@link SearchQuery} which need nothing but the meta data of the
+     * {@link Message} (uid, flags, size, mod-sequence and internal date). If this returns false the message
+     * does not match, whatever its headers and content are.
+     * 
+     * @param query
+     * @param message the message, fetched with {@link FetchType#Metadata} at least
+     * @return false if the message does not match
+     * @throws MailboxException
+     */
+    public boolean mayMatch(final SearchQuery query, final Message<?> message) throws MailboxException {
+        final Collection<Long> recentMessageUids = query.getRecentMessageUids();
+        for (SearchQuery.Criterion criterion : query.getCriterias()) {
+            if (Boolean.FALSE.equals(matchesMetadata(criterion, message, recentMessageUids))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the result of the criterion, or null if it needs more than the meta data
+     */
+    private Boolean matchesMetadata(SearchQuery.Criterion criterion, Message<?> message,
+            final Collection<Long> recentMessageUids) throws MailboxException {
+        if (needs(criterion) == 0) {
+            return isMatch(criterion, message, recentMessageUids, log);
+        }
+        if (!(criterion instanceof SearchQuery.ConjunctionCriterion)) {
+            return null;
+        }
+        final SearchQuery.ConjunctionCriterion conjunction = (SearchQuery.ConjunctionCriterion) criterion;
+        boolean unknown = false;
+        for (SearchQuery.Criterion inner : conjunction.getCriteria()) {
+            final Boolean matches = matchesMetadata(inner, message, recentMessageUids);
+            if (matches == null) {
+                unknown = true;
+            } else {
+                switch (conjunction.getType()) {
+                case AND:
+                    if (!matches) {
+                        return false;
+                    }
+                    break;
+                case OR:
+                    if (matches) {
+                        return true;
+                    }
+                    break;
+                case NOR:
+                    if (matches) {
+                        return false;
+                    }
+                    break;
+                default:
+                    return null;
+                }
+            }
+        }
+        if (unknown) {
+            return null;
+        }
+        // all inner criteria are known and none decided the conjunction
+        return conjunction.getType() != SearchQuery.Conjunction.OR;
+    }
+
+    /**
+     * Return the headers of the message. They are parsed only once for all criteria of a message.
+     */
+    private List<Header> headers(Message<?> message) throws IOException {
+        if (message != headersMessage) {
+            headers = ResultUtils.createHeaders(message);
+            headersMessage = message;
+        }
+        return headers;
+    }
+
     /**
      * Does the row match the given criteria?
      * 
@@ -362,7 +528,7 @@ public class MessageSearches implements Iterable<Long> {
     private boolean matchesAddress(final SearchQuery.AddressOperator operator, final String headerName,
             final Message<?> message, Logger log) throws MailboxException, IOException {
         final String text = operator.getAddress().toUpperCase(Locale.ENGLISH);
-        final List<Header> headers = ResultUtils.createHeaders(message);
+        final List<Header> headers = headers(message);
         for (Header header : headers) {
             final String name = header.getName();
             if (headerName.equalsIgnoreCase(name)) {
@@ -395,7 +561,7 @@ public class MessageSearches implements Iterable<Long> {
 
     private boolean exists(String headerName, Message<?> message) throws MailboxException, IOException {
         boolean result = false;
-        final List<Header> headers = ResultUtils.createHeaders(message);
+        final List<Header> headers = headers(message);
 
         for (Header header : headers) {
             final String name = header.getName();
@@ -411,7 +577,7 @@ public class MessageSearches implements Iterable<Long> {
             final Message<?> message) throws MailboxException, IOException {
         final String text = operator.getValue().toUpperCase();
         boolean result = false;
-        final List<Header> headers = ResultUtils.createHeaders(message);
+        final List<Header> headers = headers(message);
         for (Header header : headers) {
             final String name = header.getName();
             if (headerName.equalsIgnoreCase(name)) {
@@ -460,7 +626,7 @@ public class MessageSearches implements Iterable<Long> {
     }
 
     private String headerValue(final String headerName, final Message<?> message) throws MailboxException, IOException {
-        final List<Header> headers = ResultUtils.createHeaders(message);
+        final List<Header> headers = headers(message);
         String value = null;
         for (Header header : headers) {
             final String name = header.getName();
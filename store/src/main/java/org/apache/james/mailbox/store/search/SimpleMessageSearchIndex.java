@@ -18,15 +18,19 @@
  ****************************************************************/
 package org.apache.james.mailbox.store.search;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
-import java.util.SortedSet;
-import java.util.TreeSet;
+import java.util.NoSuchElementException;
 
 import org.apache.james.mailbox.MailboxSession;
 import org.apache.james.mailbox.exception.MailboxException;
 import org.apache.james.mailbox.model.MessageRange;
 import org.apache.james.mailbox.model.SearchQuery;
+import org.apache.james.mailbox.model.SearchQuery.Conjunction;
 import org.apache.james.mailbox.model.SearchQuery.ConjunctionCriterion;
 import org.apache.james.mailbox.model.SearchQuery.Criterion;
 import org.apache.james.mailbox.model.SearchQuery.NumericRange;
@@ -37,75 +41,298 @@ import org.apache.james.mailbox.store.mail.MessageMapperFactory;
 import org.apache.james.mailbox.store.mail.model.MailboxId;
 import org.apache.james.mailbox.store.mail.model.Mailbox;
 import org.apache.james.mailbox.store.mail.model.Message;
+import org.slf4j.Logger;
 
 /**
  * {@link MessageSearchIndex} which just fetch {@link Message}'s from the {@link MessageMapper} and use {@link MessageSearcher}
  * to match them against the {@link SearchQuery}.
  * 
- * This works with every implementation but is SLOW.
+ * This works with every implementation but is SLOW. To keep the work and the memory low the messages are streamed
+ * in pages and only fetched with what the query needs, see {@link MessageSearches#fetchType(SearchQuery)}. If the
+ * query needs the headers or the content, the criteria on the meta data are evaluated first and only the remaining
+ * messages are fetched again, in batches.
  * 
  *
  * @param <Id>
  */
 public class SimpleMessageSearchIndex<Id extends MailboxId> implements MessageSearchIndex<Id> {
 
+    /**
+     * Number of messages fetched at once when scanning the meta data
+     */
+    private static final int PAGE_SIZE = 1000;
+
+    /**
+     * Maximal number of messages fetched at once with their headers or content
+     */
+    private static final int BATCH_SIZE = 100;
+
     private final MessageMapperFactory<Id> factory;
     public SimpleMessageSearchIndex(MessageMapperFactory<Id> factory) {
         this.factory = factory;
     }
     
     /**
-     * Walks down the query tree's conjunctions to find a UidCriterion
+     * Walks down the query tree's AND conjunctions to find a UidCriterion
      * @param crits - list of Criterion to search from
      * @return
      *      first UidCriterion found
      *      null - if not found
      */
-  	private static UidCriterion findConjugatedUidCriterion(List<Criterion> crits) {
-		for (Criterion crit : crits) {
-			if (crit instanceof UidCriterion) {
-				return (UidCriterion) crit;
-			} else if (crit instanceof ConjunctionCriterion) {
-				return findConjugatedUidCriterion(((ConjunctionCriterion) crit)
-						.getCriteria());
-			}
-		}
-		return null;
-	}
+    private static UidCriterion findConjugatedUidCriterion(List<Criterion> crits) {
+        for (Criterion crit : crits) {
+            if (crit instanceof UidCriterion) {
+                return (UidCriterion) crit;
+            } else if (crit instanceof ConjunctionCriterion && ((ConjunctionCriterion) crit).getType() == Conjunction.AND) {
+                UidCriterion uidCrit = findConjugatedUidCriterion(((ConjunctionCriterion) crit).getCriteria());
+                if (uidCrit != null) {
+                    return uidCrit;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Return the ranges of messages which need to be searched, ordered and without overlaps
+     */
+    private static List<MessageRange> findRanges(SearchQuery query) {
+        UidCriterion uidCrit = findConjugatedUidCriterion(query.getCriterias());
+        if (uidCrit == null) {
+            // we have to search all messages
+            return Collections.singletonList(MessageRange.all());
+        }
+        // if there is a conjugated uid range criterion in the query tree we can optimize by
+        // only fetching this uid range
+        NumericRange[] numericRanges = uidCrit.getOperator().getRange().clone();
+        Arrays.sort(numericRanges, new Comparator<NumericRange>() {
+            public int compare(NumericRange o1, NumericRange o2) {
+                return o1.getLowValue() < o2.getLowValue() ? -1 : (o1.getLowValue() == o2.getLowValue() ? 0 : 1);
+            }
+        });
+        List<MessageRange> ranges = new ArrayList<MessageRange>();
+        if (numericRanges.length == 0) {
+            return ranges;
+        }
+        // merge overlapping ranges so that no message is searched twice
+        long from = numericRanges[0].getLowValue();
+        long to = numericRanges[0].getHighValue();
+        for (int i = 1; i < numericRanges.length; i++) {
+            NumericRange r = numericRanges[i];
+            if (r.getLowValue() - 1 <= to) {
+                to = Math.max(to, r.getHighValue());
+            } else {
+                ranges.add(MessageRange.range(from, to));
+                from = r.getLowValue();
+                to = r.getHighValue();
+            }
+        }
+        ranges.add(MessageRange.range(from, to));
+        return ranges;
+    }
     
     @Override
     public Iterator<Long> search(MailboxSession session, Mailbox<Id> mailbox, SearchQuery query) throws MailboxException {
+        return search(session, mailbox, query, -1);
+    }
+
+    /**
+     * Return the uids of the messages which match the {@link SearchQuery}, in the order of its sorts
+     * 
+     * @param session
+     * @param mailbox
+     * @param query
+     * @param limit the maximal number of uids to return, for example one page of a SORT result. Use -1 for no limit
+     * @return uids
+     * @throws MailboxException
+     */
+    public Iterator<Long> search(MailboxSession session, Mailbox<Id> mailbox, SearchQuery query, int limit) throws MailboxException {
         MessageMapper<Id> mapper = factory.getMessageMapper(session);
+        Logger log = session == null ? null : session.getLog();
 
-        final SortedSet<Message<?>> hitSet = new TreeSet<Message<?>>();
+        List<MessageRange> ranges = findRanges(query);
+        FetchType fetchType = MessageSearches.fetchType(query);
+        PagingIterator<Id> messages;
+        if (fetchType == FetchType.Metadata) {
+            messages = new PagingIterator<Id>(mapper, mailbox, ranges.iterator(), FetchType.Metadata, PAGE_SIZE);
+        } else {
+            Iterator<MessageRange> batches = findCandidates(mapper, mailbox, ranges, query, log);
+            messages = new PagingIterator<Id>(mapper, mailbox, batches, fetchType, -1);
+        }
 
-        UidCriterion uidCrit = findConjugatedUidCriterion(query.getCriterias());
-        if (uidCrit != null) {
-            // if there is a conjugated uid range criterion in the query tree we can optimize by
-            // only fetching this uid range
-            NumericRange[] ranges = uidCrit.getOperator().getRange();
-            for (int i = 0; i < ranges.length; i++) {
-                NumericRange r = ranges[i];
-                Iterator<Message<Id>> it = mapper.findInMailbox(mailbox, MessageRange.range(r.getLowValue(), r.getHighValue()), FetchType.Metadata, -1);
-                while(it.hasNext()) {
-                	hitSet.add(it.next());
+        // MessageSearches does the filtering for us
+        Iterator<Long> uids = new MessageSearches(messages, query, log, limit).iterator();
+        if (messages.getException() != null) {
+            throw messages.getException();
+        }
+        return uids;
+    }
+
+    /**
+     * Scans the meta data of the messages in the given ranges and evaluates the criteria which need nothing else.
+     * 
+     * @return the runs of consecutive messages which may match, as ranges of at most {@link #BATCH_SIZE} messages
+     */
+    private Iterator<MessageRange> findCandidates(MessageMapper<Id> mapper, Mailbox<Id> mailbox, List<MessageRange> ranges,
+            SearchQuery query, Logger log) throws MailboxException {
+        MessageSearches searches = new MessageSearches(Collections.<Message<?>>emptyList().iterator(), query, log);
+        PagingIterator<Id> messages = new PagingIterator<Id>(mapper, mailbox, ranges.iterator(), FetchType.Metadata, PAGE_SIZE);
+        Runs candidates = new Runs();
+        while (messages.hasNext()) {
+            Message<?> message = messages.next();
+            boolean mayMatch;
+            try {
+                mayMatch = searches.mayMatch(query, message);
+            } catch (MailboxException e) {
+                // the message gets evaluated again with its content
+                mayMatch = true;
+            }
+            if (mayMatch) {
+                candidates.add(message.getUid());
+            } else {
+                candidates.close();
+            }
+        }
+        if (messages.getException() != null) {
+            throw messages.getException();
+        }
+        return candidates.iterator();
+    }
+
+    /**
+     * Runs of consecutive messages, each stored as its first and last uid
+     */
+    private static final class Runs {
+        private long[] bounds = new long[16];
+        private int size = 0;
+        private int count = 0;
+        private boolean open = false;
+
+        /**
+         * Add the uid to the current run, or start a new one if there is none or it is full
+         */
+        public void add(long uid) {
+            if (open && count < BATCH_SIZE) {
+                bounds[size - 1] = uid;
+                count++;
+            } else {
+                if (size == bounds.length) {
+                    bounds = Arrays.copyOf(bounds, bounds.length * 2);
                 }
+                bounds[size++] = uid;
+                bounds[size++] = uid;
+                count = 1;
+                open = true;
             }
-        } else {
-        	// we have to fetch all messages
-            Iterator<Message<Id>> messages = mapper.findInMailbox(mailbox, MessageRange.all(), FetchType.Full, -1);
-            while(messages.hasNext()) {
-            	Message<Id> m = messages.next();
-            	hitSet.add(m);
+        }
+
+        /**
+         * Close the current run, as a message which does not match follows
+         */
+        public void close() {
+            open = false;
+        }
+
+        public Iterator<MessageRange> iterator() {
+            return new Iterator<MessageRange>() {
+                private int position = 0;
+
+                public boolean hasNext() {
+                    return position < size;
+                }
+
+                public MessageRange next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    MessageRange range = MessageRange.range(bounds[position], bounds[position + 1]);
+                    position += 2;
+                    return range;
+                }
+
+                public void remove() {
+                    throw new UnsupportedOperationException("Read only");
+                }
+            };
+        }
+    }
+
+    /**
+     * Iterates over the messages of the given ranges, fetching each range with the given {@link FetchType} in pages.
+     * A {@link MailboxException} ends the iteration, it can be get with {@link #getException()}.
+     */
+    private static final class PagingIterator<Id extends MailboxId> implements Iterator<Message<?>> {
+        private final MessageMapper<Id> mapper;
+        private final Mailbox<Id> mailbox;
+        private final Iterator<MessageRange> ranges;
+        private final FetchType fetchType;
+        private final int pageSize;
+
+        private MessageRange range;
+        private Iterator<Message<Id>> page;
+        private int pageCount;
+        private long lastUid;
+        private MailboxException exception;
+
+        /**
+         * @param pageSize the number of messages to fetch at once, -1 to fetch each range at once
+         */
+        public PagingIterator(MessageMapper<Id> mapper, Mailbox<Id> mailbox, Iterator<MessageRange> ranges, FetchType fetchType, int pageSize) {
+            this.mapper = mapper;
+            this.mailbox = mailbox;
+            this.ranges = ranges;
+            this.fetchType = fetchType;
+            this.pageSize = pageSize;
+        }
+
+        public boolean hasNext() {
+            while (exception == null && (page == null || !page.hasNext())) {
+                MessageRange next = nextPage();
+                if (next == null) {
+                    return false;
+                }
+                try {
+                    page = mapper.findInMailbox(mailbox, next, fetchType, pageSize);
+                    pageCount = 0;
+                } catch (MailboxException e) {
+                    exception = e;
+                }
             }
+            return exception == null;
+        }
+
+        /**
+         * Return the range of the next page, or null if all ranges were read
+         */
+        private MessageRange nextPage() {
+            // the mapper may ignore the limit, so a smaller page is the last one of its range
+            if (range != null && page != null && pageSize > 0 && pageCount >= pageSize && lastUid < range.getUidTo()) {
+                return MessageRange.range(lastUid + 1, range.getUidTo());
+            }
+            if (ranges.hasNext()) {
+                range = ranges.next();
+                return range;
+            }
+            return null;
+        }
+
+        public Message<?> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Message<Id> message = page.next();
+            pageCount++;
+            lastUid = message.getUid();
+            return message;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException("Read only");
+        }
+
+        public MailboxException getException() {
+            return exception;
         }
-        
-        // MessageSearches does the filtering for us
-        if (session == null) {
-			return new MessageSearches(hitSet.iterator(), query).iterator();
-		} else {
-			return new MessageSearches(hitSet.iterator(), query, session.getLog()).iterator();
-		}
     }
 
 }
@@ -0,0 +1,223 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mailbox.store.search;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+import org.apache.james.mailbox.exception.MailboxException;
+import org.apache.james.mailbox.model.MessageResult.Header;
+import org.apache.james.mailbox.model.SearchQuery.Sort;
+import org.apache.james.mailbox.store.ResultUtils;
+import org.apache.james.mailbox.store.mail.model.Message;
+import org.apache.james.mime4j.field.datetime.parser.DateTimeParser;
+import org.apache.james.mime4j.field.datetime.parser.ParseException;
+
+/**
+ * The values a {@link Message} gets sorted by for a list of {@link Sort}s. They are extracted
+ * once per message, so that sorting compares plain values and the headers are parsed only once.
+ * 
+ * Numeric values (uid, dates and size) are kept as <code>long</code>, text values are folded so that
+ * {@link String#compareTo(String)} gives the same order as {@link String#compareToIgnoreCase(String)}.
+ */
+public final class SortKey {
+
+    private final long uid;
+    private final long[] numbers;
+    private final String[] texts;
+
+    private SortKey(long uid, long[] numbers, String[] texts) {
+        this.uid = uid;
+        this.numbers = numbers;
+        this.texts = texts;
+    }
+
+    /**
+     * Return the uid of the message
+     */
+    public long getUid() {
+        return uid;
+    }
+
+    /**
+     * Extract the values of the given {@link Sort}s from the {@link Message}
+     * 
+     * @param message
+     * @param sorts
+     * @return key
+     */
+    public static SortKey extract(Message<?> message, List<Sort> sorts) {
+        return extract(message, sorts, null);
+    }
+
+    /**
+     * Extract the values of the given {@link Sort}s from the {@link Message}
+     * 
+     * @param message
+     * @param sorts
+     * @param parsedHeaders the headers of the message if they were parsed already, or null
+     * @return key
+     */
+    static SortKey extract(Message<?> message, List<Sort> sorts, List<Header> parsedHeaders) {
+        final long[] numbers = new long[sorts.size()];
+        final String[] texts = new String[sorts.size()];
+        List<Header> headers = parsedHeaders;
+        for (int i = 0; i < sorts.size(); i++) {
+            switch (sorts.get(i).getSortClause()) {
+            case Arrival:
+                numbers[i] = message.getInternalDate().getTime();
+                break;
+            case Size:
+                numbers[i] = message.getFullContentOctets();
+                break;
+            case Uid:
+                numbers[i] = message.getUid();
+                break;
+            default:
+                if (headers == null) {
+                    headers = headers(message);
+                }
+                extract(sorts.get(i), message, headers, i, numbers, texts);
+                break;
+            }
+        }
+        return new SortKey(message.getUid(), numbers, texts);
+    }
+
+    private static void extract(Sort sort, Message<?> message, List<Header> headers, int i, long[] numbers, String[] texts) {
+        switch (sort.getSortClause()) {
+        case SentDate:
+            numbers[i] = sentDate(message, headers);
+            break;
+        case BaseSubject:
+            texts[i] = fold(SearchUtil.getBaseSubject(headerValue("subject", headers)));
+            break;
+        case MailboxFrom:
+            texts[i] = fold(SearchUtil.getMailboxAddress(headerValue("from", headers)));
+            break;
+        case MailboxTo:
+            texts[i] = fold(SearchUtil.getMailboxAddress(headerValue("to", headers)));
+            break;
+        case MailboxCc:
+            texts[i] = fold(SearchUtil.getMailboxAddress(headerValue("cc", headers)));
+            break;
+        case DisplayFrom:
+            texts[i] = fold(SearchUtil.getDisplayAddress(headerValue("from", headers)));
+            break;
+        case DisplayTo:
+            texts[i] = fold(SearchUtil.getDisplayAddress(headerValue("to", headers)));
+            break;
+        default:
+            break;
+        }
+    }
+
+    /**
+     * Return a {@link Comparator} which orders {@link SortKey}s extracted with the given {@link Sort}s.
+     * Keys which are equal for all {@link Sort}s are ordered by uid.
+     * 
+     * @param sorts
+     * @return comparator
+     */
+    public static Comparator<SortKey> comparator(List<Sort> sorts) {
+        final boolean[] reverse = new boolean[sorts.size()];
+        for (int i = 0; i < reverse.length; i++) {
+            reverse[i] = sorts.get(i).isReverse();
+        }
+        return new KeyComparator(reverse);
+    }
+
+    private static long sentDate(Message<?> message, List<Header> headers) {
+        final StringReader reader = new StringReader(headerValue("date", headers));
+        try {
+            return new DateTimeParser(reader).parseAll().getDate().getTime();
+        } catch (ParseException e) {
+            // if we can not parse the date header we should use the internaldate as fallback
+            return message.getInternalDate().getTime();
+        }
+    }
+
+    private static List<Header> headers(Message<?> message) {
+        try {
+            return ResultUtils.createHeaders(message);
+        } catch (IOException e) {
+            // sort as if the message had no headers
+            return null;
+        }
+    }
+
+    private static String headerValue(String headerName, List<Header> headers) {
+        if (headers != null) {
+            for (Header header : headers) {
+                try {
+                    if (headerName.equalsIgnoreCase(header.getName())) {
+                        return header.getValue().toUpperCase(Locale.ENGLISH);
+                    }
+                } catch (MailboxException e) {
+                    // skip the header line
+                }
+            }
+        }
+        return "";
+    }
+
+    /**
+     * Fold the characters the same way {@link String#compareToIgnoreCase(String)} does
+     */
+    private static String fold(String value) {
+        final char[] chars = value.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = Character.toLowerCase(Character.toUpperCase(chars[i]));
+        }
+        return new String(chars);
+    }
+
+    private static final class KeyComparator implements Comparator<SortKey> {
+
+        private final boolean[] reverse;
+
+        private KeyComparator(boolean[] reverse) {
+            this.reverse = reverse;
+        }
+
+        @Override
+        public int compare(SortKey o1, SortKey o2) {
+            for (int i = 0; i < reverse.length; i++) {
+                int result;
+                if (o1.texts[i] != null) {
+                    result = o1.texts[i].compareTo(o2.texts[i]);
+                } else {
+                    result = compare(o1.numbers[i], o2.numbers[i]);
+                }
+                if (result != 0) {
+                    return reverse[i] ? -result : result;
+                }
+            }
+            return compare(o1.uid, o2.uid);
+        }
+
+        private static int compare(long l1, long l2) {
+            return l1 < l2 ? -1 : (l1 == l2 ? 0 : 1);
+        }
+    }
+}
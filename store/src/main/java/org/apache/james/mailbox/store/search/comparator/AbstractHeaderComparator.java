@@ -29,6 +29,10 @@ import org.apache.james.mailbox.store.ResultUtils;
 import org.apache.james.mailbox.store.mail.model.Message;
 
 
+/**
+ * @deprecated sort with {@link org.apache.james.mailbox.store.search.SortKey#comparator(java.util.List)}, which extracts the sorted values once per message
+ */
+@Deprecated
 public abstract class AbstractHeaderComparator implements Comparator<Message<?>>{
 
     public final static String FROM ="from";
@@ -28,8 +28,10 @@ import org.apache.james.mailbox.store.mail.model.Message;
 /**
  * {@link Comparator} which takes a Array of other {@link Comparator}'s and use them to compare two {@link Message} instances till one of them
  * return <> 0
- *
+ * 
+ * @deprecated sort with {@link org.apache.james.mailbox.store.search.SortKey#comparator(java.util.List)}, which extracts the sorted values once per message
  */
+@Deprecated
 public class CombinedComparator implements Comparator<Message<?>>{
 
     private final Comparator<Message<?>>[] comparators;
@@ -83,6 +85,7 @@ public class CombinedComparator implements Comparator<Message<?>>{
                 break;
             case SentDate: 
                 comparator = SentDateComparator.sentDate(reverse);
+                break;
             case DisplayFrom: 
                 comparator = HeaderDisplayComparator.from(reverse);
                 break;
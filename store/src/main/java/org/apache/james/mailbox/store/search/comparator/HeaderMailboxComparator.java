@@ -23,6 +23,10 @@ import java.util.Comparator;
 import org.apache.james.mailbox.store.mail.model.Message;
 import org.apache.james.mailbox.store.search.SearchUtil;
 
+/**
+ * @deprecated sort with {@link org.apache.james.mailbox.store.search.SortKey#comparator(java.util.List)}, which extracts the sorted values once per message
+ */
+@Deprecated
 public class HeaderMailboxComparator extends AbstractHeaderComparator{
 
     private final String headerName;
@@ -24,8 +24,10 @@ import org.apache.james.mailbox.store.mail.model.Message;
 
 /**
  * {@link Comparator} which wraps an other {@link Comparator} and reverse it
- *
+ * 
+ * @deprecated sort with {@link org.apache.james.mailbox.store.search.SortKey#comparator(java.util.List)}, which extracts the sorted values once per message
  */
+@Deprecated
 public class ReverseComparator implements Comparator<Message<?>>{
 
     private final Comparator<Message<?>> comparator;
@@ -29,8 +29,10 @@ import org.apache.james.mime4j.field.datetime.parser.ParseException;
 
 /**
  * {@link Comparator} which works like stated in RFC5256 2.2 Sent Date
- *
+ * 
+ * @deprecated sort with {@link org.apache.james.mailbox.store.search.SortKey#comparator(java.util.List)}, which extracts the sorted values once per message
  */
+@Deprecated
 public class SentDateComparator extends AbstractHeaderComparator {
 
 
@@ -24,8 +24,10 @@ import org.apache.james.mailbox.store.mail.model.Message;
 
 /**
  * {@link Comparator} which compares {@link Message}'s with their {@link Message#getFullContentOctets()} value
- *
+ * 
+ * @deprecated sort with {@link org.apache.james.mailbox.store.search.SortKey#comparator(java.util.List)}, which extracts the sorted values once per message
  */
+@Deprecated
 public class SizeComparator implements Comparator<Message<?>>{
 
 
@@ -0,0 +1,96 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailbox.store.streaming;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+
+import org.apache.james.mailbox.exception.MailboxException;
+import org.apache.james.mailbox.model.MessageResult;
+import org.apache.james.mailbox.model.TransferableContent;
+
+/**
+ * {@link TransferableContent} which holds the headers of a part and reads its body from
+ * a {@link RangeContent}
+ */
+public class FullRangeContent implements TransferableContent {
+
+    private final List<MessageResult.Header> headers;
+    private final RangeContent body;
+
+    public FullRangeContent(final List<MessageResult.Header> headers, final RangeContent body) {
+        this.headers = headers;
+        this.body = body;
+    }
+
+    /**
+     * @see org.apache.james.mailbox.model.Content#size()
+     */
+    public long size() throws MailboxException {
+        long result = body.size();
+        result += 2;
+        for (final MessageResult.Header header : headers) {
+            if (header != null) {
+                result += header.size();
+                result += 2;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @see org.apache.james.mailbox.model.Content#getInputStream()
+     */
+    public InputStream getInputStream() throws IOException {
+        return new SequenceInputStream(new ByteArrayInputStream(headerBytes()), body.getInputStream());
+    }
+
+    /**
+     * @see org.apache.james.mailbox.model.TransferableContent#transferTo(java.nio.channels.WritableByteChannel)
+     */
+    public long transferTo(WritableByteChannel channel) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.wrap(headerBytes());
+        long written = 0;
+        while (buffer.hasRemaining()) {
+            written += channel.write(buffer);
+        }
+        return written + body.transferTo(channel);
+    }
+
+    private byte[] headerBytes() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (final MessageResult.Header header : headers) {
+            if (header != null) {
+                try {
+                    out.write((header.getName() + ": " + header.getValue() + "\r\n").getBytes("US-ASCII"));
+                } catch (MailboxException e) {
+                    throw new IOException("Unable to read headers", e);
+                }
+            }
+        }
+        out.write("\r\n".getBytes("US-ASCII"));
+        return out.toByteArray();
+    }
+}
@@ -20,15 +20,17 @@ package org.apache.james.mailbox.store.streaming;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.WritableByteChannel;
 
 import org.apache.james.mailbox.model.Content;
+import org.apache.james.mailbox.model.TransferableContent;
 import org.apache.james.mailbox.store.mail.model.Message;
 
 /**
  * {@link Content} which is stored in a {@link InputStream}
  *
  */
-public final class InputStreamContent implements Content{
+public final class InputStreamContent implements TransferableContent{
     private Message<?> m;
     private Type type;
 
@@ -69,4 +71,19 @@ public final class InputStreamContent implements Content{
        
     }
 
+    /**
+     * Transfer the content as window of the full content of the message, see {@link RangeContent}
+     * 
+     * @see org.apache.james.mailbox.model.TransferableContent#transferTo(java.nio.channels.WritableByteChannel)
+     */
+    public long transferTo(WritableByteChannel channel) throws IOException {
+        final long fullOctets = m.getFullContentOctets();
+        switch (type) {
+        case Full:
+            return new RangeContent(m, 0, fullOctets).transferTo(channel);
+        default:
+            return new RangeContent(m, fullOctets - m.getBodyOctets(), fullOctets).transferTo(channel);
+        }
+    }
+
 }
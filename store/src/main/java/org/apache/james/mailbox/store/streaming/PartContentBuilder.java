@@ -48,6 +48,9 @@ public class PartContentBuilder {
 
     private boolean topLevel = true;
 
+    /** position of the current part if it was reached at the start of a body part, or 0 */
+    private int current = 0;
+
     public PartContentBuilder() {
         MimeConfig config = MimeConfig.custom().setMaxLineLen(-1).setMaxHeaderLen(-1).build();
 
@@ -63,6 +66,7 @@ public class PartContentBuilder {
         parser.setRecursionMode(RecursionMode.M_RECURSE);
         parser.parse(in);
         topLevel = true;
+        current = 0;
     }
 
     private void skipToStartOfInner(int position) throws IOException, MimeException {
@@ -88,39 +92,68 @@ public class PartContentBuilder {
             } else {
                 skipToStartOfInner(position);
             }
-            for (int count = 0; count < position;) {
-                final EntityState state = parser.next();
-                switch (state) {
-                    case T_BODY:
-                        if (position == 1) {
-                            count++;
-                        }
-                        break;
-                    case T_START_BODYPART:
+            advance(0, position);
+        } catch (IllegalStateException e) {
+            throw new PartNotFoundException(position, e);
+        }
+    }
+
+    /**
+     * Moves forward to a following part of the multipart which holds the current part, so that
+     * several parts of it are read with one parse. The current part may only have been read with
+     * {@link #getMimeHeaders()} and {@link #mimeBodyContent()}.
+     *
+     * @param position position of the following part
+     * @return false if the builder can not move there, the content has to be parsed again then
+     */
+    public boolean toSibling(int position) throws IOException, MimeException {
+        if (empty || current == 0 || position <= current) {
+            return false;
+        }
+        parser.setRecursionMode(RecursionMode.M_RECURSE);
+        try {
+            advance(current, position);
+        } catch (IllegalStateException e) {
+            throw new PartNotFoundException(position, e);
+        }
+        return true;
+    }
+
+    private void advance(int count, int position) throws IOException, MimeException {
+        current = 0;
+        while (count < position) {
+            final EntityState state = parser.next();
+            switch (state) {
+                case T_BODY:
+                    if (position == 1) {
                         count++;
-                        break;
-                    case T_START_MULTIPART:
-                        if (count > 0 && count < position) {
-                            ignoreInnerMessage();
-                        }
-                        break;
-                    case T_END_OF_STREAM:
-                        throw new PartNotFoundException(position);
-                case T_END_BODYPART:
-                case T_END_HEADER:
-                case T_END_MESSAGE:
-                case T_END_MULTIPART:
-                case T_EPILOGUE:
-                case T_FIELD:
-                case T_PREAMBLE:
-                case T_RAW_ENTITY:
-                case T_START_HEADER:
-                case T_START_MESSAGE:
+                    }
                     break;
-                }
+                case T_START_BODYPART:
+                    count++;
+                    if (count == position) {
+                        current = position;
+                    }
+                    break;
+                case T_START_MULTIPART:
+                    if (count > 0 && count < position) {
+                        ignoreInnerMessage();
+                    }
+                    break;
+                case T_END_OF_STREAM:
+                    throw new PartNotFoundException(position);
+            case T_END_BODYPART:
+            case T_END_HEADER:
+            case T_END_MESSAGE:
+            case T_END_MULTIPART:
+            case T_EPILOGUE:
+            case T_FIELD:
+            case T_PREAMBLE:
+            case T_RAW_ENTITY:
+            case T_START_HEADER:
+            case T_START_MESSAGE:
+                break;
             }
-        } catch (IllegalStateException e) {
-            throw new PartNotFoundException(position, e);
         }
     }
 
@@ -202,7 +235,11 @@ public class PartContentBuilder {
         return new ByteContent(content);
     }
 
-    private byte[] mimeBodyContent() throws IOException, MimeException {
+    /**
+     * Return the MIME body of the current part. When it is read after {@link #getMimeHeaders()}
+     * the body of the same part gets returned.
+     */
+    public byte[] mimeBodyContent() throws IOException, MimeException {
         final byte[] content;
         if (empty) {
             content = EMPTY;
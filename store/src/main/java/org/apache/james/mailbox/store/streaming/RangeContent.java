@@ -0,0 +1,166 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailbox.store.streaming;
+
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+import javax.mail.internet.SharedInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.apache.james.mailbox.model.TransferableContent;
+import org.apache.james.mailbox.store.mail.model.Message;
+
+/**
+ * {@link TransferableContent} which is a window of the full content of a {@link Message}. Nothing gets
+ * read before the content is requested, and the window is then read from the stored content directly:
+ * 
+ * <ul>
+ * <li>a {@link SharedInputStream} returns a sub stream of the window</li>
+ * <li>a {@link FileInputStream} is positioned at the start of the window, and
+ * {@link #transferTo(WritableByteChannel)} uses {@link FileChannel#transferTo(long, long, WritableByteChannel)}</li>
+ * <li>any other {@link InputStream} is skipped to the start of the window</li>
+ * </ul>
+ */
+public class RangeContent implements TransferableContent {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final Message<?> message;
+    private final long start;
+    private final long end;
+
+    /**
+     * @param message the message
+     * @param start offset of the first octet of the window in the full content
+     * @param end offset after the last octet of the window in the full content
+     */
+    public RangeContent(Message<?> message, long start, long end) {
+        this.message = message;
+        this.start = start;
+        this.end = end;
+    }
+
+    /**
+     * @see org.apache.james.mailbox.model.Content#size()
+     */
+    public long size() {
+        return end - start;
+    }
+
+    /**
+     * @see org.apache.james.mailbox.model.Content#getInputStream()
+     */
+    public InputStream getInputStream() throws IOException {
+        return range(message.getFullContent());
+    }
+
+    /**
+     * @see org.apache.james.mailbox.model.TransferableContent#transferTo(java.nio.channels.WritableByteChannel)
+     */
+    public long transferTo(WritableByteChannel channel) throws IOException {
+        final InputStream in = message.getFullContent();
+        if (in instanceof FileInputStream) {
+            try {
+                final FileChannel file = ((FileInputStream) in).getChannel();
+                long position = start;
+                while (position < end) {
+                    final long transferred = file.transferTo(position, end - position, channel);
+                    if (transferred <= 0 && position >= file.size()) {
+                        throw new IOException("Unexpected end of content at offset " + position);
+                    }
+                    position += transferred;
+                }
+                return position - start;
+            } finally {
+                in.close();
+            }
+        }
+
+        final ReadableByteChannel source = Channels.newChannel(range(in));
+        try {
+            final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            long written = 0;
+            while (source.read(buffer) != -1) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    written += channel.write(buffer);
+                }
+                buffer.clear();
+            }
+            return written;
+        } finally {
+            source.close();
+        }
+    }
+
+    /**
+     * Return the window of the given full content. The returned {@link InputStream} takes over the given one.
+     */
+    private InputStream range(InputStream in) throws IOException {
+        boolean success = false;
+        try {
+            final InputStream range;
+            if (in instanceof SharedInputStream) {
+                range = ((SharedInputStream) in).newStream(start, end);
+                in.close();
+            } else {
+                if (in instanceof FileInputStream) {
+                    ((FileInputStream) in).getChannel().position(start);
+                } else {
+                    skipFully(in, start);
+                }
+                range = new BoundedInputStream(in, end - start);
+            }
+            success = true;
+            return range;
+        } finally {
+            if (!success) {
+                IOUtils.closeQuietly(in);
+            }
+        }
+    }
+
+    /**
+     * Skip the given number of octets. {@link InputStream#skip(long)} is used as long as it makes progress, so
+     * the skipped octets are not read from streams which can seek. Only if it skips nothing a single octet is
+     * read, to tell the end of the stream from a stream which can not skip right now.
+     */
+    static void skipFully(InputStream in, long count) throws IOException {
+        long remaining = count;
+        while (remaining > 0) {
+            long skipped = in.skip(remaining);
+            if (skipped <= 0) {
+                if (in.read() == -1) {
+                    throw new EOFException("Unexpected end of content, " + remaining + " octets left to skip");
+                }
+                skipped = 1;
+            }
+            remaining -= skipped;
+        }
+    }
+}
@@ -0,0 +1,211 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mailbox.store;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.james.mailbox.model.MessageResult.Header;
+import org.apache.james.mailbox.model.MimeDescriptor;
+import org.apache.james.mailbox.store.mail.model.impl.PropertyBuilder;
+import org.apache.james.mailbox.store.streaming.PartContentBuilder;
+import org.junit.Test;
+
+public class MimeStructureTest {
+
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    private static final String INNER_MAIL = "From: John Smith <john@example.org>\r\n"
+            + "Subject: Custard!\r\n"
+            + "Content-Type: multipart/alternative;\r\n boundary=1729\r\n\r\n"
+            + "This is the preamble\r\n"
+            + "--1729\r\n"
+            + "Content-Type: text/plain;charset=us-ascii\r\n\r\n"
+            + "Custard!\r\nCustard!\r\n"
+            + "\r\n--1729\r\n"
+            + "Content-Type: text/html;charset=us-ascii\r\n"
+            + "Content-Transfer-Encoding: quoted-printable\r\n\r\n"
+            + "<p>Custard!</p>\r\n"
+            + "\r\n--1729--\r\n"
+            + "This is the epilogue\r\n";
+
+    private static final String MULTIPART_MIXED = "From: Samual Smith <samual@example.org>\r\n"
+            + "To: John Smith <john@example.org>\r\n"
+            + "Subject: Rhubarb!\r\n"
+            + "Content-Type: multipart/mixed;boundary=4242\r\n\r\n"
+            + "--4242\r\n"
+            + "Content-Type: text/plain;charset=us-ascii\r\n\r\n"
+            + "Rhubarb!\r\n"
+            + "\r\n--4242\r\n"
+            + "Content-Type: message/rfc822\r\n\r\n"
+            + INNER_MAIL
+            + "\r\n--4242\r\n"
+            + "Content-Type: multipart/digest; boundary=\"digest\"\r\n\r\n"
+            + "--digest\r\n\r\n"
+            + "Subject: Digested\r\n\r\n"
+            + "Digested body\r\n"
+            + "--digest--\r\n"
+            + "\r\n--4242\r\n"
+            + "Content-Type: application/octet-stream\r\n"
+            + "Content-Transfer-Encoding: base64\r\n\r\n"
+            + "Umh1YmFyYiE=\r\n"
+            + "--4242--\r\n";
+
+    private static final int[][] PATHS = { {1}, {2}, {3}, {4}, {2, 1}, {2, 2}, {3, 1} };
+
+    @Test
+    public void partsShouldMatchPartContentBuilder() throws Exception {
+        MimeStructure structure = MimeStructure.parse(stream(MULTIPART_MIXED));
+
+        for (int[] path: PATHS) {
+            MimeStructure.Part part = structure.getPart(path);
+            assertNotNull(part);
+
+            PartContentBuilder builder = build(path);
+            assertHeadersEquals(builder.getMimeHeaders(), part.getHeaders());
+            assertArrayEquals(IOUtils.toByteArray(build(path).getMimeBodyContent().getInputStream()), 
+                    range(part.getBodyStart(), part.getBodyEnd()));
+        }
+    }
+
+    @Test
+    public void embeddedMessagesShouldMatchPartContentBuilder() throws Exception {
+        MimeStructure.Part part = MimeStructure.parse(stream(MULTIPART_MIXED)).getPart(new int[] {2});
+        MimeStructure.Part embedded = part.getEmbeddedMessage();
+
+        assertEquals(MimeStructure.MESSAGE, part.getType());
+        assertHeadersEquals(build(new int[] {2}).getMessageHeaders(), embedded.getHeaders());
+        assertArrayEquals(IOUtils.toByteArray(build(new int[] {2}).getMessageBodyContent().getInputStream()), 
+                range(embedded.getBodyStart(), embedded.getBodyEnd()));
+    }
+
+    @Test
+    public void mimeDescriptorShouldMatchTheParsedOne() throws Exception {
+        MimeStructure structure = MimeStructure.parse(stream(MULTIPART_MIXED));
+
+        assertDescriptorEquals(MimeDescriptorImpl.build(stream(MULTIPART_MIXED)), structure.getMimeDescriptor(stream(headers())));
+    }
+
+    @Test
+    public void readShouldRestoreTheStructure() throws Exception {
+        MimeStructure structure = MimeStructure.parse(stream(MULTIPART_MIXED));
+
+        PropertyBuilder propertyBuilder = new PropertyBuilder();
+        propertyBuilder.setMimeStructure(structure.toByteArray());
+        MimeStructure read = MimeStructure.read(new PropertyBuilder(propertyBuilder.toProperties()).getMimeStructure());
+
+        assertArrayEquals(structure.toByteArray(), read.toByteArray());
+        assertDescriptorEquals(MimeDescriptorImpl.build(stream(MULTIPART_MIXED)), read.getMimeDescriptor(stream(headers())));
+    }
+
+    @Test
+    public void unknownPathsShouldNotBeResolved() throws Exception {
+        MimeStructure structure = MimeStructure.parse(stream(MULTIPART_MIXED));
+
+        assertNull(structure.getPart(new int[] {5}));
+        assertNull(structure.getPart(new int[] {1, 1}));
+        assertNull(structure.getPart(new int[] {4, 1}));
+    }
+
+    @Test
+    public void simpleMessagesShouldHaveNoStructure() throws Exception {
+        assertNull(MimeStructure.parse(stream("Subject: test\r\n\r\nbody\r\n")));
+    }
+
+    @Test
+    public void encodedEmbeddedMessagesShouldHaveNoStructure() throws Exception {
+        String mail = "Content-Type: multipart/mixed;boundary=4242\r\n\r\n"
+                + "--4242\r\n"
+                + "Content-Type: message/rfc822\r\n"
+                + "Content-Transfer-Encoding: base64\r\n\r\n"
+                + "U3ViamVjdDogdGVzdA0KDQpib2R5DQo=\r\n"
+                + "--4242--\r\n";
+
+        assertNull(MimeStructure.parse(stream(mail)));
+    }
+
+    private PartContentBuilder build(int[] path) throws Exception {
+        PartContentBuilder builder = new PartContentBuilder();
+        builder.parse(stream(MULTIPART_MIXED));
+        for (int position: path) {
+            builder.to(position);
+        }
+        return builder;
+    }
+
+    private static void assertHeadersEquals(List<Header> expected, List<Header> actual) throws Exception {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getName(), actual.get(i).getName());
+            assertEquals(expected.get(i).getValue(), actual.get(i).getValue());
+        }
+    }
+
+    private static void assertDescriptorEquals(MimeDescriptor expected, MimeDescriptor actual) throws Exception {
+        assertEquals(expected.getMimeType(), actual.getMimeType());
+        assertEquals(expected.getMimeSubType(), actual.getMimeSubType());
+        assertEquals(expected.getTransferContentEncoding(), actual.getTransferContentEncoding());
+        assertEquals(expected.contentTypeParameters(), actual.contentTypeParameters());
+        assertEquals(expected.getBodyOctets(), actual.getBodyOctets());
+        assertEquals(expected.getLines(), actual.getLines());
+        assertHeadersEquals(list(expected.headers()), list(actual.headers()));
+        if (expected.embeddedMessage() == null) {
+            assertNull(actual.embeddedMessage());
+        } else {
+            assertDescriptorEquals(expected.embeddedMessage(), actual.embeddedMessage());
+        }
+        Iterator<MimeDescriptor> actualParts = actual.parts();
+        for (Iterator<MimeDescriptor> it = expected.parts(); it.hasNext();) {
+            assertDescriptorEquals(it.next(), actualParts.next());
+        }
+        assertFalse(actualParts.hasNext());
+    }
+
+    private static <T> List<T> list(Iterator<T> it) {
+        List<T> list = new ArrayList<T>();
+        while (it.hasNext()) {
+            list.add(it.next());
+        }
+        return list;
+    }
+
+    private static String headers() {
+        return MULTIPART_MIXED.substring(0, MULTIPART_MIXED.indexOf("\r\n\r\n") + 4);
+    }
+
+    private static byte[] range(long start, long end) {
+        return MULTIPART_MIXED.substring((int) start, (int) end).getBytes(US_ASCII);
+    }
+
+    private static InputStream stream(String content) {
+        return new ByteArrayInputStream(content.getBytes(US_ASCII));
+    }
+}
@@ -100,6 +100,20 @@ public class PartContentBuilderMultipartAlternativeTest {
         assertEquals(ALT_PART_XHTML, fullContent(MULTIPART_ALTERNATIVE, 3));
     }
 
+    @Test
+    public void testShouldLocateFollowingPartsWithOneParse() throws Exception {
+        InputStream in = new ByteArrayInputStream(Charset.forName("us-ascii")
+                .encode(MULTIPART_ALTERNATIVE).array());
+        builder.parse(in);
+        builder.to(1);
+        assertEquals(ALT_PART_PLAIN, IOUtils.toString(builder.getFullContent().getInputStream()));
+        assertTrue(builder.toSibling(2));
+        assertEquals(CONTENT_TYPE_HTML, ((ResultHeader) builder.getMimeHeaders().get(0)).getValue());
+        assertTrue(builder.toSibling(3));
+        assertEquals(ALT_XHTML_BODY, IOUtils.toString(builder.getMimeBodyContent().getInputStream()));
+        assertFalse(builder.toSibling(2));
+    }
+
     private String fullContent(String mail, int position) throws Exception {
         InputStream in = new ByteArrayInputStream(Charset.forName("us-ascii")
                 .encode(mail).array());
@@ -0,0 +1,225 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailbox.store;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.mail.Flags;
+import javax.mail.util.SharedByteArrayInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.james.mailbox.model.Content;
+import org.apache.james.mailbox.model.FetchGroupImpl;
+import org.apache.james.mailbox.model.MessageResult;
+import org.apache.james.mailbox.model.MessageResult.FetchGroup;
+import org.apache.james.mailbox.model.MessageResult.MimePath;
+import org.apache.james.mailbox.store.mail.model.Message;
+import org.apache.james.mailbox.store.mail.model.impl.PropertyBuilder;
+import org.apache.james.mailbox.store.mail.model.impl.SimpleMessage;
+import org.apache.james.mailbox.store.streaming.PartContentBuilder;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Measures {@link ResultUtils#loadMessageResult(Message, FetchGroup)} for the section
+ * FETCHs a typical client sends when displaying a message, and checks the result against
+ * parsing every section on its own. The number of iterations can be set with the
+ * <code>store.benchmark.iterations</code> system property.
+ * It only runs with the <code>benchmark</code> profile.
+ */
+public class ResultUtilsBenchmarkTest {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ResultUtilsBenchmarkTest.class);
+
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    private static final String SIMPLE_MAIL = "From: John Smith <john@example.org>\r\n"
+            + "Subject: Custard!\r\n"
+            + "Content-Type: text/plain;charset=us-ascii\r\n\r\n"
+            + "Custard!\r\nCustard!\r\n";
+
+    private static final String MULTIPART_MAIL = "From: Samual Smith <samual@example.org>\r\n"
+            + "To: John Smith <john@example.org>\r\n"
+            + "Subject: Rhubarb!\r\n"
+            + "Content-Type: multipart/mixed;boundary=4242\r\n\r\n"
+            + "--4242\r\n"
+            + "Content-Type: text/plain;charset=us-ascii\r\n\r\n"
+            + "Rhubarb!\r\n"
+            + "\r\n--4242\r\n"
+            + "Content-Type: message/rfc822\r\n\r\n"
+            + SIMPLE_MAIL
+            + "\r\n--4242\r\n"
+            + "Content-Type: application/octet-stream\r\n"
+            + "Content-Disposition: attachment; filename=rhubarb.txt\r\n"
+            + "Content-Transfer-Encoding: base64\r\n\r\n"
+            + "Umh1YmFyYiE=\r\n"
+            + "--4242--\r\n";
+
+    @Test
+    public void fetchBodyOfSimpleMessage() throws Exception {
+        FetchGroupImpl group = new FetchGroupImpl(FetchGroup.MINIMAL);
+        group.addPartContent(new Path(1), FetchGroup.MIME_CONTENT);
+        run("body of a simple message", SIMPLE_MAIL, group);
+    }
+
+    @Test
+    public void fetchSectionsOfMultipartMessage() throws Exception {
+        FetchGroupImpl group = new FetchGroupImpl(FetchGroup.MINIMAL);
+        group.addPartContent(new Path(1), FetchGroup.MIME_HEADERS | FetchGroup.MIME_CONTENT);
+        group.addPartContent(new Path(2), FetchGroup.MIME_HEADERS | FetchGroup.HEADERS | FetchGroup.BODY_CONTENT);
+        group.addPartContent(new Path(2, 1), FetchGroup.MIME_CONTENT);
+        group.addPartContent(new Path(3), FetchGroup.FULL_CONTENT);
+        run("sections of a multipart message", MULTIPART_MAIL, group);
+    }
+
+    @Test
+    public void fetchSectionsWhichNeedParsing() throws Exception {
+        FetchGroupImpl group = new FetchGroupImpl(FetchGroup.MINIMAL);
+        group.addPartContent(new Path(1), FetchGroup.HEADERS | FetchGroup.BODY_CONTENT | FetchGroup.MIME_CONTENT);
+        group.addPartContent(new Path(3), FetchGroup.HEADERS);
+        group.addPartContent(new Path(4), FetchGroup.MIME_CONTENT);
+        run("sections of a multipart message which need parsing", MULTIPART_MAIL, group);
+    }
+
+    private void run(String profile, String mail, FetchGroup group) throws Exception {
+        int iterations = Integer.getInteger("store.benchmark.iterations", 2000);
+        for (boolean shared : new boolean[] {true, false}) {
+            Message<TestId> message = message(mail, shared);
+            verify(message, group);
+
+            for (int i = 0; i < iterations / 10; i++) {
+                ResultUtils.loadMessageResult(message, group);
+            }
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                ResultUtils.loadMessageResult(message, group);
+            }
+            long elapsed = System.nanoTime() - start;
+            LOG.info(String.format("%s from a %s stream: %.1f us per FETCH",
+                    profile, shared ? "shared" : "plain", elapsed / 1000.0 / iterations));
+        }
+    }
+
+    private void verify(Message<TestId> message, FetchGroup group) throws Exception {
+        MessageResult result = ResultUtils.loadMessageResult(message, group);
+        for (FetchGroup.PartContentDescriptor descriptor : group.getPartContentDescriptors()) {
+            MimePath path = descriptor.path();
+            int content = descriptor.content();
+            if ((content & FetchGroup.FULL_CONTENT) > 0) {
+                assertEquals(read(build(message, path).getFullContent()), read(result.getFullContent(path)));
+            }
+            if ((content & FetchGroup.BODY_CONTENT) > 0) {
+                assertEquals(read(build(message, path).getMessageBodyContent()), read(result.getBody(path)));
+            }
+            if ((content & FetchGroup.MIME_CONTENT) > 0) {
+                assertEquals(read(build(message, path).getMimeBodyContent()), read(result.getMimeBody(path)));
+            }
+            if ((content & FetchGroup.HEADERS) > 0) {
+                assertEquals(toString(build(message, path).getMessageHeaders().iterator()), toString(result.iterateHeaders(path)));
+            }
+            if ((content & FetchGroup.MIME_HEADERS) > 0) {
+                assertEquals(toString(build(message, path).getMimeHeaders().iterator()), toString(result.iterateMimeHeaders(path)));
+            }
+        }
+    }
+
+    private PartContentBuilder build(Message<TestId> message, MimePath path) throws Exception {
+        PartContentBuilder builder = new PartContentBuilder();
+        builder.parse(message.getFullContent());
+        try {
+            for (int position : path.getPositions()) {
+                builder.to(position);
+            }
+        } catch (PartContentBuilder.PartNotFoundException e) {
+            builder.markEmpty();
+        }
+        return builder;
+    }
+
+    private String read(Content content) throws IOException {
+        InputStream in = content.getInputStream();
+        try {
+            return new String(IOUtils.toByteArray(in), US_ASCII);
+        } finally {
+            in.close();
+        }
+    }
+
+    private String toString(Iterator<MessageResult.Header> headers) throws Exception {
+        List<String> result = new ArrayList<String>();
+        while (headers.hasNext()) {
+            MessageResult.Header header = headers.next();
+            result.add(header.getName() + ": " + header.getValue());
+        }
+        return result.toString();
+    }
+
+    private Message<TestId> message(final String mail, boolean shared) {
+        final byte[] content = mail.getBytes(US_ASCII);
+        int bodyStart = mail.indexOf("\r\n\r\n") + 4;
+        PropertyBuilder propertyBuilder = new PropertyBuilder();
+        propertyBuilder.setMediaType(mail.contains("multipart/mixed") ? "multipart" : "text");
+        propertyBuilder.setSubType(mail.contains("multipart/mixed") ? "mixed" : "plain");
+        if (shared) {
+            return new SimpleMessage<TestId>(new Date(), content.length, bodyStart,
+                    new SharedByteArrayInputStream(content), new Flags(), propertyBuilder, TestId.of(1L));
+        }
+        return new SimpleMessage<TestId>(new Date(), content.length, bodyStart,
+                new SharedByteArrayInputStream(content), new Flags(), propertyBuilder, TestId.of(1L)) {
+            @Override
+            public InputStream getFullContent() throws IOException {
+                return new ByteArrayInputStream(content);
+            }
+        };
+    }
+
+    private static final class Path implements MimePath {
+
+        private final int[] positions;
+
+        private Path(int... positions) {
+            this.positions = positions;
+        }
+
+        public int[] getPositions() {
+            return positions;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Path && Arrays.equals(positions, ((Path) obj).positions);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(positions);
+        }
+    }
+}
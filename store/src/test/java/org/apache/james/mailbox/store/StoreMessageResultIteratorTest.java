@@ -136,6 +136,11 @@ public class StoreMessageResultIteratorTest {
 
             }
 
+            @Override
+            public List<MessageMetaData> copy(Mailbox<TestId> mailbox, List<Message<TestId>> originals) throws MailboxException {
+                throw new UnsupportedOperationException();
+            }
+
             @Override
             public long getLastUid(Mailbox<TestId> mailbox) throws MailboxException {
                 throw new UnsupportedOperationException();
@@ -152,6 +157,10 @@ public class StoreMessageResultIteratorTest {
 
             }
 
+            @Override
+            public void saveMimeStructure(Mailbox<TestId> mailbox, Message<TestId> message, byte[] mimeStructure) throws MailboxException {
+            }
+
         }, null, range, batchSize, new FetchGroup() {
 
             @Override
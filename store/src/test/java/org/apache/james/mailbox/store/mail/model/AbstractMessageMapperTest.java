@@ -539,6 +539,27 @@ public abstract class AbstractMessageMapperTest<Id extends MailboxId> {
             .hasSize(3);
     }
 
+    @Test
+    public void updateFlagsOnRangeShouldGiveTheSameModSeqToAllChangedMessages() throws MailboxException {
+        saveMessages();
+        long modSeq = messageMapper.getHighestModSeq(benwaInboxMailbox);
+        assertThat(messageMapper.updateFlags(benwaInboxMailbox, new FlagsUpdateCalculator(new Flags(Flags.Flag.SEEN), FlagsUpdateMode.REPLACE), MessageRange.range(message1.getUid(), message3.getUid())))
+            .extracting("modSeq")
+            .containsOnly(modSeq + 1);
+        assertThat(messageMapper.getHighestModSeq(benwaInboxMailbox)).isEqualTo(modSeq + 1);
+        assertThat(messageMapper.countUnseenMessagesInMailbox(benwaInboxMailbox)).isEqualTo(2);
+    }
+
+    @Test
+    public void updateFlagsOnRangeShouldReturnChangedAndUnchangedMessagesInUidOrder() throws MailboxException {
+        saveMessages();
+        messageMapper.updateFlags(benwaInboxMailbox, new FlagsUpdateCalculator(new Flags(Flags.Flag.SEEN), FlagsUpdateMode.ADD), MessageRange.one(message2.getUid()));
+        messageMapper.updateFlags(benwaInboxMailbox, new FlagsUpdateCalculator(new Flags(Flags.Flag.SEEN), FlagsUpdateMode.ADD), MessageRange.one(message4.getUid()));
+        assertThat(messageMapper.updateFlags(benwaInboxMailbox, new FlagsUpdateCalculator(new Flags(Flags.Flag.SEEN), FlagsUpdateMode.ADD), MessageRange.all()))
+            .extracting("uid")
+            .containsExactly(message1.getUid(), message2.getUid(), message3.getUid(), message4.getUid(), message5.getUid());
+    }
+
     @Test
     public void updateFlagsWithRangeFromShouldAffectMessagesContainedInThisRange() throws MailboxException {
         saveMessages();
@@ -0,0 +1,106 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailbox.store.search;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.mail.Flags;
+import javax.mail.Flags.Flag;
+
+import org.apache.james.mailbox.model.SearchQuery;
+import org.apache.james.mailbox.model.SearchQuery.Criterion;
+import org.apache.james.mailbox.model.SearchQuery.Sort;
+import org.apache.james.mailbox.model.SearchQuery.Sort.SortClause;
+import org.apache.james.mailbox.store.SimpleMailboxMembership;
+import org.apache.james.mailbox.store.TestId;
+import org.apache.james.mailbox.store.mail.MessageMapper.FetchType;
+import org.apache.james.mailbox.store.mail.model.Message;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MessageSearchesPlanTest {
+
+    private Message<?> seenMessage;
+
+    @Before
+    public void setUp() throws Exception {
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("Subject", "custard");
+        seenMessage = new SimpleMailboxMembership(TestId.of(1), 10, 10, new Date(), 100, new Flags(Flag.SEEN),
+                "rhubarb".getBytes(), headers);
+    }
+
+    @Test
+    public void fetchTypeShouldBeMetadataForMetadataCriteria() {
+        SearchQuery query = query(SearchQuery.flagIsSet(Flag.SEEN), SearchQuery.or(SearchQuery.sizeGreaterThan(10), SearchQuery.all()));
+        assertEquals(FetchType.Metadata, MessageSearches.fetchType(query));
+    }
+
+    @Test
+    public void fetchTypeShouldBeHeadersForHeaderCriteria() {
+        SearchQuery query = query(SearchQuery.flagIsSet(Flag.SEEN), SearchQuery.not(SearchQuery.headerContains("Subject", "custard")));
+        assertEquals(FetchType.Headers, MessageSearches.fetchType(query));
+    }
+
+    @Test
+    public void fetchTypeShouldBeHeadersForHeaderSorts() {
+        SearchQuery query = query(SearchQuery.flagIsSet(Flag.SEEN));
+        query.setSorts(Arrays.asList(new Sort(SortClause.Size), new Sort(SortClause.BaseSubject)));
+        assertEquals(FetchType.Headers, MessageSearches.fetchType(query));
+    }
+
+    @Test
+    public void fetchTypeShouldBeFullForTextCriteria() {
+        SearchQuery query = query(SearchQuery.headerContains("Subject", "custard"), SearchQuery.bodyContains("rhubarb"));
+        assertEquals(FetchType.Full, MessageSearches.fetchType(query));
+    }
+
+    @Test
+    public void mayMatchShouldBeFalseWhenMetadataCriteriaDoNotMatch() throws Exception {
+        assertFalse(mayMatch(SearchQuery.flagIsUnSet(Flag.SEEN), SearchQuery.headerContains("Subject", "custard")));
+        assertFalse(mayMatch(SearchQuery.and(SearchQuery.flagIsUnSet(Flag.SEEN), SearchQuery.bodyContains("rhubarb"))));
+        assertFalse(mayMatch(SearchQuery.not(SearchQuery.or(SearchQuery.flagIsSet(Flag.SEEN), SearchQuery.bodyContains("rhubarb")))));
+    }
+
+    @Test
+    public void mayMatchShouldBeTrueWhenHeadersOrContentAreNeeded() throws Exception {
+        assertTrue(mayMatch(SearchQuery.flagIsSet(Flag.SEEN), SearchQuery.headerContains("Subject", "other")));
+        assertTrue(mayMatch(SearchQuery.or(SearchQuery.flagIsUnSet(Flag.SEEN), SearchQuery.bodyContains("other"))));
+        assertTrue(mayMatch(SearchQuery.not(SearchQuery.and(SearchQuery.flagIsSet(Flag.SEEN), SearchQuery.bodyContains("other")))));
+    }
+
+    private boolean mayMatch(Criterion... criteria) throws Exception {
+        return new MessageSearches().mayMatch(query(criteria), seenMessage);
+    }
+
+    private SearchQuery query(Criterion... criteria) {
+        SearchQuery query = new SearchQuery();
+        for (Criterion criterion : criteria) {
+            query.andCriteria(criterion);
+        }
+        return query;
+    }
+}
@@ -0,0 +1,94 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailbox.store.search;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.mail.Flags;
+
+import org.apache.james.mailbox.model.SearchQuery;
+import org.apache.james.mailbox.model.SearchQuery.Sort;
+import org.apache.james.mailbox.model.SearchQuery.Sort.SortClause;
+import org.apache.james.mailbox.store.SimpleMailboxMembership;
+import org.apache.james.mailbox.store.TestId;
+import org.apache.james.mailbox.store.mail.model.Message;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MessageSearchesSortTest {
+
+    private List<Message<?>> messages;
+
+    @Before
+    public void setUp() throws Exception {
+        messages = new ArrayList<Message<?>>();
+        messages.add(message(1, 300, "Re: banana"));
+        messages.add(message(2, 100, "apple"));
+        messages.add(message(3, 200, "Cherry"));
+        messages.add(message(4, 100, "[list] Apple"));
+    }
+
+    @Test
+    public void searchShouldReturnUidsInSortOrder() throws Exception {
+        assertEquals(Arrays.asList(2L, 4L, 1L, 3L), search(-1, new Sort(SortClause.BaseSubject)));
+    }
+
+    @Test
+    public void searchShouldKeepMessagesWithEqualKeys() throws Exception {
+        assertEquals(Arrays.asList(1L, 3L, 2L, 4L), search(-1, new Sort(SortClause.Size, true)));
+    }
+
+    @Test
+    public void searchShouldUseFollowingSortsForEqualKeys() throws Exception {
+        assertEquals(Arrays.asList(4L, 2L, 3L, 1L), search(-1, new Sort(SortClause.Size), new Sort(SortClause.Uid, true)));
+    }
+
+    @Test
+    public void searchShouldReturnFirstUidsInSortOrderWithLimit() throws Exception {
+        assertEquals(Arrays.asList(1L, 3L), search(2, new Sort(SortClause.Size, true)));
+        assertEquals(Arrays.asList(4L, 2L, 3L), search(3, new Sort(SortClause.Size), new Sort(SortClause.Uid, true)));
+        assertEquals(Arrays.asList(2L, 4L, 1L, 3L), search(10, new Sort(SortClause.BaseSubject)));
+    }
+
+    private List<Long> search(int limit, Sort... sorts) {
+        SearchQuery query = new SearchQuery();
+        query.andCriteria(SearchQuery.all());
+        query.setSorts(Arrays.asList(sorts));
+        List<Long> uids = new ArrayList<Long>();
+        Iterator<Long> it = new MessageSearches(messages.iterator(), query, null, limit).iterator();
+        while (it.hasNext()) {
+            uids.add(it.next());
+        }
+        return uids;
+    }
+
+    private Message<?> message(long uid, int size, String subject) throws Exception {
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("Subject", subject);
+        return new SimpleMailboxMembership(TestId.of(1), uid, uid, new Date(uid * 1000L), size, new Flags(), "body".getBytes(), headers);
+    }
+}
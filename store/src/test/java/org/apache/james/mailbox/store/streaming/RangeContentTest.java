@@ -0,0 +1,216 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailbox.store.streaming;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Date;
+
+import javax.mail.Flags;
+import javax.mail.util.SharedByteArrayInputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.james.mailbox.model.MessageResult;
+import org.apache.james.mailbox.store.ResultHeader;
+import org.apache.james.mailbox.store.StringBuilderChannel;
+import org.apache.james.mailbox.store.TestId;
+import org.apache.james.mailbox.store.mail.model.Message;
+import org.apache.james.mailbox.store.mail.model.impl.PropertyBuilder;
+import org.apache.james.mailbox.store.mail.model.impl.SimpleMessage;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class RangeContentTest {
+
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    private static final String MAIL = "Subject: test\r\n\r\nfirst line\r\nsecond line\r\n";
+    private static final int START = 17;
+    private static final int END = 29;
+    private static final String RANGE = "first line\r\n";
+
+    @Rule public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+    @Test
+    public void getInputStreamShouldReturnRangeOfSharedContent() throws Exception {
+        RangeContent content = new RangeContent(sharedMessage(), START, END);
+        assertEquals(RANGE.length(), content.size());
+        assertEquals(RANGE, read(content.getInputStream()));
+    }
+
+    @Test
+    public void getInputStreamShouldReturnRangeOfFileContent() throws Exception {
+        RangeContent content = new RangeContent(fileMessage(), START, END);
+        assertEquals(RANGE, read(content.getInputStream()));
+    }
+
+    @Test
+    public void getInputStreamShouldReturnRangeOfOtherContent() throws Exception {
+        RangeContent content = new RangeContent(streamMessage(), START, END);
+        assertEquals(RANGE, read(content.getInputStream()));
+    }
+
+    @Test
+    public void getInputStreamShouldSkipInsteadOfReadingTheContentBeforeTheRange() throws Exception {
+        CountingInputStream in = new CountingInputStream(new ByteArrayInputStream(MAIL.getBytes(US_ASCII)), true);
+        assertEquals(RANGE, read(new RangeContent(streamMessage(in), START, END).getInputStream()));
+        assertEquals(START, in.skipped);
+        assertEquals(RANGE.length(), in.read);
+    }
+
+    @Test
+    public void getInputStreamShouldReadTheContentBeforeTheRangeWhenSkipIsNotSupported() throws Exception {
+        CountingInputStream in = new CountingInputStream(new ByteArrayInputStream(MAIL.getBytes(US_ASCII)), false);
+        assertEquals(RANGE, read(new RangeContent(streamMessage(in), START, END).getInputStream()));
+        assertEquals(0, in.skipped);
+        assertEquals(END, in.read);
+    }
+
+    @Test(expected = IOException.class)
+    public void getInputStreamShouldFailWhenTheContentEndsBeforeTheRange() throws Exception {
+        new RangeContent(streamMessage(), MAIL.length() + 1, MAIL.length() + 2).getInputStream();
+    }
+
+    @Test
+    public void transferToShouldWriteRangeOfSharedContent() throws Exception {
+        StringBuilderChannel channel = new StringBuilderChannel();
+        assertEquals(RANGE.length(), new RangeContent(sharedMessage(), START, END).transferTo(channel));
+        assertEquals(RANGE, channel.toString());
+    }
+
+    @Test
+    public void transferToShouldWriteRangeOfFileContent() throws Exception {
+        StringBuilderChannel channel = new StringBuilderChannel();
+        assertEquals(RANGE.length(), new RangeContent(fileMessage(), START, END).transferTo(channel));
+        assertEquals(RANGE, channel.toString());
+    }
+
+    @Test
+    public void transferToShouldWriteRangeOfOtherContent() throws Exception {
+        StringBuilderChannel channel = new StringBuilderChannel();
+        assertEquals(RANGE.length(), new RangeContent(streamMessage(), START, END).transferTo(channel));
+        assertEquals(RANGE, channel.toString());
+    }
+
+    @Test
+    public void fullRangeContentShouldPrependHeaders() throws Exception {
+        FullRangeContent content = new FullRangeContent(
+                Arrays.<MessageResult.Header>asList(new ResultHeader("Content-Type", "text/plain")),
+                new RangeContent(fileMessage(), START, END));
+        String expected = "Content-Type: text/plain\r\n\r\n" + RANGE;
+
+        StringBuilderChannel channel = new StringBuilderChannel();
+        assertEquals(expected.length(), content.size());
+        assertEquals(expected, read(content.getInputStream()));
+        assertEquals(expected.length(), content.transferTo(channel));
+        assertEquals(expected, channel.toString());
+    }
+
+    private String read(InputStream in) throws IOException {
+        try {
+            return new String(IOUtils.toByteArray(in), US_ASCII);
+        } finally {
+            in.close();
+        }
+    }
+
+    private Message<TestId> sharedMessage() {
+        return new SimpleMessage<TestId>(new Date(), MAIL.length(), START,
+                new SharedByteArrayInputStream(MAIL.getBytes(US_ASCII)), new Flags(), new PropertyBuilder(), TestId.of(1L));
+    }
+
+    private Message<TestId> fileMessage() throws IOException {
+        final File file = tmpFolder.newFile();
+        FileUtils.writeStringToFile(file, MAIL, "US-ASCII");
+        return new SimpleMessage<TestId>(new Date(), MAIL.length(), START,
+                new SharedByteArrayInputStream(MAIL.getBytes(US_ASCII)), new Flags(), new PropertyBuilder(), TestId.of(1L)) {
+            @Override
+            public InputStream getFullContent() throws IOException {
+                return new FileInputStream(file);
+            }
+        };
+    }
+
+    private Message<TestId> streamMessage() {
+        return streamMessage(new ByteArrayInputStream(MAIL.getBytes(US_ASCII)));
+    }
+
+    private Message<TestId> streamMessage(final InputStream content) {
+        return new SimpleMessage<TestId>(new Date(), MAIL.length(), START,
+                new SharedByteArrayInputStream(MAIL.getBytes(US_ASCII)), new Flags(), new PropertyBuilder(), TestId.of(1L)) {
+            @Override
+            public InputStream getFullContent() throws IOException {
+                return content;
+            }
+        };
+    }
+
+    /**
+     * Count the octets which are read and skipped, a stream which does not support skipping skips nothing
+     */
+    private static class CountingInputStream extends FilterInputStream {
+
+        private final boolean skipSupported;
+        private long read;
+        private long skipped;
+
+        private CountingInputStream(InputStream in, boolean skipSupported) {
+            super(in);
+            this.skipSupported = skipSupported;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                read++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int count = super.read(b, off, len);
+            if (count > 0) {
+                read += count;
+            }
+            return count;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            if (!skipSupported) {
+                return 0;
+            }
+            long count = super.skip(n);
+            skipped += count;
+            return count;
+        }
+    }
+}
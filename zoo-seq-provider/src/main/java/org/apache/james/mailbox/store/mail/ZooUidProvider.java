@@ -72,6 +72,24 @@ public class ZooUidProvider<E extends MailboxId> implements UidProvider<E> {
         throw new MailboxException("Curator client is closed.");
     }
 
+    @Override
+    public long nextUids(MailboxSession session, Mailbox<E> mailbox, int count) throws MailboxException {
+        if (client.isStarted()) {
+            DistributedAtomicLong uid = new DistributedAtomicLong(client, pathForMailbox(mailbox), retryPolicy);
+            AtomicValue<Long> value;
+            try {
+                value = uid.add((long) count);
+            } catch (Exception e) {
+                throw new MailboxException("Exception reserving UIDs for session " + session, e);
+            }
+            if (value.succeeded()) {
+                return value.postValue() - count + 1;
+            }
+            throw new MailboxException("Failed reserving UIDs for " + session);
+        }
+        throw new MailboxException("Curator client is closed.");
+    }
+
     @Override
     public long lastUid(MailboxSession session, Mailbox<E> mailbox) throws MailboxException {
         if (client.isStarted()) {